@@ -92,4 +92,31 @@ public class FormEntrySessionTest extends BaseModuleContextSensitiveTest {
 		FormEntrySession session = new FormEntrySession(patient, htmlform, null);
 		Assert.assertEquals("<div class=\"htmlform\"></div>", session.getHtmlToDisplay());
 	}
+	
+	/**
+	 * @see {@link FormEntrySession#compact()}
+	 */
+	@Test
+	@Verifies(value = "should release what only rendering needed but keep the html", method = "compact()")
+	public void compact_shouldReleaseWhatOnlyRenderingNeededButKeepTheHtml() throws Exception {
+		String htmlform = "<htmlform><obs conceptId=\"1000\" answerConceptIds=\"1001,1002\"/></htmlform>";
+		FormEntrySession session = new FormEntrySession(patient, htmlform, null);
+		String html = session.getHtmlToDisplay();
+		long sizeBeforeCompaction = session.getEstimatedRetainedSize();
+		
+		session.compact();
+		Assert.assertTrue(session.isCompacted());
+		Assert.assertEquals(html, session.getHtmlToDisplay());
+		Assert.assertFalse(session.getContext().getFieldNames().isEmpty());
+		Assert.assertTrue(session.getEstimatedRetainedSize() < sizeBeforeCompaction);
+	}
+	
+	/**
+	 * @see {@link FormEntrySession#compact()}
+	 */
+	@Test(expected = IllegalStateException.class)
+	@Verifies(value = "should fail if the html has not been generated", method = "compact()")
+	public void compact_shouldFailIfTheHtmlHasNotBeenGenerated() throws Exception {
+		new FormEntrySession(patient, "<htmlform></htmlform>", null).compact();
+	}
 }
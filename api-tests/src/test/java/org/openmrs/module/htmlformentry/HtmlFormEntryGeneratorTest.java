@@ -49,6 +49,16 @@ public class HtmlFormEntryGeneratorTest extends BaseModuleContextSensitiveTest {
 		Assert.assertEquals("<div class=\"htmlform\">This shows a logic test for a man</div>", session.getHtmlToDisplay());
 	}
 
+	@Test
+	@Verifies(value = "should remember the result of each logic test for the session", method = "applyIncludes(FormEntrySession,String)")
+	public void applyIncludes_shouldRememberTheResultOfEachLogicTestForTheSession() throws Exception {
+		LogicUtil.registerDefaultRules();
+		String htmlform = "<htmlform><includeIf logicTest=\"GENDER = M\">first</includeIf><includeIf logicTest=\"GENDER = M\">second</includeIf></htmlform>";
+		FormEntrySession session = new FormEntrySession(patient, htmlform, null);
+		Assert.assertEquals("<div class=\"htmlform\">firstsecond</div>", session.getHtmlToDisplay());
+		Assert.assertTrue(session.getPatientData().hasLogicResult("GENDER = M"));
+	}
+
     @Test
     @Verifies(value = "should return correct xml after applying <repeat> tag", method = "applyRepeats(String)")
     public void applyRepeats_shouldReturnCorrectValueAfterApplyRepeatTag() throws Exception {
@@ -151,6 +161,20 @@ public class HtmlFormEntryGeneratorTest extends BaseModuleContextSensitiveTest {
 
     }
 
+    /**
+     * @see {@link HtmlFormEntryGenerator#applyRepeats(String)}
+     */
+    @Test
+    @Verifies(value = "should expand repeat tags nested in a template", method = "applyRepeats(String)")
+    public void applyRepeats_shouldExpandRepeatTagsNestedInATemplate() throws Exception {
+        String htmlform = "<htmlform><repeat><template><repeat><template><span>{outer}{inner}</span></template>"
+                + "<render inner=\"1\"/><render inner=\"2\"/></repeat></template><render outer=\"A\"/><render outer=\"B\"/>"
+                + "</repeat></htmlform>";
+        FormEntrySession session = new FormEntrySession(patient, htmlform, null);
+        Assert.assertTrue(session.getHtmlToDisplay().contains(
+            "<span>A1</span><span>A2</span><span>B1</span><span>B2</span>"));
+    }
+
     /**
 	 * @see {@link HtmlFormEntryGenerator#applyRoleRestrictions(String)}
      * @throws Exception
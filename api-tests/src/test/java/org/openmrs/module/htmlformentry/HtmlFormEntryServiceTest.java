@@ -2,12 +2,22 @@ package org.openmrs.module.htmlformentry;
 
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 
+import org.apache.commons.lang.StringUtils;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
+import org.openmrs.Location;
+import org.openmrs.Obs;
 import org.openmrs.Patient;
+import org.openmrs.Person;
 import org.openmrs.Role;
 import org.openmrs.User;
 import org.openmrs.api.EncounterService;
@@ -109,4 +119,245 @@ public class HtmlFormEntryServiceTest extends BaseModuleContextSensitiveTest {
         Assert.assertEquals(noEnc+1,newNoEnc);
     }
 	
-}
\ No newline at end of file
+    /**
+     * @see {@link HtmlFormEntryService#getLatestObs(org.openmrs.Person, org.openmrs.Concept)}
+     */
+    @Test
+    @Verifies(value = "should return the most recent obs for the person and concept", method = "getLatestObs(Person,Concept)")
+    public void getLatestObs_shouldReturnTheMostRecentObsForThePersonAndConcept() throws Exception {
+        Obs obs = service.getLatestObs(Context.getPatientService().getPatient(7), Context.getConceptService().getConcept(5089));
+        Assert.assertEquals(61, obs.getValueNumeric().intValue());
+    }
+
+    /**
+     * @see {@link HtmlFormEntryService#getLatestObs(org.openmrs.Person, org.openmrs.Concept)}
+     */
+    @Test
+    @Verifies(value = "should return null if the person has no obs for the concept", method = "getLatestObs(Person,Concept)")
+    public void getLatestObs_shouldReturnNullIfThePersonHasNoObsForTheConcept() throws Exception {
+        Assert.assertNull(service.getLatestObs(Context.getPatientService().getPatient(7), Context.getConceptService().getConcept(3)));
+    }
+
+    /**
+     * @see {@link HtmlFormEntryService#getEarliestObs(org.openmrs.Person, org.openmrs.Concept)}
+     */
+    @Test
+    @Verifies(value = "should return the earliest obs for the person and concept", method = "getEarliestObs(Person,Concept)")
+    public void getEarliestObs_shouldReturnTheEarliestObsForThePersonAndConcept() throws Exception {
+        Obs obs = service.getEarliestObs(Context.getPatientService().getPatient(7), Context.getConceptService().getConcept(5089));
+        Assert.assertEquals(50, obs.getValueNumeric().intValue());
+    }
+
+    /**
+     * @see {@link HtmlFormEntryService#getLatestObs(org.openmrs.Person, java.util.Collection)}
+     */
+    @Test
+    @Verifies(value = "should return the most recent obs for each concept", method = "getLatestObs(Person,Collection)")
+    public void getLatestObs_shouldReturnTheMostRecentObsForEachConcept() throws Exception {
+        Concept weight = Context.getConceptService().getConcept(5089);
+        Map<Concept, Obs> latest = service.getLatestObs(Context.getPatientService().getPatient(7), Arrays.asList(weight));
+        Assert.assertEquals(61, latest.get(weight).getValueNumeric().intValue());
+    }
+
+    /**
+     * @see {@link HtmlFormEntryService#getLatestObs(org.openmrs.Person, java.util.Collection)}
+     */
+    @Test
+    @Verifies(value = "should not include concepts the person has no obs for", method = "getLatestObs(Person,Collection)")
+    public void getLatestObs_shouldNotIncludeConceptsThePersonHasNoObsFor() throws Exception {
+        Concept weight = Context.getConceptService().getConcept(5089);
+        Concept coughSyrup = Context.getConceptService().getConcept(3);
+        Map<Concept, Obs> latest = service.getLatestObs(Context.getPatientService().getPatient(7), Arrays.asList(weight, coughSyrup));
+        Assert.assertTrue(latest.containsKey(weight));
+        Assert.assertFalse(latest.containsKey(coughSyrup));
+    }
+
+    /**
+     * @see {@link HtmlFormEntryService#getEarliestObs(org.openmrs.Person, java.util.Collection)}
+     */
+    @Test
+    @Verifies(value = "should return the earliest obs for each concept", method = "getEarliestObs(Person,Collection)")
+    public void getEarliestObs_shouldReturnTheEarliestObsForEachConcept() throws Exception {
+        Concept weight = Context.getConceptService().getConcept(5089);
+        Map<Concept, Obs> earliest = service.getEarliestObs(Context.getPatientService().getPatient(7), Arrays.asList(weight));
+        Assert.assertEquals(50, earliest.get(weight).getValueNumeric().intValue());
+    }
+
+    /**
+     * @see {@link HtmlFormEntryService#getLatestEncounter(Patient, org.openmrs.EncounterType)}
+     */
+    @Test
+    @Verifies(value = "should return the most recent encounter of any type if no type specified", method = "getLatestEncounter(Patient,EncounterType)")
+    public void getLatestEncounter_shouldReturnTheMostRecentEncounterOfAnyTypeIfNoTypeSpecified() throws Exception {
+        Patient patient = Context.getPatientService().getPatient(7);
+        List<Encounter> encounters = Context.getEncounterService().getEncountersByPatient(patient);
+        Assert.assertEquals(encounters.get(encounters.size() - 1), service.getLatestEncounter(patient, null));
+    }
+
+    /**
+     * @see {@link HtmlFormEntryService#getLatestEncounter(Patient, org.openmrs.EncounterType)}
+     */
+    @Test
+    @Verifies(value = "should return the most recent encounter of the given type", method = "getLatestEncounter(Patient,EncounterType)")
+    public void getLatestEncounter_shouldReturnTheMostRecentEncounterOfTheGivenType() throws Exception {
+        Patient patient = Context.getPatientService().getPatient(7);
+        List<Encounter> encounters = Context.getEncounterService().getEncountersByPatient(patient);
+        EncounterType type = encounters.get(0).getEncounterType();
+        Encounter latestOfType = null;
+        for (Encounter encounter : encounters) {
+            if (encounter.getEncounterType().equals(type)) {
+                latestOfType = encounter;
+            }
+        }
+        Assert.assertEquals(latestOfType, service.getLatestEncounter(patient, type));
+    }
+
+    /**
+     * @see {@link HtmlFormEntryService#getPeopleAsPersonStubs(String, List, List, List, List, PersonStub, Integer)}
+     */
+    @Test
+    @Verifies(value = "should return people whose names start with the search phrase", method = "getPeopleAsPersonStubs(String,List,List,List,List,PersonStub,Integer)")
+    public void getPeopleAsPersonStubs_shouldReturnPeopleWhoseNamesStartWithTheSearchPhrase() throws Exception {
+        List<PersonStub> stubs = service.getPeopleAsPersonStubs("chebask", null, null, null, null, null, null);
+        Assert.assertEquals(1, stubs.size());
+        Assert.assertEquals(Integer.valueOf(7), stubs.get(0).getId());
+        Assert.assertEquals("Chebaskwony", stubs.get(0).getFamilyName());
+        Assert.assertTrue(service.getPeopleAsPersonStubs("baskwony", null, null, null, null, null, null).isEmpty());
+    }
+
+    /**
+     * @see {@link HtmlFormEntryService#getPeopleAsPersonStubs(String, List, List, List, List, PersonStub, Integer)}
+     */
+    @Test
+    @Verifies(value = "should not return excluded people", method = "getPeopleAsPersonStubs(String,List,List,List,List,PersonStub,Integer)")
+    public void getPeopleAsPersonStubs_shouldNotReturnExcludedPeople() throws Exception {
+        List<Person> excluded = Arrays.asList((Person) Context.getPatientService().getPatient(7));
+        Assert.assertTrue(service.getPeopleAsPersonStubs("chebask", null, null, null, excluded, null, null).isEmpty());
+    }
+
+    /**
+     * @see {@link HtmlFormEntryService#getPeopleAsPersonStubs(String, List, List, List, List, PersonStub, Integer)}
+     */
+    @Test
+    @Verifies(value = "should return the page after the given person", method = "getPeopleAsPersonStubs(String,List,List,List,List,PersonStub,Integer)")
+    public void getPeopleAsPersonStubs_shouldReturnThePageAfterTheGivenPerson() throws Exception {
+        List<PersonStub> all = service.getPeopleAsPersonStubs("test", null, null, null, null, null, null);
+        Assert.assertTrue(all.size() > 1);
+
+        List<PersonStub> firstPage = service.getPeopleAsPersonStubs("test", null, null, null, null, null, 1);
+        Assert.assertEquals(1, firstPage.size());
+        Assert.assertEquals(all.get(0).getId(), firstPage.get(0).getId());
+
+        List<PersonStub> secondPage = service.getPeopleAsPersonStubs("test", null, null, null, null, firstPage.get(0), 1);
+        Assert.assertEquals(1, secondPage.size());
+        Assert.assertEquals(all.get(1).getId(), secondPage.get(0).getId());
+    }
+
+    /**
+     * @see {@link HtmlFormEntryService#getPeopleAsPersonStubs(String, List, List, List, List, PersonStub, Integer)}
+     */
+    @Test
+    @Verifies(value = "should order people by name", method = "getPeopleAsPersonStubs(String,List,List,List,List,PersonStub,Integer)")
+    public void getPeopleAsPersonStubs_shouldOrderPeopleByName() throws Exception {
+        List<PersonStub> all = service.getPeopleAsPersonStubs("test", null, null, null, null, null, null);
+        Assert.assertTrue(all.size() > 1);
+        for (int i = 1; i < all.size(); i++) {
+            String previous = StringUtils.defaultString(all.get(i - 1).getFamilyName());
+            String current = StringUtils.defaultString(all.get(i).getFamilyName());
+            Assert.assertTrue(previous.compareTo(current) <= 0);
+        }
+    }
+
+    /**
+     * @see {@link HtmlFormEntryService#saveHtmlForm(HtmlForm)}
+     */
+    @Test
+    @Verifies(value = "should record the objects the form references", method = "saveHtmlForm(HtmlForm)")
+    public void saveHtmlForm_shouldRecordTheObjectsTheFormReferences() throws Exception {
+        HtmlForm htmlForm = service.getHtmlForm(1);
+        htmlForm.setXmlData("<htmlform><obs conceptId=\"5089\"/></htmlform>");
+        service.saveHtmlForm(htmlForm);
+
+        Concept weight = Context.getConceptService().getConcept(5089);
+        List<HtmlFormDependency> dependencies = service.getHtmlFormDependencies(htmlForm);
+        Assert.assertEquals(1, dependencies.size());
+        Assert.assertEquals(weight.getUuid(), dependencies.get(0).getObjectUuid());
+        Assert.assertEquals(Concept.class.getName(), dependencies.get(0).getReferenceType());
+        Assert.assertEquals(Arrays.asList(htmlForm), service.getHtmlFormsReferencing(weight));
+    }
+
+    /**
+     * @see {@link HtmlFormEntryService#saveHtmlForm(HtmlForm)}
+     */
+    @Test
+    @Verifies(value = "should tell other servers to evict the cached entries of the form", method = "saveHtmlForm(HtmlForm)")
+    public void saveHtmlForm_shouldTellOtherServersToEvictTheCachedEntriesOfTheForm() throws Exception {
+        HtmlForm htmlForm = service.getHtmlForm(1);
+        service.saveHtmlForm(htmlForm);
+        Assert.assertEquals(Long.valueOf(1), getCacheVersion("htmlForm:1"));
+
+        service.saveHtmlForm(htmlForm);
+        Assert.assertEquals(Long.valueOf(2), getCacheVersion("htmlForm:1"));
+    }
+
+    /**
+     * @see {@link HtmlFormEntryService#getEncounterModifiedTimestamp(Encounter)}
+     */
+    @Test
+    @Verifies(value = "should change when an obs of the encounter is voided", method = "getEncounterModifiedTimestamp(Encounter)")
+    public void getEncounterModifiedTimestamp_shouldChangeWhenAnObsOfTheEncounterIsVoided() throws Exception {
+        Encounter encounter = Context.getEncounterService().getEncounter(3);
+        long before = service.getEncounterModifiedTimestamp(encounter);
+        Assert.assertTrue(before >= encounter.getDateCreated().getTime());
+
+        Obs obs = encounter.getObs().iterator().next();
+        Context.getObsService().voidObs(obs, "testing");
+        Context.flushSession();
+
+        long after = service.getEncounterModifiedTimestamp(encounter);
+        Assert.assertEquals(obs.getDateVoided().getTime(), after);
+        Assert.assertTrue(after > before);
+    }
+
+    /**
+     * @see {@link HtmlFormEntryService#getNonRetiredCount(Class)}
+     */
+    @Test
+    @Verifies(value = "should count only non-retired metadata", method = "getNonRetiredCount(Class)")
+    public void getNonRetiredCount_shouldCountOnlyNonRetiredMetadata() throws Exception {
+        int count = service.getNonRetiredCount(Location.class);
+        Assert.assertEquals(Context.getLocationService().getAllLocations(false).size(), count);
+
+        Location location = Context.getLocationService().getAllLocations(false).get(0);
+        Context.getLocationService().retireLocation(location, "testing");
+        Assert.assertEquals(count - 1, service.getNonRetiredCount(Location.class));
+    }
+
+    private Long getCacheVersion(String cacheKey) {
+        for (CacheVersion cacheVersion : service.getCacheVersions()) {
+            if (cacheVersion.getCacheKey().equals(cacheKey)) {
+                return cacheVersion.getVersion();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @see {@link HtmlFormEntryService#indexHtmlFormDependencies()}
+     */
+    @Test
+    @Verifies(value = "should record the dependencies of forms that have none recorded", method = "indexHtmlFormDependencies()")
+    public void indexHtmlFormDependencies_shouldRecordTheDependenciesOfFormsThatHaveNoneRecorded() throws Exception {
+        HtmlForm htmlForm = service.getHtmlForm(1);
+        htmlForm.setXmlData("<htmlform><obs conceptId=\"5089\"/></htmlform>");
+        Assert.assertEquals(0, service.getHtmlFormDependencies(htmlForm).size());
+
+        service.indexHtmlFormDependencies();
+
+        Concept weight = Context.getConceptService().getConcept(5089);
+        List<HtmlFormDependency> dependencies = service.getHtmlFormDependencies(htmlForm);
+        Assert.assertEquals(1, dependencies.size());
+        Assert.assertEquals(weight.getUuid(), dependencies.get(0).getObjectUuid());
+    }
+
+}
@@ -109,4 +109,35 @@ public class HtmlFormValidatorTest extends BaseModuleContextSensitiveTest {
 		Assert.assertEquals(0, errors.getErrorCount());
 		Assert.assertEquals(3, validator.getHtmlFormWarnings().size());
 	}
+
+	/**
+	 * @see {@link HtmlFormValidator#validate(Object,Errors)}
+	 */
+	@Test
+	@Verifies(value = "should warn about expensive patterns and estimate the render cost", method = "validate(Object,Errors)")
+	public void validate_shouldWarnAboutExpensivePatternsAndEstimateTheRenderCost() throws Exception {
+		String xml = "<htmlform>"
+				+ "<obsgroup groupingConceptId=\"23\"><obsgroup groupingConceptId=\"23\"><obsgroup groupingConceptId=\"23\">"
+				+ "<obs conceptId=\"18\" />"
+				+ "</obsgroup></obsgroup></obsgroup>\n"
+				+ "<repeat><template><lookup expression=\"fn.allObs({conceptId})\"/></template>"
+				+ "<render conceptId=\"5089\"/><render conceptId=\"5497\"/></repeat>\n"
+				+ "Date: <encounterDate/>Location: <encounterLocation order=\"1\"/>"
+				+ "Provider: <encounterProvider role=\"Provider\"/>"
+				+ "Encounter Type: <encounterType />"
+				+ "<submit/>"
+				+ "</htmlform>";
+		HtmlForm htmlForm = new HtmlForm();
+		Form form = Context.getFormService().getForm(1);
+		htmlForm.setXmlData(xml);
+		htmlForm.setForm(form);
+		Errors errors = new BindException(htmlForm, "htmlForm");
+		HtmlFormValidator validator = new HtmlFormValidator();
+		validator.validate(htmlForm, errors);
+		Assert.assertEquals(0, errors.getErrorCount());
+		// the obs group nested three deep, fn.allObs in both copies of the repeat, and the estimated cost
+		Assert.assertEquals(3, validator.getHtmlFormWarnings().size());
+		Assert.assertEquals(RenderCostAnalyzer.NESTED_OBS_GROUP_COST + 2 * RenderCostAnalyzer.ALL_OBS_COST,
+		    validator.getRenderCost());
+	}
 }
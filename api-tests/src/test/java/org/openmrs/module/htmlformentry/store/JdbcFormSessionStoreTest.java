@@ -0,0 +1,96 @@
+package org.openmrs.module.htmlformentry.store;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
+import org.openmrs.module.htmlformentry.HtmlFormEntryService;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+public class JdbcFormSessionStoreTest extends BaseModuleContextSensitiveTest {
+
+	private JdbcFormSessionStore store;
+
+	@Before
+	public void before() throws Exception {
+		store = Context.getRegisteredComponent("htmlformentry.JdbcFormSessionStore", JdbcFormSessionStore.class);
+	}
+
+	/**
+	 * @see {@link JdbcFormSessionStore#save(FormSessionState)}
+	 */
+	@Test
+	@Verifies(value = "should store the state in the database", method = "save(FormSessionState)")
+	public void save_shouldStoreTheStateInTheDatabase() throws Exception {
+		store.save(newState("key", "12.5"));
+		Context.flushSession();
+		Context.clearSession();
+
+		FormSessionState stored = store.get("key");
+		Assert.assertNotNull(stored);
+		Assert.assertEquals("user-uuid", stored.getUserUuid());
+		Assert.assertEquals(Integer.valueOf(1), stored.getHtmlFormId());
+		Assert.assertEquals(Mode.ENTER, stored.getMode());
+		Assert.assertArrayEquals(new String[] { "12.5" }, stored.getParameterMap().get("w2"));
+		Assert.assertNull(store.get("other key"));
+	}
+
+	/**
+	 * @see {@link JdbcFormSessionStore#save(FormSessionState)}
+	 */
+	@Test
+	@Verifies(value = "should replace a state stored under the same key", method = "save(FormSessionState)")
+	public void save_shouldReplaceAStateStoredUnderTheSameKey() throws Exception {
+		store.save(newState("key", "12.5"));
+		Context.flushSession();
+		Context.clearSession();
+		store.save(newState("key", "13"));
+		Context.flushSession();
+		Context.clearSession();
+
+		Assert.assertArrayEquals(new String[] { "13" }, store.get("key").getParameterMap().get("w2"));
+	}
+
+	/**
+	 * @see {@link JdbcFormSessionStore#get(String)}
+	 */
+	@Test
+	@Verifies(value = "should discard expired states", method = "get(String)")
+	public void get_shouldDiscardExpiredStates() throws Exception {
+		FormSessionState state = newState("key", "12.5");
+		state.setDateUpdated(System.currentTimeMillis() - FormSessionStore.MAX_AGE_MILLIS - 1);
+		store.save(state);
+		Context.flushSession();
+		Context.clearSession();
+
+		Assert.assertNull(store.get("key"));
+		Context.clearSession();
+		Assert.assertNull(Context.getService(HtmlFormEntryService.class).getStoredFormSession("key"));
+	}
+
+	/**
+	 * @see {@link JdbcFormSessionStore#remove(String)}
+	 */
+	@Test
+	@Verifies(value = "should remove the state from the database", method = "remove(String)")
+	public void remove_shouldRemoveTheStateFromTheDatabase() throws Exception {
+		store.save(newState("key", "12.5"));
+		Context.flushSession();
+		store.remove("key");
+		Context.clearSession();
+
+		Assert.assertNull(store.get("key"));
+	}
+
+	private FormSessionState newState(String key, String weight) {
+		FormSessionState state = new FormSessionState();
+		state.setKey(key);
+		state.setUserUuid("user-uuid");
+		state.setHtmlFormId(1);
+		state.setMode(Mode.ENTER);
+		state.getParameterMap().put("w2", new String[] { weight });
+		return state;
+	}
+}
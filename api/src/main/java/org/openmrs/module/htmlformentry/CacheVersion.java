@@ -0,0 +1,50 @@
+package org.openmrs.module.htmlformentry;
+
+import java.util.Date;
+
+/**
+ * The version of one group of cached entries, e.g. those of a single html form, which is increased whenever any
+ * server changes what the entries were built from (see
+ * {@link org.openmrs.module.htmlformentry.cache.DatabaseCacheInvalidationChannel})
+ */
+public class CacheVersion {
+	
+	private String cacheKey;
+	
+	private Long version;
+	
+	private Date dateChanged;
+	
+	public CacheVersion() {
+	}
+	
+	public CacheVersion(String cacheKey, Long version, Date dateChanged) {
+		this.cacheKey = cacheKey;
+		this.version = version;
+		this.dateChanged = dateChanged;
+	}
+	
+	public String getCacheKey() {
+		return cacheKey;
+	}
+	
+	public void setCacheKey(String cacheKey) {
+		this.cacheKey = cacheKey;
+	}
+	
+	public Long getVersion() {
+		return version;
+	}
+	
+	public void setVersion(Long version) {
+		this.version = version;
+	}
+	
+	public Date getDateChanged() {
+		return dateChanged;
+	}
+	
+	public void setDateChanged(Date dateChanged) {
+		this.dateChanged = dateChanged;
+	}
+}
@@ -32,6 +32,8 @@ import org.openmrs.module.htmlformentry.schema.HtmlFormSchema;
 import org.openmrs.module.htmlformentry.schema.HtmlFormSection;
 import org.openmrs.module.htmlformentry.schema.ObsGroup;
 import org.openmrs.module.htmlformentry.widget.ErrorWidget;
+import org.openmrs.module.htmlformentry.widget.Option;
+import org.openmrs.module.htmlformentry.widget.SingleOptionWidget;
 import org.openmrs.module.htmlformentry.widget.Widget;
 import org.openmrs.util.LocaleUtility;
 import org.openmrs.util.OpenmrsUtil;
@@ -727,6 +729,14 @@ public class FormEntryContext {
     public Translator getTranslator() {
     	return translator;
     }
+
+    /**
+     * Sets the translator associated with the context, e.g. to one shared by all sessions of a form
+     * @param translator
+     */
+    public void setTranslator(Translator translator) {
+    	this.translator = translator;
+    }
     
     /**
      * Return the HTML Form schema currently associated with the context
@@ -789,6 +799,32 @@ public class FormEntryContext {
     public Map<Concept, List<Order>> getExistingOrders() {
         return existingOrders;
     }
+
+    /**
+     * Releases what is only needed while generating the html of the form: the DOM of obs groups that could not be
+     * matched, the existing obs and orders that no tag claimed, and the options of each widget. The widgets and their
+     * field names are kept, as are the existing obs and orders each submission element took, since handling the
+     * submission needs them.
+     * 
+     * @see FormEntrySession#compact()
+     */
+    public void compact() {
+        unmatchedObsGroupEntities = null;
+        if (existingObs != null) {
+            existingObs = new HashMap<Concept, List<Obs>>();
+        }
+        if (existingOrders != null) {
+            existingOrders = new HashMap<Concept, List<Order>>();
+        }
+        if (existingObsInGroups != null) {
+            existingObsInGroups = new LinkedHashMap<Obs, Set<Obs>>();
+        }
+        for (Widget widget : fieldNames.keySet()) {
+            if (widget instanceof SingleOptionWidget) {
+                ((SingleOptionWidget) widget).setOptions(new ArrayList<Option>());
+            }
+        }
+    }
     
     /**
      * Sets up the necessary information so that the javascript getField, getValue and setValue
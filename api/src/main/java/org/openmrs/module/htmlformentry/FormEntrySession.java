@@ -3,9 +3,11 @@ package org.openmrs.module.htmlformentry;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
@@ -32,11 +34,20 @@ import org.openmrs.Relationship;
 import org.openmrs.api.ObsService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
+import org.openmrs.module.htmlformentry.cache.CompiledFormCache;
+import org.openmrs.module.htmlformentry.cache.RenderedHtmlCache;
+import org.openmrs.module.htmlformentry.compiler.CompiledForm;
+import org.openmrs.module.htmlformentry.metrics.FormMetrics;
+import org.openmrs.module.htmlformentry.metrics.FormProfiler;
+import org.openmrs.module.htmlformentry.metrics.StageTimings;
+import org.openmrs.module.htmlformentry.compiler.ConditionContext;
 import org.openmrs.module.htmlformentry.compatibility.PatientServiceCompatibility;
 import org.openmrs.module.htmlformentry.property.ExitFromCareProperty;
 import org.openmrs.module.htmlformentry.velocity.VelocityContextContentProvider;
 import org.openmrs.module.htmlformentry.widget.AutocompleteWidget;
 import org.openmrs.module.htmlformentry.widget.ConceptSearchAutocompleteWidget;
+import org.openmrs.module.htmlformentry.widget.Option;
+import org.openmrs.module.htmlformentry.widget.SingleOptionWidget;
 import org.openmrs.module.htmlformentry.widget.Widget;
 import org.openmrs.util.OpenmrsUtil;
 import org.springframework.util.StringUtils;
@@ -78,6 +89,24 @@ public class FormEntrySession {
      */
     protected final Log log = LogFactory.getLog(getClass());
 
+    // rough sizes, in bytes, used to estimate what a session retains
+    private static final long SESSION_BYTES = 2 * 1024;
+
+    private static final long VELOCITY_BYTES = 256 * 1024;
+
+    private static final long WIDGET_BYTES = 256;
+
+    private static final long OPTION_BYTES = 96;
+
+    private static final long EXISTING_DATA_BYTES = 512;
+
+    private static final long UNMATCHED_OBS_GROUP_BYTES = 4 * 1024;
+
+    // how often sessions check for caches other servers have made stale
+    private static final long CACHE_SYNC_INTERVAL_MILLIS = 5 * 1000;
+
+    private static volatile long lastCacheSync = 0;
+
     private Form form;
 
     private Encounter encounter;
@@ -94,6 +123,9 @@ public class FormEntrySession {
     // post-submission action. Values will be substituted for {{patient.id}} and {{encounter.id}}.
     private String afterSaveUrlTemplate;
 
+    // The key the form being filled in is kept under in the FormSessionStore, so it can be picked up again on any server
+    private String formSessionKey;
+
     private HtmlForm htmlForm;
 
     private long formModifiedTimestamp; // if we are not using sessions, and the structure of the form is modified while a user is filling one out, we need to be able to panic
@@ -113,6 +145,12 @@ public class FormEntrySession {
 
     private VelocityContext velocityContext;
 
+    private PatientDataSnapshot patientData = new PatientDataSnapshot();
+
+    private CompiledForm compiledForm;
+
+    private ConditionContext conditionContext;
+
     private boolean voidEncounter = false;
     
     private String hasChangedInd = "false";
@@ -121,6 +159,14 @@ public class FormEntrySession {
 
     private String xmlDefinition;
 
+    private Set<String> formTagNames; // the tags used by the form, collected while preprocessing it
+
+    private StageTimings tagTimings; // only while the form renders
+
+    private boolean compacted = false;
+
+    private String cachedFieldAccessorJavascript; // set when the html came from the rendered html cache
+
     /**
      * Applications and UI Frameworks that embed HTML Forms may store context variables as attributes to make them available to tags
      */
@@ -136,6 +182,9 @@ public class FormEntrySession {
      * @param httpSession
      */
     private FormEntrySession(Patient patient, FormEntryContext.Mode mode, Location defaultLocation, HttpSession httpSession) {
+        // drop whatever other servers have made stale before any cached form, schema or rendering is used
+        syncCaches();
+
         context = new FormEntryContext(mode);
         context.setDefaultLocation(defaultLocation);
         context.setHttpSession(httpSession);
@@ -371,6 +420,10 @@ public class FormEntrySession {
      * @returns
      */
     public String evaluateVelocityExpression(String velocityExpression) {
+        if (compacted) {
+            throw new IllegalStateException("Velocity expressions cannot be evaluated once the session is compacted");
+        }
+        FormProfiler.count(FormProfiler.VELOCITY);
         StringWriter writer = new StringWriter();
         try {
             velocityEngine.evaluate(velocityContext, writer, FormEntrySession.class.getName(), velocityExpression);
@@ -401,29 +454,79 @@ public class FormEntrySession {
      * @should return correct xml with a compound expression in an includeIf tag
      */
     public String createForm(String xml) throws Exception {
+        FormProfiler profiler = FormProfiler.getInstance();
+        FormProfiler.Profile profile = profiler.start(this, FormProfiler.RENDER);
+        try {
+            return renderForm(xml);
+        }
+        finally {
+            profiler.stop(profile);
+        }
+    }
+
+    private String renderForm(String xml) throws Exception {
         if (htmlForm != null) {
             context.getSchema().setName(htmlForm.getName());
             context.setUnmatchedMode(false);
         }
-        xml = htmlGenerator.stripComments(xml);
-        xml = htmlGenerator.convertSpecialCharactersWithinLogicAndVelocityTests(xml);
-        xml = htmlGenerator.applyRoleRestrictions(xml);
-        xml = htmlGenerator.applyMacros(this, xml);
-        xml = htmlGenerator.applyRepeats(xml);
-        xml = htmlGenerator.applyTranslations(xml, context);
+        FormMetrics metrics = FormMetrics.getInstance();
+        FormMetrics.Timer timer = metrics.startTimer(getHtmlFormId());
+        compiledForm = Context.getRegisteredComponent("htmlformentry.CompiledFormCache", CompiledFormCache.class)
+                .getCompiledForm(htmlForm, xml);
+        timer.lap("render.compile");
+        prefetchPatientData();
+        timer.lap("render.prefetch");
+        FormPreprocessor.Result preprocessed = htmlGenerator.preprocess(xml);
+        formTagNames = preprocessed.getTagNames();
+        timer.lap("render.preprocess");
+        xml = htmlGenerator.applyMacros(this, preprocessed.getXml());
+        timer.lap("render.macros");
+        // the <repeat> templates are expanded on the document applyTags parses, so only <repeat with> is expanded here
+        xml = htmlGenerator.applyRepeatWithTags(xml);
+        timer.lap("render.repeats");
+        xml = htmlGenerator.applyTranslations(this, xml, context);
+        timer.lap("render.translations");
+        tagTimings = new StageTimings();
         xml = htmlGenerator.applyTags(this, xml);
+        timer.lap("render.tags");
 
         if (context.hasUnmatchedObsGroupEntities() && (context.getMode() == Mode.EDIT || context.getMode() == Mode.VIEW)) {
             if (context.getUnmatchedObsGroupEntities().size() > 1 && context.getExistingObsInGroupsCount() > 0)
                 context.setGuessingInd(true);
             context.setUnmatchedMode(true);
             xml = htmlGenerator.applyUnmatchedTags(this, xml);
+            timer.lap("render.unmatched");
+        }
+        if (FormProfiler.getCurrentProfile() != null) {
+            FormProfiler.getCurrentProfile().addTagTimings(tagTimings);
         }
+        tagTimings.flush(metrics, getHtmlFormId(), "tag.");
+        tagTimings = null;
 
         xml = htmlGenerator.wrapInDiv(xml);
+        timer.stop(FormMetrics.RENDER);
         return xml;
     }
 
+    /**
+     * @return where the time spent in each tag handler is added up while the form renders, or null if it is not
+     *         rendering
+     */
+    public StageTimings getTagTimings() {
+        return tagTimings;
+    }
+
+    /**
+     * Fetches, in a few batched queries, all the data of a saved patient that the form refers to through velocity
+     * functions and logic tests, so that rendering the form does not need one query per reference
+     */
+    private void prefetchPatientData() {
+        if (patient == null || patient.getPersonId() == null || "testing-html-form-entry".equals(patient.getUuid())) {
+            return;
+        }
+        patientData.prefetch(patient, compiledForm);
+    }
+
     /**
      * If the html form contains both PatientTags and Encounter tags then initialize it with the
      * Patient and Encounter associated with the Form else if htmlform only contains PatientTags
@@ -466,6 +569,8 @@ public class FormEntrySession {
      * @throws BadFormDesignException
      */
     public void applyActions() throws BadFormDesignException {
+        FormMetrics.Timer timer = FormMetrics.getInstance().startTimer(getHtmlFormId());
+
         // if any encounter to be created by this form is missing a required field, throw an error
         // (If there's a widget but it was left blank, that would have been caught earlier--this
         // is for when there was no widget in the first place.)
@@ -539,6 +644,8 @@ public class FormEntrySession {
             }
         }
 
+        timer.lap("apply.prepare");
+
         // TODO wrap this in a transaction
         if (submissionActions.getPersonsToCreate() != null) {
             for (Person p : submissionActions.getPersonsToCreate()) {
@@ -555,6 +662,7 @@ public class FormEntrySession {
                 }
                 Context.getPersonService().savePerson(p);
             }
+            timer.lap("apply.person");
         }
         if (submissionActions.getEncountersToCreate() != null) {
             for (Encounter e : submissionActions.getEncountersToCreate()) {
@@ -565,6 +673,7 @@ public class FormEntrySession {
                 }
                 Context.getEncounterService().saveEncounter(encounter);
             }
+            timer.lap("apply.encounter");
         }
 
         //deal with relationships
@@ -575,6 +684,7 @@ public class FormEntrySession {
                 }
                 Context.getPersonService().saveRelationship(r);
             }
+            timer.lap("apply.relationship");
         }
 
         if (submissionActions.getRelationshipsToVoid() != null) {
@@ -584,6 +694,7 @@ public class FormEntrySession {
                 }
                 Context.getPersonService().voidRelationship(r, "htmlformentry");
             }
+            timer.lap("apply.relationship");
         }
 
         if (submissionActions.getRelationshipsToEdit() != null) {
@@ -593,6 +704,7 @@ public class FormEntrySession {
                 }
                 Context.getPersonService().saveRelationship(r);
             }
+            timer.lap("apply.relationship");
         }
 
         // program enrollments are trickier since we need to make sure the patient isn't already enrolled
@@ -630,6 +742,7 @@ public class FormEntrySession {
                     Context.getProgramWorkflowService().savePatientProgram(toCreate);
                 }
             }
+            timer.lap("apply.patientProgram");
         }
 
         //complete any necessary programs
@@ -637,12 +750,14 @@ public class FormEntrySession {
             for (PatientProgram toComplete : submissionActions.getPatientProgramsToComplete()) {
                 Context.getProgramWorkflowService().savePatientProgram(toComplete);
             }
+            timer.lap("apply.patientProgram");
         }
 
         if (submissionActions.getPatientProgramsToUpdate() != null) {
             for (PatientProgram patientProgram : submissionActions.getPatientProgramsToUpdate()) {
                 Context.getProgramWorkflowService().savePatientProgram(patientProgram);
             }
+            timer.lap("apply.patientProgram");
         }
 
         ObsService obsService = Context.getObsService();
@@ -655,6 +770,7 @@ public class FormEntrySession {
                 // if o was in a group and that group has no obs left, void the group
 				voidObsGroupIfAllChildObsVoided(o.getObsGroup());
             }
+            timer.lap("apply.obs");
         }
 
         // If we're in EDIT mode, we have to save the encounter so that any new obs are created.
@@ -676,6 +792,7 @@ public class FormEntrySession {
                 for (Obs o : submissionActions.getObsToCreate())
                     obsService.saveObs(o, null);
             }
+            timer.lap("apply.encounter");
         }
 
         /*
@@ -694,6 +811,7 @@ public class FormEntrySession {
 				patientIdentifier.setVoidReason(getForm().getName()); // Use form name as reason
 				patientIdentifier.setDateVoided(new Date());
 			}
+			timer.lap("apply.identifier");
 		}
 
         // save the patient
@@ -703,6 +821,7 @@ public class FormEntrySession {
         // into a Hibernate Interceptor (which happens in 1.9)
         if (patient != null && submissionActions.getPatientUpdateRequired()) {
             Context.getPersonService().savePerson(patient);
+            timer.lap("apply.patient");
         }
 
         // exit the patient from care or process patient's death
@@ -716,16 +835,18 @@ public class FormEntrySession {
             	PatientServiceCompatibility patientService = Context.getRegisteredComponent("htmlformentry.PatientServiceCompatibility", PatientServiceCompatibility.class);
             	patientService.exitFromCare(this.getPatient(), exitFromCareProperty.getDateOfExit(), exitFromCareProperty.getReasonExitConcept());
             }
-
+            timer.lap("apply.exitFromCare");
         }
 
         // handle any custom actions (for an example of a custom action, see: https://github.com/PIH/openmrs-module-appointmentschedulingui/commit/e2cda8de1caa8a45d319ae4fbf7714c90c9adb8b)
         if (submissionActions.getCustomFormSubmissionActions() != null) {
             for (CustomFormSubmissionAction customFormSubmissionAction : submissionActions.getCustomFormSubmissionActions()) {
                 customFormSubmissionAction.applyAction(this);
+                timer.lap("apply." + customFormSubmissionAction.getClass().getSimpleName());
             }
         }
 
+        timer.stop(FormMetrics.APPLY);
     }
 
     /**
@@ -800,6 +921,114 @@ public class FormEntrySession {
         return htmlToDisplay;
     }
 
+    /**
+     * Returns the form display HTML like {@link #getHtmlToDisplay()}, but in VIEW mode reuses the html rendered for
+     * the same version of the form and the encounter, in the same locale and for the same roles, if there is any.
+     * <p/>
+     * The tags of the form are not run when the html comes from the cache, so the session has no widgets or
+     * submission actions, and should only be used to display the encounter.
+     *
+     * @see RenderedHtmlCache
+     */
+    public String getViewHtmlToDisplay() throws Exception {
+        if (htmlToDisplay == null) {
+            RenderedHtmlCache cache = Context.getRegisteredComponent("htmlformentry.RenderedHtmlCache",
+                    RenderedHtmlCache.class);
+            String key = cache.getKey(this);
+            RenderedHtmlCache.Rendering cached = key == null ? null : cache.get(key);
+            if (cached != null) {
+                htmlToDisplay = cached.getHtml();
+                cachedFieldAccessorJavascript = cached.getFieldAccessorJavascript();
+                context.setGuessingInd(cached.isGuessing());
+            } else {
+                htmlToDisplay = createForm(xmlDefinition);
+                if (key != null) {
+                    cache.put(key, new RenderedHtmlCache.Rendering(htmlToDisplay, getFieldAccessorJavascript(),
+                            "true".equals(context.getGuessingInd())));
+                }
+            }
+        }
+        return htmlToDisplay;
+    }
+
+    /**
+     * Releases everything that was only needed to generate the html of the form, so that a session kept around to
+     * handle its submission (e.g. in the model, or as volatile user data) retains as little as possible. The session
+     * keeps what submission needs: the generated html, the widgets and their field names, the submission actions, and
+     * the existing obs and orders each submission element took.
+     * <p/>
+     * Velocity expressions cannot be evaluated once a session is compacted.
+     *
+     * @throws IllegalStateException if the html of the form has not been generated yet
+     */
+    public void compact() {
+        if (htmlToDisplay == null) {
+            throw new IllegalStateException("The html of the form must be generated before the session is compacted");
+        }
+        velocityEngine = null;
+        velocityContext = null;
+        htmlGenerator = null;
+        patientData = new PatientDataSnapshot();
+        conditionContext = null;
+        context.compact();
+        compacted = true;
+    }
+
+    /**
+     * @return whether {@link #compact()} has been called
+     */
+    public boolean isCompacted() {
+        return compacted;
+    }
+
+    /**
+     * @return a rough estimate, in bytes, of the memory this session keeps alive, from the size of the html and xml it
+     *         holds and the number of widgets, options and existing data
+     */
+    public long getEstimatedRetainedSize() {
+        long size = SESSION_BYTES + stringSize(htmlToDisplay) + stringSize(xmlDefinition);
+        if (velocityContext != null) {
+            size += VELOCITY_BYTES;
+        }
+        for (Widget widget : context.getFieldNames().keySet()) {
+            size += WIDGET_BYTES;
+            if (widget instanceof SingleOptionWidget && ((SingleOptionWidget) widget).getOptions() != null) {
+                for (Option option : ((SingleOptionWidget) widget).getOptions()) {
+                    size += OPTION_BYTES + stringSize(option.getLabel());
+                }
+            }
+        }
+        if (context.getExistingObs() != null) {
+            for (List<Obs> obs : context.getExistingObs().values()) {
+                size += obs.size() * EXISTING_DATA_BYTES;
+            }
+        }
+        if (context.getExistingOrders() != null) {
+            for (List<Order> orders : context.getExistingOrders().values()) {
+                size += orders.size() * EXISTING_DATA_BYTES;
+            }
+        }
+        if (context.getExistingObsInGroups() != null) {
+            size += context.getExistingObsInGroups().size() * EXISTING_DATA_BYTES;
+        }
+        if (context.getUnmatchedObsGroupEntities() != null) {
+            size += context.getUnmatchedObsGroupEntities().size() * UNMATCHED_OBS_GROUP_BYTES;
+        }
+        return size;
+    }
+
+    private static void syncCaches() {
+        long now = System.currentTimeMillis();
+        if (now - lastCacheSync >= CACHE_SYNC_INTERVAL_MILLIS) {
+            lastCacheSync = now;
+            HtmlFormEntryUtil.getCacheInvalidationChannel().sync();
+        }
+    }
+
+    private static long stringSize(String s) {
+        return s == null ? 0 : 40 + 2L * s.length();
+    }
+
     /**
      * Creates the Javascript necessary to set form fields to the values entered during last
      * submission Used to maintain previously-entered field values when redisplaying a form with
@@ -939,6 +1168,9 @@ public class FormEntrySession {
      * @return a fragment of javascript that tells the getValue and setValue methods how to work
      */
     public String getFieldAccessorJavascript() {
+        if (cachedFieldAccessorJavascript != null) {
+            return cachedFieldAccessorJavascript;
+        }
         StringBuilder ret = new StringBuilder();
         for (Map.Entry<String, String> e : context.getJavascriptFieldAccessorInfo().entrySet()) {
             ret.append("propertyAccessorInfo['" + e.getKey() + "'] = " + e.getValue() + "\n");
@@ -960,6 +1192,37 @@ public class FormEntrySession {
         return patient;
     }
 
+    /**
+     * @return the compiled form being rendered, or null if the form has not been rendered yet
+     */
+    public CompiledForm getCompiledForm() {
+        return compiledForm;
+    }
+
+    /**
+     * @return the names of the tags used by the form, or null if the form has not been rendered yet
+     */
+    public Set<String> getFormTagNames() {
+        return formTagNames;
+    }
+
+    /**
+     * @return the context in which this session evaluates compiled includeIf/excludeIf conditions
+     */
+    public ConditionContext getConditionContext() {
+        if (conditionContext == null) {
+            conditionContext = new ConditionContext(this);
+        }
+        return conditionContext;
+    }
+
+    /**
+     * @return the patient data fetched so far in this session
+     */
+    public PatientDataSnapshot getPatientData() {
+        return patientData;
+    }
+
     /**
      * Returns the Form associated with the session
      */
@@ -967,6 +1230,13 @@ public class FormEntrySession {
         return form;
     }
 
+    /**
+     * Returns the HtmlForm associated with the session, if any
+     */
+    public HtmlForm getHtmlForm() {
+        return htmlForm;
+    }
+
     /**
      * Returns the id of the HtmlForm associated with the session
      */
@@ -990,6 +1260,22 @@ public class FormEntrySession {
         this.returnUrl = returnUrl;
     }
 
+    /**
+     * Returns the key the session is kept under in the form session store, or null if it is not kept there
+     */
+    public String getFormSessionKey() {
+        return formSessionKey;
+    }
+
+    /**
+     * Sets the key the session is kept under in the form session store
+     *
+     * @param formSessionKey the formSessionKey to set
+     */
+    public void setFormSessionKey(String formSessionKey) {
+        this.formSessionKey = formSessionKey;
+    }
+
     /**
      * Adds the patientId=xyz parameter to the returnUrl
      *
@@ -1023,12 +1309,16 @@ public class FormEntrySession {
 
     /**
      * Calculates the date an encounter was last modified by checking the creation and voided times
-     * of all Obs and Orders associated with the Encounter
+     * of all Obs and Orders associated with the Encounter. For a saved encounter this is worked out by
+     * the database, without loading its obs and orders.
      *
      * @param encounter
      * @return last modified time, as a Long
      */
     public static long getEncounterModifiedDate(Encounter encounter) {
+        if (encounter.getEncounterId() != null) {
+            return HtmlFormEntryUtil.getService().getEncounterModifiedTimestamp(encounter);
+        }
         long ret = encounter.getDateCreated().getTime();
         if (encounter.getDateVoided() != null)
             ret = Math.max(ret, encounter.getDateVoided().getTime());
@@ -1046,20 +1336,32 @@ public class FormEntrySession {
     }
 
     public boolean hasEncouterTag() {
-        for (String tag : HtmlFormEntryConstants.ENCOUNTER_TAGS) {
-            tag = "<" + tag;
-            if (htmlForm.getXmlData().contains(tag)) {
-                return true;
-            }
-        }
-        return false;
+        return hasAnyTag(HtmlFormEntryConstants.ENCOUNTER_TAGS);
     }
 
     public boolean hasPatientTag() {
-        for (String tag : HtmlFormEntryConstants.PATIENT_TAGS) {
-            tag = "<" + tag;
-            if (htmlForm.getXmlData().contains(tag)) {
-                return true;
+        return hasAnyTag(HtmlFormEntryConstants.PATIENT_TAGS);
+    }
+
+    /**
+     * Uses the tag names collected when the form was created, and only scans the form if it hasn't been
+     */
+    private boolean hasAnyTag(String[] tags) {
+        if (formTagNames == null) {
+            try {
+                formTagNames = new FormPreprocessor(EnumSet.noneOf(FormPreprocessor.Step.class)).process(
+                    htmlForm.getXmlData()).getTagNames();
+            } catch (BadFormDesignException ex) {
+                // only role restrictions and repeats can be malformed, and neither is applied here
+                throw new IllegalStateException(ex);
+            }
+        }
+        // variants such as encounterProviderAndRole count as the tag they extend
+        for (String tagName : formTagNames) {
+            for (String tag : tags) {
+                if (tagName.startsWith(tag)) {
+                    return true;
+                }
             }
         }
         return false;
@@ -1104,6 +1406,9 @@ public class FormEntrySession {
     }
 
     public void addToVelocityContext(String key, Object value) {
+        if (compacted) {
+            throw new IllegalStateException("Nothing can be added to the velocity context once the session is compacted");
+        }
         velocityContext.put(key, value);
     }
 
@@ -0,0 +1,422 @@
+package org.openmrs.module.htmlformentry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rewrites the raw xml of a form in a single pass, before it is parsed into a document. This does the work of
+ * {@link HtmlFormEntryGenerator#stripComments(String)},
+ * {@link HtmlFormEntryGenerator#convertSpecialCharactersWithinLogicAndVelocityTests(String)},
+ * {@link HtmlFormEntryGenerator#applyRoleRestrictions(String)} and the {@code <repeat with="...">} half of
+ * {@link HtmlFormEntryGenerator#applyRepeats(String)}, and records the names of the tags the form uses along the way.
+ * <p/>
+ * The xml can't be given to an XML parser at this point, since velocity and logic tests may contain unescaped
+ * {@code <}, {@code >} and {@code &&}, so this is a lenient tokenizer that only understands comments, tags and quoted
+ * attribute values, and copies everything else through untouched.
+ */
+public class FormPreprocessor {
+
+    public enum Step {
+        STRIP_COMMENTS, ESCAPE_TESTS, ROLE_RESTRICTIONS, REPEAT_WITH
+    }
+
+    private static final String RESTRICT_BY_ROLE = "restrictByRole";
+
+    private static final String REPEAT = "repeat";
+
+    private static final String[] TEST_ATTRIBUTES = { "velocityTest=\"", "logicTest=\"" };
+
+    private static final Pattern WITH_ATTRIBUTE = Pattern.compile("\\swith\\s*=\\s*\"([^\"]*)\"");
+
+    private final Set<Step> steps;
+
+    /**
+     * Creates a preprocessor that applies every {@link Step}
+     */
+    public FormPreprocessor() {
+        this(EnumSet.allOf(Step.class));
+    }
+
+    /**
+     * @param steps the steps to apply; with none, the xml is returned unchanged and only the tag names are collected
+     */
+    public FormPreprocessor(Set<Step> steps) {
+        this.steps = steps;
+    }
+
+    /**
+     * @param xml the raw xml of the form
+     * @return the rewritten xml, and the tags it uses
+     * @throws BadFormDesignException if a restrictByRole or repeat with tag is malformed or not closed
+     * @should strip comments spanning several lines
+     * @should escape velocity and logic tests
+     * @should expand repeat with tags
+     * @should collect the names of tags outside comments
+     */
+    public Result process(String xml) throws BadFormDesignException {
+        return new Pass(xml).run();
+    }
+
+    /**
+     * Gets a string like [664,'No Complaints'], [832,'Weight Loss'] and splits it into separate string entries
+     * to be used in the repeated html elements
+     * @param val = the string to process and get the entires
+     * @return List of entries
+     */
+    static List<List<String>> getSubstitutionSets(String val) {
+
+        List<List<String>> substitutionSet = new ArrayList<List<String>>();
+
+        // first, strip off the leading and trailing brackets
+        val = val.replaceFirst("\\s*\\[\\s*", "");
+        val = val.replaceFirst("\\s*\\]\\s*$", "");
+
+        // split on " ] , [ "
+        for (String subVal : val.split("\\s*\\]\\s*\\,\\s*\\[\\s*")) {
+
+            List<String> set= new ArrayList<String>();
+
+            // trim off the leading quote and trailing quote
+            subVal = subVal.replaceFirst("\\s*\\'", "");
+            subVal = subVal.replaceFirst("\\s*'\\s*$","");
+
+            // split on " ',' "
+            for (String str : subVal.split("\\s*\\'\\s*\\,\\s*\\'\\s*")) {
+                set.add(str);
+            }
+
+            substitutionSet.add(set);
+        }
+
+        return substitutionSet;
+    }
+
+    /**
+     * The outcome of preprocessing a form
+     */
+    public static class Result {
+
+        private final String xml;
+
+        private final Set<String> tagNames;
+
+        public Result(String xml, Set<String> tagNames) {
+            this.xml = xml;
+            this.tagNames = Collections.unmodifiableSet(tagNames);
+        }
+
+        public String getXml() {
+            return xml;
+        }
+
+        /**
+         * @return the names of all the tags in the form, including those removed by role restrictions, but not those
+         *         that are commented out
+         */
+        public Set<String> getTagNames() {
+            return tagNames;
+        }
+    }
+
+    private enum FrameType {
+        ROLE_KEEP, ROLE_SKIP, REPEAT_WITH, REPEAT
+    }
+
+    /**
+     * An open restrictByRole or repeat tag, waiting for its closing tag
+     */
+    private static class Frame {
+
+        private final FrameType type;
+
+        private List<List<String>> substitutionSets;
+
+        private StringBuilder parentOut;
+
+        Frame(FrameType type) {
+            this.type = type;
+        }
+    }
+
+    /**
+     * The state of processing one form
+     */
+    private class Pass {
+
+        private final String xml;
+
+        private final int length;
+
+        private int pos = 0;
+
+        private StringBuilder out;
+
+        private final LinkedList<Frame> frames = new LinkedList<Frame>();
+
+        // how many of the open restrictByRole tags are excluding their content
+        private int skipDepth = 0;
+
+        private final Set<String> tagNames = new HashSet<String>();
+
+        Pass(String xml) {
+            this.xml = xml;
+            this.length = xml.length();
+            this.out = new StringBuilder(length);
+        }
+
+        Result run() throws BadFormDesignException {
+            while (pos < length) {
+                char c = xml.charAt(pos);
+                if (c == '<') {
+                    if (isCommentStart()) {
+                        readComment();
+                    } else if (pos + 1 < length && xml.charAt(pos + 1) == '/') {
+                        readEndTag();
+                    } else if (pos + 1 < length && Character.isLetter(xml.charAt(pos + 1))) {
+                        readStartTag();
+                    } else {
+                        emit(c);
+                        pos++;
+                    }
+                } else if ((c == 'v' || c == 'l') && readTestAttribute()) {
+                    continue;
+                } else {
+                    emit(c);
+                    pos++;
+                }
+            }
+            for (Frame frame : frames) {
+                if (frame.type != FrameType.REPEAT) {
+                    String tag = frame.type == FrameType.REPEAT_WITH ? "repeat with" : RESTRICT_BY_ROLE;
+                    throw new BadFormDesignException("The <" + tag + "> tag is missing its closing tag");
+                }
+            }
+            return new Result(out.toString(), tagNames);
+        }
+
+        private void emit(char c) {
+            if (skipDepth == 0) {
+                out.append(c);
+            }
+        }
+
+        private void emit(CharSequence s) {
+            if (skipDepth == 0) {
+                out.append(s);
+            }
+        }
+
+        /**
+         * Matches {@code <!--}, allowing whitespace between the {@code !} and the dashes
+         */
+        private boolean isCommentStart() {
+            int i = pos + 1;
+            if (i >= length || xml.charAt(i) != '!') {
+                return false;
+            }
+            i++;
+            while (i < length && Character.isWhitespace(xml.charAt(i))) {
+                i++;
+            }
+            return xml.startsWith("--", i);
+        }
+
+        private void readComment() {
+            int contentStart = xml.indexOf("--", pos) + 2;
+            int end = findCommentEnd(contentStart);
+            if (end < 0) {
+                // an unterminated comment is left for the parser to complain about
+                emit('<');
+                pos++;
+                return;
+            }
+            if (!steps.contains(Step.STRIP_COMMENTS)) {
+                emit(xml.substring(pos, end));
+            }
+            pos = end;
+        }
+
+        /**
+         * @return the index just after the {@code --\s*>} that closes a comment, or -1 if there is none
+         */
+        private int findCommentEnd(int from) {
+            int i = xml.indexOf("--", from);
+            while (i >= 0) {
+                int j = i + 2;
+                while (j < length && Character.isWhitespace(xml.charAt(j))) {
+                    j++;
+                }
+                if (j < length && xml.charAt(j) == '>') {
+                    return j + 1;
+                }
+                i = xml.indexOf("--", i + 1);
+            }
+            return -1;
+        }
+
+        private int readName(int from) {
+            int i = from;
+            while (i < length) {
+                char c = xml.charAt(i);
+                if (Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == ':' || c == '.') {
+                    i++;
+                } else {
+                    break;
+                }
+            }
+            return i;
+        }
+
+        /**
+         * @return the index of the {@code >} that ends the tag starting at pos, skipping over quoted attribute
+         *         values, or -1 if there is none
+         */
+        private int findTagEnd() {
+            char quote = 0;
+            for (int i = pos + 1; i < length; i++) {
+                char c = xml.charAt(i);
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                } else if (c == '"' || c == '\'') {
+                    quote = c;
+                } else if (c == '>') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void readStartTag() throws BadFormDesignException {
+            int nameEnd = readName(pos + 1);
+            String name = xml.substring(pos + 1, nameEnd);
+            tagNames.add(name);
+
+            boolean role = RESTRICT_BY_ROLE.equals(name) && steps.contains(Step.ROLE_RESTRICTIONS);
+            boolean repeat = REPEAT.equals(name) && steps.contains(Step.REPEAT_WITH);
+            if (!role && !repeat) {
+                // copy the name only, so that test attributes are still seen
+                emit(xml.substring(pos, nameEnd));
+                pos = nameEnd;
+                return;
+            }
+
+            int end = findTagEnd();
+            if (end < 0) {
+                throw new BadFormDesignException("The <" + name + "> tag is not closed");
+            }
+            String attributes = xml.substring(nameEnd, end + 1);
+            boolean selfClosing = xml.charAt(end - 1) == '/';
+            if (role) {
+                if (!selfClosing) {
+                    boolean keep = skipDepth == 0 && HtmlFormEntryGenerator.processRoleRestrictionLogic(attributes);
+                    frames.push(new Frame(keep ? FrameType.ROLE_KEEP : FrameType.ROLE_SKIP));
+                    if (!keep) {
+                        skipDepth++;
+                    }
+                }
+            } else if (skipDepth == 0) {
+                Matcher with = WITH_ATTRIBUTE.matcher(attributes);
+                if (with.find() && !selfClosing) {
+                    Frame frame = new Frame(FrameType.REPEAT_WITH);
+                    frame.substitutionSets = getSubstitutionSets(with.group(1));
+                    frame.parentOut = out;
+                    frames.push(frame);
+                    out = new StringBuilder();
+                } else {
+                    if (!selfClosing) {
+                        frames.push(new Frame(FrameType.REPEAT));
+                    }
+                    emit(xml.substring(pos, end + 1));
+                }
+            }
+            pos = end + 1;
+        }
+
+        private void readEndTag() {
+            int nameEnd = readName(pos + 2);
+            String name = xml.substring(pos + 2, nameEnd);
+            int end = xml.indexOf('>', nameEnd);
+            if (end < 0) {
+                emit(xml.substring(pos));
+                pos = length;
+                return;
+            }
+            Frame top = frames.peek();
+            if (top != null && RESTRICT_BY_ROLE.equals(name) && steps.contains(Step.ROLE_RESTRICTIONS)
+                    && (top.type == FrameType.ROLE_KEEP || top.type == FrameType.ROLE_SKIP)) {
+                frames.pop();
+                if (top.type == FrameType.ROLE_SKIP) {
+                    skipDepth--;
+                }
+            } else if (top != null && REPEAT.equals(name) && steps.contains(Step.REPEAT_WITH) && skipDepth == 0
+                    && top.type == FrameType.REPEAT_WITH) {
+                frames.pop();
+                String template = out.toString();
+                out = top.parentOut;
+                for (List<String> substitutionSet : top.substitutionSets) {
+                    String current = template;
+                    int i = 0;
+                    for (String substitution : substitutionSet) {
+                        current = current.replace("{" + i + "}", substitution);
+                        i++;
+                    }
+                    out.append(current);
+                }
+            } else {
+                if (top != null && REPEAT.equals(name) && skipDepth == 0 && top.type == FrameType.REPEAT) {
+                    frames.pop();
+                }
+                emit(xml.substring(pos, end + 1));
+            }
+            pos = end + 1;
+        }
+
+        /**
+         * Copies a velocityTest or logicTest attribute starting at pos, escaping its value if requested
+         *
+         * @return false if there is no such attribute at pos
+         */
+        private boolean readTestAttribute() {
+            for (String attribute : TEST_ATTRIBUTES) {
+                if (xml.startsWith(attribute, pos)) {
+                    int valueStart = pos + attribute.length();
+                    int valueEnd = xml.indexOf('"', valueStart);
+                    if (valueEnd < 0) {
+                        return false;
+                    }
+                    emit(attribute);
+                    if (steps.contains(Step.ESCAPE_TESTS)) {
+                        for (int i = valueStart; i < valueEnd; i++) {
+                            char c = xml.charAt(i);
+                            if (c == '&' && i + 1 < valueEnd && xml.charAt(i + 1) == '&') {
+                                emit("&amp;&amp;");
+                                i++;
+                            } else if (c == '<') {
+                                emit("&lt;");
+                            } else if (c == '>') {
+                                emit("&gt;");
+                            } else {
+                                emit(c);
+                            }
+                        }
+                    } else {
+                        emit(xml.substring(valueStart, valueEnd));
+                    }
+                    emit('"');
+                    pos = valueEnd + 1;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
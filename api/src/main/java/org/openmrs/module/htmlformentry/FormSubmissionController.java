@@ -8,6 +8,8 @@ import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.htmlformentry.action.FormSubmissionControllerAction;
 import org.openmrs.module.htmlformentry.action.RepeatControllerAction;
+import org.openmrs.module.htmlformentry.metrics.FormMetrics;
+import org.openmrs.module.htmlformentry.metrics.StageTimings;
 import org.openmrs.util.OpenmrsUtil;
 
 import javax.servlet.http.HttpServletRequest;
@@ -120,15 +122,26 @@ public class FormSubmissionController {
                 }
             } finally {
                 //Submit even when you are not able to serialize.
-                for (FormSubmissionControllerAction element : actions) {
-                    element.handleSubmission(session, submission);
-                }
+                handleActions(session, submission);
             }
         } else {  //Just submit
-            for (FormSubmissionControllerAction element : actions) {
-                element.handleSubmission(session, submission);
-            }
+            handleActions(session, submission);
+        }
+    }
+
+    /**
+     * Calls the handleSubmission method of every action, recording the time taken by each kind of action
+     */
+    private void handleActions(FormEntrySession session, HttpServletRequest submission) throws Exception {
+        StageTimings timings = new StageTimings();
+        for (FormSubmissionControllerAction element : actions) {
+            long started = System.nanoTime();
+            element.handleSubmission(session, submission);
+            // anonymous actions have no simple name
+            String name = element.getClass().getSimpleName();
+            timings.add(name.length() > 0 ? name : element.getClass().getName(), System.nanoTime() - started);
         }
+        timings.flush(FormMetrics.getInstance(), session.getHtmlFormId(), "submit.");
     }
     
     /**
@@ -0,0 +1,82 @@
+package org.openmrs.module.htmlformentry;
+
+import org.openmrs.OpenmrsObject;
+
+/**
+ * Records that an html form references an OpenMRS object, e.g. a concept in the conceptId of an obs tag. The
+ * dependencies of a form are worked out from the {@link org.openmrs.module.htmlformentry.handler.AttributeDescriptor}s
+ * of the registered tag handlers whenever the form is saved, so that they can be looked up in either direction without
+ * scanning the xml of the form.
+ *
+ * @see HtmlFormEntryService#getHtmlFormDependencies(HtmlForm)
+ * @see HtmlFormEntryService#getHtmlFormsReferencing(OpenmrsObject)
+ */
+public class HtmlFormDependency {
+	
+	private Integer id;
+	
+	private HtmlForm htmlForm;
+	
+	/** The class of the attribute descriptor that referenced the object, e.g. org.openmrs.Concept */
+	private String referenceType;
+	
+	/** The actual class of the object, e.g. org.openmrs.ConceptNumeric */
+	private String objectType;
+	
+	private String objectUuid;
+	
+	public HtmlFormDependency() {
+	}
+	
+	public HtmlFormDependency(HtmlForm htmlForm, Class<?> referenceType, Class<?> objectType, String objectUuid) {
+		this.htmlForm = htmlForm;
+		this.referenceType = referenceType.getName();
+		this.objectType = objectType.getName();
+		this.objectUuid = objectUuid;
+	}
+	
+	public Integer getId() {
+		return id;
+	}
+	
+	public void setId(Integer id) {
+		this.id = id;
+	}
+	
+	public HtmlForm getHtmlForm() {
+		return htmlForm;
+	}
+	
+	public void setHtmlForm(HtmlForm htmlForm) {
+		this.htmlForm = htmlForm;
+	}
+	
+	public String getReferenceType() {
+		return referenceType;
+	}
+	
+	public void setReferenceType(String referenceType) {
+		this.referenceType = referenceType;
+	}
+	
+	public String getObjectType() {
+		return objectType;
+	}
+	
+	public void setObjectType(String objectType) {
+		this.objectType = objectType;
+	}
+	
+	public String getObjectUuid() {
+		return objectUuid;
+	}
+	
+	public void setObjectUuid(String objectUuid) {
+		this.objectUuid = objectUuid;
+	}
+	
+	@Override
+	public String toString() {
+		return objectType + ":" + objectUuid;
+	}
+}
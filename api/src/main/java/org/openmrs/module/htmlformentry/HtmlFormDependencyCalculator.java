@@ -0,0 +1,181 @@
+package org.openmrs.module.htmlformentry;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.openmrs.Concept;
+import org.openmrs.Form;
+import org.openmrs.OpenmrsMetadata;
+import org.openmrs.OpenmrsObject;
+import org.openmrs.Program;
+import org.openmrs.ProgramWorkflow;
+import org.openmrs.RelationshipType;
+import org.openmrs.Role;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.compatibility.RegimenSuggestionCompatibility;
+import org.openmrs.module.htmlformentry.handler.AttributeDescriptor;
+import org.openmrs.module.htmlformentry.substitution.AttributeRewriter;
+
+/**
+ * Works out which OpenMRS objects the xml of a form references, from the {@link AttributeDescriptor}s of the registered
+ * tag handlers. Used to build the dependency index of a form when it is saved, and by {@link HtmlFormExporter} for forms
+ * that have not been indexed.
+ */
+public class HtmlFormDependencyCalculator {
+
+	/**
+	 * @param xml the xml of a form
+	 * @return the objects referenced by the form, by the class of the attributes that referenced them
+	 */
+	public Map<Class<?>, Set<OpenmrsObject>> calculate(String xml) {
+		return calculate(xml, Collections.<Class<?>> emptySet());
+	}
+
+	/**
+	 * @param xml the xml of a form
+	 * @param classesToSkip attributes referencing these classes are ignored
+	 * @return the objects referenced by the form, by the class of the attributes that referenced them
+	 */
+	public Map<Class<?>, Set<OpenmrsObject>> calculate(String xml, final Set<Class<?>> classesToSkip) {
+		// we need to resolve any macros or repeat/renders first
+		HtmlFormEntryGenerator generator = new HtmlFormEntryGenerator();
+		try {
+			xml = generator.applyMacros(xml);
+			xml = generator.applyRepeats(xml);
+		}
+		catch (Exception e) {
+			throw new APIException("Unable to process macros and templates when calculating the dependencies of a form", e);
+		}
+
+		// walk the form once, collecting the distinct values referenced by each class of attribute, so that each one
+		// is only looked up once however many times the form refers to it
+		final Map<Class<?>, AttributeDescriptor> descriptorsByClass = new LinkedHashMap<Class<?>, AttributeDescriptor>();
+		final Map<Class<?>, Set<String>> idsByClass = new LinkedHashMap<Class<?>, Set<String>>();
+		AttributeRewriter rewriter = AttributeRewriter.forTagHandlers(Context.getService(HtmlFormEntryService.class).getHandlers());
+		rewriter.rewrite(xml, new AttributeRewriter.Visitor() {
+
+			@Override
+			public String visit(String tagName, AttributeDescriptor descriptor, String value) {
+				Class<?> clazz = descriptor.getClazz();
+				if (!classesToSkip.contains(clazz)) {
+					if (!descriptorsByClass.containsKey(clazz)) {
+						descriptorsByClass.put(clazz, descriptor);
+						idsByClass.put(clazz, new LinkedHashSet<String>());
+					}
+					// split the value into the various ids
+					idsByClass.get(clazz).addAll(Arrays.asList(value.split(",")));
+				}
+				return value;
+			}
+		});
+
+		MetadataMappingResolver metadataMappingResolver = Context.getRegisteredComponent("metadataMappingResolver",
+		    MetadataMappingResolver.class);
+		Map<Class<?>, Set<OpenmrsObject>> ret = new LinkedHashMap<Class<?>, Set<OpenmrsObject>>();
+		for (Map.Entry<Class<?>, Set<String>> entry : idsByClass.entrySet()) {
+			AttributeDescriptor attributeDescriptor = descriptorsByClass.get(entry.getKey());
+			Set<OpenmrsObject> dependencies = new LinkedHashSet<OpenmrsObject>();
+			for (String id : entry.getValue()) {
+				addDependency(attributeDescriptor, id, dependencies, metadataMappingResolver);
+			}
+			if (!dependencies.isEmpty()) {
+				ret.put(entry.getKey(), dependencies);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Adds the object that the given id refers to, if any, to the dependencies
+	 */
+	@SuppressWarnings("unchecked")
+	private void addDependency(AttributeDescriptor attributeDescriptor, String id, Set<OpenmrsObject> dependencies,
+	                           MetadataMappingResolver metadataMappingResolver) {
+		// if this id matches a uuid pattern, try to fetch the object by uuid
+		if (HtmlFormEntryUtil.isValidUuidFormat(id) && OpenmrsObject.class.isAssignableFrom(attributeDescriptor.getClazz())) {
+			OpenmrsObject object = Context.getService(HtmlFormEntryService.class).getItemByUuid(
+			    (Class<? extends OpenmrsObject>) attributeDescriptor.getClazz(), id);
+			if (object != null) {
+				//special handling of Form -- if passed a Form, see if it can be passed along as  HtmlForm
+				if (Form.class.equals(attributeDescriptor.getClazz())) {
+					Form form = (Form) object;
+					HtmlForm htmlForm = Context.getService(HtmlFormEntryService.class).getHtmlFormByForm(form);
+					if (htmlForm != null){
+						dependencies.add(htmlForm);
+						return;
+					}
+				}
+				dependencies.add(object);
+				return;
+			}
+		}
+
+		//if openmrs metadata, try to get it by metadataMapping service
+		if(OpenmrsMetadata.class.isAssignableFrom(attributeDescriptor.getClazz())){
+			OpenmrsObject object = metadataMappingResolver.getMetadataItem((Class<? extends OpenmrsMetadata>) attributeDescriptor.getClazz(), id);
+			if(object != null){
+				dependencies.add(object);
+				return;
+			}
+		}
+
+		// if we haven't found anything by uuid, try by name
+		if (OpenmrsMetadata.class.isAssignableFrom(attributeDescriptor.getClazz())) {
+			OpenmrsObject object = Context.getService(HtmlFormEntryService.class).getItemByName(
+			    (Class<? extends OpenmrsMetadata>) attributeDescriptor.getClazz(), id);
+			if (object != null) {
+				dependencies.add(object);
+				return;
+			}
+		}
+		// finally, handle any special cases
+		// if it's a concept, we also need to handle concepts referenced by map
+		if (Concept.class.equals(attributeDescriptor.getClazz())) {
+			Concept concept = HtmlFormEntryUtil.getConcept(id);
+			if (concept != null) {
+				dependencies.add(concept);
+				return;
+			}
+		}
+		// need to handle the special case where a program "name" is considered the "name" of the underlying concept
+		if (Program.class.equals(attributeDescriptor.getClazz())) {
+			Program program = HtmlFormEntryUtil.getProgram(id);
+			if (program != null) {
+				dependencies.add(program);
+				return;
+			}
+		}
+		// need to handle the special case where a program workflow is specified by a concept map pointing to it's underlying concept
+		// note that we shouldn't have to handle program workflow states because they should always be picked up when sharing the overriding program and/or program workflow
+		if (ProgramWorkflow.class.equals(attributeDescriptor.getClazz())) {
+			ProgramWorkflow workflow = HtmlFormEntryUtil.getWorkflow(id);
+			if (workflow != null) {
+				dependencies.add(workflow);
+			}
+		}
+		// need to special case of the name of a role
+		if (Role.class.equals(attributeDescriptor.getClazz())) {
+			Role role = Context.getUserService().getRole(id);
+			if (role != null) {
+				dependencies.add(role);
+				return;
+			}
+		}
+		//RelationshipType from the relationship tag, in case of lookup by name (which may or may not be implemented yet...)
+		if (RelationshipType.class.equals(attributeDescriptor.getClazz())) {
+			RelationshipType relationshipType = Context.getPersonService().getRelationshipTypeByName(id);
+			if (relationshipType != null) {
+				dependencies.add(relationshipType);
+				return;
+			}
+		}
+
+		RegimenSuggestionCompatibility regimen = Context.getRegisteredComponent("htmlformentry.RegimenSuggestionCompatibility", RegimenSuggestionCompatibility.class);
+		regimen.AddDrugDependencies(id, attributeDescriptor, dependencies);
+	}
+}
@@ -13,15 +13,23 @@
  */
 package org.openmrs.module.htmlformentry;
 
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.GlobalProperty;
 import org.openmrs.api.APIException;
+import org.openmrs.api.AdministrationService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.BaseModuleActivator;
 import org.openmrs.module.Module;
 import org.openmrs.module.ModuleFactory;
 import org.openmrs.module.ModuleUtil;
 import org.openmrs.module.htmlformentry.handler.EncounterProviderAndRoleTagHandler;
+import org.openmrs.module.htmlformentry.metrics.FormMetrics;
 
 /**
  * Contains the logic that is run every time HTML Form Entry module
@@ -49,11 +57,67 @@ public class HtmlFormEntryActivator extends BaseModuleActivator {
 				 */
 			}
 		}
+		registerMetrics();
+		indexDependencies();
 		log.info("Started HTML Form Entry Module");
 	}
 
 	@Override
 	public void stopped() {
+		unregisterMetrics();
 		log.info("Stopped HTML Form Entry Module");
 	}
+
+	/**
+	 * Makes the form metrics available through JMX, replacing those of a previous start of the module
+	 */
+	private void registerMetrics() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(FormMetrics.OBJECT_NAME);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(FormMetrics.getInstance(), name);
+		}
+		catch (Exception ex) {
+			log.warn("Unable to register form metrics with JMX", ex);
+		}
+	}
+
+	/**
+	 * Records the objects referenced by the forms saved before they were recorded, the first time the module starts
+	 */
+	private void indexDependencies() {
+		try {
+			AdministrationService administrationService = Context.getAdministrationService();
+			if (!"true".equalsIgnoreCase(administrationService
+			        .getGlobalProperty(HtmlFormEntryConstants.GP_DEPENDENCIES_INDEXED))) {
+				Context.getService(HtmlFormEntryService.class).indexHtmlFormDependencies();
+				GlobalProperty gp = administrationService
+				        .getGlobalPropertyObject(HtmlFormEntryConstants.GP_DEPENDENCIES_INDEXED);
+				if (gp == null) {
+					gp = new GlobalProperty(HtmlFormEntryConstants.GP_DEPENDENCIES_INDEXED);
+				}
+				gp.setPropertyValue("true");
+				administrationService.saveGlobalProperty(gp);
+			}
+		}
+		catch (Exception ex) {
+			log.warn("Unable to record the objects referenced by html forms", ex);
+		}
+	}
+
+	private void unregisterMetrics() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(FormMetrics.OBJECT_NAME);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		}
+		catch (Exception ex) {
+			log.warn("Unable to unregister form metrics from JMX", ex);
+		}
+	}
 }
\ No newline at end of file
@@ -31,6 +31,16 @@ public class HtmlFormEntryConstants {
 
     public static final String GP_UNKNOWN_CONCEPT = "concept.unknown";
 
+    public static final String GP_PROVIDER_SEARCH_PAGE_SIZE = "htmlformentry.providerSearchPageSize";
+
+    public static final String GP_ANSWER_AUTOCOMPLETE_THRESHOLD = "htmlformentry.answerAutocompleteThreshold";
+
+    public static final String GP_FORM_SESSION_STORE = "htmlformentry.formSessionStore";
+
+    public static final String GP_CACHE_INVALIDATION_CHANNEL = "htmlformentry.cacheInvalidationChannel";
+
+    public static final String GP_DEPENDENCIES_INDEXED = "htmlformentry.dependenciesIndexed";
+
     public static final String COMPLEX_UUID = "8d4a6242-c2cc-11de-8d13-0010c6dffd0f";
 
     public static final String ANSWER_LOCATION_TAGS="answerLocationTags";
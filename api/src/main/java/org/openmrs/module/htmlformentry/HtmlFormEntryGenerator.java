@@ -3,23 +3,25 @@ package org.openmrs.module.htmlformentry;
 import java.io.ByteArrayInputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.apache.commons.lang.StringUtils;
 import org.openmrs.Role;
 import org.openmrs.User;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.FormPreprocessor.Step;
+import org.openmrs.module.htmlformentry.compiler.CompiledForm;
 import org.openmrs.module.htmlformentry.handler.AttributeDescriptor;
 import org.openmrs.module.htmlformentry.handler.IteratingTagHandler;
+import org.openmrs.module.htmlformentry.handler.TagDispatchTable;
 import org.openmrs.module.htmlformentry.handler.TagHandler;
+import org.openmrs.module.htmlformentry.handler.TagHandlerRegistry;
+import org.openmrs.module.htmlformentry.metrics.StageTimings;
 import org.openmrs.module.htmlformentry.matching.ObsGroupEntity;
 import org.w3c.dom.Document;
 import org.w3c.dom.NamedNodeMap;
@@ -155,6 +157,40 @@ public class HtmlFormEntryGenerator implements TagHandler {
      * @throws Exception
      */
     public String applyTranslations(String xml, FormEntryContext context) throws Exception {
+        return applyTranslations(null, xml, context);
+    }
+
+    /**
+     * Reads the translations of a form as {@link #applyTranslations(String, FormEntryContext)} does. The translator
+     * and the resulting xml are cached with the compiled form of the session, so the translations of a form are only
+     * read, and flattened per locale, once for all its sessions.
+     *
+     * @param session the current form entry session, may be null
+     * @param xml the xml string to process for translations
+     * @param context
+     * @return the xml string after translation substitutions have been made
+     * @throws Exception
+     */
+    public String applyTranslations(FormEntrySession session, String xml, FormEntryContext context) throws Exception {
+        // if there are no translations defined, we just return the original xml unchanged
+        if (!xml.contains("<translations")) {
+            return xml;
+        }
+        CompiledForm compiledForm = session == null ? null : session.getCompiledForm();
+        if (compiledForm == null) {
+            return readTranslations(xml, context.getTranslator());
+        }
+        CompiledForm.Translations translations = compiledForm.getTranslations(xml);
+        if (translations == null) {
+            Translator translator = new Translator();
+            translations = new CompiledForm.Translations(translator, readTranslations(xml, translator));
+            compiledForm.putTranslations(xml, translations);
+        }
+        context.setTranslator(translations.getTranslator());
+        return translations.getXml();
+    }
+
+    private String readTranslations(String xml, Translator translator) throws Exception {
         Document doc = HtmlFormEntryUtil.stringToDocument(xml);
         Node content = HtmlFormEntryUtil.findChild(doc, "htmlform");
         Node transNode = HtmlFormEntryUtil.findChild(content, "translations");
@@ -183,7 +219,7 @@ public class HtmlFormEntryGenerator implements TagHandler {
                         if (valueStr == null) {
                             throw new IllegalArgumentException("All variants must specify a value");
                         }
-                        context.getTranslator().addTranslation(localeStr, codeName, valueStr);
+                        translator.addTranslation(localeStr, codeName, valueStr);
                     }
                 }
             }
@@ -198,8 +234,7 @@ public class HtmlFormEntryGenerator implements TagHandler {
     }
 
     /**
-     * Takes an xml string, searches for 'comments'   in the string using RegEx and filters out
-     * the comments from the input string
+     * Takes an xml string, and filters out the comments from it
      *
      * @param xml input string
      * @return the xml string after filtering out comments
@@ -207,15 +242,7 @@ public class HtmlFormEntryGenerator implements TagHandler {
      * @should return correct xml after filtering out comments
      */
     public String stripComments(String xml) throws Exception {
-
-        String regex = "<!\\s*--.*?--\\s*>";    // this is the regEx for html comment tag <!-- .* -->
-        Pattern pattern = Pattern.compile(regex,
-                Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
-
-        Matcher matcher = pattern.matcher(xml);
-        xml = matcher.replaceAll("");
-
-        return xml;
+        return new FormPreprocessor(EnumSet.of(Step.STRIP_COMMENTS)).process(xml).getXml();
     }
 
     /**
@@ -227,38 +254,20 @@ public class HtmlFormEntryGenerator implements TagHandler {
      * @throws Exception
      */
     public String convertSpecialCharactersWithinLogicAndVelocityTests(String xml) throws Exception {
-
-        Pattern lessThan = Pattern.compile("<");
-        Pattern greaterThan = Pattern.compile(">");
-        Pattern doubleAmpersand = Pattern.compile("&&");
-
-        Matcher velocityMatcher = Pattern.compile("velocityTest=\"[^\"]*\"").matcher(xml);
-        StringBuffer afterVelocityChanges = new StringBuffer();
-
-        while (velocityMatcher.find()) {
-            String str = velocityMatcher.group();
-            str = doubleAmpersand.matcher(str).replaceAll("&amp;&amp;");
-            str = lessThan.matcher(str).replaceAll("&lt;");
-            str = greaterThan.matcher(str).replaceAll("&gt;");
-            velocityMatcher.appendReplacement(afterVelocityChanges, Matcher.quoteReplacement(str));
-        }
-        velocityMatcher.appendTail(afterVelocityChanges);
-
-        Matcher logicMatcher = Pattern.compile("logicTest=\"[^\"]*\"").matcher(afterVelocityChanges);
-        StringBuffer afterLogicChanges = new StringBuffer();
-
-        while (logicMatcher.find()) {
-            String str = logicMatcher.group();
-            str = doubleAmpersand.matcher(str).replaceAll("&amp;&amp;");
-            str = lessThan.matcher(str).replaceAll("&lt;");
-            str = greaterThan.matcher(str).replaceAll("&gt;");
-            logicMatcher.appendReplacement(afterLogicChanges, Matcher.quoteReplacement(str));
-        }
-
-        logicMatcher.appendTail(afterLogicChanges);
-        return afterLogicChanges.toString();
+        return new FormPreprocessor(EnumSet.of(Step.ESCAPE_TESTS)).process(xml).getXml();
     }
 
+    /**
+     * Strips comments, escapes velocity and logic tests, applies role restrictions and expands
+     * {@code <repeat with="...">} tags, in a single pass over the xml (see {@link FormPreprocessor})
+     *
+     * @param xml the raw xml of the form
+     * @return the preprocessed xml, along with the names of the tags the form uses
+     * @throws BadFormDesignException
+     */
+    public FormPreprocessor.Result preprocess(String xml) throws BadFormDesignException {
+        return new FormPreprocessor().process(xml);
+    }
 
     /**
      * Calls the two underlying methods for handling the "<repeat>" tag
@@ -268,9 +277,10 @@ public class HtmlFormEntryGenerator implements TagHandler {
      * @throws Exception
      */
     public String applyRepeats(String xml) throws Exception {
-        xml = applyRepeatTemplateTags(xml);
-        xml = applyRepeatWithTags(xml);
-        return xml;
+        if (!xml.contains("<repeat")) {
+            return xml;
+        }
+        return applyRepeatWithTags(applyRepeatTemplateTags(xml));
     }
 
     /**
@@ -300,65 +310,104 @@ public class HtmlFormEntryGenerator implements TagHandler {
      * }
      **/
     private String applyRepeatTemplateTags(String xml) throws Exception {
+        if (!xml.contains("<repeat>")) {
+            return xml;
+        }
         Document doc = HtmlFormEntryUtil.stringToDocument(xml);
-        Node content = HtmlFormEntryUtil.findChild(doc, "htmlform");
+        expandRepeatTemplates(doc);
+        return HtmlFormEntryUtil.documentToString(doc, false);
+    }
 
-        // We are doing this as follows since I can't seem to get the XML node cloning to work right.
-        // We can refactor later as needed if we can get it to work properly, or replace the xml library
-        // First we need to parse the document to get the node attributes for repeating elements
-        List<List<Map<String, String>>> renderMaps = new ArrayList<List<Map<String, String>>>();
-
-        loadRenderElementsForEachRepeatElement(content, renderMaps);
-
-        // Now we are just going to use String replacements to explode the repeat tags properly
-        Iterator<List<Map<String, String>>> renderMapIter = renderMaps.iterator();
-        int idLabelpairIndex = 0;
-        while (xml.contains("<repeat>")) {
-            int startIndex = xml.indexOf("<repeat>");
-            int endIndex = xml.indexOf("</repeat>", startIndex) + 9;
-            String xmlToReplace = xml.substring(startIndex, endIndex);
-
-            String template = xmlToReplace.substring(xmlToReplace.indexOf("<template>") + 10,
-                    xmlToReplace.indexOf("</template>"));
-            StringBuilder replacement = new StringBuilder();
-            for (Map<String, String> replacements : renderMapIter.next()) {
-                String curr = template;
-                for (String key : replacements.keySet()) {
-                    curr = curr.replace("{" + key + "}", replacements.get(key));
-                }
-                replacement.append(curr);
+    /**
+     * Replaces each {@code <repeat>} below the given node with one copy of its template per {@code <render>}. Each
+     * copy is a clone of the template nodes, with the {key} tokens in its attributes and text replaced by the
+     * attributes of the render element. Repeats nested in a template are expanded after the outer repeat, so they may
+     * use its tokens too.
+     */
+    private void expandRepeatTemplates(Node node) {
+        Node child = node.getFirstChild();
+        while (child != null) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && child.getNodeName().equalsIgnoreCase("repeat")
+                    && !child.hasAttributes()) {
+                child = expandRepeatTemplate(child);
+            } else {
+                expandRepeatTemplates(child);
+                child = child.getNextSibling();
             }
-            xml = xml.substring(0, startIndex) + replacement + xml.substring(endIndex);
-
         }
-
-        return xml;
     }
 
-    private void loadRenderElementsForEachRepeatElement(Node node, List<List<Map<String, String>>> renderMaps)
-            throws Exception {
-
-        NodeList list = node.getChildNodes();
-        for (int i = 0; i < list.getLength(); i++) {
-            Node n = list.item(i);
-            if (n.getNodeName().equalsIgnoreCase("repeat") && !n.hasAttributes()) {
-                Node templateNode = HtmlFormEntryUtil.findChild(n, "template");
-                if (templateNode == null) {
-                    throw new IllegalArgumentException("All <repeat> elements must contain a child <template> element.");
-                }
-                List<Map<String, String>> l = new ArrayList<Map<String, String>>();
-                NodeList repeatNodes = n.getChildNodes();
-                for (int j = 0; j < repeatNodes.getLength(); j++) {
-                    Node renderNode = repeatNodes.item(j);
-                    if (renderNode.getNodeName().equalsIgnoreCase("render")) {
-                        l.add(HtmlFormEntryUtil.getNodeAttributes(renderNode));
+    /**
+     * @return the first node of the expansion, or the node that followed the repeat if it expanded to nothing
+     */
+    private Node expandRepeatTemplate(Node repeat) {
+        Node templateNode = HtmlFormEntryUtil.findChild(repeat, "template");
+        if (templateNode == null) {
+            throw new IllegalArgumentException("All <repeat> elements must contain a child <template> element.");
+        }
+        Node parent = repeat.getParentNode();
+        Node first = null;
+        for (Node renderNode = repeat.getFirstChild(); renderNode != null; renderNode = renderNode.getNextSibling()) {
+            if (renderNode.getNodeName().equalsIgnoreCase("render")) {
+                Map<String, String> replacements = HtmlFormEntryUtil.getNodeAttributes(renderNode);
+                for (Node n = templateNode.getFirstChild(); n != null; n = n.getNextSibling()) {
+                    Node copy = n.cloneNode(true);
+                    replaceTokens(copy, replacements);
+                    parent.insertBefore(copy, repeat);
+                    if (first == null) {
+                        first = copy;
                     }
                 }
-                renderMaps.add(l);
+            }
+        }
+        Node next = repeat.getNextSibling();
+        parent.removeChild(repeat);
+        return first != null ? first : next;
+    }
+
+    private void replaceTokens(Node node, Map<String, String> replacements) {
+        if (node.getNodeType() == Node.ELEMENT_NODE) {
+            NamedNodeMap attributes = node.getAttributes();
+            for (int i = 0; i < attributes.getLength(); i++) {
+                Node attribute = attributes.item(i);
+                attribute.setNodeValue(replaceTokens(attribute.getNodeValue(), replacements));
+            }
+            for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                replaceTokens(child, replacements);
+            }
+        } else if (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE) {
+            node.setNodeValue(replaceTokens(node.getNodeValue(), replacements));
+        }
+    }
+
+    /**
+     * @return the text with each {key} that names a replacement replaced by its value, and other braces left as is
+     */
+    private String replaceTokens(String text, Map<String, String> replacements) {
+        int open = text.indexOf('{');
+        if (open < 0) {
+            return text;
+        }
+        StringBuilder sb = new StringBuilder(text.length());
+        int from = 0;
+        while (open >= 0) {
+            int close = text.indexOf('}', open + 1);
+            if (close < 0) {
+                break;
+            }
+            String value = replacements.get(text.substring(open + 1, close));
+            if (value == null) {
+                // not a token of this render, so keep the brace and look again from just after it
+                sb.append(text, from, open + 1);
+                from = open + 1;
             } else {
-                loadRenderElementsForEachRepeatElement(n, renderMaps);
+                sb.append(text, from, open).append(value);
+                from = close + 1;
             }
+            open = text.indexOf('{', from);
         }
+        sb.append(text, from, text.length());
+        return sb.toString();
     }
 
     /**
@@ -382,81 +431,15 @@ public class HtmlFormEntryGenerator implements TagHandler {
     *
     * </pre>
     *
+    * When a form is rendered, only these are expanded as a step of their own; the original {@code <repeat>} tags are
+    * expanded by {@link #applyTags(FormEntrySession, String)} on the document it parses anyway.
+    *
     * @param xml the xml string to process for repeat sections
     * @return the xml string after repeat substitutions have been made
     * @throws Exception
     */
-    private String applyRepeatWithTags(String xml) throws Exception {
-
-        while (xml.contains("<repeat with=")) {
-
-            int startIndex = xml.indexOf("<repeat with=");
-            int endIndex = xml.indexOf("</repeat>", startIndex) + 9;
-
-            String xmlToReplace = xml.substring(startIndex, endIndex);
-
-            int substitutionSetsStartIndex = xmlToReplace.indexOf("with=") + 6;
-            int substitutionSetsEndIndex =  xmlToReplace.indexOf("]\">") + 1;
-            List<List<String>> substitutionSets = getSubstitutionSets(xmlToReplace.substring(substitutionSetsStartIndex, substitutionSetsEndIndex));
-
-            int templateStartIndex = xmlToReplace.indexOf("]\">") + 3;
-            int templateEndIndex = xmlToReplace.indexOf("</repeat>");
-            String template = xmlToReplace.substring(templateStartIndex, templateEndIndex);
-
-            StringBuilder sb = new StringBuilder();
-
-            String current = template;
-            for (List<String> substitutionSet : substitutionSets) {
-
-                int i = 0;
-
-                for (String substitution : substitutionSet) {
-                    current = current.replace("{" + i + "}", substitution);
-                    i++;
-                }
-
-                sb.append(current);
-                current = template;
-            }
-
-            xml = xml.substring(0, startIndex) + sb + xml.substring(endIndex);
-         }
-
-        return xml;
-    }
-
-    /**
-     * Gets a string like [664,'No Complaints'], [832,'Weight Loss'] and splits it into separate string entries
-     * to be used in the repeated html elements
-     * @param val = the string to process and get the entires
-     * @return List of entries
-     */
-    private List<List<String>> getSubstitutionSets(String val) {
-
-        List<List<String>> substitutionSet = new ArrayList<List<String>>();
-
-        // first, strip off the leading and trailing brackets
-        val = val.replaceFirst("\\s*\\[\\s*", "");
-        val = val.replaceFirst("\\s*\\]\\s*$", "");
-
-        // split on " ] , [ "
-        for (String subVal : val.split("\\s*\\]\\s*\\,\\s*\\[\\s*")) {
-
-            List<String> set= new ArrayList<String>();
-
-            // trim off the leading quote and trailing quote
-            subVal = subVal.replaceFirst("\\s*\\'", "");
-            subVal = subVal.replaceFirst("\\s*'\\s*$","");
-
-            // split on " ',' "
-            for (String str : subVal.split("\\s*\\'\\s*\\,\\s*\\'\\s*")) {
-                set.add(str);
-            }
-
-            substitutionSet.add(set);
-        }
-
-        return substitutionSet;
+    public String applyRepeatWithTags(String xml) throws Exception {
+        return new FormPreprocessor(EnumSet.of(Step.REPEAT_WITH)).process(xml).getXml();
     }
 
     public String applyUnmatchedTags(FormEntrySession session, String xml) throws Exception {
@@ -464,7 +447,7 @@ public class HtmlFormEntryGenerator implements TagHandler {
 
         for (ObsGroupEntity obsGroupEntity : obsGroupEntities) {
             StringWriter out = new StringWriter();
-            applyTagsHelper(session, new PrintWriter(out), null, obsGroupEntity.getNode(), null);
+            applyTagsHelper(session, new PrintWriter(out), null, obsGroupEntity.getNode(), getDispatchTable(session));
             xml = xml.replaceAll("<unmatched id=\"" + obsGroupEntity.getId() + "\" />", Matcher.quoteReplacement(out.toString()));
         }
 
@@ -476,6 +459,8 @@ public class HtmlFormEntryGenerator implements TagHandler {
      * {@code <macro>, <translations>, and <repeat>)}, by calling the appropriate tag handler (see
      * {@see org.openmrs.module.htmlformentry.handler}) for each tag
      * <p/>
+     * Any {@code <repeat>} templates still in the xml are expanded on the parsed document first, as
+     * {@link #applyRepeats(String)} would have done.
      *
      * @param session the current form entry session context
      * @param xml     the xml string to process
@@ -484,36 +469,47 @@ public class HtmlFormEntryGenerator implements TagHandler {
      */
     public String applyTags(FormEntrySession session, String xml) throws Exception {
         Document doc = HtmlFormEntryUtil.stringToDocument(xml);
+        if (xml.contains("<repeat>")) {
+            expandRepeatTemplates(doc);
+        }
         Node content = HtmlFormEntryUtil.findChild(doc, "htmlform");
         StringWriter out = new StringWriter();
-        applyTagsHelper(session, new PrintWriter(out), null, content, null);
+        applyTagsHelper(session, new PrintWriter(out), null, content, getDispatchTable(session));
         return out.toString();
     }
 
+    /**
+     * Returns the handlers of the tags of the session's form, resolving them only the first time the compiled form is
+     * rendered, or when handlers have been registered since
+     */
+    private TagDispatchTable getDispatchTable(FormEntrySession session) {
+        TagHandlerRegistry registry = HtmlFormEntryUtil.getService().getTagHandlerRegistry();
+        CompiledForm compiledForm = session == null ? null : session.getCompiledForm();
+        if (compiledForm == null) {
+            return registry.getDispatchTable(session == null ? null : session.getFormTagNames());
+        }
+        TagDispatchTable dispatchTable = compiledForm.getDispatchTable();
+        if (dispatchTable == null || !dispatchTable.isFor(registry)) {
+            dispatchTable = registry.getDispatchTable(session.getFormTagNames());
+            compiledForm.setDispatchTable(dispatchTable);
+        }
+        return dispatchTable;
+    }
+
     private void applyTagsHelper(FormEntrySession session, PrintWriter out, Node parent, Node node,
-                                 Map<String, TagHandler> tagHandlerCache) {
-        if (tagHandlerCache == null)
-            tagHandlerCache = new HashMap<String, TagHandler>();
-        TagHandler handler = null;
+                                 TagDispatchTable dispatchTable) {
         // Find the handler for this node
-        {
-            String name = node.getNodeName();
-            if (name != null) {
-                if (tagHandlerCache.containsKey(name)) {
-                    // we've looked this up before (though it could be null)
-                    handler = tagHandlerCache.get(name);
-                } else {
-                    handler = HtmlFormEntryUtil.getService().getHandlerByTagName(name);
-                    tagHandlerCache.put(name, handler);
-                }
-            }
-        }
+        TagHandler handler = node.getNodeName() == null ? null : dispatchTable.getHandler(node.getNodeName());
 
         if (handler == null)
             handler = this; // do default actions
 
+        // the time spent in a handler, but not in the handlers of its children
+        StageTimings tagTimings = handler == this || session == null ? null : session.getTagTimings();
+        long started = tagTimings == null ? 0 : System.nanoTime();
         try {
             boolean handleContents = handler.doStartTag(session, out, parent, node);
+            long handlerNanos = tagTimings == null ? 0 : System.nanoTime() - started;
 
             // Unless the handler told us to skip them, then iterate over any children
             if (handleContents) {
@@ -523,19 +519,23 @@ public class HtmlFormEntryGenerator implements TagHandler {
                     while (iteratingHandler.shouldRunAgain(session, out, parent, node)) {
                         NodeList list = node.getChildNodes();
                         for (int i = 0; i < list.getLength(); ++i) {
-                            applyTagsHelper(session, out, node, list.item(i), tagHandlerCache);
+                            applyTagsHelper(session, out, node, list.item(i), dispatchTable);
                         }
                     }
 
                 } else { // recurse to contents once
                     NodeList list = node.getChildNodes();
                     for (int i = 0; i < list.getLength(); ++i) {
-                        applyTagsHelper(session, out, node, list.item(i), tagHandlerCache);
+                        applyTagsHelper(session, out, node, list.item(i), dispatchTable);
                     }
                 }
             }
 
+            started = tagTimings == null ? 0 : System.nanoTime();
             handler.doEndTag(session, out, parent, node);
+            if (tagTimings != null) {
+                tagTimings.add(node.getNodeName(), handlerNanos + System.nanoTime() - started);
+            }
         } catch (BadFormDesignException e) {
             out.print("<div class=\"error\">" + handler + " reported an error in the design of the form. Consult your administrator.<br/><pre>");
             e.printStackTrace(out);
@@ -658,20 +658,7 @@ public class HtmlFormEntryGenerator implements TagHandler {
      * @should return correct xml after apply restrictByRole tag
      */
     public String applyRoleRestrictions(String xml) throws BadFormDesignException {
-
-        StringBuilder sb = new StringBuilder(xml);
-
-        while (xml.contains("<restrictByRole")) {
-            int startIndex = sb.indexOf("<restrictByRole") + 15;
-            int endIndex = sb.substring(startIndex).indexOf(">");
-            String includeStr = sb.substring(startIndex, startIndex + endIndex + 1);
-
-            boolean result = HtmlFormEntryGenerator.processRoleRestrictionLogic(includeStr);
-            HtmlFormEntryGenerator.removeFirstTagOccurrence(sb, "restrictByRole", result);
-
-            xml = sb.toString();
-        }
-        return xml;
+        return new FormPreprocessor(EnumSet.of(Step.ROLE_RESTRICTIONS)).process(xml).getXml();
     }
 
     /**
@@ -1,15 +1,23 @@
 package org.openmrs.module.htmlformentry;
 
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
 import org.openmrs.Form;
+import org.openmrs.Obs;
 import org.openmrs.OpenmrsMetadata;
 import org.openmrs.OpenmrsObject;
+import org.openmrs.Patient;
 import org.openmrs.Person;
 import org.openmrs.api.OpenmrsService;
 import org.openmrs.module.htmlformentry.element.PersonStub;
 import org.openmrs.module.htmlformentry.handler.TagHandler;
+import org.openmrs.module.htmlformentry.handler.TagHandlerRegistry;
 import org.springframework.transaction.annotation.Transactional;
 
 /**
@@ -72,6 +80,86 @@ public interface HtmlFormEntryService extends OpenmrsService {
     @Transactional
     public void purgeHtmlForm(HtmlForm form);
     
+    /**
+     * Returns the OpenMRS objects the specified HTML Form references, as recorded when it was last saved, or by
+     * {@link #indexHtmlFormDependencies()} for forms saved before they were recorded
+     * 
+     * @param form the HTML Form
+     * @return the recorded dependencies of the form
+     */
+    @Transactional(readOnly=true)
+    public List<HtmlFormDependency> getHtmlFormDependencies(HtmlForm form);
+    
+    /**
+     * Records the OpenMRS objects referenced by every HTML Form that has none recorded, e.g. because it was saved
+     * before they were recorded. This is done once, when the module is first started.
+     * 
+     * @should record the dependencies of forms that have none recorded
+     */
+    @Transactional
+    public void indexHtmlFormDependencies();
+    
+    /**
+     * Returns the HTML Forms that reference the specified object, e.g. to find the forms affected by a change to a
+     * concept
+     * 
+     * @param object the referenced object
+     * @return the forms whose recorded dependencies include the object
+     */
+    @Transactional(readOnly=true)
+    public List<HtmlForm> getHtmlFormsReferencing(OpenmrsObject object);
+    
+    /**
+     * Returns the stored state of a form being filled in
+     * 
+     * @param sessionKey the key the form session was stored under
+     * @return the stored form session, or null if there is none
+     */
+    @Transactional(readOnly=true)
+    public StoredFormSession getStoredFormSession(String sessionKey);
+    
+    /**
+     * Saves the state of a form being filled in, replacing any state stored under the same key
+     * 
+     * @param storedFormSession
+     */
+    @Transactional
+    public void saveStoredFormSession(StoredFormSession storedFormSession);
+    
+    /**
+     * Deletes the stored state of a form being filled in, if any
+     * 
+     * @param sessionKey the key the form session was stored under
+     */
+    @Transactional
+    public void purgeStoredFormSession(String sessionKey);
+    
+    /**
+     * Deletes the stored states of forms that have not been saved since the given date
+     * 
+     * @param date
+     * @return the number of stored form sessions deleted
+     */
+    @Transactional
+    public int purgeStoredFormSessionsUpdatedBefore(Date date);
+    
+    /**
+     * Returns the versions of the cached entries of all servers, see
+     * {@link org.openmrs.module.htmlformentry.cache.DatabaseCacheInvalidationChannel}
+     * 
+     * @return all cache versions
+     */
+    @Transactional(readOnly=true)
+    public List<CacheVersion> getCacheVersions();
+    
+    /**
+     * Increases the version of the given cache key, adding it at version 1 if it has none yet
+     * 
+     * @param cacheKey
+     */
+    @Transactional
+    public void incrementCacheVersion(String cacheKey);
+    
     /**
      * Add a tag name and handler to the Service
      * 
@@ -95,10 +183,19 @@ public interface HtmlFormEntryService extends OpenmrsService {
      * 
      * Returns a map of all tag handlers
      * 
-     * @return a map of all tag handlers
+     * @return an unmodifiable map of all tag handlers
      */
     @Transactional(readOnly=true)
     public Map<String, TagHandler> getHandlers();
+    
+    /**
+     * Returns all tag handlers as an immutable registry, which a render can hold on to and read without going through
+     * the service again for every tag
+     * 
+     * @return the current tag handlers
+     */
+    @Transactional(readOnly=true)
+    public TagHandlerRegistry getTagHandlerRegistry();
 
     /**
      * In version 1.7 of the module we drop the name and description properties of the
@@ -170,7 +267,119 @@ public interface HtmlFormEntryService extends OpenmrsService {
 	 * @param personsToExclude optional list of persons to exclude from the results list
 	 * @return a List<Integer>
 	 */
+	@Transactional(readOnly=true)
 	public List<PersonStub> getPeopleAsPersonStubs(List<String> attributeIds, List<String> attributeValues, List<String> programIds, List<Person> personsToExclude);
+
+	/**
+	 * Returns one page of Person stubs for the people matching all of the given criteria. The criteria are evaluated
+	 * together in a single database query, and only the fields of the stubs are loaded. Results are ordered by family
+	 * name, given name and person id, so the next page is fetched by passing the last stub returned as after.
+	 * <p/>
+	 * If no criteria are given at all, no people are returned.
+	 * 
+	 * @param searchPhrase optional words that must each start one of the person's names; if the phrase contains a
+	 *            digit, people with it as a patient identifier also match
+	 * @param attributeIds the optional list of names of person attribute types the people must have
+	 * @param attributeValues the list of optional values to match against the person attributes
+	 * @param programIds the optional list of programs the people must have been enrolled in
+	 * @param personsToExclude optional list of persons to exclude from the results list
+	 * @param after optional last stub of the previous page, of which the id and names are used
+	 * @param maxResults optional maximum number of stubs to return
+	 * @return a List<PersonStub>
+	 * @should return people whose names start with the search phrase
+	 * @should not return excluded people
+	 * @should return the page after the given person
+	 * @should order people by name
+	 */
+	@Transactional(readOnly=true)
+	public List<PersonStub> getPeopleAsPersonStubs(String searchPhrase, List<String> attributeIds,
+	        List<String> attributeValues, List<String> programIds, List<Person> personsToExclude, PersonStub after,
+	        Integer maxResults);
+
+	/**
+	 * Returns the most recent non-voided obs for the given person and concept, ordered by obsDatetime. Only that
+	 * one obs is fetched from the database.
+	 *
+	 * @param person
+	 * @param concept
+	 * @return the most recent obs, or null if there is none
+	 * @should return the most recent obs for the person and concept
+	 * @should return null if the person has no obs for the concept
+	 */
+	@Transactional(readOnly=true)
+	public Obs getLatestObs(Person person, Concept concept);
+
+	/**
+	 * Returns the earliest non-voided obs for the given person and concept, ordered by obsDatetime. Only that
+	 * one obs is fetched from the database.
+	 *
+	 * @param person
+	 * @param concept
+	 * @return the earliest obs, or null if there is none
+	 * @should return the earliest obs for the person and concept
+	 */
+	@Transactional(readOnly=true)
+	public Obs getEarliestObs(Person person, Concept concept);
+
+	/**
+	 * Returns the most recent non-voided obs for the given person for each of the given concepts, fetched in a
+	 * single query. Ties on obsDatetime are broken in favor of the obs with the highest id.
+	 *
+	 * @param person
+	 * @param concepts
+	 * @return a map from concept to its most recent obs; concepts with no obs are not included
+	 * @should return the most recent obs for each concept
+	 * @should not include concepts the person has no obs for
+	 */
+	@Transactional(readOnly=true)
+	public Map<Concept, Obs> getLatestObs(Person person, Collection<Concept> concepts);
+
+	/**
+	 * Returns the earliest non-voided obs for the given person for each of the given concepts, fetched in a single
+	 * query. Ties on obsDatetime are broken in favor of the obs with the lowest id.
+	 *
+	 * @param person
+	 * @param concepts
+	 * @return a map from concept to its earliest obs; concepts with no obs are not included
+	 * @should return the earliest obs for each concept
+	 */
+	@Transactional(readOnly=true)
+	public Map<Concept, Obs> getEarliestObs(Person person, Collection<Concept> concepts);
+
+	/**
+	 * Returns the most recent non-voided encounter of the given type for the patient, ordered by encounterDatetime.
+	 * Only that one encounter is fetched from the database.
+	 *
+	 * @param patient
+	 * @param encounterType the type of encounter to look for, or null for any type
+	 * @return the most recent encounter, or null if there is none
+	 * @should return the most recent encounter of the given type
+	 * @should return the most recent encounter of any type if no type specified
+	 */
+	@Transactional(readOnly=true)
+	public Encounter getLatestEncounter(Patient patient, EncounterType encounterType);
+
+	/**
+	 * Returns the time a saved encounter was last modified: the latest time it, or any of its obs or orders, was
+	 * created or voided. The obs and orders are not loaded, so this costs the same however many the encounter has.
+	 *
+	 * @param encounter a saved encounter
+	 * @return the last modified time, in milliseconds
+	 * @should change when an obs of the encounter is voided
+	 */
+	@Transactional(readOnly=true)
+	public long getEncounterModifiedTimestamp(Encounter encounter);
+
+	/**
+	 * Counts the non-retired metadata of the given type, e.g. the locations or providers a form lists all of, without
+	 * loading them
+	 *
+	 * @param type the class of the metadata
+	 * @return the number of non-retired objects of that type
+	 * @should count only non-retired metadata
+	 */
+	@Transactional(readOnly=true)
+	public int getNonRetiredCount(Class<? extends OpenmrsMetadata> type);
 	
 	@Transactional
 	public void applyActions(FormEntrySession session) throws BadFormDesignException;
@@ -37,10 +37,13 @@ import org.openmrs.messagesource.MessageSourceService;
 import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
 import org.openmrs.module.htmlformentry.action.FormSubmissionControllerAction;
 import org.openmrs.module.htmlformentry.action.ObsGroupAction;
+import org.openmrs.module.htmlformentry.cache.CacheInvalidationChannel;
 import org.openmrs.module.htmlformentry.compatibility.EncounterCompatibility;
 import org.openmrs.module.htmlformentry.element.GettingExistingOrder;
 import org.openmrs.module.htmlformentry.element.ObsSubmissionElement;
 import org.openmrs.module.htmlformentry.element.ProviderStub;
+import org.openmrs.module.htmlformentry.metrics.FormProfiler;
+import org.openmrs.module.htmlformentry.store.FormSessionStore;
 import org.openmrs.module.htmlformentry.util.MatchMode;
 import org.openmrs.module.htmlformentry.util.Predicate;
 import org.openmrs.module.htmlformentry.util.ProviderTransformer;
@@ -116,6 +119,35 @@ public class HtmlFormEntryUtil {
 		return Context.getService(HtmlFormEntryService.class);
 	}
 
+	/**
+	 * Returns the store of forms being filled in, named by the
+	 * {@link HtmlFormEntryConstants#GP_FORM_SESSION_STORE} global property
+	 *
+	 * @return the form session store
+	 */
+	public static FormSessionStore getFormSessionStore() {
+		String name = Context.getAdministrationService().getGlobalProperty(HtmlFormEntryConstants.GP_FORM_SESSION_STORE);
+		if (StringUtils.isBlank(name)) {
+			name = "htmlformentry.InMemoryFormSessionStore";
+		}
+		return Context.getRegisteredComponent(name.trim(), FormSessionStore.class);
+	}
+
+	/**
+	 * Returns the channel that keeps the caches of all servers in step, named by the
+	 * {@link HtmlFormEntryConstants#GP_CACHE_INVALIDATION_CHANNEL} global property
+	 *
+	 * @return the cache invalidation channel
+	 */
+	public static CacheInvalidationChannel getCacheInvalidationChannel() {
+		String name = Context.getAdministrationService().getGlobalProperty(
+		    HtmlFormEntryConstants.GP_CACHE_INVALIDATION_CHANNEL);
+		if (StringUtils.isBlank(name)) {
+			name = "htmlformentry.DatabaseCacheInvalidationChannel";
+		}
+		return Context.getRegisteredComponent(name.trim(), CacheInvalidationChannel.class);
+	}
+
 	private static <T extends OpenmrsMetadata> T getMetadataByMapping(Class<T> type, String identifier){
 		MetadataMappingResolver metadataMappingResolver = getMetadaMappingResolver();
 		if (metadataMappingResolver != null) {
@@ -327,6 +359,18 @@ public class HtmlFormEntryUtil {
 	 * @throws Exception
 	 */
 	public static String documentToString(Document document) throws Exception {
+		return documentToString(document, true);
+	}
+
+	/**
+	 * Converts a Document object to an xml string
+	 *
+	 * @param document the Document instance to convert
+	 * @param indent whether to indent the xml; if not, the whitespace of the document is preserved exactly
+	 * @return the resulting xml string
+	 * @throws Exception
+	 */
+	public static String documentToString(Document document, boolean indent) throws Exception {
 		//set up a transformer
 		Transformer trans = null;
 		TransformerFactory transfac = TransformerFactory.newInstance();
@@ -338,7 +382,7 @@ public class HtmlFormEntryUtil {
 			System.out.println(HtmlFormEntryConstants.ERROR_TRANSFORMER_1 + te);
 		}
 		trans.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, HtmlFormEntryConstants.CONSTANT_YES);
-		trans.setOutputProperty(OutputKeys.INDENT, HtmlFormEntryConstants.CONSTANT_YES);
+		trans.setOutputProperty(OutputKeys.INDENT, indent ? HtmlFormEntryConstants.CONSTANT_YES : "no");
 		trans.setOutputProperty(OutputKeys.METHOD, HtmlFormEntryConstants.CONSTANT_XML);
         trans.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
 
@@ -523,6 +567,7 @@ public class HtmlFormEntryUtil {
 	 * @should find a concept by its mapping with a space in between
 	 */
 	public static Concept getConcept(String id) {
+		FormProfiler.countLookup(Concept.class);
 
 		Concept cpt = null;
 
@@ -625,6 +670,7 @@ public class HtmlFormEntryUtil {
      * @should return null otherwise
      */
 	public static Location getLocation(String id, FormEntryContext context) {
+		FormProfiler.countLookup(Location.class);
 
 		Location location = null;
 
@@ -745,6 +791,7 @@ public class HtmlFormEntryUtil {
 	 * @should return null otherwise
 	 */
 	public static Program getProgram(String id) {
+		FormProfiler.countLookup(Program.class);
 
 		Program program = null;
 
@@ -802,6 +849,7 @@ public class HtmlFormEntryUtil {
 	 * @should return null otherwise
 	 */
 	public static Person getPerson(String id) {
+		FormProfiler.countLookup(Person.class);
 		
 		Person person = null;
 		
@@ -870,6 +918,7 @@ public class HtmlFormEntryUtil {
 	 * @should return null otherwise
 	 */
 	public static PatientIdentifierType getPatientIdentifierType(String id) {
+		FormProfiler.countLookup(PatientIdentifierType.class);
 		PatientIdentifierType identifierType = null;
 		
 		if (id != null) {
@@ -928,6 +977,7 @@ public class HtmlFormEntryUtil {
 	 */
 	@SuppressWarnings("deprecation")
 	public static ProgramWorkflow getWorkflow(String identifier) {
+		FormProfiler.countLookup(ProgramWorkflow.class);
 		ProgramWorkflow workflow = null;
 		
 		if (identifier != null) {
@@ -990,6 +1040,7 @@ public class HtmlFormEntryUtil {
 	 * @should return the state associated with a concept that matches the passed concept map
 	 */
 	public static ProgramWorkflowState getState(String identifier, Program program) {
+		FormProfiler.countLookup(ProgramWorkflowState.class);
 		if (identifier == null) {
 			return null;
 		}
@@ -1035,6 +1086,7 @@ public class HtmlFormEntryUtil {
 	 * @should return the state associated with a concept that matches the passed concept map
 	 */
 	public static ProgramWorkflowState getState(String identifier, ProgramWorkflow workflow) {
+		FormProfiler.countLookup(ProgramWorkflowState.class);
 		if (identifier == null) {
 			return null;
 		}
@@ -1095,6 +1147,7 @@ public class HtmlFormEntryUtil {
      * @return
      */
     public static LocationTag getLocationTag(String identifier) {
+        FormProfiler.countLookup(LocationTag.class);
 
         LocationTag tag = null;
 
@@ -1162,6 +1215,7 @@ public class HtmlFormEntryUtil {
 	 */
 	@SuppressWarnings("deprecation")
 	public static ProgramWorkflowState getState(String identifier) {
+		FormProfiler.countLookup(ProgramWorkflowState.class);
 		ProgramWorkflowState state = null;
 		
 		if (identifier != null) {
@@ -1792,6 +1846,7 @@ public class HtmlFormEntryUtil {
 	 * @should return null otherwise
 	 */
 	public static EncounterType getEncounterType(String id) {
+		FormProfiler.countLookup(EncounterType.class);
 		
 		EncounterType encounterType = null;
 		
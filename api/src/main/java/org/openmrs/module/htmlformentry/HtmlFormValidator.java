@@ -1,13 +1,15 @@
 package org.openmrs.module.htmlformentry;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.cache.ConceptAnswerOptionsCache;
 import org.openmrs.module.htmlformentry.handler.TagAnalysis;
+import org.openmrs.module.htmlformentry.handler.TagDispatchTable;
 import org.openmrs.module.htmlformentry.handler.TagHandler;
 import org.openmrs.module.htmlformentry.handler.TagValidator;
 import org.openmrs.validator.FormValidator;
@@ -27,10 +29,19 @@ public class HtmlFormValidator implements Validator {
 	
 	private List<String> htmlFormWarnings = new ArrayList<String>();
 
+	private int renderCost = 0;
+
 	public List<String> getHtmlFormWarnings() {
 		return htmlFormWarnings;
 	}
 
+	/**
+	 * @return the estimated cost of rendering the validated form, see {@link RenderCostAnalyzer}
+	 */
+	public int getRenderCost() {
+		return renderCost;
+	}
+
 	/** 
      * Tests whether the validator supports the specified class
      */
@@ -45,6 +56,7 @@ public class HtmlFormValidator implements Validator {
      *
      * @should reject xml containing encounter type tag for a form with an encounter type
 	 * @should allow xml containing encounter type tag for a form with no encounter type
+     * @should warn about expensive patterns and estimate the render cost
      */
     @Override
     public void validate(Object obj, Errors errors) {
@@ -71,33 +83,32 @@ public class HtmlFormValidator implements Validator {
 				}
                 HtmlFormEntryGenerator htmlGenerator = new HtmlFormEntryGenerator();
                 String xml = hf.getXmlData();
-                xml = htmlGenerator.stripComments(xml);
-                xml = htmlGenerator.convertSpecialCharactersWithinLogicAndVelocityTests(xml);
-                xml = htmlGenerator.applyRoleRestrictions(xml);
+                xml = htmlGenerator.preprocess(xml).getXml();
                 xml = htmlGenerator.applyMacros(session, xml);
                 xml = htmlGenerator.applyRepeats(xml);
                 Document document = HtmlFormEntryUtil.stringToDocument(xml);
-                validateTags(document, errors, null);
+                validateTags(document, errors, HtmlFormEntryUtil.getService().getTagHandlerRegistry().getDispatchTable(null));
             } catch (Exception ex) {
                 errors.rejectValue("xmlData", null, ex.getMessage());
                 log.warn("Error in HTML form", ex);
             }
+            if (!errors.hasFieldErrors("xmlData")) {
+                analyzeRenderCost(hf.getXmlData());
+            }
         }
     }
 
+    /**
+     * @deprecated use {@link #validateTags(Node, Errors, TagDispatchTable)}, which does not look each tag up in the
+     *             service
+     */
+    @Deprecated
     public void validateTags(Node node, Errors errors, Map<String, TagHandler> tagHandlerCache) {
-        if (tagHandlerCache == null) {
-            tagHandlerCache = new HashMap<String, TagHandler>();
-        }
-        TagHandler handler = null;
-        if (node.getNodeName() != null) {
-            if (tagHandlerCache.containsKey(node.getNodeName())) {
-                handler = tagHandlerCache.get(node.getNodeName());
-            } else {
-                handler = HtmlFormEntryUtil.getService().getHandlerByTagName(node.getNodeName());
-                tagHandlerCache.put(node.getNodeName(), handler);
-            }
-        }
+        validateTags(node, errors, HtmlFormEntryUtil.getService().getTagHandlerRegistry().getDispatchTable(null));
+    }
+
+    public void validateTags(Node node, Errors errors, TagDispatchTable dispatchTable) {
+        TagHandler handler = node.getNodeName() == null ? null : dispatchTable.getHandler(node.getNodeName());
         if (handler != null && handler instanceof TagValidator) {
             TagAnalysis analysis = ((TagValidator) handler).validate(node);
             if (analysis.getWarnings().size() > 0 || analysis.getErrors().size() > 0) {
@@ -109,7 +120,28 @@ public class HtmlFormValidator implements Validator {
         }
         NodeList children = node.getChildNodes();
         for (int i = 0; i < children.getLength(); i++) {
-            validateTags(children.item(i), errors, tagHandlerCache);
+            validateTags(children.item(i), errors, dispatchTable);
+        }
+    }
+
+    /**
+     * Adds warnings about the patterns of the form that make it expensive to render, followed by its estimated cost
+     */
+    private void analyzeRenderCost(String xml) {
+        try {
+            int optionThreshold = Context.getRegisteredComponent("htmlformentry.ConceptAnswerOptionsCache",
+                ConceptAnswerOptionsCache.class).getAutocompleteThreshold();
+            RenderCostAnalyzer analyzer = new RenderCostAnalyzer(optionThreshold);
+            analyzer.analyze(xml);
+            renderCost = analyzer.getCost();
+            if (analyzer.getWarnings().size() > 0) {
+                htmlFormWarnings.addAll(analyzer.getWarnings());
+                htmlFormWarnings.add(Context.getMessageSourceService().getMessage("htmlformentry.warning.renderCost",
+                    new Object[] { renderCost }, null));
+            }
+        } catch (Exception ex) {
+            // an estimate is not worth rejecting the form for
+            log.warn("Unable to estimate the render cost of the form", ex);
         }
     }
 
@@ -0,0 +1,328 @@
+package org.openmrs.module.htmlformentry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Cohort;
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.PatientProgram;
+import org.openmrs.Person;
+import org.openmrs.Program;
+import org.openmrs.api.context.Context;
+import org.openmrs.logic.LogicCriteria;
+import org.openmrs.logic.result.Result;
+import org.openmrs.module.htmlformentry.cache.LogicCriteriaCache;
+import org.openmrs.module.htmlformentry.compatibility.EncounterServiceCompatibility;
+import org.openmrs.module.htmlformentry.compiler.CompiledForm;
+
+/**
+ * The patient data that {@link VelocityFunctions} hands to a form, held for the lifetime of a single
+ * {@link FormEntrySession}.
+ * <p/>
+ * When a session is opened, everything the form is known to refer to (see {@link CompiledForm}) is fetched in a
+ * handful of batched queries by {@link #prefetch(Patient, CompiledForm)}. Anything else the form asks for is fetched
+ * on demand by {@link VelocityFunctions} and remembered here, so that a form referring to the same data many times
+ * only hits the database once.
+ * <p/>
+ * Obs are keyed by the concept reference exactly as it appears in the form, encounters by encounter type id,
+ * where a null key means encounters of any type, and logic results by expression.
+ */
+public class PatientDataSnapshot {
+
+	protected final Log log = LogFactory.getLog(getClass());
+
+	private Map<String, List<Obs>> allObs = new HashMap<String, List<Obs>>();
+
+	private Map<String, Obs> latestObs = new HashMap<String, Obs>();
+
+	private Map<String, Obs> earliestObs = new HashMap<String, Obs>();
+
+	private Map<Integer, List<Encounter>> allEncounters = new HashMap<Integer, List<Encounter>>();
+
+	private Map<Integer, Encounter> latestEncounters = new HashMap<Integer, Encounter>();
+
+	private List<PatientProgram> patientPrograms;
+
+	private Map<String, Result> logicResults = new HashMap<String, Result>();
+
+	/**
+	 * Fetches all the data that the compiled form refers to for the given patient
+	 *
+	 * @param patient a saved patient
+	 * @param compiledForm
+	 */
+	public void prefetch(Patient patient, CompiledForm compiledForm) {
+		if (compiledForm.hasObsReferences()) {
+			prefetchObs(patient, compiledForm);
+		}
+		if (compiledForm.hasEncounterReferences()) {
+			prefetchEncounters(patient, compiledForm);
+		}
+		if (compiledForm.hasProgramReferences()) {
+			patientPrograms = Context.getProgramWorkflowService().getPatientPrograms(patient, null, null, null, null,
+			    null, false);
+		}
+		if (!compiledForm.getLogicExpressions().isEmpty()) {
+			prefetchLogicResults(patient, compiledForm);
+		}
+	}
+
+	/**
+	 * Evaluates all the distinct logic expressions on the form in one call to the logic service. Expressions that
+	 * cannot be parsed are skipped here, so that the tag or function using them reports the error as it always has.
+	 */
+	private void prefetchLogicResults(Patient patient, CompiledForm compiledForm) {
+		LogicCriteriaCache criteriaCache = Context.getRegisteredComponent("htmlformentry.LogicCriteriaCache",
+		    LogicCriteriaCache.class);
+		Map<LogicCriteria, String> expressions = new LinkedHashMap<LogicCriteria, String>();
+		for (String expression : compiledForm.getLogicExpressions()) {
+			try {
+				LogicCriteria criteria = criteriaCache.getCriteria(expression);
+				if (criteria != null) {
+					expressions.put(criteria, expression);
+				}
+			}
+			catch (Exception ex) {
+				log.debug("Not prefetching unparseable logic expression: " + expression, ex);
+			}
+		}
+		if (expressions.isEmpty()) {
+			return;
+		}
+		try {
+			Cohort cohort = new Cohort(Collections.singleton(patient.getPatientId()));
+			Map<LogicCriteria, Map<Integer, Result>> results = Context.getLogicService().eval(cohort,
+			    new ArrayList<LogicCriteria>(expressions.keySet()));
+			for (Map.Entry<LogicCriteria, String> e : expressions.entrySet()) {
+				Map<Integer, Result> forCriteria = results.get(e.getKey());
+				if (forCriteria != null && forCriteria.containsKey(patient.getPatientId())) {
+					logicResults.put(e.getValue(), forCriteria.get(patient.getPatientId()));
+				}
+			}
+		}
+		catch (Exception ex) {
+			// leave each expression to be evaluated on its own when the form reaches it
+			log.warn("Unable to evaluate logic expressions for patient " + patient.getPatientId() + " in one batch", ex);
+		}
+	}
+
+	/**
+	 * The full history is fetched in one query across all concepts the form calls fn.allObs on, and latest and
+	 * earliest obs of those concepts are taken from it; for the remaining concepts, all latest obs are fetched with
+	 * one query and all earliest obs with another
+	 */
+	private void prefetchObs(Patient patient, CompiledForm compiledForm) {
+		Map<String, Concept> allObsConcepts = resolveConcepts(compiledForm.getAllObsConcepts());
+		if (!allObsConcepts.isEmpty()) {
+			List<Obs> history = Context.getObsService().getObservations(personList(patient), null,
+			    new ArrayList<Concept>(allObsConcepts.values()), null, null, null, null, null, null, null, null, false);
+			for (Map.Entry<String, Concept> e : allObsConcepts.entrySet()) {
+				List<Obs> obsForConcept = new ArrayList<Obs>();
+				for (Obs obs : history) {
+					if (obs.getConcept().equals(e.getValue())) {
+						obsForConcept.add(obs);
+					}
+				}
+				allObs.put(e.getKey(), obsForConcept);
+			}
+		}
+
+		Map<String, Concept> latestConcepts = resolveConcepts(compiledForm.getLatestObsConcepts());
+		latestConcepts.keySet().removeAll(allObsConcepts.keySet());
+		if (!latestConcepts.isEmpty()) {
+			Map<Concept, Obs> found = HtmlFormEntryUtil.getService().getLatestObs(patient, latestConcepts.values());
+			for (Map.Entry<String, Concept> e : latestConcepts.entrySet()) {
+				latestObs.put(e.getKey(), found.get(e.getValue()));
+			}
+		}
+
+		Map<String, Concept> earliestConcepts = resolveConcepts(compiledForm.getEarliestObsConcepts());
+		earliestConcepts.keySet().removeAll(allObsConcepts.keySet());
+		if (!earliestConcepts.isEmpty()) {
+			Map<Concept, Obs> found = HtmlFormEntryUtil.getService().getEarliestObs(patient, earliestConcepts.values());
+			for (Map.Entry<String, Concept> e : earliestConcepts.entrySet()) {
+				earliestObs.put(e.getKey(), found.get(e.getValue()));
+			}
+		}
+	}
+
+	/**
+	 * Only the types the form calls fn.allEncounters on have their full history fetched, all in one query; for
+	 * fn.latestEncounter, just the most recent encounter of each type is fetched, unless it can be taken from a full
+	 * history that was fetched anyway
+	 */
+	private void prefetchEncounters(Patient patient, CompiledForm compiledForm) {
+		if (compiledForm.isAllEncountersOfAnyType()) {
+			putAllEncounters(null, Context.getEncounterService().getEncountersByPatient(patient));
+		}
+		List<EncounterType> allTypes = resolveEncounterTypes(compiledForm.getAllEncounterTypes());
+		if (!allTypes.isEmpty()) {
+			EncounterServiceCompatibility esc = Context.getRegisteredComponent(
+			    "htmlformentry.EncounterServiceCompatibility", EncounterServiceCompatibility.class);
+			List<Encounter> encounters = esc.getEncounters(patient, null, null, null, null, allTypes, null, null, null,
+			    false);
+			for (EncounterType type : allTypes) {
+				List<Encounter> ofType = new ArrayList<Encounter>();
+				for (Encounter encounter : encounters) {
+					if (type.equals(encounter.getEncounterType())) {
+						ofType.add(encounter);
+					}
+				}
+				putAllEncounters(type.getEncounterTypeId(), ofType);
+			}
+		}
+
+		List<EncounterType> latestTypes = resolveEncounterTypes(compiledForm.getLatestEncounterTypes());
+		if (compiledForm.isLatestEncounterOfAnyType()) {
+			latestTypes.add(null);
+		}
+		for (EncounterType type : latestTypes) {
+			Integer key = type == null ? null : type.getEncounterTypeId();
+			if (!hasAllEncounters(key) && !hasLatestEncounter(key)) {
+				putLatestEncounter(key, HtmlFormEntryUtil.getService().getLatestEncounter(patient, type));
+			}
+		}
+	}
+
+	/**
+	 * @return the distinct encounter types that could be found for the references
+	 */
+	private List<EncounterType> resolveEncounterTypes(Set<String> refs) {
+		List<EncounterType> ret = new ArrayList<EncounterType>();
+		for (String ref : refs) {
+			EncounterType type = HtmlFormEntryUtil.getEncounterType(ref);
+			if (type != null && !ret.contains(type)) {
+				ret.add(type);
+			} else if (type == null && log.isDebugEnabled()) {
+				log.debug("Not prefetching encounters of unknown type: " + ref);
+			}
+		}
+		return ret;
+	}
+
+	private Map<String, Concept> resolveConcepts(Set<String> refs) {
+		Map<String, Concept> ret = new LinkedHashMap<String, Concept>();
+		for (String ref : refs) {
+			Concept concept = HtmlFormEntryUtil.getConcept(ref);
+			if (concept != null) {
+				ret.put(ref, concept);
+			} else if (log.isDebugEnabled()) {
+				log.debug("Not prefetching obs for unknown concept: " + ref);
+			}
+		}
+		return ret;
+	}
+
+	private List<Person> personList(Patient patient) {
+		List<Person> ret = new ArrayList<Person>();
+		ret.add(patient);
+		return ret;
+	}
+
+	public boolean hasAllObs(String conceptRef) {
+		return allObs.containsKey(conceptRef);
+	}
+
+	/**
+	 * @return all obs for the concept, most recent first, or null if they have not been fetched
+	 */
+	public List<Obs> getAllObs(String conceptRef) {
+		return allObs.get(conceptRef);
+	}
+
+	public void putAllObs(String conceptRef, List<Obs> obs) {
+		allObs.put(conceptRef, obs);
+	}
+
+	public boolean hasLatestObs(String conceptRef) {
+		return latestObs.containsKey(conceptRef);
+	}
+
+	public Obs getLatestObs(String conceptRef) {
+		return latestObs.get(conceptRef);
+	}
+
+	public void putLatestObs(String conceptRef, Obs obs) {
+		latestObs.put(conceptRef, obs);
+	}
+
+	public boolean hasEarliestObs(String conceptRef) {
+		return earliestObs.containsKey(conceptRef);
+	}
+
+	public Obs getEarliestObs(String conceptRef) {
+		return earliestObs.get(conceptRef);
+	}
+
+	public void putEarliestObs(String conceptRef, Obs obs) {
+		earliestObs.put(conceptRef, obs);
+	}
+
+	public boolean hasAllEncounters(Integer encounterTypeId) {
+		return allEncounters.containsKey(encounterTypeId);
+	}
+
+	/**
+	 * @return all encounters of the type (of any type if the id is null), oldest first, or null if they have not
+	 *         been fetched
+	 */
+	public List<Encounter> getAllEncounters(Integer encounterTypeId) {
+		return allEncounters.get(encounterTypeId);
+	}
+
+	public void putAllEncounters(Integer encounterTypeId, List<Encounter> encounters) {
+		allEncounters.put(encounterTypeId, encounters);
+	}
+
+	public boolean hasLatestEncounter(Integer encounterTypeId) {
+		return latestEncounters.containsKey(encounterTypeId);
+	}
+
+	public Encounter getLatestEncounter(Integer encounterTypeId) {
+		return latestEncounters.get(encounterTypeId);
+	}
+
+	public void putLatestEncounter(Integer encounterTypeId, Encounter encounter) {
+		latestEncounters.put(encounterTypeId, encounter);
+	}
+
+	public boolean hasLogicResult(String expression) {
+		return logicResults.containsKey(expression);
+	}
+
+	public Result getLogicResult(String expression) {
+		return logicResults.get(expression);
+	}
+
+	public void putLogicResult(String expression, Result result) {
+		logicResults.put(expression, result);
+	}
+
+	/**
+	 * @return the patient's non-voided enrollments in the given program, or null if the patient's enrollments have
+	 *         not been fetched
+	 */
+	public List<PatientProgram> getPatientPrograms(Program program) {
+		if (patientPrograms == null) {
+			return null;
+		}
+		List<PatientProgram> ret = new ArrayList<PatientProgram>();
+		for (PatientProgram pp : patientPrograms) {
+			if (program == null || program.equals(pp.getProgram())) {
+				ret.add(pp);
+			}
+		}
+		return ret;
+	}
+}
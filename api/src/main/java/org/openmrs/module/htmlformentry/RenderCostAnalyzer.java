@@ -0,0 +1,209 @@
+package org.openmrs.module.htmlformentry;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.openmrs.ConceptClass;
+import org.openmrs.Location;
+import org.openmrs.Provider;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.FormPreprocessor.Step;
+import org.openmrs.module.htmlformentry.cache.ConceptAnswerOptionsCache;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Estimates how expensive a form is to render from the patterns in its xml that are known to load a lot of data, so
+ * that they are caught when the form is saved rather than in production. The cost is a rough score:
+ * <ul>
+ * <li>one point per option loaded by an encounterLocation without tags or order, an encounterProvider without role or
+ * persons, and an obs with answerClasses that is not an autocomplete</li>
+ * <li>{@link #ALL_OBS_COST} points per evaluation of fn.allObs</li>
+ * <li>{@link #NESTED_OBS_GROUP_COST} points per obs group nested more than {@link #MAX_OBS_GROUP_DEPTH} deep, since
+ * matching the existing obs of nested groups when editing grows with every level</li>
+ * </ul>
+ * Each pattern counts once per copy a repeat makes of it. A warning is given for widgets with more options than the
+ * threshold, for fn.allObs within a repeat, and for obs groups nested too deep.
+ */
+public class RenderCostAnalyzer {
+
+	public static final int MAX_OBS_GROUP_DEPTH = 2;
+
+	public static final int ALL_OBS_COST = 100;
+
+	public static final int NESTED_OBS_GROUP_COST = 100;
+
+	private final int optionThreshold;
+
+	private int cost = 0;
+
+	private List<String> warnings = new ArrayList<String>();
+
+	private Integer locationCount; // only counted if needed
+
+	private Integer providerCount;
+
+	/**
+	 * @param optionThreshold the number of options above which a widget is warned about
+	 */
+	public RenderCostAnalyzer(int optionThreshold) {
+		this.optionThreshold = optionThreshold;
+	}
+
+	/**
+	 * Adds the cost of the given form to the total
+	 *
+	 * @param xml the xml of a form, before its macros and repeats are expanded
+	 */
+	public void analyze(String xml) throws Exception {
+		// only comments and tests are processed, so that repeats are seen as they were written
+		xml = new FormPreprocessor(EnumSet.of(Step.STRIP_COMMENTS, Step.ESCAPE_TESTS)).process(xml).getXml();
+		Document document = HtmlFormEntryUtil.stringToDocument(xml);
+		analyze(document, 1, 0);
+	}
+
+	private void analyze(Node node, int copies, int obsGroupDepth) {
+		if (node.getNodeType() == Node.TEXT_NODE) {
+			countAllObs(node.getNodeValue(), copies);
+			return;
+		}
+		if (node.getNodeType() != Node.ELEMENT_NODE && node.getNodeType() != Node.DOCUMENT_NODE) {
+			return;
+		}
+		String name = node.getNodeName();
+		NamedNodeMap attributes = node.getAttributes();
+		if (attributes != null) {
+			for (int i = 0; i < attributes.getLength(); i++) {
+				countAllObs(attributes.item(i).getNodeValue(), copies);
+			}
+		}
+
+		if ("repeat".equals(name)) {
+			String with = getAttribute(node, "with");
+			if (with != null) {
+				copies *= FormPreprocessor.getSubstitutionSets(with).size();
+			} else {
+				int renders = 0;
+				Node template = null;
+				for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+					if ("render".equals(child.getNodeName())) {
+						renders++;
+					} else if ("template".equals(child.getNodeName())) {
+						template = child;
+					}
+				}
+				if (template != null) {
+					analyze(template, copies * renders, obsGroupDepth);
+				}
+				return;
+			}
+		} else if ("encounterLocation".equals(name)) {
+			if (getAttribute(node, "tags") == null && getAttribute(node, "order") == null) {
+				int options = getLocationCount();
+				cost += options * copies;
+				if (options > optionThreshold) {
+					warn("htmlformentry.warning.allLocations", options);
+				}
+			}
+		} else if ("encounterProvider".equals(name)) {
+			if (getAttribute(node, "role") == null && getAttribute(node, "persons") == null) {
+				int options = getProviderCount();
+				cost += options * copies;
+				if (options > optionThreshold) {
+					warn("htmlformentry.warning.allProviders", options);
+				}
+			}
+		} else if ("obs".equals(name)) {
+			String answerClasses = getAttribute(node, "answerClasses");
+			if (answerClasses != null && !"autocomplete".equals(getAttribute(node, "style"))) {
+				int options = getConceptClassCount(answerClasses);
+				cost += options * copies;
+				if (options > optionThreshold) {
+					warn("htmlformentry.warning.largeAnswerClasses", getAttribute(node, "conceptId"), options,
+					    answerClasses);
+				}
+			}
+		} else if ("obsgroup".equals(name)) {
+			obsGroupDepth++;
+			if (obsGroupDepth > MAX_OBS_GROUP_DEPTH) {
+				cost += NESTED_OBS_GROUP_COST * copies;
+				warn("htmlformentry.warning.deepObsGroup", getAttribute(node, "groupingConceptId"), obsGroupDepth);
+			}
+		}
+
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+			analyze(child, copies, obsGroupDepth);
+		}
+	}
+
+	private void countAllObs(String value, int copies) {
+		if (value == null) {
+			return;
+		}
+		for (int i = value.indexOf("fn.allObs"); i >= 0; i = value.indexOf("fn.allObs", i + 1)) {
+			cost += ALL_OBS_COST * copies;
+			if (copies > 1) {
+				warn("htmlformentry.warning.allObsInRepeat", copies);
+			}
+		}
+	}
+
+	private int getLocationCount() {
+		if (locationCount == null) {
+			locationCount = HtmlFormEntryUtil.getService().getNonRetiredCount(Location.class);
+		}
+		return locationCount;
+	}
+
+	private int getProviderCount() {
+		if (providerCount == null) {
+			providerCount = HtmlFormEntryUtil.getService().getNonRetiredCount(Provider.class);
+		}
+		return providerCount;
+	}
+
+	private int getConceptClassCount(String answerClasses) {
+		List<ConceptClass> conceptClasses = new ArrayList<ConceptClass>();
+		for (StringTokenizer st = new StringTokenizer(answerClasses, ","); st.hasMoreTokens();) {
+			ConceptClass conceptClass = Context.getConceptService().getConceptClassByName(st.nextToken().trim());
+			if (conceptClass != null) {
+				conceptClasses.add(conceptClass);
+			}
+		}
+		if (conceptClasses.isEmpty()) {
+			return 0;
+		}
+		// the form loads these when it renders, so they may as well be cached now
+		return Context.getRegisteredComponent("htmlformentry.ConceptAnswerOptionsCache", ConceptAnswerOptionsCache.class)
+		        .getConceptClassOptions(conceptClasses, Context.getLocale()).size();
+	}
+
+	private String getAttribute(Node node, String name) {
+		Node attribute = node.getAttributes() == null ? null : node.getAttributes().getNamedItem(name);
+		return attribute == null ? null : attribute.getNodeValue();
+	}
+
+	private void warn(String code, Object... args) {
+		String warning = Context.getMessageSourceService().getMessage(code, args, null);
+		if (!warnings.contains(warning)) {
+			warnings.add(warning);
+		}
+	}
+
+	/**
+	 * @return the estimated cost of the forms analyzed
+	 */
+	public int getCost() {
+		return cost;
+	}
+
+	/**
+	 * @return the expensive patterns found, as messages for the form designer
+	 */
+	public List<String> getWarnings() {
+		return warnings;
+	}
+}
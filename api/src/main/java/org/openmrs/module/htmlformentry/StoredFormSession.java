@@ -0,0 +1,60 @@
+package org.openmrs.module.htmlformentry;
+
+import java.util.Date;
+
+/**
+ * A serialized {@link org.openmrs.module.htmlformentry.store.FormSessionState}, as kept in the database by the
+ * {@link org.openmrs.module.htmlformentry.store.JdbcFormSessionStore}
+ */
+public class StoredFormSession {
+	
+	private String sessionKey;
+	
+	private String userUuid;
+	
+	private byte[] data;
+	
+	private Date dateUpdated;
+	
+	public StoredFormSession() {
+	}
+	
+	public StoredFormSession(String sessionKey, String userUuid, byte[] data, Date dateUpdated) {
+		this.sessionKey = sessionKey;
+		this.userUuid = userUuid;
+		this.data = data;
+		this.dateUpdated = dateUpdated;
+	}
+	
+	public String getSessionKey() {
+		return sessionKey;
+	}
+	
+	public void setSessionKey(String sessionKey) {
+		this.sessionKey = sessionKey;
+	}
+	
+	public String getUserUuid() {
+		return userUuid;
+	}
+	
+	public void setUserUuid(String userUuid) {
+		this.userUuid = userUuid;
+	}
+	
+	public byte[] getData() {
+		return data;
+	}
+	
+	public void setData(byte[] data) {
+		this.data = data;
+	}
+	
+	public Date getDateUpdated() {
+		return dateUpdated;
+	}
+	
+	public void setDateUpdated(Date dateUpdated) {
+		this.dateUpdated = dateUpdated;
+	}
+}
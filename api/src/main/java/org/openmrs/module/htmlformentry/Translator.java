@@ -3,20 +3,27 @@ package org.openmrs.module.htmlformentry;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.WordUtils;
 import org.openmrs.api.context.Context;
-import org.openmrs.util.LocaleUtility;
+import org.openmrs.module.htmlformentry.cache.MessageCache;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 /**
  * Encapsulates Translator functionality (see {@see HtmlFormEntryGenerator#applyTranslations(String, FormEntryContext)})
+ * <p>
+ * The translations of each locale are merged with those of its parent locales and the default locale the first time
+ * the locale is asked for, so that translating a code is a single map read. Once its translations are added, a
+ * Translator is safe to share between the sessions of a form (see {@link org.openmrs.module.htmlformentry.compiler.CompiledForm}).
  */
 public class Translator {
 
 	private String defaultLocaleStr = "en";
 	private Map<String, Map<String, String>> translations = new HashMap<String, Map<String, String>>();
+	private Map<String, Map<String, String>> flattenedTranslations = new ConcurrentHashMap<String, Map<String, String>>();
 	
 	/**
 	 * Allowed formats for {@see translate(String, String, Format)}
@@ -53,6 +60,7 @@ public class Translator {
 	 */
 	public void setTranslations(Map<String, Map<String, String>> translations) {
 		this.translations = translations;
+		flattenedTranslations.clear();
 	}
 	
 	/**
@@ -71,6 +79,7 @@ public class Translator {
 	 */
 	public void setDefaultLocaleStr(String defaultLocaleStr) {
 		this.defaultLocaleStr = defaultLocaleStr;
+		flattenedTranslations.clear();
 	}
 
 	/**
@@ -95,6 +104,7 @@ public class Translator {
 			translations.put(localeStr, localeMap);
 		}
 		localeMap.put(code, translation);
+		flattenedTranslations.clear();
 	}
 	
 	/**
@@ -137,6 +147,22 @@ public class Translator {
 		return getTranslations(locale == null ? null : locale.toString());
 	}
 	
+	/**
+	 * Gets the translation map associated with a particular locale, building it the first time it is asked for
+	 * 
+	 * @param localeStr the name of the locale
+	 * @return the unmodifiable translation map for that locale
+	 */
+	private Map<String, String> getFlattenedTranslations(String localeStr) {
+		String key = localeStr == null ? "" : localeStr;
+		Map<String, String> ret = flattenedTranslations.get(key);
+		if (ret == null) {
+			ret = Collections.unmodifiableMap(getTranslations(localeStr));
+			flattenedTranslations.put(key, ret);
+		}
+		return ret;
+	}
+	
 	/**
 	 * Gets the translation for a specific code and locale
 	 * 
@@ -145,10 +171,9 @@ public class Translator {
 	 * @return the translation associated with that code and locale
 	 */
 	public String translate(String localeStr, String key) {
-		Map<String, String> translations = getTranslations(localeStr);
-		String ret = translations.get(key);
+		String ret = getFlattenedTranslations(localeStr).get(key);
 		if (StringUtils.isEmpty(ret)) {
-			ret = Context.getMessageSourceService().getMessage(key, null, LocaleUtility.fromSpecification(localeStr));
+			ret = Context.getRegisteredComponent("htmlformentry.MessageCache", MessageCache.class).getMessage(localeStr, key);
 		}
 		return (ret == null ? key : ret);
 	}
@@ -29,6 +29,7 @@ import org.openmrs.logic.LogicCriteria;
 import org.openmrs.logic.LogicService;
 import org.openmrs.logic.result.EmptyResult;
 import org.openmrs.logic.result.Result;
+import org.openmrs.module.htmlformentry.cache.LogicCriteriaCache;
 import org.openmrs.module.htmlformentry.compatibility.EncounterServiceCompatibility;
 import org.openmrs.util.LocaleUtility;
 
@@ -41,9 +42,13 @@ public class VelocityFunctions {
 	private ProgramWorkflowService programWorkflowService;
 	private AdministrationService administrationService;
 	private LocationService locationService;
+	private HtmlFormEntryService htmlFormEntryService;
+
+	private PatientDataSnapshot patientData;
 	
 	public VelocityFunctions(FormEntrySession session) {
 		this.session = session;
+		this.patientData = session.getPatientData();
 	}
 	
 	private ObsService getObsService() {
@@ -76,6 +81,16 @@ public class VelocityFunctions {
 		return locationService;
 	}
 	
+	private HtmlFormEntryService getHtmlFormEntryService() {
+		if (htmlFormEntryService == null)
+			htmlFormEntryService = HtmlFormEntryUtil.getService();
+		return htmlFormEntryService;
+	}
+
+	private LogicCriteriaCache getLogicCriteriaCache() {
+		return Context.getRegisteredComponent("htmlformentry.LogicCriteriaCache", LogicCriteriaCache.class);
+	}
+
 	private void cannotBePreviewed() {
 		if ("testing-html-form-entry".equals(session.getPatient().getUuid()))
 			throw new CannotBePreviewedException();
@@ -98,15 +113,22 @@ public class VelocityFunctions {
 
         cannotBePreviewed();
 
+        if (patientData.hasAllObs(conceptId)) {
+            return patientData.getAllObs(conceptId);
+        }
+
         Patient p = session.getPatient();
 		Concept concept = HtmlFormEntryUtil.getConcept(conceptId);
 
+        List<Obs> obs;
         if (p == null || concept == null) {
-			return new ArrayList<Obs>();
+			obs = new ArrayList<Obs>();
         }
         else {
-			return getObsService().getObservationsByPersonAndConcept(p, concept);
+			obs = getObsService().getObservationsByPersonAndConcept(p, concept);
         }
+        patientData.putAllObs(conceptId, obs);
+        return obs;
 	}
 
     public List<Obs> allObs(Integer conceptId) {
@@ -119,16 +141,7 @@ public class VelocityFunctions {
 	 * @should return the most recent obs given the passed conceptId
 	 */
 	public Obs latestObs(String conceptId) {
-
-        List<Obs> obs = allObs(conceptId);
-
-        if (obs == null || obs.isEmpty()) {
-			return null;
-        }
-		else {
-			return obs.get(0);
-        }
-
+		return firstObs(conceptId, true);
 	}
 
     public Obs latestObs(Integer conceptId) {
@@ -140,22 +153,52 @@ public class VelocityFunctions {
 	 * @should return the first obs given the passed conceptId
 	 */
 	public Obs earliestObs(String conceptId) {
-
-        List<Obs> obs = allObs(conceptId);
-
-        if (obs == null || obs.isEmpty()) {
-				return null;
-        }
-		else {
-			return obs.get(obs.size() - 1);
-        }
-
+		return firstObs(conceptId, false);
 	}
 
     public Obs earliestObs(Integer conceptId) {
         return earliestObs(conceptId.toString());
     }
 
+	/**
+	 * Fetches just the latest or earliest obs for the concept from the database (or from the patient's full obs
+	 * history for the concept, if something on the form has already loaded it), and remembers the result for the
+	 * rest of the session
+	 */
+	private Obs firstObs(String conceptId, boolean latest) {
+		if (session.getPatient() == null) {
+			return null;
+		}
+
+		cannotBePreviewed();
+
+		if (latest ? patientData.hasLatestObs(conceptId) : patientData.hasEarliestObs(conceptId)) {
+			return latest ? patientData.getLatestObs(conceptId) : patientData.getEarliestObs(conceptId);
+		}
+
+		Obs obs = null;
+		List<Obs> all = patientData.getAllObs(conceptId);
+		if (all != null) {
+			if (!all.isEmpty()) {
+				obs = latest ? all.get(0) : all.get(all.size() - 1);
+			}
+		}
+		else {
+			Patient p = session.getPatient();
+			Concept concept = HtmlFormEntryUtil.getConcept(conceptId);
+			if (p.getPersonId() != null && concept != null) {
+				obs = latest ? getHtmlFormEntryService().getLatestObs(p, concept)
+				        : getHtmlFormEntryService().getEarliestObs(p, concept);
+			}
+		}
+		if (latest) {
+			patientData.putLatestObs(conceptId, obs);
+		} else {
+			patientData.putEarliestObs(conceptId, obs);
+		}
+		return obs;
+	}
+
 	/**
 	 * @return the all the encounters of the specified type
 	 * @should return all the encounters of the specified type
@@ -175,18 +218,23 @@ public class VelocityFunctions {
 		if (p == null) {
 			return new ArrayList<Encounter>();
 		}
+		Integer key = type == null ? null : type.getEncounterTypeId();
+		if (patientData.hasAllEncounters(key)) {
+			return patientData.getAllEncounters(key);
+		}
+		List<Encounter> encounters;
+		if (type == null) {
+			encounters = Context.getEncounterService().getEncountersByPatient(p);
+		}
 		else {
-			if (type == null) {
-				return Context.getEncounterService().getEncountersByPatient(p);
-			}
-			else {
-				List<EncounterType> typeList = new ArrayList<EncounterType>();
-				typeList.add(type);
-				
-				EncounterServiceCompatibility esc = Context.getRegisteredComponent("htmlformentry.EncounterServiceCompatibility", EncounterServiceCompatibility.class);
-				return esc.getEncounters(p, null, null, null, null, typeList, null, null, null, false);
-			}
+			List<EncounterType> typeList = new ArrayList<EncounterType>();
+			typeList.add(type);
+
+			EncounterServiceCompatibility esc = Context.getRegisteredComponent("htmlformentry.EncounterServiceCompatibility", EncounterServiceCompatibility.class);
+			encounters = esc.getEncounters(p, null, null, null, null, typeList, null, null, null, false);
 		}
+		patientData.putAllEncounters(key, encounters);
+		return encounters;
 	}
 	
 	/**
@@ -204,13 +252,26 @@ public class VelocityFunctions {
 	}
 	
 	private Encounter getLatestEncounter(EncounterType type) {
-		List<Encounter> encounters = getAllEncounters(type);
-		if (encounters == null || encounters.isEmpty()) {
+		if (session.getPatient() == null) {
 			return null;
 		}
-		else {
-			return encounters.get(encounters.size() - 1);
+		cannotBePreviewed();
+		Integer key = type == null ? null : type.getEncounterTypeId();
+		if (patientData.hasLatestEncounter(key)) {
+			return patientData.getLatestEncounter(key);
+		}
+		Encounter encounter = null;
+		List<Encounter> all = patientData.getAllEncounters(key);
+		if (all != null) {
+			if (!all.isEmpty()) {
+				encounter = all.get(all.size() - 1);
+			}
 		}
+		else if (session.getPatient().getPersonId() != null) {
+			encounter = getHtmlFormEntryService().getLatestEncounter(session.getPatient(), type);
+		}
+		patientData.putLatestEncounter(key, encounter);
+		return encounter;
 	}
 	
 	/**
@@ -225,8 +286,13 @@ public class VelocityFunctions {
 		if (session.getPatient() == null)
 			return new EmptyResult();
 		cannotBePreviewed();
-		LogicCriteria lc = getLogicService().parse(expression);
-		return getLogicService().eval(session.getPatient().getPatientId(), lc);
+		if (patientData.hasLogicResult(expression)) {
+			return patientData.getLogicResult(expression);
+		}
+		LogicCriteria lc = getLogicCriteriaCache().getCriteria(expression);
+		Result result = getLogicService().eval(session.getPatient().getPatientId(), lc);
+		patientData.putLogicResult(expression, result);
+		return result;
 	}
 	
 	public ProgramWorkflow getWorkflow(Integer id) {
@@ -248,8 +314,10 @@ public class VelocityFunctions {
 		}
 		cannotBePreviewed();
 		ProgramWorkflow workflow = getWorkflow(programWorkflowId); // not sure if and how I want to reference the UUID
-		List<PatientProgram> pps = getProgramWorkflowService().getPatientPrograms(p, workflow.getProgram(), null, null,
-		    null, null, false);
+		List<PatientProgram> pps = patientData.getPatientPrograms(workflow.getProgram());
+		if (pps == null) {
+			pps = getProgramWorkflowService().getPatientPrograms(p, workflow.getProgram(), null, null, null, null, false);
+		}
 		PatientProgram mostRecentPatientProgram = null;
 		for (PatientProgram pp : pps) {
 			// try to figure out which program enrollment is active or the most
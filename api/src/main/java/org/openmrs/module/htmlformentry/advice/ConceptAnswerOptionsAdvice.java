@@ -0,0 +1,58 @@
+package org.openmrs.module.htmlformentry.advice;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.openmrs.Concept;
+import org.openmrs.ConceptClass;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+import org.openmrs.module.htmlformentry.cache.CacheInvalidationChannel;
+import org.openmrs.module.htmlformentry.cache.ConceptAnswerOptionsCache;
+import org.springframework.aop.AfterReturningAdvice;
+
+/**
+ * Discards the cached options of coded obs whenever a concept, whose names, set members or answers they may show, or a
+ * concept class changes, on every server, once the change has been committed.
+ * <p/>
+ * Only concepts and classes whose options are cached on this server are announced, and coded questions and sets,
+ * whose answers and members may be cached on other servers. Changes to anything else, e.g. renaming an answer only
+ * cached by another server, are picked up there within {@link ConceptAnswerOptionsCache#MAX_AGE_MILLIS}.
+ */
+public class ConceptAnswerOptionsAdvice implements AfterReturningAdvice {
+
+	private static final Set<String> CONCEPT_METHODS = new HashSet<String>(Arrays.asList("saveConcept",
+	    "retireConcept", "purgeConcept"));
+
+	private static final Set<String> CONCEPT_CLASS_METHODS = new HashSet<String>(Arrays.asList("saveConceptClass",
+	    "retireConceptClass", "unretireConceptClass", "purgeConceptClass"));
+
+	@Override
+	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+		if (args == null || args.length == 0) {
+			return;
+		}
+		if (CONCEPT_METHODS.contains(method.getName()) && args[0] instanceof Concept) {
+			Concept concept = (Concept) args[0];
+			if (getCache().isCached(concept) || Boolean.TRUE.equals(concept.getSet())
+			        || (concept.getDatatype() != null && concept.getDatatype().isCoded())) {
+				publish();
+			}
+		} else if (CONCEPT_CLASS_METHODS.contains(method.getName()) && args[0] instanceof ConceptClass) {
+			if (getCache().isCached((ConceptClass) args[0])) {
+				publish();
+			}
+		}
+	}
+
+	private void publish() {
+		HtmlFormEntryUtil.getCacheInvalidationChannel().publishAfterCommit(
+		    CacheInvalidationChannel.REGION_CONCEPT_ANSWERS, null);
+	}
+
+	private ConceptAnswerOptionsCache getCache() {
+		return Context.getRegisteredComponent("htmlformentry.ConceptAnswerOptionsCache", ConceptAnswerOptionsCache.class);
+	}
+}
@@ -0,0 +1,45 @@
+package org.openmrs.module.htmlformentry.advice;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.openmrs.Concept;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+import org.openmrs.module.htmlformentry.cache.CacheInvalidationChannel;
+import org.springframework.aop.AfterReturningAdvice;
+
+/**
+ * Discards the drug autocomplete catalog whenever a drug, or a concept whose names it may show, changes, on every server
+ */
+public class DrugIndexAdvice implements AfterReturningAdvice {
+
+	private static final Set<String> DRUG_METHODS = new HashSet<String>(Arrays.asList("saveDrug", "retireDrug",
+	    "unretireDrug", "purgeDrug"));
+
+	private static final Set<String> CONCEPT_METHODS = new HashSet<String>(Arrays.asList("saveConcept",
+	    "retireConcept", "purgeConcept"));
+
+	@Override
+	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+		if (DRUG_METHODS.contains(method.getName())) {
+			publish();
+		} else if (CONCEPT_METHODS.contains(method.getName()) && args != null && args.length > 0
+		        && args[0] instanceof Concept) {
+			// the catalog only shows the names of concepts that drugs are made of, so most concepts do not affect it
+			if (hasDrugs((Concept) args[0])) {
+				publish();
+			}
+		}
+	}
+
+	boolean hasDrugs(Concept concept) {
+		return concept.getConceptId() != null && !Context.getConceptService().getDrugsByConcept(concept).isEmpty();
+	}
+
+	void publish() {
+		HtmlFormEntryUtil.getCacheInvalidationChannel().publish(CacheInvalidationChannel.REGION_DRUGS, null);
+	}
+}
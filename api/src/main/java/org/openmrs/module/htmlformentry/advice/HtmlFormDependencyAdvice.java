@@ -0,0 +1,42 @@
+package org.openmrs.module.htmlformentry.advice;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.openmrs.OpenmrsObject;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.HtmlForm;
+import org.openmrs.module.htmlformentry.HtmlFormEntryService;
+import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+import org.openmrs.module.htmlformentry.cache.CacheInvalidationChannel;
+import org.springframework.aop.AfterReturningAdvice;
+
+/**
+ * Discards the cached compiled forms, schemas and rendered html of just the forms that reference a piece of metadata,
+ * whenever it changes, on every server
+ */
+public class HtmlFormDependencyAdvice implements AfterReturningAdvice {
+
+	private static final Set<String> METHODS = new HashSet<String>(Arrays.asList("saveConcept", "retireConcept",
+	    "purgeConcept", "saveDrug", "retireDrug", "unretireDrug", "purgeDrug", "saveLocation", "retireLocation",
+	    "unretireLocation", "purgeLocation", "saveProgram", "retireProgram", "unretireProgram", "purgeProgram",
+	    "saveEncounterType", "retireEncounterType", "unretireEncounterType", "purgeEncounterType", "saveRole", "purgeRole"));
+
+	@Override
+	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+		if (!METHODS.contains(method.getName()) || args == null || args.length == 0
+		        || !(args[0] instanceof OpenmrsObject)) {
+			return;
+		}
+		OpenmrsObject changed = (OpenmrsObject) args[0];
+		if (changed.getUuid() == null) {
+			return;
+		}
+		CacheInvalidationChannel channel = HtmlFormEntryUtil.getCacheInvalidationChannel();
+		for (HtmlForm htmlForm : Context.getService(HtmlFormEntryService.class).getHtmlFormsReferencing(changed)) {
+			channel.publish(CacheInvalidationChannel.REGION_HTML_FORM, htmlForm.getId().toString());
+		}
+	}
+}
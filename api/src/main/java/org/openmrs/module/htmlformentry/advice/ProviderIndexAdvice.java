@@ -0,0 +1,56 @@
+package org.openmrs.module.htmlformentry.advice;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.openmrs.Person;
+import org.openmrs.PersonName;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+import org.openmrs.module.htmlformentry.cache.CacheInvalidationChannel;
+import org.openmrs.module.htmlformentry.cache.ProviderIndex;
+import org.springframework.aop.AfterReturningAdvice;
+
+/**
+ * Discards the provider autocomplete catalog whenever a provider, or the name of a person who is a provider, changes
+ */
+public class ProviderIndexAdvice implements AfterReturningAdvice {
+
+	private static final Set<String> PROVIDER_METHODS = new HashSet<String>(Arrays.asList("saveProvider",
+	    "retireProvider", "unretireProvider", "purgeProvider"));
+
+	private static final Set<String> PERSON_METHODS = new HashSet<String>(Arrays.asList("savePerson", "voidPerson",
+	    "unvoidPerson", "purgePerson", "savePersonName", "voidPersonName", "unvoidPersonName"));
+
+	@Override
+	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+		if (PROVIDER_METHODS.contains(method.getName())) {
+			publish();
+		} else if (PERSON_METHODS.contains(method.getName()) && args != null && args.length > 0) {
+			Person person = null;
+			if (args[0] instanceof Person) {
+				person = (Person) args[0];
+			} else if (args[0] instanceof PersonName) {
+				person = ((PersonName) args[0]).getPerson();
+			}
+			// the catalog of this server may not have been built, so ask the provider service rather than the catalog
+			if (person != null && (getProviderIndex().invalidate(person) || isProvider(person))) {
+				publish();
+			}
+		}
+	}
+
+	private boolean isProvider(Person person) {
+		return person.getPersonId() != null && !Context.getProviderService().getProvidersByPerson(person).isEmpty();
+	}
+
+	private void publish() {
+		HtmlFormEntryUtil.getCacheInvalidationChannel().publish(CacheInvalidationChannel.REGION_PROVIDERS, null);
+	}
+
+	private ProviderIndex getProviderIndex() {
+		return Context.getRegisteredComponent("htmlformentry.ProviderIndex", ProviderIndex.class);
+	}
+}
@@ -0,0 +1,39 @@
+package org.openmrs.module.htmlformentry.advice;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.openmrs.Encounter;
+import org.openmrs.Obs;
+import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+import org.openmrs.module.htmlformentry.cache.CacheInvalidationChannel;
+import org.openmrs.module.htmlformentry.cache.RenderedHtmlCache;
+import org.springframework.aop.AfterReturningAdvice;
+
+/**
+ * Discards the cached VIEW mode html of an encounter whenever it, or one of its obs, is saved or voided, on every server
+ */
+public class RenderedHtmlCacheAdvice implements AfterReturningAdvice {
+
+	private static final Set<String> METHODS = new HashSet<String>(Arrays.asList("saveEncounter", "voidEncounter",
+	    "unvoidEncounter", "purgeEncounter", "saveObs", "voidObs", "unvoidObs", "purgeObs"));
+
+	@Override
+	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+		if (!METHODS.contains(method.getName()) || args == null || args.length == 0) {
+			return;
+		}
+		Encounter encounter = null;
+		if (args[0] instanceof Encounter) {
+			encounter = (Encounter) args[0];
+		} else if (args[0] instanceof Obs) {
+			encounter = ((Obs) args[0]).getEncounter();
+		}
+		if (encounter != null && encounter.getEncounterId() != null) {
+			HtmlFormEntryUtil.getCacheInvalidationChannel().publish(CacheInvalidationChannel.REGION_ENCOUNTERS,
+			    RenderedHtmlCache.getEncounterBucket(encounter));
+		}
+	}
+}
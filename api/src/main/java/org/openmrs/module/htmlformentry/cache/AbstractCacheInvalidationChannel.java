@@ -0,0 +1,137 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.HtmlForm;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Evicts the entries of each region from the caches of this server, leaving subclasses to carry announcements between
+ * servers
+ */
+public abstract class AbstractCacheInvalidationChannel implements CacheInvalidationChannel {
+
+	protected final Log log = LogFactory.getLog(getClass());
+
+	@Override
+	public void publish(String region, String key) {
+		evictLocally(region, key);
+		try {
+			announce(region, key);
+		}
+		catch (RuntimeException ex) {
+			log.warn("Unable to announce the invalidation of " + region + " " + key + " to other servers", ex);
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void publishAfterCommit(String region, String key) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			publish(region, key);
+			return;
+		}
+		Set<List<String>> pending = (Set<List<String>>) TransactionSynchronizationManager.getResource(this);
+		if (pending == null) {
+			final Set<List<String>> toPublish = new LinkedHashSet<List<String>>();
+			pending = toPublish;
+			TransactionSynchronizationManager.bindResource(this, pending);
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+				@Override
+				public void afterCommit() {
+					publishInNewTransaction(toPublish);
+				}
+
+				@Override
+				public void afterCompletion(int status) {
+					TransactionSynchronizationManager.unbindResourceIfPossible(AbstractCacheInvalidationChannel.this);
+				}
+			});
+		}
+		pending.add(Arrays.asList(region, key));
+	}
+
+	/**
+	 * The committed transaction is still bound to the thread at this point, so the announcements need one of their own
+	 */
+	private void publishInNewTransaction(final Set<List<String>> toPublish) {
+		try {
+			TransactionTemplate template = new TransactionTemplate(getComponent("transactionManager",
+			    PlatformTransactionManager.class));
+			template.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+			template.execute(new TransactionCallbackWithoutResult() {
+
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus status) {
+					for (List<String> entry : toPublish) {
+						publish(entry.get(0), entry.get(1));
+					}
+				}
+			});
+		}
+		catch (RuntimeException ex) {
+			log.warn("Unable to publish the invalidation of " + toPublish, ex);
+		}
+	}
+
+	/**
+	 * Tells the other servers that the entries under the key went stale
+	 */
+	protected abstract void announce(String region, String key);
+
+	/**
+	 * Evicts the entries under the key from the caches of this server
+	 *
+	 * @param region one of the REGION_ constants
+	 * @param key the key of the entries within the region, or null for all entries of the region
+	 */
+	protected void evictLocally(String region, String key) {
+		if (REGION_HTML_FORM.equals(region)) {
+			if (key == null) {
+				getComponent("htmlformentry.HtmlFormSchemaCache", HtmlFormSchemaCache.class).clear();
+				getComponent("htmlformentry.CompiledFormCache", CompiledFormCache.class).clear();
+				getComponent("htmlformentry.RenderedHtmlCache", RenderedHtmlCache.class).clear();
+			} else {
+				// the caches only need the id of the form to find its entries
+				HtmlForm htmlForm = new HtmlForm();
+				htmlForm.setId(Integer.valueOf(key));
+				getComponent("htmlformentry.HtmlFormSchemaCache", HtmlFormSchemaCache.class).evict(htmlForm);
+				getComponent("htmlformentry.CompiledFormCache", CompiledFormCache.class).evict(htmlForm);
+				getComponent("htmlformentry.RenderedHtmlCache", RenderedHtmlCache.class).evict(htmlForm);
+			}
+		} else if (REGION_DRUGS.equals(region)) {
+			getComponent("htmlformentry.DrugIndex", DrugIndex.class).invalidate();
+		} else if (REGION_CONCEPT_ANSWERS.equals(region)) {
+			getComponent("htmlformentry.ConceptAnswerOptionsCache", ConceptAnswerOptionsCache.class).invalidate();
+		} else if (REGION_PROVIDERS.equals(region)) {
+			getComponent("htmlformentry.ProviderIndex", ProviderIndex.class).invalidate();
+		} else if (REGION_ENCOUNTERS.equals(region)) {
+			RenderedHtmlCache renderedHtmlCache = getComponent("htmlformentry.RenderedHtmlCache",
+			    RenderedHtmlCache.class);
+			if (key == null) {
+				renderedHtmlCache.clear();
+			} else {
+				renderedHtmlCache.evictEncounterBucket(key);
+			}
+		} else {
+			log.warn("Ignoring the invalidation of unknown cache region " + region);
+		}
+	}
+
+	private <T> T getComponent(String name, Class<T> type) {
+		return Context.getRegisteredComponent(name, type);
+	}
+}
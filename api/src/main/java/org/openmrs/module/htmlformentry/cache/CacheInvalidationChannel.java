@@ -0,0 +1,65 @@
+package org.openmrs.module.htmlformentry.cache;
+
+/**
+ * Tells the other servers of a cluster which cached entries went stale when something was changed on this one, and
+ * evicts the entries that changes on the other servers made stale here.
+ * <p/>
+ * Entries are grouped into regions, and within a region by key, e.g. the compiled forms, schemas and renderings of
+ * html form 12 are all under key "12" of {@link #REGION_HTML_FORM}.
+ * <p/>
+ * The channel used is the Spring bean named by the
+ * {@link org.openmrs.module.htmlformentry.HtmlFormEntryConstants#GP_CACHE_INVALIDATION_CHANNEL} global property, by
+ * default the {@link DatabaseCacheInvalidationChannel}, which needs nothing but the database the servers share.
+ */
+public interface CacheInvalidationChannel {
+
+	/**
+	 * The cached compiled forms, schemas and renderings of an html form, keyed by html form id
+	 */
+	public static final String REGION_HTML_FORM = "htmlForm";
+
+	/**
+	 * The drug autocomplete catalog, see {@link DrugIndex}
+	 */
+	public static final String REGION_DRUGS = "drugs";
+
+	/**
+	 * The answers of coded obs, see {@link ConceptAnswerOptionsCache}
+	 */
+	public static final String REGION_CONCEPT_ANSWERS = "conceptAnswers";
+
+	/**
+	 * The provider autocomplete catalog, see {@link ProviderIndex}
+	 */
+	public static final String REGION_PROVIDERS = "providers";
+
+	/**
+	 * The cached renderings of encounters, keyed by encounter bucket, see {@link RenderedHtmlCache#getEncounterBucket}
+	 */
+	public static final String REGION_ENCOUNTERS = "encounters";
+
+	/**
+	 * Evicts the entries under the key from the caches of this server, and announces to the other servers that they
+	 * should do the same
+	 *
+	 * @param region one of the REGION_ constants
+	 * @param key the key of the entries within the region, or null for all entries of the region
+	 */
+	public void publish(String region, String key);
+
+	/**
+	 * Like {@link #publish(String, String)}, but once the current transaction has committed, if there is one, so that
+	 * no server can cache the old data again in the meantime, and the announcement does not hold locks for the rest of
+	 * the transaction. Several announcements of the same entries in one transaction are made once.
+	 *
+	 * @param region one of the REGION_ constants
+	 * @param key the key of the entries within the region, or null for all entries of the region
+	 */
+	public void publishAfterCommit(String region, String key);
+
+	/**
+	 * Evicts the entries that were announced by other servers since this was last called. Implementations may do
+	 * nothing if called again too soon, so this is cheap enough to call before every use of a cache.
+	 */
+	public void sync();
+}
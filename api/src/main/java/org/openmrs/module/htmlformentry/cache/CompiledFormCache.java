@@ -0,0 +1,59 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.htmlformentry.HtmlForm;
+import org.openmrs.module.htmlformentry.compiler.CompiledForm;
+import org.openmrs.module.htmlformentry.compiler.FormCompiler;
+import org.springframework.stereotype.Component;
+
+/**
+ * Caches the {@link CompiledForm} of each saved form version, keyed the same way as {@link HtmlFormSchemaCache}
+ */
+@Component("htmlformentry.CompiledFormCache")
+public class CompiledFormCache {
+
+	protected final Log log = LogFactory.getLog(getClass());
+
+	public static final int MAX_FORMS = 200;
+
+	private LruCache<String, CompiledForm> compiledForms = new LruCache<String, CompiledForm>(MAX_FORMS);
+
+	/**
+	 * Returns the compiled form for the given xml. If the xml is that of a saved html form it is only compiled the
+	 * first time it is requested for this version of the form; otherwise (e.g. when previewing unsaved changes) it
+	 * is compiled every time.
+	 *
+	 * @param htmlForm the form the xml belongs to, may be null
+	 * @param xml
+	 * @return the compiled form
+	 */
+	public CompiledForm getCompiledForm(HtmlForm htmlForm, String xml) {
+		String key = HtmlFormSchemaCache.getFormVersionKey(htmlForm);
+		if (key == null || xml == null || !xml.equals(htmlForm.getXmlData())) {
+			return FormCompiler.compile(xml);
+		}
+		CompiledForm compiled = compiledForms.get(key);
+		if (compiled == null) {
+			compiled = FormCompiler.compile(xml);
+			compiledForms.put(key, compiled);
+		}
+		return compiled;
+	}
+
+	/**
+	 * Removes the compiled versions of the given form
+	 */
+	public void evict(HtmlForm htmlForm) {
+		if (htmlForm != null && htmlForm.getId() != null) {
+			int removed = compiledForms.removeByPrefix(htmlForm.getId() + ":");
+			if (log.isDebugEnabled()) {
+				log.debug("Evicted " + removed + " compiled versions of html form " + htmlForm.getId());
+			}
+		}
+	}
+
+	public void clear() {
+		compiledForms.clear();
+	}
+}
@@ -0,0 +1,129 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.openmrs.Concept;
+import org.openmrs.ConceptName;
+
+/**
+ * An in-memory {@link WordPrefixIndex} over the names of a fixed set of concepts (typically the allowed answers of an
+ * autocomplete on a form) in one locale, so restricted autocompletes do not need to run a search across the whole
+ * dictionary.
+ * <p/>
+ * Instances are immutable once built, and can be shared between requests.
+ *
+ * @see ConceptAnswerIndexCache
+ */
+public class ConceptAnswerIndex {
+
+	/**
+	 * A concept matching a query, with the text to show for it
+	 */
+	public static class Match {
+
+		private final Integer conceptId;
+
+		private final String value;
+
+		Match(Integer conceptId, String value) {
+			this.conceptId = conceptId;
+			this.value = value;
+		}
+
+		public Integer getConceptId() {
+			return conceptId;
+		}
+
+		public String getValue() {
+			return value;
+		}
+	}
+
+	private final long createdTime = System.currentTimeMillis();
+
+	// one entry per indexed name, in the order the concepts were given
+	private final WordPrefixIndex<Match> names;
+
+	ConceptAnswerIndex(Locale locale) {
+		this.names = new WordPrefixIndex<Match>(locale);
+	}
+
+	/**
+	 * Builds an index over the non-voided names of the given concepts in the language of the locale
+	 *
+	 * @param concepts
+	 * @param locale
+	 * @return the index
+	 */
+	public static ConceptAnswerIndex build(Collection<Concept> concepts, Locale locale) {
+		ConceptAnswerIndex index = new ConceptAnswerIndex(locale);
+		for (Concept concept : concepts) {
+			String displayString = concept.getDisplayString();
+			// index the preferred names first, so they are the ones returned when several names of a concept match
+			List<ConceptName> localeNames = new ArrayList<ConceptName>();
+			for (ConceptName name : concept.getNames()) {
+				if (name.isVoided() || name.getLocale() == null
+				        || !locale.getLanguage().equals(name.getLocale().getLanguage())) {
+					continue;
+				}
+				if (name.isPreferred()) {
+					localeNames.add(0, name);
+				} else {
+					localeNames.add(name);
+				}
+			}
+			for (ConceptName name : localeNames) {
+				// show the name that matched if it is the preferred one, otherwise the concept's display string
+				String value = name.isPreferred() || name.getName().equalsIgnoreCase(displayString) ? name.getName()
+				        : displayString;
+				index.addName(concept.getConceptId(), name.getName(), value);
+			}
+		}
+		return index;
+	}
+
+	void addName(Integer conceptId, String name, String value) {
+		names.add(name, new Match(conceptId, value));
+	}
+
+	/**
+	 * @param query
+	 * @return one match for each concept with a name matching the query, in the order the concepts were indexed
+	 */
+	public List<Match> search(String query) {
+		List<Match> ret = new ArrayList<Match>();
+		Set<Integer> seen = new HashSet<Integer>();
+		for (Match match : names.search(query)) {
+			// only return the first matching name of each concept
+			if (seen.add(match.getConceptId())) {
+				ret.add(match);
+			}
+		}
+		return ret;
+	}
+
+	public Locale getLocale() {
+		return names.getLocale();
+	}
+
+	public long getCreatedTime() {
+		return createdTime;
+	}
+
+	/**
+	 * @return the number of names indexed
+	 */
+	public int size() {
+		return names.size();
+	}
+
+	@Override
+	public String toString() {
+		return "ConceptAnswerIndex[" + getLocale() + ", " + names.size() + " names, " + names.getWordCount() + " words]";
+	}
+}
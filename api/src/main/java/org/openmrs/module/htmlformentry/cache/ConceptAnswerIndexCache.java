@@ -0,0 +1,50 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.lang.StringUtils;
+import org.openmrs.Concept;
+import org.openmrs.api.context.Context;
+import org.springframework.stereotype.Component;
+
+/**
+ * Caches a {@link ConceptAnswerIndex} for each set of allowed answers and locale that an autocomplete has searched.
+ * Indexes are rebuilt after {@link #MAX_AGE_MILLIS}, so that changes to concept names are eventually picked up.
+ */
+@Component("htmlformentry.ConceptAnswerIndexCache")
+public class ConceptAnswerIndexCache {
+
+	public static final int MAX_INDEXES = 500;
+
+	public static final long MAX_AGE_MILLIS = 10 * 60 * 1000;
+
+	private LruCache<String, ConceptAnswerIndex> indexes = new LruCache<String, ConceptAnswerIndex>(MAX_INDEXES);
+
+	/**
+	 * @param conceptIds the allowed answers, in the order they should be returned
+	 * @param locale
+	 * @return the index over the names of the given concepts in the given locale
+	 */
+	public ConceptAnswerIndex getIndex(List<Integer> conceptIds, Locale locale) {
+		String key = locale + ":" + StringUtils.join(conceptIds, ",");
+		ConceptAnswerIndex index = indexes.get(key);
+		if (index == null || System.currentTimeMillis() - index.getCreatedTime() > MAX_AGE_MILLIS) {
+			List<Concept> concepts = new ArrayList<Concept>();
+			for (Integer conceptId : conceptIds) {
+				Concept concept = Context.getConceptService().getConcept(conceptId);
+				if (concept != null) {
+					concepts.add(concept);
+				}
+			}
+			index = ConceptAnswerIndex.build(concepts, locale);
+			indexes.put(key, index);
+		}
+		return index;
+	}
+
+	public void clear() {
+		indexes.clear();
+	}
+}
@@ -0,0 +1,99 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.openmrs.Concept;
+import org.openmrs.ConceptName;
+import org.openmrs.module.htmlformentry.widget.Option;
+
+/**
+ * The allowed answers of a coded obs (from answerConceptIds, answerConceptSetIds, answerClasses or the answers of the
+ * question concept), with the label of each one in a locale, ready to be shown by a dropdown or radio buttons.
+ * <p/>
+ * Instances are immutable once built, and the same {@link Option} list is shared by the widgets of every session that
+ * shows these answers, so it must never be modified.
+ *
+ * @see ConceptAnswerOptionsCache
+ */
+public class ConceptAnswerOptions {
+
+	private final Locale locale;
+
+	private final List<Integer> conceptIds;
+
+	private final Set<Integer> conceptIdSet;
+
+	private final List<Option> options;
+
+	private final long createdTime = System.currentTimeMillis();
+
+	ConceptAnswerOptions(Locale locale, List<Integer> conceptIds, List<Option> options) {
+		this.locale = locale;
+		this.conceptIds = Collections.unmodifiableList(conceptIds);
+		this.conceptIdSet = Collections.unmodifiableSet(new HashSet<Integer>(conceptIds));
+		this.options = Collections.unmodifiableList(options);
+	}
+
+	/**
+	 * Builds the options for the given concepts, labelled with their names in the locale, in the order given
+	 *
+	 * @param concepts
+	 * @param locale
+	 * @return the options
+	 */
+	public static ConceptAnswerOptions build(Collection<Concept> concepts, Locale locale) {
+		List<Integer> conceptIds = new ArrayList<Integer>(concepts.size());
+		List<Option> options = new ArrayList<Option>(concepts.size());
+		for (Concept concept : concepts) {
+			conceptIds.add(concept.getConceptId());
+			options.add(new Option(getLabel(concept, locale), concept.getConceptId().toString(), false));
+		}
+		return new ConceptAnswerOptions(locale, conceptIds, options);
+	}
+
+	static String getLabel(Concept concept, Locale locale) {
+		ConceptName name = concept.getName(locale, false);
+		return name == null ? concept.getDisplayString() : name.getName();
+	}
+
+	public Locale getLocale() {
+		return locale;
+	}
+
+	/**
+	 * @return the ids of the answer concepts, in the order they are shown
+	 */
+	public List<Integer> getConceptIds() {
+		return conceptIds;
+	}
+
+	/**
+	 * @return one option per answer concept, whose value is the concept id
+	 */
+	public List<Option> getOptions() {
+		return options;
+	}
+
+	public boolean contains(Integer conceptId) {
+		return conceptIdSet.contains(conceptId);
+	}
+
+	public int size() {
+		return conceptIds.size();
+	}
+
+	public long getCreatedTime() {
+		return createdTime;
+	}
+
+	@Override
+	public String toString() {
+		return "ConceptAnswerOptions[" + locale + ", " + size() + " answers]";
+	}
+}
@@ -0,0 +1,215 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
+import org.openmrs.ConceptAnswer;
+import org.openmrs.ConceptClass;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.HtmlFormEntryConstants;
+import org.springframework.stereotype.Component;
+
+/**
+ * Caches the {@link ConceptAnswerOptions} of each concept set, concept class and coded question that forms take their
+ * answers from, per locale, so that the answers are looked up, named and sorted once rather than on every render.
+ * <p/>
+ * All options are thrown away whenever a concept or concept class they were built from changes (see
+ * {@link org.openmrs.module.htmlformentry.advice.ConceptAnswerOptionsAdvice}), and are rebuilt after
+ * {@link #MAX_AGE_MILLIS} in any case, so changes made through other servers are eventually picked up.
+ */
+@Component("htmlformentry.ConceptAnswerOptionsCache")
+public class ConceptAnswerOptionsCache {
+
+	protected final Log log = LogFactory.getLog(getClass());
+
+	public static final int MAX_ENTRIES = 500;
+
+	public static final long MAX_AGE_MILLIS = 10 * 60 * 1000;
+
+	public static final int DEFAULT_AUTOCOMPLETE_THRESHOLD = 1000;
+
+	private LruCache<String, ConceptAnswerOptions> entries = new LruCache<String, ConceptAnswerOptions>(MAX_ENTRIES);
+
+	// every concept and concept class options have been built from since the last invalidation, including those of
+	// entries evicted since, so that changes to anything else can be ignored
+	private final Set<Integer> conceptIds = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+	private final Set<Integer> conceptClassIds = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+	/**
+	 * Loads the answer concepts an entry is built from, on a cache miss
+	 */
+	private abstract static class AnswerLoader {
+
+		abstract List<Concept> load();
+	}
+
+	/**
+	 * @param conceptSets
+	 * @param locale
+	 * @return the members of the given sets, in set order
+	 */
+	public ConceptAnswerOptions getConceptSetOptions(final List<Concept> conceptSets, Locale locale) {
+		List<Integer> ids = new ArrayList<Integer>();
+		for (Concept conceptSet : conceptSets) {
+			ids.add(conceptSet.getConceptId());
+		}
+		conceptIds.addAll(ids);
+		return get("set:" + StringUtils.join(ids, ","), locale, false, new AnswerLoader() {
+
+			@Override
+			List<Concept> load() {
+				List<Concept> ret = new ArrayList<Concept>();
+				for (Concept conceptSet : conceptSets) {
+					ret.addAll(Context.getConceptService().getConceptsByConceptSet(conceptSet));
+				}
+				return ret;
+			}
+		});
+	}
+
+	/**
+	 * @param conceptClasses
+	 * @param locale
+	 * @return the concepts of the given classes, sorted by their names in the locale
+	 */
+	public ConceptAnswerOptions getConceptClassOptions(final List<ConceptClass> conceptClasses, Locale locale) {
+		List<Integer> ids = new ArrayList<Integer>();
+		for (ConceptClass conceptClass : conceptClasses) {
+			ids.add(conceptClass.getConceptClassId());
+		}
+		conceptClassIds.addAll(ids);
+		return get("class:" + StringUtils.join(ids, ","), locale, true, new AnswerLoader() {
+
+			@Override
+			List<Concept> load() {
+				List<Concept> ret = new ArrayList<Concept>();
+				for (ConceptClass conceptClass : conceptClasses) {
+					ret.addAll(Context.getConceptService().getConceptsByClass(conceptClass));
+				}
+				return ret;
+			}
+		});
+	}
+
+	/**
+	 * @param question
+	 * @param locale
+	 * @return the non-retired answers of the given coded concept, sorted by their names in the locale
+	 */
+	public ConceptAnswerOptions getQuestionAnswerOptions(final Concept question, Locale locale) {
+		conceptIds.add(question.getConceptId());
+		return get("answers:" + question.getConceptId(), locale, true, new AnswerLoader() {
+
+			@Override
+			List<Concept> load() {
+				List<Concept> ret = new ArrayList<Concept>();
+				for (ConceptAnswer answer : question.getAnswers(false)) {
+					ret.add(answer.getAnswerConcept());
+				}
+				return ret;
+			}
+		});
+	}
+
+	/**
+	 * @param concepts
+	 * @param locale
+	 * @return the given concepts, in the order given
+	 */
+	public ConceptAnswerOptions getOptions(final List<Concept> concepts, Locale locale) {
+		List<Integer> ids = new ArrayList<Integer>();
+		for (Concept concept : concepts) {
+			ids.add(concept.getConceptId());
+		}
+		return get("ids:" + StringUtils.join(ids, ","), locale, false, new AnswerLoader() {
+
+			@Override
+			List<Concept> load() {
+				return concepts;
+			}
+		});
+	}
+
+	private ConceptAnswerOptions get(String key, final Locale locale, boolean sort, AnswerLoader loader) {
+		key = locale + ":" + key;
+		ConceptAnswerOptions options = entries.get(key);
+		if (options == null || System.currentTimeMillis() - options.getCreatedTime() > MAX_AGE_MILLIS) {
+			long startTime = System.currentTimeMillis();
+			List<Concept> concepts = loader.load();
+			if (sort) {
+				concepts = new ArrayList<Concept>(concepts);
+				Collections.sort(concepts, new Comparator<Concept>() {
+
+					@Override
+					public int compare(Concept left, Concept right) {
+						return ConceptAnswerOptions.getLabel(left, locale).compareTo(
+						    ConceptAnswerOptions.getLabel(right, locale));
+					}
+				});
+			}
+			options = ConceptAnswerOptions.build(concepts, locale);
+			conceptIds.addAll(options.getConceptIds());
+			entries.put(key, options);
+			if (log.isDebugEnabled()) {
+				log.debug("Built " + options + " for " + key + " in " + (System.currentTimeMillis() - startTime) + "ms");
+			}
+		}
+		return options;
+	}
+
+	/**
+	 * @return the number of answers above which coded obs are shown as an autocomplete rather than a dropdown or radio
+	 *         buttons, from the {@link HtmlFormEntryConstants#GP_ANSWER_AUTOCOMPLETE_THRESHOLD} global property
+	 */
+	public int getAutocompleteThreshold() {
+		String configured = Context.getAdministrationService().getGlobalProperty(
+		    HtmlFormEntryConstants.GP_ANSWER_AUTOCOMPLETE_THRESHOLD);
+		if (StringUtils.isNotBlank(configured)) {
+			try {
+				return Integer.parseInt(configured.trim());
+			}
+			catch (NumberFormatException ex) {
+				log.warn("Invalid value for " + HtmlFormEntryConstants.GP_ANSWER_AUTOCOMPLETE_THRESHOLD + ": " + configured);
+			}
+		}
+		return DEFAULT_AUTOCOMPLETE_THRESHOLD;
+	}
+
+	/**
+	 * Discards all options, so they are rebuilt from the database when next used
+	 */
+	public void invalidate() {
+		entries.clear();
+		conceptIds.clear();
+		conceptClassIds.clear();
+	}
+
+	/**
+	 * @return true if any options have been built from the concept, as a set, question or answer, since they were last
+	 *         invalidated
+	 */
+	public boolean isCached(Concept concept) {
+		return concept.getConceptId() != null && conceptIds.contains(concept.getConceptId());
+	}
+
+	/**
+	 * @return true if any options have been built from the concept class since they were last invalidated
+	 */
+	public boolean isCached(ConceptClass conceptClass) {
+		return conceptClass.getConceptClassId() != null && conceptClassIds.contains(conceptClass.getConceptClassId());
+	}
+
+	public int size() {
+		return entries.size();
+	}
+}
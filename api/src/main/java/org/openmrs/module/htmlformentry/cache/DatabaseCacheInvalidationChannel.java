@@ -0,0 +1,79 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.openmrs.module.htmlformentry.CacheVersion;
+import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+import org.springframework.stereotype.Component;
+
+/**
+ * Carries invalidations between servers through the htmlformentry_cache_version table, which holds a version for each
+ * region, and for each key of a region that has been invalidated. Publishing increases the version of the key;
+ * syncing reads the whole table, at most once every {@link #POLL_INTERVAL_MILLIS}, and evicts the entries of every
+ * key whose version has changed since it was last read.
+ * <p/>
+ * So an entry may be used on another server for up to {@link #POLL_INTERVAL_MILLIS} after it went stale. The table
+ * has a row per html form and encounter bucket at most, so reading all of it is cheap.
+ */
+@Component("htmlformentry.DatabaseCacheInvalidationChannel")
+public class DatabaseCacheInvalidationChannel extends AbstractCacheInvalidationChannel {
+
+	public static final long POLL_INTERVAL_MILLIS = 10 * 1000;
+
+	private static final String SEPARATOR = ":";
+
+	// the versions read on the last sync, null until the first one
+	private Map<String, Long> knownVersions;
+
+	private long lastPolled = 0;
+
+	@Override
+	protected void announce(String region, String key) {
+		HtmlFormEntryUtil.getService().incrementCacheVersion(key == null ? region : region + SEPARATOR + key);
+	}
+
+	@Override
+	public void sync() {
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			if (now - lastPolled < POLL_INTERVAL_MILLIS) {
+				return;
+			}
+			lastPolled = now;
+		}
+		Map<String, Long> versions = new HashMap<String, Long>();
+		try {
+			for (CacheVersion cacheVersion : HtmlFormEntryUtil.getService().getCacheVersions()) {
+				versions.put(cacheVersion.getCacheKey(), cacheVersion.getVersion());
+			}
+		}
+		catch (RuntimeException ex) {
+			log.warn("Unable to read the cache versions of other servers", ex);
+			return;
+		}
+		Map<String, Long> previous;
+		synchronized (this) {
+			previous = knownVersions;
+			knownVersions = versions;
+		}
+		if (previous == null) {
+			// nothing has been cached from before the first read
+			return;
+		}
+		for (Map.Entry<String, Long> entry : versions.entrySet()) {
+			if (!entry.getValue().equals(previous.get(entry.getKey()))) {
+				String cacheKey = entry.getKey();
+				int separator = cacheKey.indexOf(SEPARATOR);
+				if (separator < 0) {
+					evictLocally(cacheKey, null);
+				} else {
+					evictLocally(cacheKey.substring(0, separator), cacheKey.substring(separator + 1));
+				}
+				if (log.isDebugEnabled()) {
+					log.debug("Evicted " + cacheKey + ", changed on another server");
+				}
+			}
+		}
+	}
+}
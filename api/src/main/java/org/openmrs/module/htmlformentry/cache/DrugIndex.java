@@ -0,0 +1,135 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Drug;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+import org.openmrs.module.htmlformentry.compatibility.DrugCompatibility;
+import org.springframework.stereotype.Component;
+
+/**
+ * An in-memory catalog of all non-retired drugs, indexed by the words of their names, for the drug autocomplete.
+ * Each drug is simplified (see {@link DrugCompatibility}) once, when the catalog is built, rather than on every
+ * search. There is one catalog per locale, since the simplified drugs include localized concept names.
+ * <p/>
+ * Catalogs are built the first time they are searched, and go stale whenever a drug, or a concept drugs are made of,
+ * is saved or retired (see {@link org.openmrs.module.htmlformentry.advice.DrugIndexAdvice}). A stale catalog is
+ * rebuilt by the next search, while any other searches in the meantime are still answered from the stale one rather
+ * than waiting for it.
+ */
+@Component("htmlformentry.DrugIndex")
+public class DrugIndex {
+
+	protected final Log log = LogFactory.getLog(getClass());
+
+	public static final int DEFAULT_PAGE_SIZE = 100;
+
+	private final ConcurrentHashMap<Locale, Catalog> catalogs = new ConcurrentHashMap<Locale, Catalog>();
+
+	private final ConcurrentHashMap<Locale, Boolean> rebuilding = new ConcurrentHashMap<Locale, Boolean>();
+
+	private final AtomicLong version = new AtomicLong();
+
+	/**
+	 * A catalog, and the version of the drugs it was built from
+	 */
+	private static class Catalog {
+
+		private final long version;
+
+		private final WordPrefixIndex<Map<String, Object>> index;
+
+		private Catalog(long version, WordPrefixIndex<Map<String, Object>> index) {
+			this.version = version;
+			this.index = index;
+		}
+	}
+
+	/**
+	 * @param query
+	 * @param locale
+	 * @param start the index of the first result to return
+	 * @param length the maximum number of results to return
+	 * @return the simplified drugs whose names match the query, ordered by name
+	 */
+	public List<Map<String, Object>> search(String query, Locale locale, int start, int length) {
+		HtmlFormEntryUtil.getCacheInvalidationChannel().sync();
+		List<Map<String, Object>> matches = getCatalog(locale).search(query);
+		if (start >= matches.size() || length <= 0) {
+			return new ArrayList<Map<String, Object>>();
+		}
+		return matches.subList(Math.max(start, 0), Math.min(matches.size(), Math.max(start, 0) + length));
+	}
+
+	/**
+	 * Marks all catalogs as stale, so they are rebuilt from the database when next searched
+	 */
+	public void invalidate() {
+		version.incrementAndGet();
+	}
+
+	WordPrefixIndex<Map<String, Object>> getCatalog(Locale locale) {
+		long currentVersion = version.get();
+		Catalog catalog = catalogs.get(locale);
+		if (catalog == null) {
+			// nothing to serve yet, so the first searches of a locale have to wait for its catalog
+			synchronized (this) {
+				catalog = catalogs.get(locale);
+				if (catalog == null) {
+					catalog = new Catalog(currentVersion, buildCatalog(locale));
+					catalogs.put(locale, catalog);
+				}
+			}
+			return catalog.index;
+		}
+		if (catalog.version == currentVersion || rebuilding.putIfAbsent(locale, Boolean.TRUE) != null) {
+			return catalog.index;
+		}
+		try {
+			catalog = new Catalog(currentVersion, buildCatalog(locale));
+			catalogs.put(locale, catalog);
+			return catalog.index;
+		}
+		finally {
+			rebuilding.remove(locale);
+		}
+	}
+
+	WordPrefixIndex<Map<String, Object>> buildCatalog(Locale locale) {
+		long startTime = System.currentTimeMillis();
+		List<Drug> drugs = new ArrayList<Drug>(Context.getConceptService().getAllDrugs(false));
+		Collections.sort(drugs, new Comparator<Drug>() {
+
+			@Override
+			public int compare(Drug left, Drug right) {
+				String leftName = left.getName() == null ? "" : left.getName();
+				String rightName = right.getName() == null ? "" : right.getName();
+				return leftName.compareToIgnoreCase(rightName);
+			}
+		});
+
+		DrugCompatibility drugCompatibility = Context.getRegisteredComponent("htmlformentry.DrugCompatibility",
+		    DrugCompatibility.class);
+		List<Map<String, Object>> simplified = drugCompatibility.simplify(drugs);
+
+		WordPrefixIndex<Map<String, Object>> catalog = new WordPrefixIndex<Map<String, Object>>(locale);
+		for (int i = 0; i < drugs.size(); i++) {
+			catalog.add(drugs.get(i).getName(), Collections.unmodifiableMap(simplified.get(i)));
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("Built drug catalog for " + locale + " with " + catalog.size() + " drugs in "
+			        + (System.currentTimeMillis() - startTime) + "ms");
+		}
+		return catalog;
+	}
+}
@@ -0,0 +1,286 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.servlet.http.HttpSession;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Session;
+import org.openmrs.Concept;
+import org.openmrs.Drug;
+import org.openmrs.Encounter;
+import org.openmrs.Patient;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.openmrs.module.htmlformentry.FormEntryContext;
+import org.openmrs.module.htmlformentry.FormEntrySession;
+import org.openmrs.module.htmlformentry.HtmlForm;
+import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+import org.openmrs.module.htmlformentry.schema.DrugOrderAnswer;
+import org.openmrs.module.htmlformentry.schema.DrugOrderField;
+import org.openmrs.module.htmlformentry.schema.HtmlFormField;
+import org.openmrs.module.htmlformentry.schema.HtmlFormSchema;
+import org.openmrs.module.htmlformentry.schema.HtmlFormSection;
+import org.openmrs.module.htmlformentry.schema.ObsField;
+import org.openmrs.module.htmlformentry.schema.ObsFieldAnswer;
+import org.openmrs.module.htmlformentry.schema.ObsGroup;
+import org.openmrs.module.htmlformentry.schema.StandardRegimenAnswer;
+import org.openmrs.module.htmlformentry.schema.StandardRegimenField;
+import org.springframework.stereotype.Component;
+
+/**
+ * Caches the {@link HtmlFormSchema} of each saved form version, so that the schema page and integrations that
+ * poll form schemas do not have to run a full form render on every request.
+ * <p/>
+ * The structure of a schema depends on the form xml, and, through role restrictions and translations, on the roles and
+ * locale of the user, so schemas are keyed by html form id, the form's modified timestamp, locale and the names of the
+ * user's roles. Cached schemas must not hold on to the concepts and drugs of the hibernate session they were built in,
+ * so they are kept detached, with stubs that only carry ids, and every request gets a copy with proxies of the concepts
+ * and drugs in its own session, which are only loaded if the request reads them. The JSON representation of an encounter organized by schema also contains the values of that
+ * encounter's obs, so it is cached already rendered to a String and keyed additionally by encounter id and the
+ * encounter's modified timestamp.
+ */
+@Component("htmlformentry.HtmlFormSchemaCache")
+public class HtmlFormSchemaCache {
+
+	protected final Log log = LogFactory.getLog(getClass());
+
+	public static final int MAX_SCHEMAS = 200;
+
+	public static final int MAX_ENCOUNTER_JSON = 2000;
+
+	private LruCache<String, HtmlFormSchema> schemas = new LruCache<String, HtmlFormSchema>(MAX_SCHEMAS);
+
+	private LruCache<String, String> encounterJson = new LruCache<String, String>(MAX_ENCOUNTER_JSON);
+
+	/**
+	 * Returns the schema of the given html form, generating it (by rendering the form in ENTER mode against a fake
+	 * patient) only the first time it is requested for this version of the form, locale and set of roles
+	 *
+	 * @param htmlForm
+	 * @param httpSession
+	 * @return the schema of the form, with (proxies of) the concepts and drugs of the current hibernate session
+	 * @throws Exception
+	 */
+	public HtmlFormSchema getSchema(HtmlForm htmlForm, HttpSession httpSession) throws Exception {
+		String key = getSchemaKey(htmlForm, Context.getLocale(), Context.getAuthenticatedUser());
+		HtmlFormSchema detached = key == null ? null : schemas.get(key);
+		if (detached != null) {
+			return attach(detached);
+		}
+		HtmlFormSchema schema = generateSchema(htmlForm.getXmlData(), httpSession);
+		if (key != null) {
+			detached = detach(schema);
+			if (detached != null) {
+				schemas.put(key, detached);
+			}
+		}
+		return schema;
+	}
+
+	/**
+	 * @return the previously rendered JSON for this encounter, or null if the encounter or form has changed since
+	 */
+	public String getEncounterJson(HtmlForm htmlForm, Encounter encounter) {
+		String key = getEncounterKey(htmlForm, encounter, Context.getLocale(), Context.getAuthenticatedUser());
+		return key == null ? null : encounterJson.get(key);
+	}
+
+	public void putEncounterJson(HtmlForm htmlForm, Encounter encounter, String json) {
+		String key = getEncounterKey(htmlForm, encounter, Context.getLocale(), Context.getAuthenticatedUser());
+		if (key != null) {
+			encounterJson.put(key, json);
+		}
+	}
+
+	/**
+	 * Removes all cached schemas and JSON for every version of the given form
+	 */
+	public void evict(HtmlForm htmlForm) {
+		if (htmlForm != null && htmlForm.getId() != null) {
+			String prefix = htmlForm.getId() + ":";
+			int removed = schemas.removeByPrefix(prefix) + encounterJson.removeByPrefix(prefix);
+			if (log.isDebugEnabled()) {
+				log.debug("Evicted " + removed + " cached schema entries for html form " + htmlForm.getId());
+			}
+		}
+	}
+
+	public void clear() {
+		schemas.clear();
+		encounterJson.clear();
+	}
+
+	/**
+	 * @return a key identifying this version of the html form, or null if the form has not been saved
+	 */
+	public static String getFormVersionKey(HtmlForm htmlForm) {
+		if (htmlForm == null || htmlForm.getId() == null || htmlForm.getDateCreated() == null) {
+			return null;
+		}
+		long timestamp = (htmlForm.getDateChanged() == null ? htmlForm.getDateCreated() : htmlForm.getDateChanged())
+		        .getTime();
+		return htmlForm.getId() + ":" + timestamp;
+	}
+
+	/**
+	 * @return the key the schema of this version of the form is cached under for the given locale and user, or null if
+	 *         the form has not been saved
+	 * @should differ between locales and between users with different roles
+	 * @should be the same for users with the same roles
+	 */
+	static String getSchemaKey(HtmlForm htmlForm, Locale locale, User user) {
+		String formKey = getFormVersionKey(htmlForm);
+		return formKey == null ? null : formKey + ":" + locale + ":" + RenderedHtmlCache.getRoleFingerprint(user);
+	}
+
+	private static String getEncounterKey(HtmlForm htmlForm, Encounter encounter, Locale locale, User user) {
+		String schemaKey = getSchemaKey(htmlForm, locale, user);
+		if (schemaKey == null || encounter == null || encounter.getEncounterId() == null) {
+			return null;
+		}
+		return schemaKey + ":" + encounter.getEncounterId() + ":" + FormEntrySession.getEncounterModifiedDate(encounter);
+	}
+
+	/**
+	 * Generates the schema for the given xml by rendering it in ENTER mode against a fake patient
+	 */
+	public static HtmlFormSchema generateSchema(String xml, HttpSession httpSession) throws Exception {
+		Patient p = HtmlFormEntryUtil.getFakePerson();
+		HtmlForm fakeForm = new HtmlForm();
+		fakeForm.setXmlData(xml);
+		FormEntrySession fes = new FormEntrySession(p, null, FormEntryContext.Mode.ENTER, fakeForm, httpSession);
+		fes.getHtmlToDisplay();
+		return fes.getContext().getSchema();
+	}
+
+	/**
+	 * @return a copy of the schema in which every concept and drug is a new object carrying only its id, or null if the
+	 *         schema has fields of a kind that cannot be copied
+	 * @should replace concepts and drugs with stubs carrying only their ids
+	 * @should return null for fields it does not know
+	 */
+	static HtmlFormSchema detach(HtmlFormSchema schema) {
+		try {
+			return copy(schema, false);
+		}
+		catch (IllegalArgumentException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return a copy of a detached schema with proxies of the concepts and drugs in the current hibernate session, so
+	 *         that nothing is queried for fields whose concepts and drugs are never read
+	 */
+	static HtmlFormSchema attach(HtmlFormSchema detached) {
+		return copy(detached, true);
+	}
+
+	private static HtmlFormSchema copy(HtmlFormSchema schema, boolean attach) {
+		HtmlFormSchema ret = new HtmlFormSchema();
+		ret.setName(schema.getName());
+		ret.getFields().addAll(copyFields(schema.getFields(), attach));
+		for (HtmlFormSection section : schema.getSections()) {
+			ret.getSections().add(copy(section, attach));
+		}
+		return ret;
+	}
+
+	private static HtmlFormSection copy(HtmlFormSection section, boolean attach) {
+		HtmlFormSection ret = new HtmlFormSection();
+		ret.setName(section.getName());
+		ret.setFields(copyFields(section.getFields(), attach));
+		for (HtmlFormSection child : section.getSections()) {
+			ret.addChildSection(copy(child, attach));
+		}
+		return ret;
+	}
+
+	private static List<HtmlFormField> copyFields(List<HtmlFormField> fields, boolean attach) {
+		List<HtmlFormField> ret = new ArrayList<HtmlFormField>();
+		if (fields != null) {
+			for (HtmlFormField field : fields) {
+				ret.add(copy(field, attach));
+			}
+		}
+		return ret;
+	}
+
+	private static HtmlFormField copy(HtmlFormField field, boolean attach) {
+		if (field instanceof ObsField) {
+			ObsField obsField = (ObsField) field;
+			ObsField ret = new ObsField();
+			ret.setName(obsField.getName());
+			ret.setQuestion(copy(obsField.getQuestion(), attach));
+			ret.setAnswers(copyAnswers(obsField.getAnswers(), attach));
+			ret.setQuestions(copyAnswers(obsField.getQuestions(), attach));
+			return ret;
+		} else if (field instanceof ObsGroup) {
+			ObsGroup obsGroup = (ObsGroup) field;
+			ObsGroup ret = new ObsGroup(copy(obsGroup.getConcept(), attach), obsGroup.getLabel());
+			for (HtmlFormField child : obsGroup.getChildren()) {
+				ret.addChild(copy(child, attach));
+			}
+			return ret;
+		} else if (field instanceof DrugOrderField) {
+			DrugOrderField drugOrderField = (DrugOrderField) field;
+			DrugOrderField ret = new DrugOrderField();
+			if (drugOrderField.getDrugOrderAnswers() != null) {
+				for (DrugOrderAnswer answer : drugOrderField.getDrugOrderAnswers()) {
+					ret.addDrugOrderAnswer(new DrugOrderAnswer(copy(answer.getDrug(), attach), answer.getDisplayName()));
+				}
+			}
+			ret.setDiscontinuedReasonQuestion(copy(drugOrderField.getDiscontinuedReasonQuestion(), attach));
+			ret.setDiscontinuedReasonAnswers(copyAnswers(drugOrderField.getDiscontinuedReasonAnswers(), attach));
+			return ret;
+		} else if (field instanceof StandardRegimenField) {
+			// regimen suggestions are read from a global property rather than the database, so can be shared
+			StandardRegimenField standardRegimenField = (StandardRegimenField) field;
+			StandardRegimenField ret = new StandardRegimenField();
+			if (standardRegimenField.getStandardRegimenAnswers() != null) {
+				for (StandardRegimenAnswer answer : standardRegimenField.getStandardRegimenAnswers()) {
+					ret.addStandardRegimenAnswer(new StandardRegimenAnswer(answer.getRegimenSuggestion()));
+				}
+			}
+			ret.setDiscontinuedReasonQuestion(copy(standardRegimenField.getDiscontinuedReasonQuestion(), attach));
+			ret.setDiscontinuedReasonAnswers(copyAnswers(standardRegimenField.getDiscontinuedReasonAnswers(), attach));
+			return ret;
+		}
+		throw new IllegalArgumentException("Cannot copy schema field " + field);
+	}
+
+	private static List<ObsFieldAnswer> copyAnswers(List<ObsFieldAnswer> answers, boolean attach) {
+		List<ObsFieldAnswer> ret = new ArrayList<ObsFieldAnswer>();
+		if (answers != null) {
+			for (ObsFieldAnswer answer : answers) {
+				ret.add(new ObsFieldAnswer(answer.getDisplayName(), copy(answer.getConcept(), attach)));
+			}
+		}
+		return ret;
+	}
+
+	private static Concept copy(Concept concept, boolean attach) {
+		if (concept == null || concept.getConceptId() == null) {
+			return null;
+		}
+		return attach ? load(Concept.class, concept.getConceptId()) : new Concept(concept.getConceptId());
+	}
+
+	private static Drug copy(Drug drug, boolean attach) {
+		if (drug == null || drug.getDrugId() == null) {
+			return null;
+		}
+		return attach ? load(Drug.class, drug.getDrugId()) : new Drug(drug.getDrugId());
+	}
+
+	private static <T> T load(Class<T> type, Integer id) {
+		Session session = Context.getRegisteredComponent("dbSessionFactory", DbSessionFactory.class)
+		        .getHibernateSessionFactory().getCurrentSession();
+		return type.cast(session.load(type, id));
+	}
+}
@@ -0,0 +1,37 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.logic.LogicCriteria;
+import org.springframework.stereotype.Component;
+
+/**
+ * Caches parsed {@link LogicCriteria} by expression, so that a logicTest or fn.logic(...) expression is only parsed
+ * once no matter how many times, or on how many forms, it appears. Parsed criteria only describe the expression and
+ * are not tied to a patient, so they can be shared between sessions.
+ */
+@Component("htmlformentry.LogicCriteriaCache")
+public class LogicCriteriaCache {
+
+	public static final int MAX_CRITERIA = 1000;
+
+	private LruCache<String, LogicCriteria> criteria = new LruCache<String, LogicCriteria>(MAX_CRITERIA);
+
+	/**
+	 * @param expression
+	 * @return the parsed criteria for the expression, or null if the logic service could not parse it
+	 */
+	public LogicCriteria getCriteria(String expression) {
+		LogicCriteria parsed = criteria.get(expression);
+		if (parsed == null) {
+			parsed = Context.getLogicService().parse(expression);
+			if (parsed != null) {
+				criteria.put(expression, parsed);
+			}
+		}
+		return parsed;
+	}
+
+	public void clear() {
+		criteria.clear();
+	}
+}
@@ -0,0 +1,79 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A simple thread-safe, size-bounded map that evicts its least-recently-used entries once it holds more than
+ * maxEntries values. Used as the backing store for the module's in-memory caches.
+ */
+public class LruCache<K, V> {
+
+	private final int maxEntries;
+
+	private final Map<K, V> entries;
+
+	public LruCache(final int maxEntries) {
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				return size() > LruCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @return the value cached under the given key, or null if there is none
+	 */
+	public synchronized V get(K key) {
+		return entries.get(key);
+	}
+
+	public synchronized void put(K key, V value) {
+		entries.put(key, value);
+	}
+
+	public synchronized V remove(K key) {
+		return entries.remove(key);
+	}
+
+	/**
+	 * Removes every entry whose key, as a String, starts with the given prefix
+	 *
+	 * @param prefix
+	 * @return the number of entries removed
+	 */
+	public synchronized int removeByPrefix(String prefix) {
+		int removed = 0;
+		for (Iterator<K> i = entries.keySet().iterator(); i.hasNext();) {
+			if (i.next().toString().startsWith(prefix)) {
+				i.remove();
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	public synchronized List<K> keys() {
+		return new ArrayList<K>(entries.keySet());
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+}
@@ -0,0 +1,61 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.util.Locale;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.util.LocaleUtility;
+import org.springframework.stereotype.Component;
+
+/**
+ * Caches the messages the {@link org.openmrs.module.htmlformentry.Translator} looks up in the message source for codes
+ * that forms do not translate themselves, including the codes that have no message, since label-heavy forms ask for
+ * the same few codes thousands of times per render. Messages are looked up again after {@link #MAX_AGE_MILLIS}, so
+ * changes to the message source are eventually picked up.
+ */
+@Component("htmlformentry.MessageCache")
+public class MessageCache {
+
+	public static final int MAX_MESSAGES = 10000;
+
+	public static final long MAX_AGE_MILLIS = 10 * 60 * 1000;
+
+	/**
+	 * A message looked up in the message source, which may be null
+	 */
+	private static class Entry {
+
+		private final String message;
+
+		private final long createdTime = System.currentTimeMillis();
+
+		Entry(String message) {
+			this.message = message;
+		}
+	}
+
+	private LruCache<String, Entry> entries = new LruCache<String, Entry>(MAX_MESSAGES);
+
+	/**
+	 * @param localeStr the name of the locale
+	 * @param code
+	 * @return the message for the code in the locale, or null if the message source has none
+	 */
+	public String getMessage(String localeStr, String code) {
+		String key = localeStr + ":" + code;
+		Entry entry = entries.get(key);
+		if (entry == null || System.currentTimeMillis() - entry.createdTime > MAX_AGE_MILLIS) {
+			Locale locale = LocaleUtility.fromSpecification(localeStr);
+			entry = new Entry(Context.getMessageSourceService().getMessage(code, null, locale));
+			entries.put(key, entry);
+		}
+		return entry.message;
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+}
@@ -0,0 +1,330 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Person;
+import org.openmrs.PersonName;
+import org.openmrs.Provider;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+import org.openmrs.module.htmlformentry.element.ProviderStub;
+import org.openmrs.module.htmlformentry.util.MatchMode;
+import org.springframework.stereotype.Component;
+
+/**
+ * An in-memory catalog of all non-retired providers, for the provider autocomplete. Providers are ordered by name, and
+ * indexed by their identifier and the words of their names, so that each {@link MatchMode} is answered without going
+ * back to the database.
+ * <p/>
+ * The catalog is built the first time it is searched, and goes stale after {@link #MAX_AGE_MILLIS} or whenever a
+ * provider, or the person behind one, changes (see {@link org.openmrs.module.htmlformentry.advice.ProviderIndexAdvice}).
+ * A stale catalog is rebuilt by the next search, while any other searches in the meantime are still answered from the
+ * stale one rather than waiting for it.
+ */
+@Component("htmlformentry.ProviderIndex")
+public class ProviderIndex {
+
+	protected final Log log = LogFactory.getLog(getClass());
+
+	public static final long MAX_AGE_MILLIS = 10 * 60 * 1000;
+
+	private volatile Catalog catalog;
+
+	private final AtomicBoolean rebuilding = new AtomicBoolean(false);
+
+	private final AtomicLong version = new AtomicLong();
+
+	/**
+	 * @param query the text to match, or null to list all providers
+	 * @param matchMode how the query must match an identifier or name, defaults to {@link MatchMode#ANYWHERE}
+	 * @param afterProviderId the cursor returned with the previous page, or null for the first page
+	 * @param pageSize the maximum number of providers to return
+	 * @return the next page of matching providers, ordered by name
+	 */
+	public Page search(String query, MatchMode matchMode, Integer afterProviderId, int pageSize) {
+		HtmlFormEntryUtil.getCacheInvalidationChannel().sync();
+		return getCatalog().page(query, matchMode, afterProviderId, pageSize);
+	}
+
+	/**
+	 * @return an opaque value that changes whenever the catalog is rebuilt, so can be used to validate cached results
+	 */
+	public String getVersion() {
+		return Long.toHexString(getCatalog().createdTime);
+	}
+
+	/**
+	 * Marks the catalog as stale, so it is rebuilt from the database when next searched
+	 */
+	public void invalidate() {
+		version.incrementAndGet();
+	}
+
+	/**
+	 * Marks the catalog as stale only if the given person is one of the providers in it, so that saving an ordinary
+	 * patient does not cause a rebuild
+	 *
+	 * @return true if the catalog was marked as stale
+	 */
+	public boolean invalidate(Person person) {
+		Catalog current = catalog;
+		if (current != null && person != null && current.personIds.contains(person.getPersonId())) {
+			invalidate();
+			return true;
+		}
+		return false;
+	}
+
+	private Catalog getCatalog() {
+		Catalog current = catalog;
+		if (current == null) {
+			// nothing to serve yet, so the first searches have to wait for the catalog
+			synchronized (this) {
+				current = catalog;
+				if (current == null) {
+					current = buildCatalog();
+					catalog = current;
+				}
+			}
+			return current;
+		}
+		boolean stale = current.version != version.get()
+		        || System.currentTimeMillis() - current.createdTime > MAX_AGE_MILLIS;
+		if (!stale || !rebuilding.compareAndSet(false, true)) {
+			return current;
+		}
+		try {
+			current = buildCatalog();
+			catalog = current;
+			return current;
+		}
+		finally {
+			rebuilding.set(false);
+		}
+	}
+
+	private Catalog buildCatalog() {
+		long startTime = System.currentTimeMillis();
+		Catalog ret = new Catalog(startTime, version.get(), Context.getProviderService().getAllProviders(false));
+		if (log.isDebugEnabled()) {
+			log.debug("Built provider catalog with " + ret.entries.size() + " providers in "
+			        + (System.currentTimeMillis() - startTime) + "ms");
+		}
+		return ret;
+	}
+
+	/**
+	 * One page of provider search results
+	 */
+	public static class Page {
+
+		private final List<ProviderStub> providers;
+
+		private final Integer nextCursor;
+
+		public Page(List<ProviderStub> providers, Integer nextCursor) {
+			this.providers = providers;
+			this.nextCursor = nextCursor;
+		}
+
+		public List<ProviderStub> getProviders() {
+			return providers;
+		}
+
+		/**
+		 * @return the cursor to request the following page with, or null if this is the last page
+		 */
+		public Integer getNextCursor() {
+			return nextCursor;
+		}
+	}
+
+	/**
+	 * An immutable snapshot of the providers, and the indexes over them
+	 */
+	static class Catalog {
+
+		private final long createdTime;
+
+		// the version of the index the catalog was built for
+		private final long version;
+
+		private final List<Entry> entries;
+
+		private final Map<Integer, Entry> byProviderId = new HashMap<Integer, Entry>();
+
+		private final Set<Integer> personIds = new HashSet<Integer>();
+
+		private final WordPrefixIndex<Entry> wordStarts = new WordPrefixIndex<Entry>(Locale.ENGLISH);
+
+		// the reversed words of each entry, so that matching the end of a word is a prefix search too
+		private final WordPrefixIndex<Entry> wordEnds = new WordPrefixIndex<Entry>(Locale.ENGLISH);
+
+		private final Map<String, List<Entry>> exact = new HashMap<String, List<Entry>>();
+
+		Catalog(long createdTime, long version, Collection<Provider> providers) {
+			this.createdTime = createdTime;
+			this.version = version;
+			List<Entry> entries = new ArrayList<Entry>(providers.size());
+			for (Provider provider : providers) {
+				entries.add(new Entry(provider));
+			}
+			Collections.sort(entries, new Comparator<Entry>() {
+
+				@Override
+				public int compare(Entry left, Entry right) {
+					int ret = left.sortName.compareTo(right.sortName);
+					return ret != 0 ? ret : left.stub.getProviderId().compareTo(right.stub.getProviderId());
+				}
+			});
+			this.entries = Collections.unmodifiableList(entries);
+			for (int i = 0; i < entries.size(); i++) {
+				Entry entry = entries.get(i);
+				entry.position = i;
+				byProviderId.put(entry.stub.getProviderId(), entry);
+				if (entry.personId != null) {
+					personIds.add(entry.personId);
+				}
+				wordStarts.add(entry.searchText, entry);
+				wordEnds.add(StringUtils.reverse(entry.searchText), entry);
+				for (String key : entry.exactKeys) {
+					List<Entry> withKey = exact.get(key);
+					if (withKey == null) {
+						withKey = new ArrayList<Entry>(1);
+						exact.put(key, withKey);
+					}
+					withKey.add(entry);
+				}
+			}
+		}
+
+		Page page(String query, MatchMode matchMode, Integer afterProviderId, int pageSize) {
+			List<Entry> matches = search(query, matchMode);
+
+			int from = 0;
+			Entry after = afterProviderId == null ? null : byProviderId.get(afterProviderId);
+			if (after != null) {
+				from = firstAfter(matches, after.position);
+			}
+			int to = Math.min(matches.size(), from + Math.max(pageSize, 0));
+
+			List<ProviderStub> providers = new ArrayList<ProviderStub>(Math.max(to - from, 0));
+			for (int i = from; i < to; i++) {
+				providers.add(matches.get(i).stub);
+			}
+			Integer nextCursor = (to < matches.size() && to > from) ? matches.get(to - 1).stub.getProviderId() : null;
+			return new Page(providers, nextCursor);
+		}
+
+		/**
+		 * @return the matching entries, in catalog order
+		 */
+		List<Entry> search(String query, MatchMode matchMode) {
+			if (StringUtils.isBlank(query)) {
+				return entries;
+			}
+			String normalized = normalize(query);
+			if (matchMode == null) {
+				matchMode = MatchMode.ANYWHERE;
+			}
+			switch (matchMode) {
+				case START:
+					return wordStarts.search(normalized);
+				case END:
+					return wordEnds.search(StringUtils.reverse(normalized));
+				case EXACT:
+					List<Entry> withKey = exact.get(normalized);
+					return withKey == null ? Collections.<Entry> emptyList() : withKey;
+				default:
+					List<Entry> ret = new ArrayList<Entry>();
+					for (Entry entry : entries) {
+						if (entry.searchText.indexOf(normalized) >= 0) {
+							ret.add(entry);
+						}
+					}
+					return ret;
+			}
+		}
+
+		/**
+		 * @return the index of the first match whose position in the catalog is after the given one
+		 */
+		private static int firstAfter(List<Entry> matches, int position) {
+			int low = 0;
+			int high = matches.size();
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (matches.get(mid).position <= position) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+	}
+
+	/**
+	 * A provider in the catalog, with the text it is searched by computed up front
+	 */
+	static class Entry {
+
+		private final ProviderStub stub;
+
+		private final Integer personId;
+
+		private final String sortName;
+
+		private final String searchText;
+
+		private final Set<String> exactKeys = new HashSet<String>();
+
+		private int position;
+
+		Entry(Provider provider) {
+			stub = new ProviderStub(provider);
+			sortName = normalize(stub.getDisplayValue());
+
+			List<String> terms = new ArrayList<String>();
+			addTerm(terms, provider.getIdentifier());
+			addTerm(terms, provider.getName());
+			Person person = provider.getPerson();
+			personId = person == null ? null : person.getPersonId();
+			PersonName personName = person == null ? null : person.getPersonName();
+			if (personName != null) {
+				addTerm(terms, personName.getGivenName());
+				addTerm(terms, personName.getMiddleName());
+				addTerm(terms, personName.getFamilyName());
+				addTerm(terms, personName.getFullName());
+			}
+			searchText = StringUtils.join(terms, " ");
+		}
+
+		private void addTerm(List<String> terms, String term) {
+			if (StringUtils.isNotBlank(term)) {
+				String normalized = normalize(term);
+				if (exactKeys.add(normalized)) {
+					terms.add(normalized);
+				}
+			}
+		}
+	}
+
+	private static String normalize(String text) {
+		return text == null ? "" : text.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ENGLISH);
+	}
+}
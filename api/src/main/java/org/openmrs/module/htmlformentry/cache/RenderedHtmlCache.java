@@ -0,0 +1,323 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Encounter;
+import org.openmrs.Role;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
+import org.openmrs.module.htmlformentry.FormEntrySession;
+import org.openmrs.module.htmlformentry.HtmlForm;
+import org.openmrs.module.htmlformentry.compiler.CompiledForm;
+import org.springframework.stereotype.Component;
+
+/**
+ * Caches the html of saved encounters rendered in VIEW mode, since patient dashboards show the same encounters over
+ * and over again.
+ * <p/>
+ * The html of an encounter only depends on the version of the form, the encounter itself and its obs and orders, the
+ * locale and the roles the form is restricted by, so entries are keyed by html form id and modified timestamp,
+ * encounter id, the modified timestamp of its obs and orders and its own date changed, locale, and the names of the
+ * user's roles. Forms that refer to other data of the patient (e.g. through fn.latestObs, logic tests, or patient and
+ * relationship tags), or whose velocity refers to anything but the encounter, form and locale (e.g. $patient.age,
+ * $user or $formGeneratedDatetime), are never cached.
+ * <p/>
+ * Changes to an encounter are announced to the other servers under one of {@link #ENCOUNTER_BUCKETS} buckets of
+ * encounter ids, rather than under the encounter's own id, so that the announcements take up a bounded number of rows. Entries are stored gzipped, and the least recently used ones
+ * are evicted once they take up more than {@link #MAX_BYTES} (by default) in total.
+ */
+@Component("htmlformentry.RenderedHtmlCache")
+public class RenderedHtmlCache {
+
+	protected final Log log = LogFactory.getLog(getClass());
+
+	public static final long MAX_BYTES = 16 * 1024 * 1024;
+
+	public static final int ENCOUNTER_BUCKETS = 256;
+
+	/**
+	 * What rendering a form in VIEW mode produces that the page displays
+	 */
+	public static class Rendering {
+
+		private final String html;
+
+		private final String fieldAccessorJavascript;
+
+		private final boolean guessing;
+
+		public Rendering(String html, String fieldAccessorJavascript, boolean guessing) {
+			this.html = html;
+			this.fieldAccessorJavascript = fieldAccessorJavascript;
+			this.guessing = guessing;
+		}
+
+		public String getHtml() {
+			return html;
+		}
+
+		public String getFieldAccessorJavascript() {
+			return fieldAccessorJavascript;
+		}
+
+		/**
+		 * @return whether unmatched obs groups had to be guessed at
+		 */
+		public boolean isGuessing() {
+			return guessing;
+		}
+	}
+
+	// key -> gzipped rendering, in access order
+	private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+	private final long maxBytes;
+
+	private long totalBytes = 0;
+
+	public RenderedHtmlCache() {
+		this(MAX_BYTES);
+	}
+
+	/**
+	 * @param maxBytes the most the compressed renderings may take up in total
+	 */
+	public RenderedHtmlCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @param session a session that has not rendered its form yet
+	 * @return the key the html of the session is cached under, or null if it cannot be cached
+	 */
+	public String getKey(FormEntrySession session) {
+		HtmlForm htmlForm = session.getHtmlForm();
+		Encounter encounter = session.getEncounter();
+		String formKey = HtmlFormSchemaCache.getFormVersionKey(htmlForm);
+		if (session.getContext().getMode() != Mode.VIEW || formKey == null || encounter == null
+		        || encounter.getEncounterId() == null || !htmlForm.getXmlData().equals(session.getXmlDefinition())) {
+			return null;
+		}
+		CompiledForm compiledForm = Context.getRegisteredComponent("htmlformentry.CompiledFormCache",
+		    CompiledFormCache.class).getCompiledForm(htmlForm, session.getXmlDefinition());
+		if (compiledForm.hasObsReferences() || compiledForm.hasEncounterReferences()
+		        || compiledForm.hasProgramReferences() || compiledForm.hasProgramTags()
+		        || compiledForm.hasPatientTags() || !compiledForm.getLogicExpressions().isEmpty()
+		        || compiledForm.hasSessionVariableReferences()) {
+			return null;
+		}
+		long dateChanged = encounter.getDateChanged() == null ? 0 : encounter.getDateChanged().getTime();
+		return encounter.getEncounterId() + ":" + formKey + ":" + session.getEncounterModifiedTimestamp() + ":"
+		        + dateChanged + ":" + Context.getLocale() + ":" + getRoleFingerprint(Context.getAuthenticatedUser());
+	}
+
+	/**
+	 * @return the bucket changes to the encounter are announced under
+	 */
+	public static String getEncounterBucket(Encounter encounter) {
+		return String.valueOf(encounter.getEncounterId() % ENCOUNTER_BUCKETS);
+	}
+
+	/**
+	 * @return the names of all the roles of the user, sorted, which decide what role restrictions apply to them
+	 */
+	static String getRoleFingerprint(User user) {
+		if (user == null) {
+			return "";
+		}
+		List<String> names = new ArrayList<String>();
+		for (Role role : user.getAllRoles()) {
+			names.add(role.getRole());
+		}
+		Collections.sort(names);
+		StringBuilder ret = new StringBuilder();
+		for (String name : names) {
+			ret.append(name).append(',');
+		}
+		return ret.toString();
+	}
+
+	/**
+	 * @return the rendering cached under the key, or null if there is none
+	 */
+	public Rendering get(String key) {
+		byte[] compressed;
+		synchronized (this) {
+			compressed = entries.get(key);
+		}
+		if (compressed == null) {
+			return null;
+		}
+		try {
+			return decompress(compressed);
+		}
+		catch (IOException ex) {
+			log.warn("Discarding unreadable cached html for " + key, ex);
+			remove(key);
+			return null;
+		}
+	}
+
+	public void put(String key, Rendering rendering) {
+		byte[] compressed;
+		try {
+			compressed = compress(rendering);
+		}
+		catch (IOException ex) {
+			log.warn("Unable to cache the html for " + key, ex);
+			return;
+		}
+		if (compressed.length > maxBytes) {
+			return;
+		}
+		synchronized (this) {
+			byte[] previous = entries.put(key, compressed);
+			if (previous != null) {
+				totalBytes -= previous.length;
+			}
+			totalBytes += compressed.length;
+			for (Iterator<byte[]> i = entries.values().iterator(); totalBytes > maxBytes && i.hasNext();) {
+				totalBytes -= i.next().length;
+				i.remove();
+			}
+		}
+	}
+
+	private synchronized void remove(String key) {
+		byte[] removed = entries.remove(key);
+		if (removed != null) {
+			totalBytes -= removed.length;
+		}
+	}
+
+	/**
+	 * Removes the html of the given encounter, rendered with any form
+	 */
+	public void evict(Encounter encounter) {
+		if (encounter != null && encounter.getEncounterId() != null) {
+			int removed = removeMatching(encounter.getEncounterId() + ":", 0);
+			if (log.isDebugEnabled()) {
+				log.debug("Evicted " + removed + " cached renderings of encounter " + encounter.getEncounterId());
+			}
+		}
+	}
+
+	/**
+	 * Removes the html of every encounter in the given bucket, rendered with any form
+	 *
+	 * @see #getEncounterBucket(Encounter)
+	 */
+	public synchronized void evictEncounterBucket(String bucket) {
+		int removed = 0;
+		for (Iterator<Map.Entry<String, byte[]>> i = entries.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<String, byte[]> entry = i.next();
+			String key = entry.getKey();
+			Integer encounterId = Integer.valueOf(key.substring(0, key.indexOf(':')));
+			if (String.valueOf(encounterId % ENCOUNTER_BUCKETS).equals(bucket)) {
+				totalBytes -= entry.getValue().length;
+				i.remove();
+				removed++;
+			}
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("Evicted " + removed + " cached renderings of encounter bucket " + bucket);
+		}
+	}
+
+	/**
+	 * Removes the html of every encounter rendered with any version of the given form
+	 */
+	public void evict(HtmlForm htmlForm) {
+		if (htmlForm != null && htmlForm.getId() != null) {
+			int removed = removeMatching(htmlForm.getId() + ":", 1);
+			if (log.isDebugEnabled()) {
+				log.debug("Evicted " + removed + " cached renderings of html form " + htmlForm.getId());
+			}
+		}
+	}
+
+	/**
+	 * Removes the entries whose key continues with the given prefix after skipping the given number of fields
+	 */
+	private synchronized int removeMatching(String prefix, int fieldsToSkip) {
+		int removed = 0;
+		for (Iterator<Map.Entry<String, byte[]>> i = entries.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<String, byte[]> entry = i.next();
+			String key = entry.getKey();
+			int start = 0;
+			for (int field = 0; field < fieldsToSkip; field++) {
+				start = key.indexOf(':', start) + 1;
+			}
+			if (key.startsWith(prefix, start)) {
+				totalBytes -= entry.getValue().length;
+				i.remove();
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		totalBytes = 0;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the total size of the cached (compressed) renderings, in bytes
+	 */
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	static byte[] compress(Rendering rendering) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes));
+		writeString(out, rendering.getHtml());
+		writeString(out, rendering.getFieldAccessorJavascript());
+		out.writeBoolean(rendering.isGuessing());
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	static Rendering decompress(byte[] compressed) throws IOException {
+		DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(compressed)));
+		try {
+			return new Rendering(readString(in), readString(in), in.readBoolean());
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	// unlike writeUTF, these are not limited to 64K
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] utf8 = s.getBytes("UTF-8");
+		out.writeInt(utf8.length);
+		out.write(utf8);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] utf8 = new byte[in.readInt()];
+		in.readFully(utf8);
+		return new String(utf8, "UTF-8");
+	}
+}
@@ -0,0 +1,101 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * An in-memory index of values by the words of a name. A name matches a query if every word of the query is the
+ * start of some word in the name, ignoring case and punctuation, the same way the concept service matches names.
+ * <p/>
+ * Not thread-safe while values are being added; once built, an index can be searched concurrently.
+ */
+public class WordPrefixIndex<T> {
+
+	private static final String SEPARATORS = " \t\n\r\f,.;:!?()[]{}'\"-/\\+*";
+
+	private final Locale locale;
+
+	// one entry per indexed name, in the order they were added
+	private final List<T> entries = new ArrayList<T>();
+
+	// each word of every name, mapped to the entries whose names contain it
+	private final TreeMap<String, BitSet> words = new TreeMap<String, BitSet>();
+
+	public WordPrefixIndex(Locale locale) {
+		this.locale = locale;
+	}
+
+	public void add(String name, T value) {
+		int entry = entries.size();
+		entries.add(value);
+		for (String word : tokenize(name)) {
+			BitSet matching = words.get(word);
+			if (matching == null) {
+				matching = new BitSet();
+				words.put(word, matching);
+			}
+			matching.set(entry);
+		}
+	}
+
+	/**
+	 * @param query
+	 * @return the values of all names matching the query, in the order they were added
+	 */
+	public List<T> search(String query) {
+		List<T> ret = new ArrayList<T>();
+		String[] queryWords = tokenize(query);
+		if (queryWords.length == 0) {
+			return ret;
+		}
+		BitSet matching = null;
+		for (String queryWord : queryWords) {
+			BitSet withPrefix = new BitSet();
+			for (BitSet entriesWithWord : words.subMap(queryWord, queryWord + Character.MAX_VALUE).values()) {
+				withPrefix.or(entriesWithWord);
+			}
+			if (matching == null) {
+				matching = withPrefix;
+			} else {
+				matching.and(withPrefix);
+			}
+			if (matching.isEmpty()) {
+				return ret;
+			}
+		}
+		for (int i = matching.nextSetBit(0); i >= 0; i = matching.nextSetBit(i + 1)) {
+			ret.add(entries.get(i));
+		}
+		return ret;
+	}
+
+	private String[] tokenize(String text) {
+		if (StringUtils.isBlank(text)) {
+			return new String[0];
+		}
+		return StringUtils.split(text.toLowerCase(locale), SEPARATORS);
+	}
+
+	public Locale getLocale() {
+		return locale;
+	}
+
+	/**
+	 * @return the number of names indexed
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the number of distinct words indexed
+	 */
+	public int getWordCount() {
+		return words.size();
+	}
+}
@@ -0,0 +1,290 @@
+package org.openmrs.module.htmlformentry.compiler;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.openmrs.module.htmlformentry.Translator;
+import org.openmrs.module.htmlformentry.cache.LruCache;
+import org.openmrs.module.htmlformentry.handler.TagDispatchTable;
+
+/**
+ * The result of statically analyzing the xml of an html form, once per version of the form. Records which patient
+ * data the form refers to, so that a {@link org.openmrs.module.htmlformentry.PatientDataSnapshot} can fetch it in a
+ * few batched queries when a session is opened, rather than one query per reference while the form renders.
+ * <p/>
+ * Concepts, encounter types, programs and workflows are recorded exactly as they are referenced in the form (id,
+ * uuid, mapping or name), and those a snapshot fetches data for are only resolved to metadata when it is loaded. Logic expressions are recorded
+ * as the logic service will be asked to parse them.
+ *
+ * @see FormCompiler
+ */
+public class CompiledForm {
+
+	/**
+	 * How many readings of the translations block of a form are kept; the xml they are read from only varies with the
+	 * role restrictions and macro values that apply, so there are usually very few
+	 */
+	public static final int MAX_TRANSLATIONS = 8;
+
+	private final Set<String> latestObsConcepts = new LinkedHashSet<String>();
+
+	private final Set<String> earliestObsConcepts = new LinkedHashSet<String>();
+
+	private final Set<String> allObsConcepts = new LinkedHashSet<String>();
+
+	private final Set<String> latestEncounterTypes = new LinkedHashSet<String>();
+
+	private boolean latestEncounterOfAnyType = false;
+
+	private final Set<String> allEncounterTypes = new LinkedHashSet<String>();
+
+	private boolean allEncountersOfAnyType = false;
+
+	private final Set<String> programWorkflows = new LinkedHashSet<String>();
+
+	private final Set<String> programTagReferences = new LinkedHashSet<String>();
+
+	private final Set<String> logicExpressions = new LinkedHashSet<String>();
+
+	private boolean sessionVariableReferences = false;
+
+	private boolean patientTags = false;
+
+	private final ConcurrentHashMap<String, Condition> conditions = new ConcurrentHashMap<String, Condition>();
+
+	private final LruCache<String, Translations> translations = new LruCache<String, Translations>(MAX_TRANSLATIONS);
+
+	private volatile TagDispatchTable dispatchTable;
+
+	/**
+	 * The translations block of a form, read into a {@link Translator} shared by every session of the form, and the
+	 * xml of the form without it
+	 */
+	public static class Translations {
+
+		private final Translator translator;
+
+		private final String xml;
+
+		public Translations(Translator translator, String xml) {
+			this.translator = translator;
+			this.xml = xml;
+		}
+
+		public Translator getTranslator() {
+			return translator;
+		}
+
+		public String getXml() {
+			return xml;
+		}
+	}
+
+	/**
+	 * @return the concepts referenced by fn.latestObs(...)
+	 */
+	public Set<String> getLatestObsConcepts() {
+		return Collections.unmodifiableSet(latestObsConcepts);
+	}
+
+	/**
+	 * @return the concepts referenced by fn.earliestObs(...)
+	 */
+	public Set<String> getEarliestObsConcepts() {
+		return Collections.unmodifiableSet(earliestObsConcepts);
+	}
+
+	/**
+	 * @return the concepts referenced by fn.allObs(...)
+	 */
+	public Set<String> getAllObsConcepts() {
+		return Collections.unmodifiableSet(allObsConcepts);
+	}
+
+	/**
+	 * @return the encounter types referenced by fn.latestEncounter(...)
+	 */
+	public Set<String> getLatestEncounterTypes() {
+		return Collections.unmodifiableSet(latestEncounterTypes);
+	}
+
+	/**
+	 * @return true if the form asks for the patient's latest encounter regardless of type
+	 */
+	public boolean isLatestEncounterOfAnyType() {
+		return latestEncounterOfAnyType;
+	}
+
+	/**
+	 * @return the encounter types referenced by fn.allEncounters(...)
+	 */
+	public Set<String> getAllEncounterTypes() {
+		return Collections.unmodifiableSet(allEncounterTypes);
+	}
+
+	/**
+	 * @return true if the form asks for all the patient's encounters regardless of type
+	 */
+	public boolean isAllEncountersOfAnyType() {
+		return allEncountersOfAnyType;
+	}
+
+	/**
+	 * @return the program workflows referenced by fn.currentProgramWorkflowStatus(...)
+	 */
+	public Set<String> getProgramWorkflows() {
+		return Collections.unmodifiableSet(programWorkflows);
+	}
+
+	/**
+	 * @return the programs and workflows referenced by program and workflow tags, which look up the patient's
+	 *         enrollments themselves rather than through a snapshot
+	 */
+	public Set<String> getProgramTagReferences() {
+		return Collections.unmodifiableSet(programTagReferences);
+	}
+
+	/**
+	 * @return the expressions of logicTest attributes and fn.logic(...) calls
+	 */
+	public Set<String> getLogicExpressions() {
+		return Collections.unmodifiableSet(logicExpressions);
+	}
+
+	/**
+	 * @param expression the velocityTest of an includeIf/excludeIf tag
+	 * @return the compiled condition, compiling it the first time it is asked for on this form
+	 */
+	public Condition getCondition(String expression) {
+		Condition condition = conditions.get(expression);
+		if (condition == null) {
+			condition = ConditionCompiler.compile(expression);
+			conditions.put(expression, condition);
+		}
+		return condition;
+	}
+
+	/**
+	 * @param xml the xml of the form, just before its translations are applied
+	 * @return the translations read from the xml, if they have been read before, otherwise null
+	 */
+	public Translations getTranslations(String xml) {
+		return translations.get(xml);
+	}
+
+	/**
+	 * Remembers the translations read from the given xml
+	 */
+	public void putTranslations(String xml, Translations read) {
+		translations.put(xml, read);
+	}
+
+	/**
+	 * @return the handlers of the tags of the form, if they have been resolved before, otherwise null
+	 */
+	public TagDispatchTable getDispatchTable() {
+		return dispatchTable;
+	}
+
+	/**
+	 * Remembers the handlers of the tags of the form
+	 */
+	public void setDispatchTable(TagDispatchTable dispatchTable) {
+		this.dispatchTable = dispatchTable;
+	}
+
+	/**
+	 * @return true if the form refers to any obs of the patient
+	 */
+	public boolean hasObsReferences() {
+		return !latestObsConcepts.isEmpty() || !earliestObsConcepts.isEmpty() || !allObsConcepts.isEmpty();
+	}
+
+	/**
+	 * @return true if the form refers to any encounters of the patient
+	 */
+	public boolean hasEncounterReferences() {
+		return latestEncounterOfAnyType || !latestEncounterTypes.isEmpty() || allEncountersOfAnyType
+		        || !allEncounterTypes.isEmpty();
+	}
+
+	/**
+	 * @return true if the form's functions refer to the patient's program enrollments
+	 */
+	public boolean hasProgramReferences() {
+		return !programWorkflows.isEmpty();
+	}
+
+	/**
+	 * @return true if the form has program or workflow tags, whose output depends on the patient's enrollments
+	 */
+	public boolean hasProgramTags() {
+		return !programTagReferences.isEmpty();
+	}
+
+	/**
+	 * @return true if a lookup, macro or velocityTest of the form refers to velocity variables that vary with the
+	 *         patient, the user or the time the form is rendered, e.g. $patient, $user or $formGeneratedDatetime
+	 */
+	public boolean hasSessionVariableReferences() {
+		return sessionVariableReferences;
+	}
+
+	/**
+	 * @return true if the form has patient or relationship tags, which show the patient's demographics and
+	 *         relationships
+	 */
+	public boolean hasPatientTags() {
+		return patientTags;
+	}
+
+	void addLatestObsConcept(String concept) {
+		latestObsConcepts.add(concept);
+	}
+
+	void addEarliestObsConcept(String concept) {
+		earliestObsConcepts.add(concept);
+	}
+
+	void addAllObsConcept(String concept) {
+		allObsConcepts.add(concept);
+	}
+
+	void addLatestEncounterType(String encounterType) {
+		latestEncounterTypes.add(encounterType);
+	}
+
+	void setLatestEncounterOfAnyType(boolean latestEncounterOfAnyType) {
+		this.latestEncounterOfAnyType = latestEncounterOfAnyType;
+	}
+
+	void addAllEncountersType(String encounterType) {
+		allEncounterTypes.add(encounterType);
+	}
+
+	void setAllEncountersOfAnyType(boolean allEncountersOfAnyType) {
+		this.allEncountersOfAnyType = allEncountersOfAnyType;
+	}
+
+	void setPatientTags(boolean patientTags) {
+		this.patientTags = patientTags;
+	}
+
+	void setSessionVariableReferences(boolean sessionVariableReferences) {
+		this.sessionVariableReferences = sessionVariableReferences;
+	}
+
+	void addProgramWorkflow(String programWorkflow) {
+		programWorkflows.add(programWorkflow);
+	}
+
+	void addProgramTagReference(String reference) {
+		programTagReferences.add(reference);
+	}
+
+	void addLogicExpression(String expression) {
+		logicExpressions.add(expression);
+	}
+}
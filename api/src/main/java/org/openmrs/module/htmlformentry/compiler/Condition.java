@@ -0,0 +1,23 @@
+package org.openmrs.module.htmlformentry.compiler;
+
+/**
+ * A compiled includeIf/excludeIf condition
+ *
+ * @see ConditionCompiler
+ */
+public interface Condition {
+
+	/**
+	 * @param context
+	 * @return whether the condition holds, or null if it could not be evaluated (e.g. a velocity error, or data
+	 *         that is not available in preview mode)
+	 */
+	public Boolean evaluate(ConditionContext context);
+
+	/**
+	 * @return true if the result of this condition cannot change during a form entry session, so that it only needs to
+	 *         be evaluated once per session
+	 */
+	public boolean isSessionConstant();
+
+}
@@ -0,0 +1,386 @@
+package org.openmrs.module.htmlformentry.compiler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+
+/**
+ * Compiles the velocityTest of an includeIf/excludeIf tag into a {@link Condition}, once per form.
+ * <p/>
+ * The expression is split on its top-level || and && operators (and parenthesized or negated groups), which are
+ * evaluated with the same left-to-right short-circuiting as velocity. Checks that only depend on the mode, the user's
+ * roles or a global property, and the literals true and false, are recognized and evaluated directly, without velocity;
+ * literals are folded away when compiled, and the other checks are only evaluated once per session. Anything else is
+ * left to velocity, one operand at a time, so an operand that is never reached is never evaluated.
+ */
+public class ConditionCompiler {
+
+	private static final String QUOTED = "(['\"])([^'\"]*)";
+
+	private static final Pattern MODE_TEST = Pattern.compile("^\\$!?\\{?context\\.mode(?:\\.toString\\(\\))?\\}?\\s*(==|!=)\\s*"
+	        + QUOTED + "\\2$");
+
+	private static final Pattern ROLE_TEST = Pattern.compile("^\\$!?\\{?user\\.hasRole\\(\\s*" + QUOTED + "\\1\\s*\\)\\}?$");
+
+	private static final Pattern GLOBAL_PROPERTY_TEST = Pattern.compile("^\\$!?\\{?fn\\.globalProperty\\(\\s*" + QUOTED
+	        + "\\1\\s*(?:,\\s*" + QUOTED + "\\3\\s*)?\\)\\}?\\s*(==|!=)\\s*" + QUOTED + "\\6$");
+
+	/**
+	 * @param expression a velocity boolean expression
+	 * @return the compiled condition
+	 * @should fold true and false literals
+	 * @should split top level and and or operators
+	 * @should not split operators inside quotes or parentheses
+	 * @should compile mode, role and global property checks without velocity
+	 * @should leave other expressions to velocity
+	 */
+	public static Condition compile(String expression) {
+		String expr = expression.trim();
+
+		List<String> operands = splitTopLevel(expr, "||");
+		if (operands != null && operands.size() > 1) {
+			List<Condition> conditions = new ArrayList<Condition>();
+			for (String operand : operands) {
+				Condition condition = compile(operand);
+				if (condition == Constant.TRUE) {
+					return Constant.TRUE;
+				} else if (condition != Constant.FALSE) {
+					conditions.add(condition);
+				}
+			}
+			return conditions.isEmpty() ? Constant.FALSE : conditions.size() == 1 ? conditions.get(0) : new Or(conditions);
+		}
+
+		operands = splitTopLevel(expr, "&&");
+		if (operands != null && operands.size() > 1) {
+			List<Condition> conditions = new ArrayList<Condition>();
+			for (String operand : operands) {
+				Condition condition = compile(operand);
+				if (condition == Constant.FALSE) {
+					return Constant.FALSE;
+				} else if (condition != Constant.TRUE) {
+					conditions.add(condition);
+				}
+			}
+			return conditions.isEmpty() ? Constant.TRUE : conditions.size() == 1 ? conditions.get(0) : new And(conditions);
+		}
+
+		if (expr.startsWith("!") && isGroup(expr.substring(1).trim())) {
+			Condition negated = compile(expr.substring(1).trim());
+			if (negated instanceof Constant) {
+				return negated == Constant.TRUE ? Constant.FALSE : Constant.TRUE;
+			}
+			return new Not(negated);
+		}
+
+		if (isGroup(expr)) {
+			return compile(expr.substring(1, expr.length() - 1));
+		}
+
+		return compileOperand(expr);
+	}
+
+	private static Condition compileOperand(String expr) {
+		if ("true".equals(expr)) {
+			return Constant.TRUE;
+		}
+		if ("false".equals(expr)) {
+			return Constant.FALSE;
+		}
+		Matcher m = MODE_TEST.matcher(expr);
+		if (m.matches()) {
+			return new ModeTest(m.group(3), "!=".equals(m.group(1)));
+		}
+		m = ROLE_TEST.matcher(expr);
+		if (m.matches()) {
+			return new RoleTest(m.group(2));
+		}
+		m = GLOBAL_PROPERTY_TEST.matcher(expr);
+		if (m.matches()) {
+			return new GlobalPropertyTest(m.group(2), m.group(4) == null ? "" : m.group(4), m.group(7), "!=".equals(m
+			        .group(5)));
+		}
+		return new VelocityTest(expr);
+	}
+
+	/**
+	 * @return true if the whole expression is enclosed in a single pair of parentheses
+	 */
+	private static boolean isGroup(String expr) {
+		if (!expr.startsWith("(") || !expr.endsWith(")")) {
+			return false;
+		}
+		int depth = 0;
+		char quote = 0;
+		for (int i = 0; i < expr.length(); i++) {
+			char c = expr.charAt(i);
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				}
+			} else if (c == '\'' || c == '"') {
+				quote = c;
+			} else if (c == '(') {
+				depth++;
+			} else if (c == ')') {
+				depth--;
+				if (depth == 0 && i < expr.length() - 1) {
+					return false;
+				}
+			}
+		}
+		return depth == 0 && quote == 0;
+	}
+
+	/**
+	 * @return the operands of the top-level operator, or null if the expression is unbalanced or has an empty operand
+	 */
+	private static List<String> splitTopLevel(String expr, String operator) {
+		List<String> operands = new ArrayList<String>();
+		int depth = 0;
+		char quote = 0;
+		int start = 0;
+		for (int i = 0; i < expr.length(); i++) {
+			char c = expr.charAt(i);
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				}
+			} else if (c == '\'' || c == '"') {
+				quote = c;
+			} else if (c == '(') {
+				depth++;
+			} else if (c == ')') {
+				depth--;
+			} else if (depth == 0 && expr.startsWith(operator, i)) {
+				operands.add(expr.substring(start, i));
+				start = i + operator.length();
+				i = start - 1;
+			}
+		}
+		if (depth != 0 || quote != 0) {
+			return null;
+		}
+		operands.add(expr.substring(start));
+		for (String operand : operands) {
+			if (operand.trim().length() == 0) {
+				return null;
+			}
+		}
+		return operands;
+	}
+
+	static class Constant implements Condition {
+
+		static final Constant TRUE = new Constant(true);
+
+		static final Constant FALSE = new Constant(false);
+
+		private final boolean value;
+
+		private Constant(boolean value) {
+			this.value = value;
+		}
+
+		@Override
+		public Boolean evaluate(ConditionContext context) {
+			return value;
+		}
+
+		@Override
+		public boolean isSessionConstant() {
+			return false;
+		}
+	}
+
+	static class And implements Condition {
+
+		private final List<Condition> operands;
+
+		And(List<Condition> operands) {
+			this.operands = operands;
+		}
+
+		@Override
+		public Boolean evaluate(ConditionContext context) {
+			for (Condition operand : operands) {
+				Boolean result = context.evaluate(operand);
+				if (!Boolean.TRUE.equals(result)) {
+					return result;
+				}
+			}
+			return Boolean.TRUE;
+		}
+
+		@Override
+		public boolean isSessionConstant() {
+			return false;
+		}
+
+		List<Condition> getOperands() {
+			return operands;
+		}
+	}
+
+	static class Or implements Condition {
+
+		private final List<Condition> operands;
+
+		Or(List<Condition> operands) {
+			this.operands = operands;
+		}
+
+		@Override
+		public Boolean evaluate(ConditionContext context) {
+			for (Condition operand : operands) {
+				Boolean result = context.evaluate(operand);
+				if (!Boolean.FALSE.equals(result)) {
+					return result;
+				}
+			}
+			return Boolean.FALSE;
+		}
+
+		@Override
+		public boolean isSessionConstant() {
+			return false;
+		}
+
+		List<Condition> getOperands() {
+			return operands;
+		}
+	}
+
+	static class Not implements Condition {
+
+		private final Condition operand;
+
+		Not(Condition operand) {
+			this.operand = operand;
+		}
+
+		@Override
+		public Boolean evaluate(ConditionContext context) {
+			Boolean result = context.evaluate(operand);
+			return result == null ? null : !result;
+		}
+
+		@Override
+		public boolean isSessionConstant() {
+			return false;
+		}
+	}
+
+	/**
+	 * $context.mode == 'VIEW'. Velocity compares the mode enum to a string by its toString(), so this does too.
+	 */
+	static class ModeTest implements Condition {
+
+		private final String mode;
+
+		private final boolean negate;
+
+		ModeTest(String mode, boolean negate) {
+			this.mode = mode;
+			this.negate = negate;
+		}
+
+		@Override
+		public Boolean evaluate(ConditionContext context) {
+			Object actual = context.getSession().getContext().getMode();
+			return negate != mode.equals(actual == null ? null : actual.toString());
+		}
+
+		@Override
+		public boolean isSessionConstant() {
+			return true;
+		}
+	}
+
+	/**
+	 * $user.hasRole('Provider')
+	 */
+	static class RoleTest implements Condition {
+
+		private final String role;
+
+		RoleTest(String role) {
+			this.role = role;
+		}
+
+		@Override
+		public Boolean evaluate(ConditionContext context) {
+			User user = Context.getAuthenticatedUser();
+			return user != null && user.hasRole(role);
+		}
+
+		@Override
+		public boolean isSessionConstant() {
+			return true;
+		}
+	}
+
+	/**
+	 * $fn.globalProperty('name') == 'value', or $fn.globalProperty('name', 'default') == 'value'
+	 */
+	static class GlobalPropertyTest implements Condition {
+
+		private final String property;
+
+		private final String defaultValue;
+
+		private final String value;
+
+		private final boolean negate;
+
+		GlobalPropertyTest(String property, String defaultValue, String value, boolean negate) {
+			this.property = property;
+			this.defaultValue = defaultValue;
+			this.value = value;
+			this.negate = negate;
+		}
+
+		@Override
+		public Boolean evaluate(ConditionContext context) {
+			String actual = Context.getAdministrationService().getGlobalProperty(property, defaultValue);
+			return negate != value.equals(actual);
+		}
+
+		@Override
+		public boolean isSessionConstant() {
+			return true;
+		}
+	}
+
+	/**
+	 * Any other expression, evaluated by velocity the same way a whole velocityTest used to be
+	 */
+	static class VelocityTest implements Condition {
+
+		private final String template;
+
+		VelocityTest(String expression) {
+			this.template = "#if (" + expression + ") true #else false #end";
+		}
+
+		@Override
+		public Boolean evaluate(ConditionContext context) {
+			String result = context.getSession().evaluateVelocityExpression(template).trim();
+			if ("true".equals(result)) {
+				return Boolean.TRUE;
+			} else if ("false".equals(result)) {
+				return Boolean.FALSE;
+			}
+			return null;
+		}
+
+		@Override
+		public boolean isSessionConstant() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package org.openmrs.module.htmlformentry.compiler;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.openmrs.module.htmlformentry.FormEntrySession;
+
+/**
+ * Evaluates compiled conditions for a single form entry session, remembering the results of conditions that are
+ * constant for the session (mode, role and global property checks)
+ */
+public class ConditionContext {
+
+	private final FormEntrySession session;
+
+	private final Map<Condition, Boolean> sessionConstants = new IdentityHashMap<Condition, Boolean>();
+
+	public ConditionContext(FormEntrySession session) {
+		this.session = session;
+	}
+
+	public FormEntrySession getSession() {
+		return session;
+	}
+
+	/**
+	 * @param condition
+	 * @return the result of the condition, or null if it could not be evaluated
+	 */
+	public Boolean evaluate(Condition condition) {
+		if (!condition.isSessionConstant()) {
+			return condition.evaluate(this);
+		}
+		if (sessionConstants.containsKey(condition)) {
+			return sessionConstants.get(condition);
+		}
+		Boolean result = condition.evaluate(this);
+		sessionConstants.put(condition, result);
+		return result;
+	}
+
+	/**
+	 * @param condition
+	 * @return true if the condition holds; a condition that cannot be evaluated does not hold
+	 */
+	public boolean test(Condition condition) {
+		return Boolean.TRUE.equals(evaluate(condition));
+	}
+}
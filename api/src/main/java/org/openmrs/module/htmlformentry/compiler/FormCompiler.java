@@ -0,0 +1,176 @@
+package org.openmrs.module.htmlformentry.compiler;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Statically analyzes the xml of an html form to produce a {@link CompiledForm}.
+ * <p/>
+ * Only references whose arguments are literals can be found this way; a call like
+ * <code>$fn.latestObs($someVariable)</code> is skipped here, and is simply fetched on demand when the form renders.
+ */
+public class FormCompiler {
+
+	private static final Pattern COMMENT = Pattern.compile("<!--.*?-->", Pattern.DOTALL);
+
+	private static final Pattern OBS_FUNCTION = Pattern
+	        .compile("fn\\.(latestObs|earliestObs|allObs)\\(\\s*['\"]?([^'\"()$,\\s]+)['\"]?\\s*\\)");
+
+	private static final Pattern ENCOUNTER_FUNCTION = Pattern
+	        .compile("fn\\.(allEncounters|latestEncounter)\\(\\s*(?:['\"]([^'\"()$]*)['\"])?\\s*\\)");
+
+	private static final Pattern WORKFLOW_FUNCTION = Pattern
+	        .compile("fn\\.currentProgramWorkflowStatus\\(\\s*(\\d+)\\s*\\)");
+
+	private static final Pattern PROGRAM_ATTRIBUTE = Pattern.compile("\\bprogramId\\s*=\\s*\"([^\"]+)\"");
+
+	private static final Pattern LOGIC_ATTRIBUTE = Pattern.compile("\\blogicTest\\s*=\\s*\"([^\"]+)\"");
+
+	private static final Pattern VELOCITY_ATTRIBUTE = Pattern.compile("\\bvelocityTest\\s*=\\s*\"([^\"]+)\"");
+
+	private static final Pattern LOGIC_FUNCTION = Pattern
+	        .compile("fn\\.logic\\(\\s*(?:\"([^\"]+)\"|'([^']+)')\\s*\\)");
+
+	private static final Pattern WORKFLOW_ATTRIBUTE = Pattern.compile("\\bworkflowId\\s*=\\s*\"([^\"]+)\"");
+
+	private static final Pattern PATIENT_TAG = Pattern.compile("<(patient|relationship)[\\s/>]");
+
+	private static final Pattern EXPRESSION_ATTRIBUTE = Pattern
+	        .compile("\\b(expression|complexExpression)\\s*=\\s*\"([^\"]*)\"");
+
+	private static final Pattern VELOCITY_REFERENCE = Pattern.compile("\\$!?\\{?([A-Za-z][A-Za-z0-9_]*)");
+
+	/**
+	 * The velocity variables whose value only depends on the encounter, the form and the locale being rendered
+	 */
+	private static final Set<String> SESSION_CONSTANT_VARIABLES = new HashSet<String>(Arrays.asList("encounter",
+	    "form", "locale"));
+
+	/**
+	 * @param xml the xml of an html form
+	 * @return the compiled form
+	 * @should find concepts referenced by obs functions
+	 * @should find encounter types referenced by encounter functions
+	 * @should treat encounter functions without a type as referencing any type
+	 * @should find workflows referenced by functions
+	 * @should record programs and workflows referenced by tags without prefetching them
+	 * @should skip references to velocity variables
+	 * @should ignore references in comments
+	 * @should find logic expressions in logic tests and functions
+	 * @should compile velocity tests
+	 * @should find velocity expressions that refer to the patient, the user or the time
+	 * @should not flag velocity expressions that only refer to the encounter, form or locale
+	 * @should find patient and relationship tags
+	 */
+	public static CompiledForm compile(String xml) {
+		CompiledForm form = new CompiledForm();
+		if (xml == null) {
+			return form;
+		}
+		xml = COMMENT.matcher(xml).replaceAll("");
+
+		Matcher matcher = OBS_FUNCTION.matcher(xml);
+		while (matcher.find()) {
+			String function = matcher.group(1);
+			String concept = matcher.group(2);
+			if ("latestObs".equals(function)) {
+				form.addLatestObsConcept(concept);
+			} else if ("earliestObs".equals(function)) {
+				form.addEarliestObsConcept(concept);
+			} else {
+				form.addAllObsConcept(concept);
+			}
+		}
+
+		matcher = ENCOUNTER_FUNCTION.matcher(xml);
+		while (matcher.find()) {
+			boolean latest = "latestEncounter".equals(matcher.group(1));
+			String encounterType = matcher.group(2);
+			if (StringUtils.isBlank(encounterType)) {
+				if (latest) {
+					form.setLatestEncounterOfAnyType(true);
+				} else {
+					form.setAllEncountersOfAnyType(true);
+				}
+			} else if (latest) {
+				form.addLatestEncounterType(encounterType.trim());
+			} else {
+				form.addAllEncountersType(encounterType.trim());
+			}
+		}
+
+		matcher = WORKFLOW_FUNCTION.matcher(xml);
+		while (matcher.find()) {
+			form.addProgramWorkflow(matcher.group(1));
+		}
+
+		// program tags look up enrollments through the program workflow service themselves, so these are not
+		// prefetched, but still decide whether the rendered form may be cached
+		matcher = PROGRAM_ATTRIBUTE.matcher(xml);
+		while (matcher.find()) {
+			form.addProgramTagReference(matcher.group(1));
+		}
+
+		matcher = WORKFLOW_ATTRIBUTE.matcher(xml);
+		while (matcher.find()) {
+			form.addProgramTagReference(matcher.group(1));
+		}
+
+		matcher = LOGIC_ATTRIBUTE.matcher(xml);
+		while (matcher.find()) {
+			// the attribute may be written with escaped entities, but is evaluated as the dom parser returns it
+			form.addLogicExpression(StringEscapeUtils.unescapeXml(matcher.group(1)));
+		}
+
+		matcher = LOGIC_FUNCTION.matcher(xml);
+		while (matcher.find()) {
+			form.addLogicExpression(matcher.group(1) != null ? matcher.group(1) : matcher.group(2));
+		}
+
+		if (PATIENT_TAG.matcher(xml).find()) {
+			form.setPatientTags(true);
+		}
+
+		matcher = EXPRESSION_ATTRIBUTE.matcher(xml);
+		while (matcher.find()) {
+			String expression = StringEscapeUtils.unescapeXml(matcher.group(2));
+			if ("expression".equals(matcher.group(1))) {
+				// evaluated the same way the lookup and macro tags do
+				expression = "$!{" + expression + "}";
+			}
+			if (refersToSessionVariables(expression)) {
+				form.setSessionVariableReferences(true);
+			}
+		}
+
+		matcher = VELOCITY_ATTRIBUTE.matcher(xml);
+		while (matcher.find()) {
+			String expression = StringEscapeUtils.unescapeXml(matcher.group(1));
+			if (!form.getCondition(expression).isSessionConstant() && refersToSessionVariables(expression)) {
+				form.setSessionVariableReferences(true);
+			}
+		}
+
+		return form;
+	}
+
+	/**
+	 * @return true if the velocity expression refers to any variable other than the encounter, form or locale, e.g. to
+	 *         the patient, the user, or the time the form was generated
+	 */
+	private static boolean refersToSessionVariables(String expression) {
+		Matcher matcher = VELOCITY_REFERENCE.matcher(expression);
+		while (matcher.find()) {
+			if (!SESSION_CONSTANT_VARIABLES.contains(matcher.group(1))) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -1,12 +1,25 @@
 package org.openmrs.module.htmlformentry.db;
 
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
 import org.openmrs.Form;
+import org.openmrs.Obs;
 import org.openmrs.OpenmrsMetadata;
 import org.openmrs.OpenmrsObject;
+import org.openmrs.Patient;
+import org.openmrs.Person;
+import org.openmrs.module.htmlformentry.CacheVersion;
 import org.openmrs.module.htmlformentry.HtmlForm;
+import org.openmrs.module.htmlformentry.HtmlFormDependency;
 import org.openmrs.module.htmlformentry.HtmlFormEntryService;
+import org.openmrs.module.htmlformentry.StoredFormSession;
 import org.openmrs.module.htmlformentry.element.PersonStub;
 
 /**
@@ -59,6 +72,54 @@ public interface HtmlFormEntryDAO {
      */
     public List<HtmlForm> getAllHtmlForms();
 
+	/**
+	 * @see HtmlFormEntryService#getHtmlFormDependencies(HtmlForm)
+	 */
+	public List<HtmlFormDependency> getHtmlFormDependencies(HtmlForm htmlForm);
+
+	/**
+	 * Replaces the recorded dependencies of an HtmlForm
+	 * 
+	 * @param htmlForm
+	 * @param dependencies the objects the form references, by the class of the attributes that referenced them
+	 */
+	public void saveHtmlFormDependencies(HtmlForm htmlForm, Map<Class<?>, Set<OpenmrsObject>> dependencies);
+
+	/**
+	 * @see HtmlFormEntryService#getHtmlFormsReferencing(OpenmrsObject)
+	 */
+	public List<HtmlForm> getHtmlFormsByDependency(String objectUuid);
+
+	/**
+	 * @see HtmlFormEntryService#getStoredFormSession(String)
+	 */
+	public StoredFormSession getStoredFormSession(String sessionKey);
+
+	/**
+	 * @see HtmlFormEntryService#saveStoredFormSession(StoredFormSession)
+	 */
+	public void saveStoredFormSession(StoredFormSession storedFormSession);
+
+	/**
+	 * @see HtmlFormEntryService#purgeStoredFormSession(String)
+	 */
+	public void deleteStoredFormSession(String sessionKey);
+
+	/**
+	 * @see HtmlFormEntryService#purgeStoredFormSessionsUpdatedBefore(Date)
+	 */
+	public int deleteStoredFormSessionsUpdatedBefore(Date date);
+
+	/**
+	 * @see HtmlFormEntryService#getCacheVersions()
+	 */
+	public List<CacheVersion> getCacheVersions();
+
+	/**
+	 * @see HtmlFormEntryService#incrementCacheVersion(String)
+	 */
+	public void incrementCacheVersion(String cacheKey);
+
 	/**
 	 * @see HtmlFormEntryService#needsNameAndDescriptionMigration()
 	 */
@@ -89,4 +150,60 @@ public interface HtmlFormEntryDAO {
      */      
 	public List<Integer> getPersonIdHavingAttributes(String attributeId, String attributeValue);
 
+	/**
+	 * Fetches, in a single query, stubs for the non-voided people matching all of the given criteria, ordered by
+	 * family name, given name and person id
+	 * 
+	 * @param nameWords words that must each start one of the person's names, or null
+	 * @param identifier a patient identifier that matches the person even if the name words do not, or null
+	 * @param attributes names of person attribute types the person must have
+	 * @param attributeValues the value each attribute must have, a null value matches any
+	 * @param programIds programs the person must have been enrolled in
+	 * @param excludedPersonIds people to leave out of the results
+	 * @param after only return people ordered after the person of this stub, or null
+	 * @param maxResults the maximum number of stubs to return, or null for all
+	 * @see HtmlFormEntryService#getPeopleAsPersonStubs(String, List, List, List, List, PersonStub, Integer)
+	 */
+	public List<PersonStub> getPeopleAsPersonStubs(List<String> nameWords, String identifier, List<String> attributes,
+	        List<String> attributeValues, List<Integer> programIds, Collection<Integer> excludedPersonIds,
+	        PersonStub after, Integer maxResults);
+
+	/**
+	 * @see HtmlFormEntryService#getLatestObs(Person, Concept)
+	 */
+	public Obs getLatestObs(Person person, Concept concept);
+
+	/**
+	 * @see HtmlFormEntryService#getEarliestObs(Person, Concept)
+	 */
+	public Obs getEarliestObs(Person person, Concept concept);
+
+	/**
+	 * @return the non-voided obs of each concept that share the latest obs datetime for that concept
+	 * @see HtmlFormEntryService#getLatestObs(Person, Collection)
+	 */
+	public List<Obs> getLatestObs(Person person, Collection<Concept> concepts);
+
+	/**
+	 * @return the non-voided obs of each concept that share the earliest obs datetime for that concept
+	 * @see HtmlFormEntryService#getEarliestObs(Person, Collection)
+	 */
+	public List<Obs> getEarliestObs(Person person, Collection<Concept> concepts);
+
+	/**
+	 * @see HtmlFormEntryService#getLatestEncounter(Patient, EncounterType)
+	 */
+	public Encounter getLatestEncounter(Patient patient, EncounterType encounterType);
+
+	/**
+	 * @return the latest date any obs or order of the encounter was created or voided, or null if it has none
+	 * @see HtmlFormEntryService#getEncounterModifiedTimestamp(Encounter)
+	 */
+	public Date getLatestObsOrOrderChange(Encounter encounter);
+
+	/**
+	 * @see HtmlFormEntryService#getNonRetiredCount(Class)
+	 */
+	public int getNonRetiredCount(Class<? extends OpenmrsMetadata> type);
+
 }
@@ -1,21 +1,43 @@
 package org.openmrs.module.htmlformentry.db.hibernate;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Criteria;
+import org.hibernate.Hibernate;
 import org.hibernate.Query;
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
 import org.hibernate.criterion.Expression;
 import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.exception.ConstraintViolationException;
 import org.hibernate.transform.Transformers;
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
 import org.openmrs.Form;
+import org.openmrs.Obs;
 import org.openmrs.OpenmrsMetadata;
 import org.openmrs.OpenmrsObject;
+import org.openmrs.Patient;
+import org.openmrs.Person;
 import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.openmrs.module.htmlformentry.CacheVersion;
 import org.openmrs.module.htmlformentry.HtmlForm;
+import org.openmrs.module.htmlformentry.HtmlFormDependency;
+import org.openmrs.module.htmlformentry.StoredFormSession;
 import org.openmrs.module.htmlformentry.db.HtmlFormEntryDAO;
 import org.openmrs.module.htmlformentry.element.PersonStub;
 
@@ -51,9 +73,113 @@ public class HibernateHtmlFormEntryDAO implements HtmlFormEntryDAO {
     
     @Override
     public void deleteHtmlForm(HtmlForm htmlForm) {
+        deleteHtmlFormDependencies(htmlForm);
         sessionFactory.getCurrentSession().delete(htmlForm);
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<HtmlFormDependency> getHtmlFormDependencies(HtmlForm htmlForm) {
+        Query query = sessionFactory.getCurrentSession().createQuery(
+            "from HtmlFormDependency d where d.htmlForm = :htmlForm order by d.id");
+        return (List<HtmlFormDependency>) query.setParameter("htmlForm", htmlForm).list();
+    }
+
+    @Override
+    public void saveHtmlFormDependencies(HtmlForm htmlForm, Map<Class<?>, Set<OpenmrsObject>> dependencies) {
+        deleteHtmlFormDependencies(htmlForm);
+        for (Map.Entry<Class<?>, Set<OpenmrsObject>> entry : dependencies.entrySet()) {
+            for (OpenmrsObject object : entry.getValue()) {
+                // record the real class of the object, not that of any proxy it was loaded as
+                sessionFactory.getCurrentSession().save(new HtmlFormDependency(htmlForm, entry.getKey(),
+                    Hibernate.getClass(object), object.getUuid()));
+            }
+        }
+    }
+
+    private void deleteHtmlFormDependencies(HtmlForm htmlForm) {
+        sessionFactory.getCurrentSession().createQuery("delete from HtmlFormDependency d where d.htmlForm = :htmlForm")
+            .setParameter("htmlForm", htmlForm).executeUpdate();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<HtmlForm> getHtmlFormsByDependency(String objectUuid) {
+        Query query = sessionFactory.getCurrentSession().createQuery(
+            "select distinct d.htmlForm from HtmlFormDependency d where d.objectUuid = :uuid");
+        return (List<HtmlForm>) query.setString("uuid", objectUuid).list();
+    }
+
+    @Override
+    public StoredFormSession getStoredFormSession(String sessionKey) {
+        return (StoredFormSession) sessionFactory.getCurrentSession().get(StoredFormSession.class, sessionKey);
+    }
+
+    @Override
+    public void saveStoredFormSession(StoredFormSession storedFormSession) {
+        // merge, since the form session may already be stored under its key
+        sessionFactory.getCurrentSession().merge(storedFormSession);
+    }
+
+    @Override
+    public void deleteStoredFormSession(String sessionKey) {
+        sessionFactory.getCurrentSession().createQuery("delete from StoredFormSession s where s.sessionKey = :sessionKey")
+            .setString("sessionKey", sessionKey).executeUpdate();
+    }
+
+    @Override
+    public int deleteStoredFormSessionsUpdatedBefore(Date date) {
+        return sessionFactory.getCurrentSession().createQuery("delete from StoredFormSession s where s.dateUpdated < :date")
+            .setTimestamp("date", date).executeUpdate();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<CacheVersion> getCacheVersions() {
+        return (List<CacheVersion>) sessionFactory.getCurrentSession().createCriteria(CacheVersion.class).list();
+    }
+
+    @Override
+    public void incrementCacheVersion(String cacheKey) {
+        Date now = new Date();
+        if (updateCacheVersion(cacheKey, now) == 0 && !insertCacheVersion(cacheKey, now)) {
+            // another server added the key in the meantime
+            updateCacheVersion(cacheKey, now);
+        }
+    }
+
+    private int updateCacheVersion(String cacheKey, Date now) {
+        return sessionFactory.getCurrentSession().createQuery(
+            "update CacheVersion v set v.version = v.version + 1, v.dateChanged = :now where v.cacheKey = :cacheKey")
+            .setTimestamp("now", now).setString("cacheKey", cacheKey).executeUpdate();
+    }
+
+    /**
+     * Adds the key in a transaction of its own, so that if another server adds it at the same time, the primary key
+     * violation does not roll back the transaction of the caller
+     *
+     * @return false if the key was already there
+     */
+    private boolean insertCacheVersion(String cacheKey, Date now) {
+        Session session = sessionFactory.getHibernateSessionFactory().openSession();
+        Transaction tx = null;
+        try {
+            tx = session.beginTransaction();
+            session.save(new CacheVersion(cacheKey, 1L, now));
+            tx.commit();
+            return true;
+        }
+        catch (ConstraintViolationException ex) {
+            if (tx != null) {
+                tx.rollback();
+            }
+            return false;
+        }
+        finally {
+            session.close();
+        }
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public List<HtmlForm> getAllHtmlForms() {
@@ -151,4 +277,220 @@ public class HibernateHtmlFormEntryDAO implements HtmlFormEntryDAO {
 		}
 	    return (List<Integer>)sessionFactory.getCurrentSession().createSQLQuery(query).list();
     }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<PersonStub> getPeopleAsPersonStubs(List<String> nameWords, String identifier, List<String> attributes,
+            List<String> attributeValues, List<Integer> programIds, Collection<Integer> excludedPersonIds,
+            PersonStub after, Integer maxResults) {
+        Map<String, Object> params = new HashMap<String, Object>();
+        StringBuilder sql = new StringBuilder();
+        sql.append("select p.person_id, pn.given_name, pn.middle_name, pn.family_name, pn.family_name2, p.gender, ");
+        sql.append("p.birthdate, p.birthdate_estimated, ");
+        sql.append("(select min(pi.identifier) from patient_identifier pi where pi.patient_id = p.person_id ");
+        sql.append("and pi.voided = 0 and pi.preferred = 1) ");
+        sql.append("from person p left join person_name pn on pn.person_name_id = (");
+        sql.append("select min(pn2.person_name_id) from person_name pn2 where pn2.person_id = p.person_id and pn2.voided = 0 ");
+        sql.append("and (pn2.preferred = 1 or not exists (select 1 from person_name pn3 where pn3.person_id = p.person_id ");
+        sql.append("and pn3.voided = 0 and pn3.preferred = 1))) ");
+        sql.append("where p.voided = 0 ");
+
+        List<String> nameConditions = new ArrayList<String>();
+        if (nameWords != null) {
+            for (String word : nameWords) {
+                String param = "name" + nameConditions.size();
+                nameConditions.add("exists (select 1 from person_name n where n.person_id = p.person_id and n.voided = 0 "
+                        + "and (lower(n.given_name) like :" + param + " or lower(n.middle_name) like :" + param
+                        + " or lower(n.family_name) like :" + param + " or lower(n.family_name2) like :" + param + "))");
+                params.put(param, word.toLowerCase() + "%");
+            }
+        }
+        String identifierCondition = null;
+        if (identifier != null) {
+            identifierCondition = "exists (select 1 from patient_identifier pi2 where pi2.patient_id = p.person_id "
+                    + "and pi2.voided = 0 and pi2.identifier = :identifier)";
+            params.put("identifier", identifier);
+        }
+        if (!nameConditions.isEmpty() && identifierCondition != null) {
+            sql.append("and ((").append(StringUtils.join(nameConditions, " and ")).append(") or ")
+                    .append(identifierCondition).append(") ");
+        } else if (!nameConditions.isEmpty()) {
+            sql.append("and ").append(StringUtils.join(nameConditions, " and ")).append(" ");
+        } else if (identifierCondition != null) {
+            sql.append("and ").append(identifierCondition).append(" ");
+        }
+
+        if (attributes != null) {
+            for (int i = 0; i < attributes.size(); i++) {
+                sql.append("and exists (select 1 from person_attribute pa, person_attribute_type pat ");
+                sql.append("where pa.person_attribute_type_id = pat.person_attribute_type_id and pa.person_id = p.person_id ");
+                sql.append("and pa.voided = 0 and pat.name = :attribute").append(i).append(" ");
+                params.put("attribute" + i, attributes.get(i));
+                String value = attributeValues != null && attributeValues.size() > i ? attributeValues.get(i) : null;
+                if (value != null) {
+                    sql.append("and pa.value = :attributeValue").append(i).append(" ");
+                    params.put("attributeValue" + i, value);
+                }
+                sql.append(") ");
+            }
+        }
+        if (programIds != null) {
+            for (int i = 0; i < programIds.size(); i++) {
+                sql.append("and exists (select 1 from patient_program pp where pp.patient_id = p.person_id ");
+                sql.append("and pp.voided = 0 and pp.program_id = :program").append(i).append(") ");
+                params.put("program" + i, programIds.get(i));
+            }
+        }
+        if (excludedPersonIds != null && !excludedPersonIds.isEmpty()) {
+            sql.append("and p.person_id not in (:excluded) ");
+        }
+        // people are listed by name, so pages are keyed on the name as well as the id; people without a name come first
+        if (after != null) {
+            sql.append("and (coalesce(pn.family_name, '') > :afterFamilyName or (coalesce(pn.family_name, '') = :afterFamilyName ");
+            sql.append("and (coalesce(pn.given_name, '') > :afterGivenName or (coalesce(pn.given_name, '') = :afterGivenName ");
+            sql.append("and p.person_id > :afterPersonId)))) ");
+            params.put("afterFamilyName", after.getFamilyName() == null ? "" : after.getFamilyName());
+            params.put("afterGivenName", after.getGivenName() == null ? "" : after.getGivenName());
+            params.put("afterPersonId", after.getId());
+        }
+        sql.append("order by coalesce(pn.family_name, ''), coalesce(pn.given_name, ''), p.person_id");
+
+        SQLQuery query = sessionFactory.getCurrentSession().createSQLQuery(sql.toString());
+        for (Map.Entry<String, Object> param : params.entrySet()) {
+            query.setParameter(param.getKey(), param.getValue());
+        }
+        if (excludedPersonIds != null && !excludedPersonIds.isEmpty()) {
+            query.setParameterList("excluded", excludedPersonIds);
+        }
+        if (maxResults != null) {
+            query.setMaxResults(maxResults);
+        }
+
+        List<PersonStub> ret = new ArrayList<PersonStub>();
+        for (Object[] row : (List<Object[]>) query.list()) {
+            PersonStub stub = new PersonStub(((Number) row[0]).intValue());
+            stub.setGivenName((String) row[1]);
+            stub.setMiddleName((String) row[2]);
+            stub.setFamilyName((String) row[3]);
+            stub.setFamilyName2((String) row[4]);
+            stub.setGender((String) row[5]);
+            stub.setBirthdate((Date) row[6]);
+            stub.setBirthdateEstimated(toBoolean(row[7]));
+            stub.setIdentifier((String) row[8]);
+            ret.add(stub);
+        }
+        return ret;
+    }
+
+    /**
+     * Boolean columns come back as Boolean or as a number, depending on the database
+     */
+    private Boolean toBoolean(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).intValue() != 0;
+        }
+        return (Boolean) value;
+    }
+
+    @Override
+    public Obs getLatestObs(Person person, Concept concept) {
+        return getFirstObs(person, concept, Order.desc("obsDatetime"), Order.desc("obsId"));
+    }
+
+    @Override
+    public Obs getEarliestObs(Person person, Concept concept) {
+        return getFirstObs(person, concept, Order.asc("obsDatetime"), Order.asc("obsId"));
+    }
+
+    /**
+     * Fetches only the first non-voided obs for the person and concept in the given order, rather than loading the
+     * person's whole history for the concept
+     */
+    private Obs getFirstObs(Person person, Concept concept, Order... orders) {
+        Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Obs.class);
+        criteria.add(Restrictions.eq("person", person));
+        criteria.add(Restrictions.eq("concept", concept));
+        criteria.add(Restrictions.eq("voided", false));
+        for (Order order : orders) {
+            criteria.addOrder(order);
+        }
+        criteria.setMaxResults(1);
+        return (Obs) criteria.uniqueResult();
+    }
+
+    @Override
+    public List<Obs> getLatestObs(Person person, Collection<Concept> concepts) {
+        return getFirstObs(person, concepts, "max");
+    }
+
+    @Override
+    public List<Obs> getEarliestObs(Person person, Collection<Concept> concepts) {
+        return getFirstObs(person, concepts, "min");
+    }
+
+    /**
+     * Fetches, in a single query, the non-voided obs for each of the concepts that fall on the person's latest (or
+     * earliest) obs datetime for that concept
+     */
+    @SuppressWarnings("unchecked")
+    private List<Obs> getFirstObs(Person person, Collection<Concept> concepts, String aggregate) {
+        Query query = sessionFactory.getCurrentSession().createQuery(
+            "select o from Obs o where o.person = :person and o.concept in (:concepts) and o.voided = false "
+                    + "and o.obsDatetime = (select " + aggregate + "(o2.obsDatetime) from Obs o2 "
+                    + "where o2.person = :person and o2.concept = o.concept and o2.voided = false)");
+        query.setParameter("person", person);
+        query.setParameterList("concepts", concepts);
+        return (List<Obs>) query.list();
+    }
+
+    @Override
+    public Encounter getLatestEncounter(Patient patient, EncounterType encounterType) {
+        Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Encounter.class);
+        criteria.add(Restrictions.eq("patient", patient));
+        criteria.add(Restrictions.eq("voided", false));
+        if (encounterType != null) {
+            criteria.add(Restrictions.eq("encounterType", encounterType));
+        }
+        criteria.addOrder(Order.desc("encounterDatetime"));
+        criteria.addOrder(Order.desc("encounterId"));
+        criteria.setMaxResults(1);
+        return (Encounter) criteria.uniqueResult();
+    }
+
+    @Override
+    public Date getLatestObsOrOrderChange(Encounter encounter) {
+        Date ret = getLatestChange(Obs.class, encounter);
+        Date latestOrderChange = getLatestChange(org.openmrs.Order.class, encounter);
+        if (ret == null || (latestOrderChange != null && latestOrderChange.after(ret))) {
+            ret = latestOrderChange;
+        }
+        return ret;
+    }
+
+    @Override
+    public int getNonRetiredCount(Class<? extends OpenmrsMetadata> type) {
+        Number count = (Number) sessionFactory.getCurrentSession().createCriteria(type)
+            .add(Restrictions.eq("retired", false))
+            .setProjection(Projections.rowCount()).uniqueResult();
+        return count == null ? 0 : count.intValue();
+    }
+
+    /**
+     * @return the latest date created or voided of the obs or orders of the encounter, computed by the database
+     */
+    private Date getLatestChange(Class<?> type, Encounter encounter) {
+        Object[] row = (Object[]) sessionFactory.getCurrentSession().createCriteria(type)
+            .add(Restrictions.eq("encounter", encounter))
+            .setProjection(Projections.projectionList().add(Projections.max("dateCreated"))
+                .add(Projections.max("dateVoided"))).uniqueResult();
+        Date ret = null;
+        if (row != null) {
+            for (Object date : row) {
+                if (date != null && (ret == null || ((Date) date).after(ret))) {
+                    ret = (Date) date;
+                }
+            }
+        }
+        return ret;
+    }
 }
@@ -2,7 +2,6 @@ package org.openmrs.module.htmlformentry.element;
 
 import org.apache.commons.lang.StringUtils;
 import org.openmrs.Concept;
-import org.openmrs.ConceptAnswer;
 import org.openmrs.ConceptClass;
 import org.openmrs.ConceptDatatype;
 import org.openmrs.ConceptNumeric;
@@ -20,6 +19,8 @@ import org.openmrs.module.htmlformentry.HtmlFormEntryConstants;
 import org.openmrs.module.htmlformentry.HtmlFormEntryService;
 import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
 import org.openmrs.module.htmlformentry.action.FormSubmissionControllerAction;
+import org.openmrs.module.htmlformentry.cache.ConceptAnswerOptions;
+import org.openmrs.module.htmlformentry.cache.ConceptAnswerOptionsCache;
 import org.openmrs.module.htmlformentry.comparator.OptionComparator;
 import org.openmrs.module.htmlformentry.compatibility.ConceptCompatibility;
 import org.openmrs.module.htmlformentry.schema.ObsField;
@@ -53,7 +54,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -108,6 +108,8 @@ public class ObsSubmissionElement implements HtmlGeneratorElement, FormSubmissio
 	
 	private List<Concept> conceptAnswers = new ArrayList<Concept>();
 	
+	private ConceptAnswerOptions listedAnswerOptions; // answers from the shared option table, referred to by concept id
+	
 	private List<Number> numericAnswers = new ArrayList<Number>();
 	
 	private List<String> textAnswers = new ArrayList<String>();
@@ -616,6 +618,8 @@ public class ObsSubmissionElement implements HtmlGeneratorElement, FormSubmissio
 					}
 				}
 			} else if (concept.getDatatype().isCoded()) {
+				ConceptAnswerOptions answerOptions = null;
+				List<ConceptClass> answerClasses = new ArrayList<ConceptClass>();
 				if (parameters.get("answerConceptIds") != null) {
 					try {
 						for (StringTokenizer st = new StringTokenizer(parameters.get("answerConceptIds"), ","); st
@@ -634,10 +638,11 @@ public class ObsSubmissionElement implements HtmlGeneratorElement, FormSubmissio
                 else if (parameters.get("answerConceptSetIds") != null) {
                     String answerConceptSetIds = parameters.get("answerConceptSetIds");
                     try {
+						List<Concept> answerConceptSets = new ArrayList<Concept>();
 						for (StringTokenizer st = new StringTokenizer(answerConceptSetIds, ","); st.hasMoreTokens();) {
-							Concept answerConceptSet = HtmlFormEntryUtil.getConcept(st.nextToken());
-							conceptAnswers.addAll(Context.getConceptService().getConceptsByConceptSet(answerConceptSet));
+							answerConceptSets.add(HtmlFormEntryUtil.getConcept(st.nextToken()));
 						}
+						answerOptions = getConceptAnswerOptionsCache().getConceptSetOptions(answerConceptSets, locale);
                     }
                     catch (Exception ex) {
                         throw new RuntimeException("Error loading answer concepts from answerConceptSet " + answerConceptSetIds, ex);
@@ -652,9 +657,9 @@ public class ObsSubmissionElement implements HtmlGeneratorElement, FormSubmissio
 							if (cc == null) {
 								throw new RuntimeException("Cannot find concept class " + className);
 							}
-							conceptAnswers.addAll(Context.getConceptService().getConceptsByClass(cc));
+							answerClasses.add(cc);
 						}
-						Collections.sort(conceptAnswers, conceptNameComparator);
+						answerOptions = getConceptAnswerOptionsCache().getConceptClassOptions(answerClasses, locale);
 					}
 					catch (Exception ex) {
 						throw new RuntimeException("Error in answer class list for concept " + concept.getConceptId() + " ("
@@ -701,14 +706,28 @@ public class ObsSubmissionElement implements HtmlGeneratorElement, FormSubmissio
 					// if no answers are specified explicitly (by conceptAnswers or conceptClasses), get them from concept.answers.
 					if (!parameters.containsKey("answerConceptIds") && !parameters.containsKey("answerClasses")
 							&& !parameters.containsKey("answerDrugs") && !parameters.containsKey("answerConceptSetIds")) {
-						conceptAnswers = new ArrayList<Concept>();
-						for (ConceptAnswer ca : concept.getAnswers(false)) {
-							conceptAnswers.add(ca.getAnswerConcept());
-						}
-						Collections.sort(conceptAnswers, conceptNameComparator);
+						answerOptions = getConceptAnswerOptionsCache().getQuestionAnswerOptions(concept, locale);
+					} else if (parameters.containsKey("answerConceptIds")) {
+						answerOptions = getConceptAnswerOptionsCache().getOptions(conceptAnswers, locale);
 					}
-					
-					if ("autocomplete".equals(parameters.get("style"))) {
+
+					// answer sets too large for a dropdown are searched on the server instead, and never loaded
+					boolean tooManyAnswers = answerOptions != null && !"autocomplete".equals(parameters.get("style"))
+					        && parameters.get("answerDrugs") == null
+					        && answerOptions.size() > getConceptAnswerOptionsCache().getAutocompleteThreshold();
+					// answers taken from the shared option table are only referred to by id from here on, rather than
+					// each being loaded into conceptAnswers on every render
+					if (!tooManyAnswers) {
+						listedAnswerOptions = answerOptions;
+					}
+
+					if (tooManyAnswers) {
+						if (!answerClasses.isEmpty()) {
+							valueWidget = new ConceptSearchAutocompleteWidget(new ArrayList<Concept>(), answerClasses);
+						} else {
+							valueWidget = new ConceptSearchAutocompleteWidget(answerOptions.getConceptIds());
+						}
+					} else if ("autocomplete".equals(parameters.get("style"))) {
 						List<ConceptClass> cptClasses = new ArrayList<ConceptClass>();
 						if (parameters.get("answerClasses") != null) {
 							for (StringTokenizer st = new StringTokenizer(parameters.get("answerClasses"), ","); st
@@ -718,15 +737,25 @@ public class ObsSubmissionElement implements HtmlGeneratorElement, FormSubmissio
 								cptClasses.add(cc);
 							}
 						}
-						if ((conceptAnswers == null || conceptAnswers.isEmpty())
-						        && (cptClasses == null || cptClasses.isEmpty())) {
+						boolean selectMulti = "true".equals(parameters.get("selectMulti"));
+						if (selectMulti && conceptAnswers.isEmpty() && answerOptions != null) {
+							// the multi-select widget shows the names of the answers itself
+							for (Integer conceptId : answerOptions.getConceptIds()) {
+								conceptAnswers.add(Context.getConceptService().getConcept(conceptId));
+							}
+						}
+						boolean noAnswers = answerOptions != null ? answerOptions.size() == 0 : conceptAnswers.isEmpty();
+						if (noAnswers && cptClasses.isEmpty()) {
 							throw new RuntimeException(
 							        "style \"autocomplete\" but there are no possible answers. Looked for answerConcepts and answerClasses attributes, and answers for concept "
 							                + concept.getConceptId());
 						}
-						if ("true".equals(parameters.get("selectMulti"))) {
+						if (selectMulti) {
 							valueWidget = new DynamicAutocompleteWidget(conceptAnswers, cptClasses);
                         }
+                        else if (answerOptions != null && cptClasses.isEmpty()) {
+                            valueWidget = new ConceptSearchAutocompleteWidget(answerOptions.getConceptIds());
+                        }
                         else {
 						    valueWidget = new ConceptSearchAutocompleteWidget(conceptAnswers, cptClasses);
                         }
@@ -756,16 +785,15 @@ public class ObsSubmissionElement implements HtmlGeneratorElement, FormSubmissio
 						} else {
 							valueWidget = buildDropdownWidget(size);
 						}
-						for (int i = 0; i < conceptAnswers.size(); ++i) {
-							Concept c = conceptAnswers.get(i);
-							String label = null;
-							if (answerLabels != null && i < answerLabels.size()) {
-								label = answerLabels.get(i);
-							} else {
-								label = c.getName(locale, false).getName();
+						if (answerLabels == null || answerLabels.isEmpty()) {
+							((SingleOptionWidget) valueWidget).addOptions(answerOptions.getOptions());
+						} else {
+							List<Option> options = answerOptions.getOptions();
+							for (int i = 0; i < options.size(); ++i) {
+								String label = i < answerLabels.size() ? answerLabels.get(i) : options.get(i).getLabel();
+								((SingleOptionWidget) valueWidget).addOption(new Option(label, options.get(i).getValue(),
+								        false));
 							}
-							((SingleOptionWidget) valueWidget).addOption(new Option(label, c.getConceptId().toString(),
-							        false));
 						}
 					}
 					if (existingObsList != null && !existingObsList.isEmpty()) {
@@ -785,12 +813,22 @@ public class ObsSubmissionElement implements HtmlGeneratorElement, FormSubmissio
 							throw new IllegalArgumentException("Invalid default value. Cannot find concept: " + defaultValue);
 						}
 						
-						if (!conceptAnswers.contains(initialValue)) {
+						if (tooManyAnswers) {
+							if (!answerOptions.contains(initialValue.getConceptId())) {
+								throw new IllegalArgumentException("Invalid default value: " + defaultValue
+								        + ". It is not one of the allowed answers");
+							}
+						} else if (answerOptions != null ? !answerOptions.contains(initialValue.getConceptId())
+						        : !conceptAnswers.contains(initialValue)) {
 							String allowedIds = "";
-							for (Concept conceptAnswer : conceptAnswers) {
-								allowedIds += conceptAnswer.getId() + ", ";
+							if (answerOptions != null) {
+								allowedIds = StringUtils.join(answerOptions.getConceptIds(), ", ");
+							} else {
+								for (Concept conceptAnswer : conceptAnswers) {
+									allowedIds += conceptAnswer.getId() + ", ";
+								}
+								allowedIds = allowedIds.substring(0, allowedIds.length() - 2);
 							}
-							allowedIds = allowedIds.substring(0, allowedIds.length() - 2);
 							throw new IllegalArgumentException("Invalid default value: " + defaultValue
 							        + ". The only allowed answers are: " + allowedIds);
 						}
@@ -980,7 +1018,7 @@ public class ObsSubmissionElement implements HtmlGeneratorElement, FormSubmissio
 			ans.setDisplayName(getAnswerLabel());
 			ans.setConcept(answerConcept);
 			field.setAnswers(Arrays.asList(ans));
-		} else if (conceptAnswers != null) {
+		} else if (conceptAnswers != null && !conceptAnswers.isEmpty()) {
 			for (int i = 0; i < conceptAnswers.size(); i++) {
 				ObsFieldAnswer ans = new ObsFieldAnswer();
 				ans.setConcept(conceptAnswers.get(i));
@@ -989,6 +1027,14 @@ public class ObsSubmissionElement implements HtmlGeneratorElement, FormSubmissio
 				}
 				field.getAnswers().add(ans);
 			}
+		} else if (listedAnswerOptions != null) {
+			List<Option> options = listedAnswerOptions.getOptions();
+			for (int i = 0; i < options.size(); i++) {
+				ObsFieldAnswer ans = new ObsFieldAnswer();
+				ans.setConcept(new Concept(listedAnswerOptions.getConceptIds().get(i)));
+				ans.setDisplayName(i < answerLabels.size() ? answerLabels.get(i) : options.get(i).getLabel());
+				field.getAnswers().add(ans);
+			}
 		}
 
        field.setExistingObs(existingObs);
@@ -1297,15 +1343,9 @@ public class ObsSubmissionElement implements HtmlGeneratorElement, FormSubmissio
         }
     }
 
-	private Comparator<Concept> conceptNameComparator = new Comparator<Concept>() {
-		
-		@Override
-		public int compare(Concept c1, Concept c2) {
-			String n1 = c1.getName(locale, false).getName();
-			String n2 = c2.getName(locale, false).getName();
-			return n1.compareTo(n2);
-		}
-	};
+	private ConceptAnswerOptionsCache getConceptAnswerOptionsCache() {
+		return Context.getRegisteredComponent("htmlformentry.ConceptAnswerOptionsCache", ConceptAnswerOptionsCache.class);
+	}
 
 	private CheckboxWidget createCheckboxWidget(String label, String value, String toggleParameter) {
 		if (toggleParameter != null) {
@@ -1331,7 +1371,8 @@ public class ObsSubmissionElement implements HtmlGeneratorElement, FormSubmissio
 	}
 	
 	/**
-	 * Returns the concepts that are potential answers to this Observation
+	 * Returns the concepts that are potential answers to this Observation, when they were given explicitly
+	 * (answers taken from the shared option table are only kept by concept id)
 	 */
 	public List<Concept> getConceptAnswers() {
 		return conceptAnswers;
@@ -1,5 +1,7 @@
 package org.openmrs.module.htmlformentry.element;
 
+import java.util.Date;
+
 import org.apache.commons.lang.StringUtils;
 import org.openmrs.Person;
 import org.openmrs.PersonName;
@@ -15,6 +17,10 @@ public class PersonStub extends ValueStub {
     private String givenName;
     private String middleName;
     private String familyName2;
+    private String identifier;
+    private String gender;
+    private Date birthdate;
+    private Boolean birthdateEstimated;
     
     
     public PersonStub(){}
@@ -34,6 +40,9 @@ public class PersonStub extends ValueStub {
             	this.familyName = name.getFamilyName(); 
             	this.familyName2 = name.getFamilyName2();
             }
+            this.gender = person.getGender();
+            this.birthdate = person.getBirthdate();
+            this.birthdateEstimated = person.getBirthdateEstimated();
         }
      }
     
@@ -64,6 +73,53 @@ public class PersonStub extends ValueStub {
     public void setFamilyName2(String familyName2) {
         this.familyName2 = familyName2;
     }
+
+    /**
+     * @return the preferred patient identifier, if this person is a patient and it was loaded with the stub
+     */
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    public void setIdentifier(String identifier) {
+        this.identifier = identifier;
+    }
+
+    public String getGender() {
+        return gender;
+    }
+
+    public void setGender(String gender) {
+        this.gender = gender;
+    }
+
+    public Date getBirthdate() {
+        return birthdate;
+    }
+
+    public void setBirthdate(Date birthdate) {
+        this.birthdate = birthdate;
+    }
+
+    public Boolean getBirthdateEstimated() {
+        return birthdateEstimated;
+    }
+
+    public void setBirthdateEstimated(Boolean birthdateEstimated) {
+        this.birthdateEstimated = birthdateEstimated;
+    }
+
+    /**
+     * @return the age in years, computed the same way as {@link Person#getAge()}, or null if the birthdate is unknown
+     */
+    public Integer getAge() {
+        if (birthdate == null) {
+            return null;
+        }
+        Person person = new Person();
+        person.setBirthdate(birthdate);
+        return person.getAge();
+    }
     
     /**
      * 
@@ -1,5 +1,7 @@
 package org.openmrs.module.htmlformentry.element;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -9,6 +11,7 @@ import java.util.regex.Pattern;
 
 import javax.servlet.http.HttpServletRequest;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.Person;
@@ -26,6 +29,7 @@ import org.openmrs.module.htmlformentry.widget.ErrorWidget;
 import org.openmrs.module.htmlformentry.widget.PersonSearchWidget;
 import org.openmrs.module.htmlformentry.widget.PersonStubWidget;
 import org.openmrs.module.htmlformentry.widget.RelationshipWidget;
+import org.openmrs.web.WebConstants;
 
 /**
  * Holds the widgets used to represent a relationship, and serves as both the HtmlGeneratorElement
@@ -48,6 +52,8 @@ public class RelationshipSubmissionElement implements HtmlGeneratorElement,
 
     private static String DISPLAY_SEARCH = "search";
     private static String DISPLAY_DROPDOWN = "dropDown";
+    // like a drop down, but people are searched for as the user types rather than all listed in the page
+    private static String DISPLAY_AUTOCOMPLETE = "autocomplete";
 
     private PersonSearchWidget personWidget = null;
     private PersonStubWidget personStubWidget = null;
@@ -135,7 +141,7 @@ public class RelationshipSubmissionElement implements HtmlGeneratorElement,
             personWidget.setSearchProgram(personPrograms);
             context.registerWidget(personWidget);
         }
-        if (DISPLAY_DROPDOWN.equals(display)) {
+        if (DISPLAY_DROPDOWN.equals(display) || DISPLAY_AUTOCOMPLETE.equals(display)) {
             personStubWidget = new PersonStubWidget();
             context.registerWidget(personStubWidget);
         }
@@ -247,10 +253,14 @@ public class RelationshipSubmissionElement implements HtmlGeneratorElement,
                     }
                 }
 
-                List<Person> personsToExclude = new ArrayList<Person>();
-                // exclude the exisiting patient from any results
-                personsToExclude.add(context.getExistingPatient());
-                personStubWidget.setOptions(Context.getService(HtmlFormEntryService.class).getPeopleAsPersonStubs(searchAttributes, attributeValues, progIds, personsToExclude));
+                if (DISPLAY_AUTOCOMPLETE.equals(display)) {
+                    personStubWidget.setOptionsUrl(getPersonSearchUrl(searchAttributes, attributeValues, progIds, context.getExistingPatient()));
+                } else {
+                    List<Person> personsToExclude = new ArrayList<Person>();
+                    // exclude the exisiting patient from any results
+                    personsToExclude.add(context.getExistingPatient());
+                    personStubWidget.setOptions(Context.getService(HtmlFormEntryService.class).getPeopleAsPersonStubs(searchAttributes, attributeValues, progIds, personsToExclude));
+                }
             }
 
             if (relationshipWidget != null) {
@@ -285,6 +295,38 @@ public class RelationshipSubmissionElement implements HtmlGeneratorElement,
         return ret.toString();
     }
 
+    /**
+     * @return the url the autocomplete searches for people with, restricted the same way as the drop down options
+     */
+    private String getPersonSearchUrl(List<String> searchAttributes, List<String> attributeValues, List<String> progIds, Person exclude) {
+        List<String> parameters = new ArrayList<String>();
+        // there is no one to exclude when the form is previewed, or its schema built, for a patient that is not saved
+        if (exclude != null && exclude.getPersonId() != null) {
+            parameters.add("exclude=" + exclude.getPersonId());
+        }
+        if (!searchAttributes.isEmpty()) {
+            parameters.add("pAttribute=" + urlEncode(StringUtils.join(searchAttributes, ",")));
+            List<String> values = new ArrayList<String>();
+            for (String value : attributeValues) {
+                values.add(value == null ? "null" : value);
+            }
+            parameters.add("pAttributeValue=" + urlEncode(StringUtils.join(values, ",")));
+        }
+        if (!progIds.isEmpty()) {
+            parameters.add("pProgram=" + urlEncode(StringUtils.join(progIds, ",")));
+        }
+        String url = "/" + WebConstants.WEBAPP_NAME + "/module/htmlformentry/personStubs.form";
+        return parameters.isEmpty() ? url : url + "?" + StringUtils.join(parameters, "&");
+    }
+
+    private String urlEncode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
     /**
      * handleSubmission saves a drug order if in ENTER or EDIT-mode
      *
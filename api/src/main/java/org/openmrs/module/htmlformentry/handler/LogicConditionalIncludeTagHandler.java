@@ -2,9 +2,14 @@ package org.openmrs.module.htmlformentry.handler;
 
 import org.openmrs.api.context.Context;
 import org.openmrs.logic.LogicCriteria;
-import org.openmrs.logic.LogicService;
+import org.openmrs.logic.result.Result;
 import org.openmrs.module.htmlformentry.BadFormDesignException;
 import org.openmrs.module.htmlformentry.FormEntrySession;
+import org.openmrs.module.htmlformentry.PatientDataSnapshot;
+import org.openmrs.module.htmlformentry.cache.LogicCriteriaCache;
+import org.openmrs.module.htmlformentry.compiler.CompiledForm;
+import org.openmrs.module.htmlformentry.compiler.Condition;
+import org.openmrs.module.htmlformentry.compiler.ConditionCompiler;
 import org.w3c.dom.Node;
 
 public abstract class LogicConditionalIncludeTagHandler extends SimpleConditionalIncludeTagHandler {
@@ -37,10 +42,9 @@ public abstract class LogicConditionalIncludeTagHandler extends SimpleConditiona
      */
     protected boolean processLogicIncludeLogic(FormEntrySession session, String testStr) throws BadFormDesignException {
 
-        LogicService ls = Context.getLogicService();
         LogicCriteria logicCriteria = null;
         try {
-            logicCriteria = ls.parse(testStr);
+            logicCriteria = getLogicCriteriaCache().getCriteria(testStr);
         } catch (Exception ex) {
             throw new BadFormDesignException(ex.getMessage());
         }
@@ -49,8 +53,14 @@ public abstract class LogicConditionalIncludeTagHandler extends SimpleConditiona
             if ("testing-html-form-entry".equals(session.getPatient().getUuid()))
                 return false;
             else {
+                PatientDataSnapshot patientData = session.getPatientData();
+                if (patientData.hasLogicResult(testStr)) {
+                    return patientData.getLogicResult(testStr).toBoolean();
+                }
                 try {
-                    return ls.eval(session.getPatient().getPatientId(), logicCriteria).toBoolean();
+                    Result result = Context.getLogicService().eval(session.getPatient().getPatientId(), logicCriteria);
+                    patientData.putLogicResult(testStr, result);
+                    return result.toBoolean();
                 } catch (Exception ex) {
                     throw new BadFormDesignException(ex.getMessage());
                 }
@@ -60,6 +70,10 @@ public abstract class LogicConditionalIncludeTagHandler extends SimpleConditiona
         }
     }
 
+    private LogicCriteriaCache getLogicCriteriaCache() {
+        return Context.getRegisteredComponent("htmlformentry.LogicCriteriaCache", LogicCriteriaCache.class);
+    }
+
     /**
      * given a test string, parse the string to return a boolean value for Velocity result
      *
@@ -71,9 +85,11 @@ public abstract class LogicConditionalIncludeTagHandler extends SimpleConditiona
      */
     protected boolean processVelocityIncludeLogic(FormEntrySession session, String testStr) throws BadFormDesignException {
 
-        //("#if($patient.getPatientIdentifier(5))true #else false #end"));
-        testStr = "#if (" + testStr + ") true #else false #end";
-        return session.evaluateVelocityExpression(testStr).trim().equals("true");
+        // the condition is compiled once per form; see ConditionCompiler for how it is evaluated
+        CompiledForm compiledForm = session.getCompiledForm();
+        Condition condition = compiledForm != null ? compiledForm.getCondition(testStr) : ConditionCompiler
+                .compile(testStr);
+        return session.getConditionContext().test(condition);
 
     }
 
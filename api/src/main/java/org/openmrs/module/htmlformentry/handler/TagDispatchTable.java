@@ -0,0 +1,53 @@
+package org.openmrs.module.htmlformentry.handler;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The handler of every tag used by a form, resolved from a {@link TagHandlerRegistry} once per compiled form rather
+ * than once per tag per render. Tags and nodes without a handler, like plain html and text, are resolved too, to
+ * null.
+ */
+public final class TagDispatchTable {
+
+	// the names of the DOM nodes, other than elements, that every form has
+	private static final String[] NODE_NAMES = { "#text", "#comment", "#cdata-section", "#document" };
+
+	private final TagHandlerRegistry registry;
+
+	private final Map<String, TagHandler> handlers;
+
+	TagDispatchTable(TagHandlerRegistry registry, Collection<String> tagNames) {
+		this.registry = registry;
+		this.handlers = new HashMap<String, TagHandler>();
+		for (String nodeName : NODE_NAMES) {
+			handlers.put(nodeName, registry.getHandler(nodeName));
+		}
+		if (tagNames != null) {
+			for (String tagName : tagNames) {
+				handlers.put(tagName, registry.getHandler(tagName));
+			}
+		}
+	}
+
+	/**
+	 * @param nodeName the name of a node of the form
+	 * @return the handler of the node, or null if it has none
+	 */
+	public TagHandler getHandler(String nodeName) {
+		TagHandler handler = handlers.get(nodeName);
+		if (handler == null && !handlers.containsKey(nodeName)) {
+			// a tag the form was not known to use
+			handler = registry.getHandler(nodeName);
+		}
+		return handler;
+	}
+
+	/**
+	 * @return true if the table was resolved from the given registry, so is still up to date with it
+	 */
+	public boolean isFor(TagHandlerRegistry registry) {
+		return this.registry == registry;
+	}
+}
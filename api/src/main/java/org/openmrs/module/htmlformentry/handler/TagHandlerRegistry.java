@@ -0,0 +1,60 @@
+package org.openmrs.module.htmlformentry.handler;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An immutable set of tag handlers, by tag name. Registering a handler makes a new registry rather than changing this
+ * one, so a registry can be read by any number of threads without locking, and a render sees the same handlers from
+ * start to end even if another module registers one meanwhile.
+ */
+public final class TagHandlerRegistry {
+
+	public static final TagHandlerRegistry EMPTY = new TagHandlerRegistry(new LinkedHashMap<String, TagHandler>());
+
+	private final Map<String, TagHandler> handlers;
+
+	private TagHandlerRegistry(LinkedHashMap<String, TagHandler> handlers) {
+		this.handlers = Collections.unmodifiableMap(handlers);
+	}
+
+	/**
+	 * @return the handler of the tag, or null if it has none
+	 */
+	public TagHandler getHandler(String tagName) {
+		return handlers.get(tagName);
+	}
+
+	/**
+	 * @return all handlers, by tag name, in the order they were registered
+	 */
+	public Map<String, TagHandler> getHandlers() {
+		return handlers;
+	}
+
+	/**
+	 * @return a registry with the given handler added to those of this one, replacing any handler of the same tag
+	 */
+	public TagHandlerRegistry plus(String tagName, TagHandler handler) {
+		return plusAll(Collections.singletonMap(tagName, handler));
+	}
+
+	/**
+	 * @return a registry with the given handlers added to those of this one, replacing any handlers of the same tags
+	 */
+	public TagHandlerRegistry plusAll(Map<String, TagHandler> added) {
+		LinkedHashMap<String, TagHandler> copy = new LinkedHashMap<String, TagHandler>(handlers);
+		copy.putAll(added);
+		return new TagHandlerRegistry(copy);
+	}
+
+	/**
+	 * @param tagNames the names of the tags used by a form
+	 * @return the handlers of just those tags, to look them up while the form renders
+	 */
+	public TagDispatchTable getDispatchTable(Collection<String> tagNames) {
+		return new TagDispatchTable(this, tagNames);
+	}
+}
@@ -2,6 +2,8 @@ package org.openmrs.module.htmlformentry.impl;
 
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -9,24 +11,31 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.VelocityEngine;
 import org.apache.velocity.runtime.RuntimeConstants;
 import org.apache.velocity.runtime.log.CommonsLogLogChute;
-import org.openmrs.Cohort;
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
 import org.openmrs.Form;
 import org.openmrs.OpenmrsMetadata;
+import org.openmrs.Obs;
 import org.openmrs.OpenmrsObject;
+import org.openmrs.Patient;
 import org.openmrs.Person;
 import org.openmrs.Program;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
 import org.openmrs.module.htmlformentry.*;
+import org.openmrs.module.htmlformentry.cache.CacheInvalidationChannel;
 import org.openmrs.module.htmlformentry.db.HtmlFormEntryDAO;
 import org.openmrs.module.htmlformentry.element.PersonStub;
 import org.openmrs.module.htmlformentry.handler.TagHandler;
+import org.openmrs.module.htmlformentry.handler.TagHandlerRegistry;
 
 /**
  * Standard implementation of the HtmlFormEntryService
@@ -36,7 +45,8 @@ public class HtmlFormEntryServiceImpl extends BaseOpenmrsService implements Html
     protected final Log log = LogFactory.getLog(getClass());
     
     private HtmlFormEntryDAO dao;
-    private static Map<String, TagHandler> handlers = new LinkedHashMap<String, TagHandler>();
+    // replaced rather than changed when handlers are added, so it can be read without locking
+    private static volatile TagHandlerRegistry handlerRegistry = TagHandlerRegistry.EMPTY;
     private String basicFormXmlTemplate;
 
 	/*
@@ -50,17 +60,24 @@ public class HtmlFormEntryServiceImpl extends BaseOpenmrsService implements Html
     
     @Override
     public void addHandler(String tagName, TagHandler handler) {
-        handlers.put(tagName, handler);
+        synchronized (HtmlFormEntryServiceImpl.class) {
+            handlerRegistry = handlerRegistry.plus(tagName, handler);
+        }
     }
     
     @Override
     public TagHandler getHandlerByTagName(String tagName){
-        return handlers.get(tagName);
+        return handlerRegistry.getHandler(tagName);
     }
     
     @Override
     public Map<String, TagHandler> getHandlers(){
-        return handlers;
+        return handlerRegistry.getHandlers();
+    }
+    
+    @Override
+    public TagHandlerRegistry getTagHandlerRegistry() {
+        return handlerRegistry;
     }
     
     /**
@@ -69,7 +86,9 @@ public class HtmlFormEntryServiceImpl extends BaseOpenmrsService implements Html
      * @param handlersToSet
      */
     public void setHandlers(Map<String, TagHandler> handlersToSet) {
-        handlers.putAll(handlersToSet);
+        synchronized (HtmlFormEntryServiceImpl.class) {
+            handlerRegistry = handlerRegistry.plusAll(handlersToSet);
+        }
     }
     
     /**
@@ -116,14 +135,92 @@ public class HtmlFormEntryServiceImpl extends BaseOpenmrsService implements Html
             htmlForm.setDateChanged(new Date());
         }
         Context.getFormService().saveForm(htmlForm.getForm());
-        return dao.saveHtmlForm(htmlForm);
+        invalidateCaches(htmlForm);
+        dao.saveHtmlForm(htmlForm);
+        saveDependencies(htmlForm);
+        return htmlForm;
+    }
+
+    /**
+     * Records the objects the form references. A form that cannot be processed is still saved, without dependencies.
+     */
+    private void saveDependencies(HtmlForm htmlForm) {
+        Map<Class<?>, Set<OpenmrsObject>> dependencies;
+        try {
+            dependencies = new HtmlFormDependencyCalculator().calculate(htmlForm.getXmlData());
+        }
+        catch (Exception ex) {
+            log.warn("Unable to calculate the dependencies of " + htmlForm, ex);
+            dependencies = new LinkedHashMap<Class<?>, Set<OpenmrsObject>>();
+        }
+        dao.saveHtmlFormDependencies(htmlForm, dependencies);
+    }
+
+    @Override
+    public List<HtmlFormDependency> getHtmlFormDependencies(HtmlForm htmlForm) {
+        return dao.getHtmlFormDependencies(htmlForm);
+    }
+
+    @Override
+    public void indexHtmlFormDependencies() {
+        for (HtmlForm htmlForm : dao.getAllHtmlForms()) {
+            if (dao.getHtmlFormDependencies(htmlForm).isEmpty()) {
+                saveDependencies(htmlForm);
+            }
+        }
+    }
+
+    @Override
+    public List<HtmlForm> getHtmlFormsReferencing(OpenmrsObject object) {
+        return dao.getHtmlFormsByDependency(object.getUuid());
+    }
+
+    @Override
+    public StoredFormSession getStoredFormSession(String sessionKey) {
+        return dao.getStoredFormSession(sessionKey);
+    }
+
+    @Override
+    public void saveStoredFormSession(StoredFormSession storedFormSession) {
+        dao.saveStoredFormSession(storedFormSession);
+    }
+
+    @Override
+    public void purgeStoredFormSession(String sessionKey) {
+        dao.deleteStoredFormSession(sessionKey);
+    }
+
+    @Override
+    public int purgeStoredFormSessionsUpdatedBefore(Date date) {
+        return dao.deleteStoredFormSessionsUpdatedBefore(date);
+    }
+
+    @Override
+    public List<CacheVersion> getCacheVersions() {
+        return dao.getCacheVersions();
+    }
+
+    @Override
+    public void incrementCacheVersion(String cacheKey) {
+        dao.incrementCacheVersion(cacheKey);
     }
     
     @Override
     public void purgeHtmlForm(HtmlForm htmlForm) {
+        invalidateCaches(htmlForm);
         dao.deleteHtmlForm(htmlForm);
     }
 
+    /**
+     * Evicts the cached entries of a saved form, on this and every other server
+     */
+    private void invalidateCaches(HtmlForm htmlForm) {
+        if (htmlForm.getId() != null) {
+            HtmlFormEntryUtil.getCacheInvalidationChannel().publish(CacheInvalidationChannel.REGION_HTML_FORM,
+                htmlForm.getId().toString());
+        }
+    }
+
     @Override
     public List<HtmlForm> getAllHtmlForms() {
         return dao.getAllHtmlForms();
@@ -207,99 +304,122 @@ public class HtmlFormEntryServiceImpl extends BaseOpenmrsService implements Html
 	 	
 	@Override
     public List<PersonStub> getPeopleAsPersonStubs(List<String> attributes, List<String> attributeValues, List<String> programIds, List<Person> personsToExclude){
-		List<PersonStub> stubs = new ArrayList<PersonStub>();
-		
-		Set<Integer> attributeMatches = null;
-		Set<Integer> programMatches = null;
-		
-		if(attributes != null)
-		{
-			for(int i = 0; i < attributes.size(); i++)
-			{
-				String attr = attributes.get(i);
-				String val = null;
-				if(attributeValues != null && attributeValues.size() > i)
-				{
-					val = attributeValues.get(i);
-				}
-				
-				Set<Integer> setOfIds = new HashSet<Integer>();
-				setOfIds.addAll(getPersonIdsHavingAttributes(attr, val));
-					
-				if(attributeMatches != null)
-				{
-					attributeMatches.retainAll(setOfIds);
-				}
-				else
-				{
-					attributeMatches = setOfIds;
+		return getPeopleAsPersonStubs(null, attributes, attributeValues, programIds, personsToExclude, null, null);
+	}
+
+	@Override
+	public List<PersonStub> getPeopleAsPersonStubs(String searchPhrase, List<String> attributes,
+	        List<String> attributeValues, List<String> programIds, List<Person> personsToExclude, PersonStub after,
+	        Integer maxResults) {
+		List<String> nameWords = null;
+		String identifier = null;
+		if (StringUtils.isNotBlank(searchPhrase)) {
+			nameWords = Arrays.asList(StringUtils.split(searchPhrase.trim()));
+			// also search on patient identifier if the phrase contains a number
+			if (searchPhrase.matches(".*\\d+.*")) {
+				identifier = searchPhrase.trim();
+			}
+		}
+
+		List<String> attributeNames = new ArrayList<String>();
+		List<String> values = new ArrayList<String>();
+		if (attributes != null) {
+			for (int i = 0; i < attributes.size(); i++) {
+				if (StringUtils.isNotBlank(attributes.get(i))) {
+					attributeNames.add(attributes.get(i).trim());
+					values.add(attributeValues != null && attributeValues.size() > i ? attributeValues.get(i) : null);
 				}
 			}
 		}
-		
-		if(programIds != null)
-		{
-			for(String prog: programIds)
-		{
-				if(prog != null && prog.trim().length() > 0)
-				{
-					Program personProgram = HtmlFormEntryUtil.getProgram(prog);
-					
-					if(personProgram != null)
-					{
-						Cohort pp = Context.getPatientSetService().getPatientsInProgram(personProgram, null, null);
-						if(programMatches != null)
-						{
-							programMatches.retainAll(pp.getMemberIds());
-						}
-						else 
-						{
-							programMatches = pp.getMemberIds();
-						}
+
+		List<Integer> programs = new ArrayList<Integer>();
+		if (programIds != null) {
+			for (String prog : programIds) {
+				if (StringUtils.isNotBlank(prog)) {
+					Program program = HtmlFormEntryUtil.getProgram(prog);
+					if (program != null) {
+						programs.add(program.getProgramId());
 					}
 				}
 			}
 		}
-		
-		Set<Integer> results;
-		
-		// if no attributes specified, just use to the program matches
-		if (attributes == null || attributes.isEmpty()) {
-			results = programMatches;
-		}
-		// if no programs specified, just use the attribute matches
-		else if (programIds == null || programIds.isEmpty()) {
-			results = attributeMatches;
-		}
-		// otherwise, intersect the results
-		else {
-			results = programMatches;
-			if (results != null) {
-				results.retainAll(attributeMatches);
-			}
+
+		if (nameWords == null && attributeNames.isEmpty() && programs.isEmpty()) {
+			return new ArrayList<PersonStub>();
 		}
-		
-		
-		if(results != null)
-		{
-			//now iterate through the results, returning person stubs
-			for(Integer id : results)
-			{
-				Person person = Context.getPersonService().getPerson(id);
-				if(person != null && !personsToExclude.contains(person))
-				{
-					PersonStub pStub = new PersonStub();
-					pStub.setGivenName(person.getGivenName());
-					pStub.setFamilyName(person.getFamilyName());
-					pStub.setMiddleName(person.getMiddleName());
-				pStub.setId(id);
-					stubs.add(pStub);
+
+		Set<Integer> excluded = new HashSet<Integer>();
+		if (personsToExclude != null) {
+			for (Person person : personsToExclude) {
+				if (person != null && person.getPersonId() != null) {
+					excluded.add(person.getPersonId());
 				}
 			}
 		}
-		return stubs;
+		return dao.getPeopleAsPersonStubs(nameWords, identifier, attributeNames, values, programs, excluded, after,
+		    maxResults);
 	}
 	
+	@Override
+	public Obs getLatestObs(Person person, Concept concept) {
+		return dao.getLatestObs(person, concept);
+	}
+
+	@Override
+	public Obs getEarliestObs(Person person, Concept concept) {
+		return dao.getEarliestObs(person, concept);
+	}
+
+	@Override
+	public Map<Concept, Obs> getLatestObs(Person person, Collection<Concept> concepts) {
+		return indexByConcept(dao.getLatestObs(person, concepts), true);
+	}
+
+	@Override
+	public Map<Concept, Obs> getEarliestObs(Person person, Collection<Concept> concepts) {
+		return indexByConcept(dao.getEarliestObs(person, concepts), false);
+	}
+
+	/**
+	 * The dao returns every obs on the first or last datetime, so if several obs for a concept share it, keep the
+	 * one with the highest (or lowest) id, consistent with {@link #getLatestObs(Person, Concept)}
+	 */
+	private Map<Concept, Obs> indexByConcept(List<Obs> obsList, boolean highestId) {
+		Map<Concept, Obs> ret = new LinkedHashMap<Concept, Obs>();
+		for (Obs obs : obsList) {
+			Obs existing = ret.get(obs.getConcept());
+			if (existing == null) {
+				ret.put(obs.getConcept(), obs);
+			} else if (highestId ? obs.getObsId() > existing.getObsId() : obs.getObsId() < existing.getObsId()) {
+				ret.put(obs.getConcept(), obs);
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public Encounter getLatestEncounter(Patient patient, EncounterType encounterType) {
+		return dao.getLatestEncounter(patient, encounterType);
+	}
+
+	@Override
+	public long getEncounterModifiedTimestamp(Encounter encounter) {
+		long ret = encounter.getDateCreated().getTime();
+		if (encounter.getDateVoided() != null) {
+			ret = Math.max(ret, encounter.getDateVoided().getTime());
+		}
+		Date latestObsOrOrderChange = dao.getLatestObsOrOrderChange(encounter);
+		if (latestObsOrOrderChange != null) {
+			ret = Math.max(ret, latestObsOrOrderChange.getTime());
+		}
+		return ret;
+	}
+
+	@Override
+	public int getNonRetiredCount(Class<? extends OpenmrsMetadata> type) {
+		return dao.getNonRetiredCount(type);
+	}
+
 	@Override
 	public void applyActions(FormEntrySession session) throws BadFormDesignException {
 		//Wrapped in a transactional service method such that actions in it 
@@ -0,0 +1,235 @@
+package org.openmrs.module.htmlformentry.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openmrs.api.context.Context;
+import org.springframework.stereotype.Component;
+
+/**
+ * Times each stage of rendering and submitting forms, with a {@link Histogram} per form and stage. Stages are named
+ * by what they time:
+ * <ul>
+ * <li>render, and render.compile, render.macros, render.tags etc. for the steps of
+ * {@link org.openmrs.module.htmlformentry.FormEntrySession#createForm(String)}</li>
+ * <li>tag.obs, tag.encounterDate etc. for the time spent in each tag handler per render, excluding its children</li>
+ * <li>validate, for validating a submission</li>
+ * <li>submit.ObsSubmissionElement etc. for each kind of submission action per submission</li>
+ * <li>apply, and apply.encounter, apply.obs etc. for saving each kind of data a submission changed</li>
+ * </ul>
+ * It also keeps the estimated memory retained by the form entry sessions held until their forms are submitted (see
+ * {@link org.openmrs.module.htmlformentry.FormEntrySession#getEstimatedRetainedSize()}).
+ * <p/>
+ * Recording takes a few atomic operations, so the metrics can be left on in production. They are available through
+ * JMX, see {@link FormMetricsMBean}, and as JSON from the module's metrics page.
+ */
+@Component("htmlformentry.FormMetrics")
+public class FormMetrics implements FormMetricsMBean {
+
+	protected final Log log = LogFactory.getLog(getClass());
+
+	public static final String OBJECT_NAME = "org.openmrs.module.htmlformentry:type=FormMetrics";
+
+	/**
+	 * The key of the metrics of forms that are not saved, e.g. previews
+	 */
+	public static final String UNSAVED_FORM = "unsaved";
+
+	public static final String RENDER = "render";
+
+	public static final String VALIDATE = "validate";
+
+	public static final String APPLY = "apply";
+
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, Histogram>> forms = new ConcurrentHashMap<String, ConcurrentHashMap<String, Histogram>>();
+
+	private final AtomicLong retainedSessions = new AtomicLong();
+
+	private final AtomicLong totalRetainedSize = new AtomicLong();
+
+	private final AtomicLong maxRetainedSize = new AtomicLong();
+
+	/**
+	 * @return the metrics registered with Spring
+	 */
+	public static FormMetrics getInstance() {
+		return Context.getRegisteredComponent("htmlformentry.FormMetrics", FormMetrics.class);
+	}
+
+	/**
+	 * Records one duration of a stage
+	 *
+	 * @param htmlFormId the form, or null if it is not saved
+	 * @param stage
+	 * @param nanos
+	 */
+	public void record(Integer htmlFormId, String stage, long nanos) {
+		record(htmlFormId, stage, nanos, 1);
+	}
+
+	/**
+	 * Records one duration of a stage, that covered several invocations of it
+	 */
+	public void record(Integer htmlFormId, String stage, long nanos, long invocations) {
+		getHistogram(htmlFormId == null ? UNSAVED_FORM : htmlFormId.toString(), stage).record(nanos, invocations);
+	}
+
+	/**
+	 * Records the estimated size of a form entry session that is kept until its form is submitted
+	 *
+	 * @param bytes the estimated retained size of the session
+	 */
+	public void recordRetainedSessionSize(long bytes) {
+		retainedSessions.incrementAndGet();
+		totalRetainedSize.addAndGet(bytes);
+		long max = maxRetainedSize.get();
+		while (bytes > max && !maxRetainedSize.compareAndSet(max, bytes)) {
+			max = maxRetainedSize.get();
+		}
+	}
+
+	/**
+	 * @return a timer for the stages of one render or submission of the form
+	 */
+	public Timer startTimer(Integer htmlFormId) {
+		return new Timer(htmlFormId);
+	}
+
+	private Histogram getHistogram(String formKey, String stage) {
+		ConcurrentHashMap<String, Histogram> stages = forms.get(formKey);
+		if (stages == null) {
+			forms.putIfAbsent(formKey, new ConcurrentHashMap<String, Histogram>());
+			stages = forms.get(formKey);
+		}
+		Histogram histogram = stages.get(stage);
+		if (histogram == null) {
+			stages.putIfAbsent(stage, new Histogram());
+			histogram = stages.get(stage);
+		}
+		return histogram;
+	}
+
+	/**
+	 * @return the metrics of every form, by form and stage, sorted by name
+	 */
+	public Map<String, Map<String, Map<String, Object>>> getSnapshot() {
+		Map<String, Map<String, Map<String, Object>>> ret = new TreeMap<String, Map<String, Map<String, Object>>>();
+		for (Map.Entry<String, ConcurrentHashMap<String, Histogram>> form : forms.entrySet()) {
+			Map<String, Map<String, Object>> stages = new TreeMap<String, Map<String, Object>>();
+			for (Map.Entry<String, Histogram> stage : form.getValue().entrySet()) {
+				stages.put(stage.getKey(), stage.getValue().getSnapshot());
+			}
+			ret.put(form.getKey(), stages);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the histograms of one stage, by form
+	 */
+	public Map<String, Histogram> getStage(String stage) {
+		Map<String, Histogram> ret = new TreeMap<String, Histogram>();
+		for (Map.Entry<String, ConcurrentHashMap<String, Histogram>> form : forms.entrySet()) {
+			Histogram histogram = form.getValue().get(stage);
+			if (histogram != null) {
+				ret.put(form.getKey(), histogram);
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public int getFormCount() {
+		return forms.size();
+	}
+
+	@Override
+	public long getRenderCount() {
+		return getTotalCount(RENDER);
+	}
+
+	@Override
+	public long getSubmitCount() {
+		return getTotalCount(APPLY);
+	}
+
+	@Override
+	public long getRetainedSessionCount() {
+		return retainedSessions.get();
+	}
+
+	@Override
+	public long getAverageRetainedSessionSize() {
+		long count = retainedSessions.get();
+		return count == 0 ? 0 : totalRetainedSize.get() / count;
+	}
+
+	@Override
+	public long getMaxRetainedSessionSize() {
+		return maxRetainedSize.get();
+	}
+
+	private long getTotalCount(String stage) {
+		long ret = 0;
+		for (Histogram histogram : getStage(stage).values()) {
+			ret += histogram.getCount();
+		}
+		return ret;
+	}
+
+	@Override
+	public String getSnapshotJson() {
+		try {
+			return new ObjectMapper().writeValueAsString(getSnapshot());
+		}
+		catch (Exception ex) {
+			log.warn("Unable to write form metrics as JSON", ex);
+			return null;
+		}
+	}
+
+	@Override
+	public void reset() {
+		forms.clear();
+		retainedSessions.set(0);
+		totalRetainedSize.set(0);
+		maxRetainedSize.set(0);
+	}
+
+	/**
+	 * Times consecutive stages of one render or submission. Not thread-safe.
+	 */
+	public class Timer {
+
+		private final Integer htmlFormId;
+
+		private final long started = System.nanoTime();
+
+		private long lapStarted = started;
+
+		private Timer(Integer htmlFormId) {
+			this.htmlFormId = htmlFormId;
+		}
+
+		/**
+		 * Records the time since the previous lap, or since the timer started, as the given stage
+		 */
+		public void lap(String stage) {
+			long now = System.nanoTime();
+			record(htmlFormId, stage, now - lapStarted);
+			lapStarted = now;
+		}
+
+		/**
+		 * Records the time since the timer started as the given stage
+		 */
+		public void stop(String stage) {
+			record(htmlFormId, stage, System.nanoTime() - started);
+		}
+	}
+}
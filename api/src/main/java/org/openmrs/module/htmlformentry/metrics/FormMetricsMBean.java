@@ -0,0 +1,48 @@
+package org.openmrs.module.htmlformentry.metrics;
+
+/**
+ * The management interface of {@link FormMetrics}, registered with the platform MBean server as
+ * {@value FormMetrics#OBJECT_NAME}
+ */
+public interface FormMetricsMBean {
+
+	/**
+	 * @return how many forms have metrics
+	 */
+	public int getFormCount();
+
+	/**
+	 * @return how many forms have been rendered
+	 */
+	public long getRenderCount();
+
+	/**
+	 * @return how many submissions have been applied
+	 */
+	public long getSubmitCount();
+
+	/**
+	 * @return how many form entry sessions have been kept until their forms are submitted
+	 */
+	public long getRetainedSessionCount();
+
+	/**
+	 * @return the average estimated memory, in bytes, retained by a form entry session kept until its form is submitted
+	 */
+	public long getAverageRetainedSessionSize();
+
+	/**
+	 * @return the largest estimated memory, in bytes, retained by a single form entry session
+	 */
+	public long getMaxRetainedSessionSize();
+
+	/**
+	 * @return the metrics of every form, by form and stage, as JSON
+	 */
+	public String getSnapshotJson();
+
+	/**
+	 * Discards all metrics
+	 */
+	public void reset();
+}
@@ -0,0 +1,236 @@
+package org.openmrs.module.htmlformentry.metrics;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.stat.Statistics;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.openmrs.module.htmlformentry.FormEntrySession;
+import org.springframework.stereotype.Component;
+
+/**
+ * Finds the forms that are expensive to render or submit, and the tags that make them so. While it is switched on,
+ * from the module's profiler page, each render or submission counts the Hibernate queries it runs and the entities it
+ * loads, the velocity expressions it evaluates and the metadata it looks up, by type. The slowest {@link #TOP_N}
+ * renders and submissions, and the slowest tags of a render, are kept in memory for the page to show.
+ * <p/>
+ * The Hibernate counts come from the statistics of the session factory, which are switched on along with the profiler
+ * and are shared by all threads, so on a busy server they include queries run for other requests at the same time.
+ * The profiler is off by default, since the statistics slow down every query a little.
+ */
+@Component("htmlformentry.FormProfiler")
+public class FormProfiler {
+
+	protected final Log log = LogFactory.getLog(getClass());
+
+	/**
+	 * How many of the slowest renders, submissions and tags are kept
+	 */
+	public static final int TOP_N = 20;
+
+	public static final String RENDER = "render";
+
+	public static final String SUBMIT = "submit";
+
+	public static final String VELOCITY = "velocity";
+
+	static final String LOOKUP = "lookup.";
+
+	private static final ThreadLocal<Profile> current = new ThreadLocal<Profile>();
+
+	private volatile boolean enabled = false;
+
+	private boolean statisticsWereEnabled;
+
+	private final TopN<ProfiledRun> slowestRuns = new TopN<ProfiledRun>(TOP_N);
+
+	private final TopN<ProfiledTag> slowestTags = new TopN<ProfiledTag>(TOP_N);
+
+	/**
+	 * @return the profiler registered with Spring
+	 */
+	public static FormProfiler getInstance() {
+		return Context.getRegisteredComponent("htmlformentry.FormProfiler", FormProfiler.class);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Switches the profiler, and the Hibernate statistics it reads, on or off on this server. The statistics are left
+	 * on when switching off if they were already on before.
+	 */
+	public synchronized void setEnabled(boolean enabled) {
+		if (enabled == this.enabled) {
+			return;
+		}
+		Statistics statistics = getStatistics();
+		if (statistics != null) {
+			if (enabled) {
+				statisticsWereEnabled = statistics.isStatisticsEnabled();
+				statistics.setStatisticsEnabled(true);
+			} else if (!statisticsWereEnabled) {
+				statistics.setStatisticsEnabled(false);
+			}
+		}
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Starts profiling a render or submission on this thread, unless one is already being profiled, which then
+	 * includes this one
+	 *
+	 * @param session
+	 * @param operation {@link #RENDER} or {@link #SUBMIT}
+	 * @return the profile to pass to {@link #stop(Profile)}, or null if the profiler is off
+	 */
+	public Profile start(FormEntrySession session, String operation) {
+		if (!enabled || current.get() != null) {
+			return null;
+		}
+		Profile profile = new Profile(session.getHtmlFormId(), session.getFormName(), operation, getStatistics());
+		current.set(profile);
+		return profile;
+	}
+
+	/**
+	 * Stops profiling, and keeps the render or submission, and its tags, if they are among the slowest
+	 *
+	 * @param profile as returned by {@link #start(FormEntrySession, String)}, may be null
+	 */
+	public void stop(Profile profile) {
+		if (profile == null) {
+			return;
+		}
+		current.remove();
+		slowestRuns.add(profile.finish(getStatistics()));
+		for (ProfiledTag tag : profile.tags) {
+			slowestTags.add(tag);
+		}
+	}
+
+	/**
+	 * @return the render or submission being profiled on this thread, or null if none is
+	 */
+	public static Profile getCurrentProfile() {
+		return current.get();
+	}
+
+	/**
+	 * Counts one velocity evaluation, lookup etc. towards the render or submission being profiled on this thread, if
+	 * any
+	 */
+	public static void count(String what) {
+		Profile profile = current.get();
+		if (profile != null) {
+			profile.count(what);
+		}
+	}
+
+	/**
+	 * Counts one lookup of metadata of the given type towards the render or submission being profiled on this thread,
+	 * if any
+	 */
+	public static void countLookup(Class<?> type) {
+		Profile profile = current.get();
+		if (profile != null) {
+			profile.count(LOOKUP + type.getSimpleName());
+		}
+	}
+
+	/**
+	 * @return the slowest renders and submissions, the slowest first
+	 */
+	public List<ProfiledRun> getSlowestRuns() {
+		return slowestRuns.getItems();
+	}
+
+	/**
+	 * @return the tags that took longest in a single render, the slowest first
+	 */
+	public List<ProfiledTag> getSlowestTags() {
+		return slowestTags.getItems();
+	}
+
+	public void reset() {
+		slowestRuns.clear();
+		slowestTags.clear();
+	}
+
+	private Statistics getStatistics() {
+		try {
+			return Context.getRegisteredComponent("dbSessionFactory", DbSessionFactory.class).getHibernateSessionFactory()
+			        .getStatistics();
+		}
+		catch (Exception ex) {
+			log.debug("Hibernate statistics are not available", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * What one render or submission has cost so far. Not thread-safe; it belongs to the thread doing the work.
+	 */
+	public static class Profile {
+
+		private final Integer htmlFormId;
+
+		private final String formName;
+
+		private final String operation;
+
+		private final Date date = new Date();
+
+		private final long started = System.nanoTime();
+
+		private final long[] startCounts;
+
+		private final Map<String, Integer> counts = new HashMap<String, Integer>();
+
+		private final List<ProfiledTag> tags = new ArrayList<ProfiledTag>();
+
+		private Profile(Integer htmlFormId, String formName, String operation, Statistics statistics) {
+			this.htmlFormId = htmlFormId;
+			this.formName = formName;
+			this.operation = operation;
+			this.startCounts = getCounts(statistics);
+		}
+
+		void count(String what) {
+			Integer count = counts.get(what);
+			counts.put(what, count == null ? 1 : count + 1);
+		}
+
+		/**
+		 * Adds the time spent in each tag handler while the form rendered
+		 */
+		public void addTagTimings(StageTimings tagTimings) {
+			for (String tag : tagTimings.getNames()) {
+				tags.add(new ProfiledTag(htmlFormId, formName, tag, date, tagTimings.getNanos(tag), tagTimings
+				        .getInvocations(tag)));
+			}
+		}
+
+		private ProfiledRun finish(Statistics statistics) {
+			long[] endCounts = getCounts(statistics);
+			return new ProfiledRun(htmlFormId, formName, operation, date, System.nanoTime() - started, endCounts[0]
+			        - startCounts[0], endCounts[1] - startCounts[1], endCounts[2] - startCounts[2], endCounts[3]
+			        - startCounts[3], counts);
+		}
+
+		private static long[] getCounts(Statistics statistics) {
+			if (statistics == null) {
+				return new long[4];
+			}
+			return new long[] { statistics.getQueryExecutionCount(), statistics.getPrepareStatementCount(),
+			        statistics.getEntityLoadCount(), statistics.getCollectionLoadCount() };
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package org.openmrs.module.htmlformentry.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in buckets whose bounds double, from 1 microsecond up, so recording is a few atomic increments and
+ * the memory used does not grow with the number of durations recorded. Percentiles are estimated as the upper bound
+ * of the bucket they fall in, so are accurate to within a factor of two.
+ */
+public class Histogram {
+
+	/**
+	 * Bucket i counts durations shorter than 2^i microseconds that do not fit an earlier bucket; the last bucket
+	 * counts everything longer, from about 67 seconds
+	 */
+	public static final int BUCKETS = 28;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong invocations = new AtomicLong();
+
+	private final AtomicLong totalNanos = new AtomicLong();
+
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	/**
+	 * Records a duration
+	 */
+	public void record(long nanos) {
+		record(nanos, 1);
+	}
+
+	/**
+	 * Records a duration that covered several invocations of the same thing, e.g. of a tag handler while one form
+	 * rendered
+	 */
+	public void record(long nanos, long invocationCount) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets.incrementAndGet(getBucket(nanos));
+		count.incrementAndGet();
+		invocations.addAndGet(invocationCount);
+		totalNanos.addAndGet(nanos);
+		long max = maxNanos.get();
+		while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+			max = maxNanos.get();
+		}
+	}
+
+	static int getBucket(long nanos) {
+		long micros = nanos / 1000;
+		return Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+	}
+
+	/**
+	 * @return how many durations have been recorded
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return how many invocations the recorded durations covered
+	 */
+	public long getInvocations() {
+		return invocations.get();
+	}
+
+	/**
+	 * @return the sum of the recorded durations
+	 */
+	public long getTotalNanos() {
+		return totalNanos.get();
+	}
+
+	/**
+	 * @return the longest recorded duration
+	 */
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	/**
+	 * @param fraction e.g. 0.9 for the 90th percentile
+	 * @return an upper bound of the given percentile of the recorded durations, or 0 if none have been recorded
+	 */
+	public long getPercentileNanos(double fraction) {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			total += buckets.get(i);
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * fraction);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS - 1; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return Math.min((1L << i) * 1000, getMaxNanos());
+			}
+		}
+		return getMaxNanos();
+	}
+
+	/**
+	 * @return the counts, and the mean, maximum and percentiles of the durations in milliseconds
+	 */
+	public Map<String, Object> getSnapshot() {
+		Map<String, Object> ret = new LinkedHashMap<String, Object>();
+		long n = getCount();
+		ret.put("count", n);
+		ret.put("invocations", getInvocations());
+		ret.put("totalMs", toMillis(getTotalNanos()));
+		ret.put("meanMs", n == 0 ? 0 : toMillis(getTotalNanos() / n));
+		ret.put("p50Ms", toMillis(getPercentileNanos(0.5)));
+		ret.put("p90Ms", toMillis(getPercentileNanos(0.9)));
+		ret.put("p99Ms", toMillis(getPercentileNanos(0.99)));
+		ret.put("maxMs", toMillis(getMaxNanos()));
+		return ret;
+	}
+
+	private static double toMillis(long nanos) {
+		return Math.round(nanos / 1000.0) / 1000.0;
+	}
+}
@@ -0,0 +1,131 @@
+package org.openmrs.module.htmlformentry.metrics;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * What one render or submission of a form cost, as measured by the {@link FormProfiler}
+ */
+public class ProfiledRun implements Comparable<ProfiledRun> {
+
+	private final Integer htmlFormId;
+
+	private final String formName;
+
+	private final String operation;
+
+	private final Date date;
+
+	private final long durationNanos;
+
+	private final long queries;
+
+	private final long statements;
+
+	private final long entitiesLoaded;
+
+	private final long collectionsLoaded;
+
+	private final Map<String, Integer> counts;
+
+	ProfiledRun(Integer htmlFormId, String formName, String operation, Date date, long durationNanos, long queries,
+	    long statements, long entitiesLoaded, long collectionsLoaded, Map<String, Integer> counts) {
+		this.htmlFormId = htmlFormId;
+		this.formName = formName;
+		this.operation = operation;
+		this.date = date;
+		this.durationNanos = durationNanos;
+		this.queries = queries;
+		this.statements = statements;
+		this.entitiesLoaded = entitiesLoaded;
+		this.collectionsLoaded = collectionsLoaded;
+		this.counts = new TreeMap<String, Integer>(counts);
+	}
+
+	@Override
+	public int compareTo(ProfiledRun other) {
+		return durationNanos < other.durationNanos ? -1 : durationNanos == other.durationNanos ? 0 : 1;
+	}
+
+	/**
+	 * @return the form, or null if it is not saved
+	 */
+	public Integer getHtmlFormId() {
+		return htmlFormId;
+	}
+
+	public String getFormName() {
+		return formName;
+	}
+
+	/**
+	 * @return {@link FormProfiler#RENDER} or {@link FormProfiler#SUBMIT}
+	 */
+	public String getOperation() {
+		return operation;
+	}
+
+	public Date getDate() {
+		return date;
+	}
+
+	public double getDurationMs() {
+		return durationNanos / 1000000.0;
+	}
+
+	/**
+	 * @return the number of HQL, criteria and sql queries run
+	 */
+	public long getQueries() {
+		return queries;
+	}
+
+	/**
+	 * @return the number of JDBC statements prepared, including those Hibernate ran to load entities lazily
+	 */
+	public long getStatements() {
+		return statements;
+	}
+
+	public long getEntitiesLoaded() {
+		return entitiesLoaded;
+	}
+
+	public long getCollectionsLoaded() {
+		return collectionsLoaded;
+	}
+
+	/**
+	 * @return how many velocity expressions were evaluated
+	 */
+	public int getVelocityEvaluations() {
+		Integer ret = counts.get(FormProfiler.VELOCITY);
+		return ret == null ? 0 : ret;
+	}
+
+	/**
+	 * @return how many times metadata was looked up by the identifiers in the form, by type, e.g. Concept or
+	 *         Location
+	 */
+	public Map<String, Integer> getLookups() {
+		Map<String, Integer> ret = new TreeMap<String, Integer>();
+		for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+			if (entry.getKey().startsWith(FormProfiler.LOOKUP)) {
+				ret.put(entry.getKey().substring(FormProfiler.LOOKUP.length()), entry.getValue());
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the total number of metadata lookups
+	 */
+	public int getLookupCount() {
+		int ret = 0;
+		for (Integer count : getLookups().values()) {
+			ret += count;
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,66 @@
+package org.openmrs.module.htmlformentry.metrics;
+
+import java.util.Date;
+
+/**
+ * The time spent in the handler of one tag while a form rendered, excluding the tags inside it, as measured by the
+ * {@link FormProfiler}
+ */
+public class ProfiledTag implements Comparable<ProfiledTag> {
+
+	private final Integer htmlFormId;
+
+	private final String formName;
+
+	private final String tag;
+
+	private final Date date;
+
+	private final long durationNanos;
+
+	private final long invocations;
+
+	ProfiledTag(Integer htmlFormId, String formName, String tag, Date date, long durationNanos, long invocations) {
+		this.htmlFormId = htmlFormId;
+		this.formName = formName;
+		this.tag = tag;
+		this.date = date;
+		this.durationNanos = durationNanos;
+		this.invocations = invocations;
+	}
+
+	@Override
+	public int compareTo(ProfiledTag other) {
+		return durationNanos < other.durationNanos ? -1 : durationNanos == other.durationNanos ? 0 : 1;
+	}
+
+	public Integer getHtmlFormId() {
+		return htmlFormId;
+	}
+
+	public String getFormName() {
+		return formName;
+	}
+
+	public String getTag() {
+		return tag;
+	}
+
+	public Date getDate() {
+		return date;
+	}
+
+	/**
+	 * @return the time spent in all occurrences of the tag in the form
+	 */
+	public double getDurationMs() {
+		return durationNanos / 1000000.0;
+	}
+
+	/**
+	 * @return how many times the tag occurs in the rendered form
+	 */
+	public long getInvocations() {
+		return invocations;
+	}
+}
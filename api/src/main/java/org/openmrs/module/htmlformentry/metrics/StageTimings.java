@@ -0,0 +1,61 @@
+package org.openmrs.module.htmlformentry.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Adds up the time and invocations of each of many small steps of one render or submission, e.g. each tag handler,
+ * so that {@link FormMetrics} records one duration per kind of step rather than one per invocation. Not thread-safe;
+ * it belongs to a single render or submission.
+ */
+public class StageTimings {
+
+	private final Map<String, long[]> timings = new HashMap<String, long[]>();
+
+	/**
+	 * Adds one invocation of the named step
+	 */
+	public void add(String name, long nanos) {
+		long[] timing = timings.get(name);
+		if (timing == null) {
+			timing = new long[2];
+			timings.put(name, timing);
+		}
+		timing[0] += nanos;
+		timing[1]++;
+	}
+
+	/**
+	 * @return the names of the steps timed so far
+	 */
+	public Set<String> getNames() {
+		return timings.keySet();
+	}
+
+	/**
+	 * @return the total time of the named step so far
+	 */
+	public long getNanos(String name) {
+		long[] timing = timings.get(name);
+		return timing == null ? 0 : timing[0];
+	}
+
+	/**
+	 * @return how many invocations of the named step were added so far
+	 */
+	public long getInvocations(String name) {
+		long[] timing = timings.get(name);
+		return timing == null ? 0 : timing[1];
+	}
+
+	/**
+	 * Records the total time of each step, as stage prefix + step name, and starts over
+	 */
+	public void flush(FormMetrics metrics, Integer htmlFormId, String prefix) {
+		for (Map.Entry<String, long[]> entry : timings.entrySet()) {
+			metrics.record(htmlFormId, prefix + entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+		}
+		timings.clear();
+	}
+}
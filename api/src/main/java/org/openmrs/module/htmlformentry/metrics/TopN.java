@@ -0,0 +1,53 @@
+package org.openmrs.module.htmlformentry.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the greatest of the items added to it, up to a fixed number, so it never holds more than that however many
+ * items are added. Thread-safe.
+ */
+public class TopN<T extends Comparable<T>> {
+
+	private final int size;
+
+	private final PriorityQueue<T> items; // the least first, so it is the one dropped
+
+	public TopN(int size) {
+		this.size = size;
+		this.items = new PriorityQueue<T>(size + 1);
+	}
+
+	/**
+	 * Adds the item if it is greater than the least one kept, dropping that one when full
+	 *
+	 * @return true if the item was kept
+	 */
+	public synchronized boolean add(T item) {
+		if (items.size() < size) {
+			items.add(item);
+			return true;
+		}
+		if (size == 0 || item.compareTo(items.peek()) <= 0) {
+			return false;
+		}
+		items.poll();
+		items.add(item);
+		return true;
+	}
+
+	/**
+	 * @return the items kept, the greatest first
+	 */
+	public synchronized List<T> getItems() {
+		List<T> ret = new ArrayList<T>(items);
+		Collections.sort(ret, Collections.reverseOrder());
+		return ret;
+	}
+
+	public synchronized void clear() {
+		items.clear();
+	}
+}
@@ -0,0 +1,357 @@
+package org.openmrs.module.htmlformentry.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpSession;
+
+import org.openmrs.Encounter;
+import org.openmrs.Patient;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
+import org.openmrs.module.htmlformentry.FormEntrySession;
+import org.openmrs.module.htmlformentry.HtmlForm;
+import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+
+/**
+ * What is needed to pick up a form that is being filled in on any server: which form, patient and encounter it is,
+ * the versions of the form and encounter it was opened with, and the values entered so far. Like a
+ * {@link org.openmrs.module.htmlformentry.SerializableFormObject}, the submission plan itself is not stored, but
+ * rebuilt by rendering the form again, and the entered values are replayed onto it.
+ * <p/>
+ * States are serialized to a compact, gzipped binary form (see {@link #toBytes()}) rather than xml, since they are
+ * written on every submission.
+ */
+public class FormSessionState {
+
+	private static final int FORMAT_VERSION = 1;
+
+	private String key;
+
+	private String userUuid;
+
+	private Integer htmlFormId;
+
+	private Long formModifiedTimestamp;
+
+	private String patientUuid;
+
+	private String encounterUuid;
+
+	private Long encounterModifiedTimestamp;
+
+	private Mode mode;
+
+	private String returnUrl;
+
+	private String hasChangedInd;
+
+	private Map<String, String[]> parameterMap = new LinkedHashMap<String, String[]>();
+
+	private long dateUpdated = System.currentTimeMillis();
+
+	public FormSessionState() {
+	}
+
+	/**
+	 * @param key the key to store the state under
+	 * @param session a session in ENTER or EDIT mode
+	 * @param parameterMap the values entered into the form, by field name
+	 * @return the state of the session
+	 */
+	public static FormSessionState forSession(String key, FormEntrySession session, Map<String, String[]> parameterMap) {
+		FormSessionState ret = new FormSessionState();
+		ret.key = key;
+		User user = Context.getAuthenticatedUser();
+		ret.userUuid = user == null ? null : user.getUuid();
+		ret.htmlFormId = session.getHtmlFormId();
+		ret.formModifiedTimestamp = session.getFormModifiedTimestamp();
+		Patient patient = session.getPatient();
+		if (patient != null && patient.getPatientId() != null) {
+			ret.patientUuid = patient.getUuid();
+		}
+		Encounter encounter = session.getEncounter();
+		if (encounter != null && encounter.getEncounterId() != null) {
+			ret.encounterUuid = encounter.getUuid();
+			ret.encounterModifiedTimestamp = session.getEncounterModifiedTimestamp();
+		}
+		ret.mode = session.getContext().getMode();
+		ret.returnUrl = session.getReturnUrl();
+		ret.hasChangedInd = session.getHasChangedInd();
+		if (parameterMap != null) {
+			ret.parameterMap.putAll(parameterMap);
+		}
+		return ret;
+	}
+
+	/**
+	 * Opens the form again as it was when the state was saved, with the entered values filled back in
+	 *
+	 * @param httpSession
+	 * @return the rebuilt session
+	 * @throws IllegalStateException if the form or encounter has been changed since the state was saved
+	 */
+	public FormEntrySession restore(HttpSession httpSession) throws Exception {
+		HtmlForm htmlForm = HtmlFormEntryUtil.getService().getHtmlForm(htmlFormId);
+		if (htmlForm == null) {
+			throw new IllegalArgumentException("No html form with id " + htmlFormId);
+		}
+		Patient patient = patientUuid == null ? new Patient() : Context.getPatientService().getPatientByUuid(patientUuid);
+		FormEntrySession session;
+		if (encounterUuid != null) {
+			Encounter encounter = Context.getEncounterService().getEncounterByUuid(encounterUuid);
+			if (encounter == null) {
+				throw new IllegalArgumentException("No encounter with uuid " + encounterUuid);
+			}
+			session = new FormEntrySession(patient, encounter, mode, htmlForm, httpSession);
+			if (encounterModifiedTimestamp != null
+			        && encounterModifiedTimestamp.longValue() != session.getEncounterModifiedTimestamp()) {
+				throw new IllegalStateException(Context.getMessageSourceService().getMessage(
+				    "htmlformentry.error.encounterModifiedBeforeSubmission"));
+			}
+		} else {
+			session = new FormEntrySession(patient, htmlForm, httpSession);
+		}
+		if (formModifiedTimestamp != null && formModifiedTimestamp.longValue() != session.getFormModifiedTimestamp()) {
+			throw new IllegalStateException(Context.getMessageSourceService().getMessage(
+			    "htmlformentry.error.formModifiedBeforeSubmission"));
+		}
+		session.setReturnUrl(returnUrl);
+		session.setHasChangedInd(hasChangedInd);
+		session.getHtmlToDisplay();
+		if (!parameterMap.isEmpty()) {
+			// validating the entered values makes them, and any errors in them, show up on the form again
+			session.getSubmissionController().validateSubmission(session.getContext(),
+			    new ParameterMapRequest(parameterMap));
+		}
+		return session;
+	}
+
+	/**
+	 * @return true if the state was saved by the given user, who is the only one allowed to pick the form up
+	 */
+	public boolean isOwnedBy(User user) {
+		return user != null && user.getUuid().equals(userUuid);
+	}
+
+	/**
+	 * @return the state in a compact binary form
+	 */
+	public byte[] toBytes() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes));
+		out.writeByte(FORMAT_VERSION);
+		writeString(out, key);
+		writeString(out, userUuid);
+		writeLong(out, htmlFormId == null ? null : htmlFormId.longValue());
+		writeLong(out, formModifiedTimestamp);
+		writeString(out, patientUuid);
+		writeString(out, encounterUuid);
+		writeLong(out, encounterModifiedTimestamp);
+		writeString(out, mode == null ? null : mode.name());
+		writeString(out, returnUrl);
+		writeString(out, hasChangedInd);
+		out.writeLong(dateUpdated);
+		out.writeInt(parameterMap.size());
+		for (Map.Entry<String, String[]> entry : parameterMap.entrySet()) {
+			writeString(out, entry.getKey());
+			String[] values = entry.getValue() == null ? new String[0] : entry.getValue();
+			out.writeInt(values.length);
+			for (String value : values) {
+				writeString(out, value);
+			}
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @param bytes a state, as written by {@link #toBytes()}
+	 * @return the state
+	 */
+	public static FormSessionState fromBytes(byte[] bytes) throws IOException {
+		DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(bytes)));
+		try {
+			int version = in.readByte();
+			if (version != FORMAT_VERSION) {
+				throw new IOException("Unsupported form session format " + version);
+			}
+			FormSessionState ret = new FormSessionState();
+			ret.key = readString(in);
+			ret.userUuid = readString(in);
+			Long htmlFormId = readLong(in);
+			ret.htmlFormId = htmlFormId == null ? null : htmlFormId.intValue();
+			ret.formModifiedTimestamp = readLong(in);
+			ret.patientUuid = readString(in);
+			ret.encounterUuid = readString(in);
+			ret.encounterModifiedTimestamp = readLong(in);
+			String mode = readString(in);
+			ret.mode = mode == null ? null : Mode.valueOf(mode);
+			ret.returnUrl = readString(in);
+			ret.hasChangedInd = readString(in);
+			ret.dateUpdated = in.readLong();
+			int parameterCount = in.readInt();
+			for (int i = 0; i < parameterCount; i++) {
+				String name = readString(in);
+				String[] values = new String[in.readInt()];
+				for (int j = 0; j < values.length; j++) {
+					values[j] = readString(in);
+				}
+				ret.parameterMap.put(name, values);
+			}
+			return ret;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	// strings are written as a length and utf-8 bytes, since writeUTF is limited to 64K, with -1 for null
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] utf8 = s.getBytes("UTF-8");
+			out.writeInt(utf8.length);
+			out.write(utf8);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] utf8 = new byte[length];
+		in.readFully(utf8);
+		return new String(utf8, "UTF-8");
+	}
+
+	private static void writeLong(DataOutputStream out, Long l) throws IOException {
+		out.writeBoolean(l != null);
+		if (l != null) {
+			out.writeLong(l);
+		}
+	}
+
+	private static Long readLong(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readLong() : null;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public void setKey(String key) {
+		this.key = key;
+	}
+
+	public String getUserUuid() {
+		return userUuid;
+	}
+
+	public void setUserUuid(String userUuid) {
+		this.userUuid = userUuid;
+	}
+
+	public Integer getHtmlFormId() {
+		return htmlFormId;
+	}
+
+	public void setHtmlFormId(Integer htmlFormId) {
+		this.htmlFormId = htmlFormId;
+	}
+
+	public Long getFormModifiedTimestamp() {
+		return formModifiedTimestamp;
+	}
+
+	public void setFormModifiedTimestamp(Long formModifiedTimestamp) {
+		this.formModifiedTimestamp = formModifiedTimestamp;
+	}
+
+	public String getPatientUuid() {
+		return patientUuid;
+	}
+
+	public void setPatientUuid(String patientUuid) {
+		this.patientUuid = patientUuid;
+	}
+
+	public String getEncounterUuid() {
+		return encounterUuid;
+	}
+
+	public void setEncounterUuid(String encounterUuid) {
+		this.encounterUuid = encounterUuid;
+	}
+
+	public Long getEncounterModifiedTimestamp() {
+		return encounterModifiedTimestamp;
+	}
+
+	public void setEncounterModifiedTimestamp(Long encounterModifiedTimestamp) {
+		this.encounterModifiedTimestamp = encounterModifiedTimestamp;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public void setMode(Mode mode) {
+		this.mode = mode;
+	}
+
+	public String getReturnUrl() {
+		return returnUrl;
+	}
+
+	public void setReturnUrl(String returnUrl) {
+		this.returnUrl = returnUrl;
+	}
+
+	public String getHasChangedInd() {
+		return hasChangedInd;
+	}
+
+	public void setHasChangedInd(String hasChangedInd) {
+		this.hasChangedInd = hasChangedInd;
+	}
+
+	/**
+	 * @return the values entered into the form, by field name
+	 */
+	public Map<String, String[]> getParameterMap() {
+		return parameterMap;
+	}
+
+	public void setParameterMap(Map<String, String[]> parameterMap) {
+		this.parameterMap = parameterMap;
+	}
+
+	/**
+	 * @return when the state was last saved, in milliseconds
+	 */
+	public long getDateUpdated() {
+		return dateUpdated;
+	}
+
+	public void setDateUpdated(long dateUpdated) {
+		this.dateUpdated = dateUpdated;
+	}
+
+	/**
+	 * @return true if the state was last saved more than {@link FormSessionStore#MAX_AGE_MILLIS} ago
+	 */
+	public boolean isExpired() {
+		return System.currentTimeMillis() - dateUpdated > FormSessionStore.MAX_AGE_MILLIS;
+	}
+}
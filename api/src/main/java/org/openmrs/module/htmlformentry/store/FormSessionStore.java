@@ -0,0 +1,40 @@
+package org.openmrs.module.htmlformentry.store;
+
+/**
+ * Stores the {@link FormSessionState} of forms that are being filled in, so that a form can be picked up again by any
+ * server, e.g. after its submission failed validation or the server it was opened on went away.
+ * <p/>
+ * The store used is the Spring bean named by the {@link org.openmrs.module.htmlformentry.HtmlFormEntryConstants#GP_FORM_SESSION_STORE}
+ * global property. The module provides {@link InMemoryFormSessionStore}, for a single server, and
+ * {@link JdbcFormSessionStore}, which keeps the states in the database so all servers of a cluster share them. Other
+ * modules can provide their own by registering a bean that implements this interface.
+ * <p/>
+ * Implementations must be thread-safe, and should treat states older than {@link #MAX_AGE_MILLIS} as missing.
+ */
+public interface FormSessionStore {
+
+	/**
+	 * How long a form session is kept after it was last saved
+	 */
+	public static final long MAX_AGE_MILLIS = 24 * 60 * 60 * 1000;
+
+	/**
+	 * Saves the state under its key, replacing any state already saved under it
+	 *
+	 * @param state
+	 */
+	public void save(FormSessionState state);
+
+	/**
+	 * @param key
+	 * @return the state saved under the key, or null if there is none or it has expired
+	 */
+	public FormSessionState get(String key);
+
+	/**
+	 * Removes the state saved under the key, if any
+	 *
+	 * @param key
+	 */
+	public void remove(String key);
+}
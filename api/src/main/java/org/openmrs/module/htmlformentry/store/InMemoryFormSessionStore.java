@@ -0,0 +1,62 @@
+package org.openmrs.module.htmlformentry.store;
+
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.htmlformentry.cache.LruCache;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps form sessions in the memory of this server, which is enough when there is only one server, or when the load
+ * balancer always sends a user back to the same one. States are kept serialized, so that they take up as little memory
+ * as they would in a shared store, and the least recently used are dropped once more than {@link #MAX_SESSIONS} are
+ * held.
+ */
+@Component("htmlformentry.InMemoryFormSessionStore")
+public class InMemoryFormSessionStore implements FormSessionStore {
+
+	protected final Log log = LogFactory.getLog(getClass());
+
+	public static final int MAX_SESSIONS = 1000;
+
+	private LruCache<String, byte[]> states = new LruCache<String, byte[]>(MAX_SESSIONS);
+
+	@Override
+	public void save(FormSessionState state) {
+		try {
+			states.put(state.getKey(), state.toBytes());
+		}
+		catch (IOException ex) {
+			log.warn("Unable to store form session " + state.getKey(), ex);
+		}
+	}
+
+	@Override
+	public FormSessionState get(String key) {
+		byte[] bytes = states.get(key);
+		if (bytes == null) {
+			return null;
+		}
+		try {
+			FormSessionState state = FormSessionState.fromBytes(bytes);
+			if (!state.isExpired()) {
+				return state;
+			}
+		}
+		catch (IOException ex) {
+			log.warn("Discarding unreadable form session " + key, ex);
+		}
+		states.remove(key);
+		return null;
+	}
+
+	@Override
+	public void remove(String key) {
+		states.remove(key);
+	}
+
+	public int size() {
+		return states.size();
+	}
+}
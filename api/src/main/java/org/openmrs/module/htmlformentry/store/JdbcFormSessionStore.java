@@ -0,0 +1,75 @@
+package org.openmrs.module.htmlformentry.store;
+
+import java.io.IOException;
+import java.util.Date;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+import org.openmrs.module.htmlformentry.StoredFormSession;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps form sessions in the htmlformentry_form_session table, so that every server of a cluster sees the same forms
+ * being filled in. Expired states are purged from the table at most once every {@link #PURGE_INTERVAL_MILLIS}.
+ */
+@Component("htmlformentry.JdbcFormSessionStore")
+public class JdbcFormSessionStore implements FormSessionStore {
+
+	protected final Log log = LogFactory.getLog(getClass());
+
+	public static final long PURGE_INTERVAL_MILLIS = 60 * 60 * 1000;
+
+	private volatile long lastPurged = 0;
+
+	@Override
+	public void save(FormSessionState state) {
+		byte[] data;
+		try {
+			data = state.toBytes();
+		}
+		catch (IOException ex) {
+			log.warn("Unable to store form session " + state.getKey(), ex);
+			return;
+		}
+		HtmlFormEntryUtil.getService().saveStoredFormSession(
+		    new StoredFormSession(state.getKey(), state.getUserUuid(), data, new Date(state.getDateUpdated())));
+		purgeExpired();
+	}
+
+	@Override
+	public FormSessionState get(String key) {
+		StoredFormSession stored = HtmlFormEntryUtil.getService().getStoredFormSession(key);
+		if (stored == null) {
+			return null;
+		}
+		try {
+			FormSessionState state = FormSessionState.fromBytes(stored.getData());
+			if (!state.isExpired()) {
+				return state;
+			}
+		}
+		catch (IOException ex) {
+			log.warn("Discarding unreadable form session " + key, ex);
+		}
+		remove(key);
+		return null;
+	}
+
+	@Override
+	public void remove(String key) {
+		HtmlFormEntryUtil.getService().purgeStoredFormSession(key);
+	}
+
+	private void purgeExpired() {
+		long now = System.currentTimeMillis();
+		if (now - lastPurged < PURGE_INTERVAL_MILLIS) {
+			return;
+		}
+		lastPurged = now;
+		int purged = HtmlFormEntryUtil.getService().purgeStoredFormSessionsUpdatedBefore(new Date(now - MAX_AGE_MILLIS));
+		if (purged > 0 && log.isDebugEnabled()) {
+			log.debug("Purged " + purged + " expired form sessions");
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package org.openmrs.module.htmlformentry.store;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+
+import net.anotheria.webutils.servlet.request.HttpServletRequestMockImpl;
+
+/**
+ * A request carrying nothing but the parameters of a stored form session, to replay them onto the rebuilt form
+ */
+class ParameterMapRequest extends HttpServletRequestMockImpl {
+
+	private final Map<String, String[]> parameterMap;
+
+	ParameterMapRequest(Map<String, String[]> parameterMap) {
+		this.parameterMap = parameterMap;
+	}
+
+	@Override
+	public String getParameter(String name) {
+		String[] values = parameterMap.get(name);
+		return values == null || values.length == 0 ? null : values[0];
+	}
+
+	@Override
+	public String[] getParameterValues(String name) {
+		return parameterMap.get(name);
+	}
+
+	@Override
+	public Map getParameterMap() {
+		return Collections.unmodifiableMap(parameterMap);
+	}
+
+	@Override
+	public Enumeration getParameterNames() {
+		return Collections.enumeration(parameterMap.keySet());
+	}
+}
@@ -0,0 +1,212 @@
+package org.openmrs.module.htmlformentry.substitution;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.openmrs.module.htmlformentry.handler.AttributeDescriptor;
+import org.openmrs.module.htmlformentry.handler.TagHandler;
+
+/**
+ * Walks the xml of a form once, handing the value of each attribute that references OpenMRS objects (i.e. that has an
+ * {@link AttributeDescriptor} with a class) to a {@link Visitor}, which may replace or remove it.
+ * <p/>
+ * This works on the raw xml rather than on a parsed document, since the xml saved with a form must be written back
+ * exactly as the author wrote it, and it may not even be well-formed (e.g. velocity tests containing {@code <}).
+ * Everything other than the visited attribute values is copied through untouched. Tag and attribute names are matched
+ * ignoring case, and commented out tags are skipped.
+ */
+public class AttributeRewriter {
+
+	/**
+	 * Matches an attribute of the given name on any tag
+	 */
+	private static final String ANY_TAG = "*";
+
+	public interface Visitor {
+
+		/**
+		 * @param tagName the name of the tag, as written in the form
+		 * @param descriptor the descriptor of the attribute
+		 * @param value the value of the attribute, as written in the form
+		 * @return the value to write instead, or null to remove the attribute
+		 */
+		String visit(String tagName, AttributeDescriptor descriptor, String value);
+	}
+
+	// lower case tag name -> lower case attribute name -> descriptor
+	private final Map<String, Map<String, AttributeDescriptor>> descriptors = new HashMap<String, Map<String, AttributeDescriptor>>();
+
+	private AttributeRewriter() {
+	}
+
+	/**
+	 * @param tagHandlers the registered tag handlers, by tag name
+	 * @return a rewriter for the attributes that the descriptors of the given handlers give a class to
+	 */
+	public static AttributeRewriter forTagHandlers(Map<String, TagHandler> tagHandlers) {
+		AttributeRewriter ret = new AttributeRewriter();
+		for (Map.Entry<String, TagHandler> entry : tagHandlers.entrySet()) {
+			List<AttributeDescriptor> attributeDescriptors = entry.getValue().getAttributeDescriptors();
+			if (attributeDescriptors != null) {
+				for (AttributeDescriptor descriptor : attributeDescriptors) {
+					ret.add(entry.getKey(), descriptor);
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @param attributeDescriptors descriptors of attributes that should be visited whichever tag they are on
+	 * @return a rewriter for the given attributes
+	 */
+	public static AttributeRewriter forAttributes(Iterable<AttributeDescriptor> attributeDescriptors) {
+		AttributeRewriter ret = new AttributeRewriter();
+		for (AttributeDescriptor descriptor : attributeDescriptors) {
+			ret.add(ANY_TAG, descriptor);
+		}
+		return ret;
+	}
+
+	private void add(String tagName, AttributeDescriptor descriptor) {
+		if (descriptor.getClazz() == null) {
+			return;
+		}
+		String key = tagName.toLowerCase(Locale.ENGLISH);
+		Map<String, AttributeDescriptor> forTag = descriptors.get(key);
+		if (forTag == null) {
+			forTag = new HashMap<String, AttributeDescriptor>();
+			descriptors.put(key, forTag);
+		}
+		String attribute = descriptor.getName().toLowerCase(Locale.ENGLISH);
+		if (!forTag.containsKey(attribute)) {
+			forTag.put(attribute, descriptor);
+		}
+	}
+
+	private AttributeDescriptor getDescriptor(String tagName, String attributeName) {
+		String attribute = attributeName.toLowerCase(Locale.ENGLISH);
+		Map<String, AttributeDescriptor> forTag = descriptors.get(tagName.toLowerCase(Locale.ENGLISH));
+		AttributeDescriptor ret = forTag == null ? null : forTag.get(attribute);
+		if (ret == null) {
+			Map<String, AttributeDescriptor> anyTag = descriptors.get(ANY_TAG);
+			ret = anyTag == null ? null : anyTag.get(attribute);
+		}
+		return ret;
+	}
+
+	/**
+	 * @param xml the xml of a form
+	 * @param visitor called with each attribute that has a descriptor, in the order they appear in the form
+	 * @return the xml with the values returned by the visitor
+	 */
+	public String rewrite(String xml, Visitor visitor) {
+		if (descriptors.isEmpty()) {
+			return xml;
+		}
+		StringBuilder out = new StringBuilder(xml.length());
+		int length = xml.length();
+		int copied = 0;
+		int pos = xml.indexOf('<');
+		while (pos >= 0 && pos + 1 < length) {
+			if (xml.startsWith("<!--", pos)) {
+				int end = xml.indexOf("-->", pos + 4);
+				if (end < 0) {
+					break;
+				}
+				pos = xml.indexOf('<', end + 3);
+				continue;
+			}
+			if (!Character.isLetter(xml.charAt(pos + 1))) {
+				pos = xml.indexOf('<', pos + 1);
+				continue;
+			}
+
+			int nameEnd = readName(xml, pos + 1);
+			String tagName = xml.substring(pos + 1, nameEnd);
+			boolean anyDescriptors = descriptors.containsKey(tagName.toLowerCase(Locale.ENGLISH))
+			        || descriptors.containsKey(ANY_TAG);
+
+			// read the attributes up to the end of the tag
+			int i = nameEnd;
+			while (i < length) {
+				int attributeStart = i;
+				while (i < length && Character.isWhitespace(xml.charAt(i))) {
+					i++;
+				}
+				if (i >= length || xml.charAt(i) == '>' || xml.charAt(i) == '/' || xml.charAt(i) == '<') {
+					break;
+				}
+				int attributeNameEnd = readName(xml, i);
+				if (attributeNameEnd == i) {
+					// not something we understand, so move on
+					i++;
+					continue;
+				}
+				String attributeName = xml.substring(i, attributeNameEnd);
+				i = attributeNameEnd;
+				while (i < length && Character.isWhitespace(xml.charAt(i))) {
+					i++;
+				}
+				if (i >= length || xml.charAt(i) != '=') {
+					continue;
+				}
+				i++;
+				while (i < length && Character.isWhitespace(xml.charAt(i))) {
+					i++;
+				}
+				if (i >= length) {
+					break;
+				}
+				int valueStart;
+				int valueEnd;
+				char quote = xml.charAt(i);
+				if (quote == '"' || quote == '\'') {
+					valueStart = i + 1;
+					valueEnd = xml.indexOf(quote, valueStart);
+					if (valueEnd < 0) {
+						valueEnd = length;
+					}
+					i = Math.min(valueEnd + 1, length);
+				} else {
+					valueStart = i;
+					while (i < length && !Character.isWhitespace(xml.charAt(i)) && xml.charAt(i) != '>') {
+						i++;
+					}
+					valueEnd = i;
+				}
+
+				AttributeDescriptor descriptor = anyDescriptors ? getDescriptor(tagName, attributeName) : null;
+				if (descriptor != null) {
+					String value = xml.substring(valueStart, valueEnd);
+					String newValue = visitor.visit(tagName, descriptor, value);
+					if (newValue == null) {
+						out.append(xml, copied, attributeStart);
+						copied = i;
+					} else if (!newValue.equals(value)) {
+						out.append(xml, copied, valueStart).append(newValue);
+						copied = valueEnd;
+					}
+				}
+			}
+			pos = i < length ? xml.indexOf('<', i) : -1;
+		}
+		out.append(xml, copied, length);
+		return out.toString();
+	}
+
+	private static int readName(String xml, int from) {
+		int i = from;
+		while (i < xml.length()) {
+			char c = xml.charAt(i);
+			if (Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == ':' || c == '.') {
+				i++;
+			} else {
+				break;
+			}
+		}
+		return i;
+	}
+}
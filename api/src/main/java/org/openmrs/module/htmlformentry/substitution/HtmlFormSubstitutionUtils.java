@@ -1,8 +1,9 @@
 package org.openmrs.module.htmlformentry.substitution;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -11,9 +12,7 @@ import org.openmrs.OpenmrsObject;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.htmlformentry.HtmlForm;
 import org.openmrs.module.htmlformentry.HtmlFormEntryService;
-import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
 import org.openmrs.module.htmlformentry.handler.AttributeDescriptor;
-import org.openmrs.module.htmlformentry.handler.TagHandler;
 
 public class HtmlFormSubstitutionUtils {
 	
@@ -54,123 +53,127 @@ public class HtmlFormSubstitutionUtils {
 	/**
 	 * Reads through the content of a form and finds all values listed in any attributes defined in AttributeDescriptors
 	 * Then used the passed Substituter to determine which values need to be substituted.
+	 * <p/>
+	 * The form is walked once for all the descriptors (see {@link AttributeRewriter}). If any of the values are repeat
+	 * keys (e.g. "{concept}") or macros (e.g. "$concept"), the render attributes and macro definitions they refer to are
+	 * substituted afterwards, as values of the same class.
 	 */
-	private static void performSubstitution(HtmlForm form, Substituter substituter,  Map<OpenmrsObject, OpenmrsObject> substitutionMap) {
+	private static void performSubstitution(HtmlForm form, Substituter substituter, Map<OpenmrsObject, OpenmrsObject> substitutionMap) {
 		
 		// if the form is has no content, nothing to do
 		if(StringUtils.isEmpty(form.getXmlData())) {
 			return;
 		}
 		
-		// get the tag handlers so we can gain access to the attribute descriptors
-		Map<String, TagHandler> tagHandlers = Context.getService(HtmlFormEntryService.class).getHandlers();
+		AttributeRewriter rewriter = AttributeRewriter.forTagHandlers(Context.getService(HtmlFormEntryService.class).getHandlers());
+		SubstitutingVisitor visitor = new SubstitutingVisitor(substituter, substitutionMap);
+		String xml = rewriter.rewrite(form.getXmlData(), visitor);
 		
-		// loop through all the attribute descriptors for all the tags that have been registered
-		for (String tagName : tagHandlers.keySet()) {
-			HtmlFormEntryUtil.log.debug("Handling substitutions for tag " + tagName);
-			
-			if (tagHandlers.get(tagName).getAttributeDescriptors() != null) {
-				for (AttributeDescriptor attributeDescriptor : tagHandlers.get(tagName).getAttributeDescriptors()) {
-					// we only need to deal with descriptors that have an associated class
-					if (attributeDescriptor.getClazz() != null) {
-						// build the attribute string we are searching for
-						// pattern matches <tagName .* attribute
-						// to break down the regex in detail, ?: simply means that we don't want include this grouping in the groups that we backreference
-						// the grouping itself is an "or", that matches either "\\s" (a single whitespace character) or
-						// "\\s[^>]*\\s" (a single whitespace character plus 0 to n characters of any type but a >, followed by another single whitespace character)
-						String pattern = "<" + tagName + "(?:\\s|\\s[^>]*\\s)" + attributeDescriptor.getName();
-						HtmlFormEntryUtil.log.debug("substitution pattern: " + pattern);
-						form.setXmlData(HtmlFormSubstitutionUtils.performSubstitutionHelper(form.getXmlData(), pattern,
-						    attributeDescriptor.getClazz(), substituter, substitutionMap, true));
-					}
-				}
+		// now handle any repeat keys we have discovered, which may in turn refer to other keys or macros
+		Map<String, Class<?>> repeatKeys = visitor.takeRepeatKeys();
+		while (!repeatKeys.isEmpty()) {
+			List<AttributeDescriptor> keyDescriptors = new ArrayList<AttributeDescriptor>();
+			for (Map.Entry<String, Class<?>> entry : repeatKeys.entrySet()) {
+				keyDescriptors.add(new AttributeDescriptor(entry.getKey(), entry.getValue()));
 			}
+			xml = AttributeRewriter.forAttributes(keyDescriptors).rewrite(xml, visitor);
+			repeatKeys = visitor.takeRepeatKeys();
+		}
+		
+		// and now handle any macros we have discovered
+		for (Map.Entry<String, Class<?>> entry : visitor.macros.entrySet()) {
+			xml = substituteMacro(xml, entry.getKey(), entry.getValue(), substituter, substitutionMap);
 		}
+		
+		form.setXmlData(xml);
 	}
 	
 	/**
-	 * Helper method used by performSubstitution
+	 * Substitutes the value of a macro defined in the text of the {@code <macros>} section, e.g. "concept=123"
 	 */
-	private static String performSubstitutionHelper(String formXmlData, String tagAndAttribute,
-	                                                Class<?> clazz, Substituter substituter,
-	                                                Map<OpenmrsObject, OpenmrsObject> substitutionMap, Boolean includeQuotes) {
-		Pattern substitutionPattern;
-		
-		if (includeQuotes) {
-			// pattern to find the specified attribute and pull out its values; regex matches any characters within quotes after an equals, i.e. ="a2-32" would match a232
-			// we use () to break the match into three groups: 1) the characters up to the including the first quotes; 2) the characters in the quotes; and 3) then the trailing quote
-			// (put a space before the attribute name so we don't get border= instead of order=)
-			substitutionPattern = Pattern.compile("(" + tagAndAttribute + "=\")(.*?)(\")", Pattern.CASE_INSENSITIVE);
-		} else {
-			// the same pattern as above, but without the quotes (to handle the macro assignments),
-			// and with a blank space at the end (which we need to account for when we do the replace)	
-			substitutionPattern = Pattern.compile("(" + tagAndAttribute + "=)(.*?)(\\s)", Pattern.CASE_INSENSITIVE);
+	private static String substituteMacro(String xml, String macro, Class<?> clazz, Substituter substituter,
+	                                      Map<OpenmrsObject, OpenmrsObject> substitutionMap) {
+		int start = xml.indexOf("<macros>");
+		int end = xml.indexOf("</macros>", start);
+		if (start < 0 || end < 0) {
+			return xml;
 		}
-		
-		Matcher matcher = substitutionPattern.matcher(formXmlData);
-		
-		// lists to keep track of any "repeat" keys and macros we are going to have to substitute out as well
-		Set<String> repeatKeysToReplace = new HashSet<String>();
-		Set<String> macrosToReplace = new HashSet<String>();
-		
+		Matcher matcher = Pattern.compile("(?<![\\w.])(" + Pattern.quote(macro) + "\\s*=\\s*)(\\S*)", Pattern.CASE_INSENSITIVE)
+		        .matcher(xml.substring(start, end));
 		StringBuffer buffer = new StringBuffer();
-		
 		while (matcher.find()) {
-			// split the group into the various ids
-			String[] ids = matcher.group(2).split(",");
-			
-			StringBuffer idBuffer = new StringBuffer();
-			// now loop through each id
-			for (String id : ids) {
-				
-				// make the id substitution by calling the substituter's substitute method
-				idBuffer.append(substituter.substitute(id, clazz, substitutionMap) + ",");
-				
-				// if this id is a repeat key (i.e., something in curly braces) we need to keep track of it so that we can perform key substitutions
-				// pattern matches one or more characters of any type within curly braces
-				Matcher repeatKeyMatcher = Pattern.compile("\\{(.+)\\}").matcher(id);
-				if (repeatKeyMatcher.find()) {
-					repeatKeysToReplace.add(repeatKeyMatcher.group(1));
-				}
-				
-				// if this id is a macro reference (i.e, something that starts with a $) we need to keep track of it so that we can perform macro substitution
-				Matcher macroMatcher = Pattern.compile("\\$(.+)").matcher(id);
-				if (macroMatcher.find()) {
-					macrosToReplace.add(macroMatcher.group(1));
-				}
+			String value = substituteEach(matcher.group(2), clazz, substituter, substitutionMap);
+			matcher.appendReplacement(buffer, Matcher.quoteReplacement(matcher.group(1) + value));
+		}
+		matcher.appendTail(buffer);
+		return xml.substring(0, start) + buffer + xml.substring(end);
+	}
+	
+	/**
+	 * @return the comma-separated values, each replaced by the substituter
+	 */
+	private static String substituteEach(String values, Class<?> clazz, Substituter substituter,
+	                                     Map<OpenmrsObject, OpenmrsObject> substitutionMap) {
+		String[] ids = values.split(",");
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < ids.length; i++) {
+			if (i > 0) {
+				sb.append(",");
 			}
-			
-			// trim off the trailing comma
-			idBuffer.deleteCharAt(idBuffer.length() - 1);
-			
-			// now do the replacement
-			
-			// create the replacement string from the matched sequence, substituting out group(2) with the updated ids
-			String replacementString = matcher.group(1) + idBuffer.toString() + matcher.group(3);
-			
-			// we need to escape any $ characters in the buffer or we run into errors with the appendReplacement method since 
-			// the $ has a special meaning to that method
-			replacementString = replacementString.replace("$", "\\$");
-			
-			// now append the replacement string to the buffer
-			matcher.appendReplacement(buffer, replacementString);
+			sb.append(substituter.substitute(ids[i], clazz, substitutionMap));
 		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Substitutes each value of the visited attributes, and records the repeat keys and macros that the values refer to
+	 */
+	private static class SubstitutingVisitor implements AttributeRewriter.Visitor {
 		
-		// append the rest of htmlform
-		matcher.appendTail(buffer);
+		// pattern matches one or more characters of any type within curly braces
+		private static final Pattern REPEAT_KEY = Pattern.compile("\\{(.+)\\}");
+		
+		// pattern matches something that starts with a $
+		private static final Pattern MACRO = Pattern.compile("\\$(.+)");
+		
+		private final Substituter substituter;
 		
-		formXmlData = buffer.toString();
+		private final Map<OpenmrsObject, OpenmrsObject> substitutionMap;
 		
-		// now handle any repeat keys we have discovered during this substitution
-		for (String key : repeatKeysToReplace) {
-			formXmlData = performSubstitutionHelper(formXmlData, key, clazz, substituter, substitutionMap, true);
+		private Map<String, Class<?>> repeatKeys = new HashMap<String, Class<?>>();
+		
+		private final Map<String, Class<?>> visitedRepeatKeys = new HashMap<String, Class<?>>();
+		
+		private final Map<String, Class<?>> macros = new HashMap<String, Class<?>>();
+		
+		SubstitutingVisitor(Substituter substituter, Map<OpenmrsObject, OpenmrsObject> substitutionMap) {
+			this.substituter = substituter;
+			this.substitutionMap = substitutionMap;
 		}
 		
-		// and now handle any macros we have discovered during this substitution
-		for (String key : macrosToReplace) {
-			formXmlData = performSubstitutionHelper(formXmlData, key, clazz, substituter, substitutionMap, false);
+		@Override
+		public String visit(String tagName, AttributeDescriptor descriptor, String value) {
+			for (String id : value.split(",")) {
+				Matcher repeatKeyMatcher = REPEAT_KEY.matcher(id);
+				if (repeatKeyMatcher.find() && !visitedRepeatKeys.containsKey(repeatKeyMatcher.group(1))) {
+					repeatKeys.put(repeatKeyMatcher.group(1), descriptor.getClazz());
+				}
+				Matcher macroMatcher = MACRO.matcher(id);
+				if (macroMatcher.find()) {
+					macros.put(macroMatcher.group(1), descriptor.getClazz());
+				}
+			}
+			return substituteEach(value, descriptor.getClazz(), substituter, substitutionMap);
 		}
 		
-		return formXmlData;
+		/**
+		 * @return the repeat keys found since this was last called, which have not been substituted yet
+		 */
+		Map<String, Class<?>> takeRepeatKeys() {
+			Map<String, Class<?>> ret = repeatKeys;
+			visitedRepeatKeys.putAll(ret);
+			repeatKeys = new HashMap<String, Class<?>>();
+			return ret;
+		}
 	}
 }
@@ -1,5 +1,5 @@
 package org.openmrs.module.htmlformentry.util;
 
 public enum MatchMode {
-    START, ANYWHERE, END;
+    START, ANYWHERE, END, EXACT;
 }
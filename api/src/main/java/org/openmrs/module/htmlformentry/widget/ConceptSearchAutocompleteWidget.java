@@ -1,11 +1,13 @@
 package org.openmrs.module.htmlformentry.widget;
 
+import org.apache.commons.lang.StringUtils;
 import org.openmrs.Concept;
 import org.openmrs.ConceptClass;
 import org.openmrs.module.htmlformentry.FormEntryContext;
 import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
 
 import javax.servlet.http.HttpServletRequest;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 
@@ -51,6 +53,14 @@ public class ConceptSearchAutocompleteWidget implements Widget {
 		this(conceptList, allowedconceptclasses, defaultSrc);
 	}
 
+	/**
+	 * @param allowedConceptIds the ids of the concepts that may be chosen, so they do not have to be loaded
+	 */
+	public ConceptSearchAutocompleteWidget(Collection<Integer> allowedConceptIds) {
+		this.src = defaultSrc;
+		this.allowedConceptIds = StringUtils.join(allowedConceptIds, ",");
+	}
+
 
 	@Override
     public String generateHtml(FormEntryContext context) {
@@ -5,6 +5,7 @@ import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
 
+import org.apache.commons.lang.StringEscapeUtils;
 import org.openmrs.Person;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.htmlformentry.FormEntryContext;
@@ -17,6 +18,7 @@ public class PersonStubWidget implements Widget {
     
     private PersonStub person;
     private List<PersonStub> options;
+    private String optionsUrl;
     
     public PersonStubWidget() { }
     
@@ -38,6 +40,10 @@ public class PersonStubWidget implements Widget {
                 return "";
         }
         
+        if (optionsUrl != null) {
+            return generateAutocompleteHtml(context);
+        }
+        
         StringBuilder sb = new StringBuilder();
         sb.append("<select id=\"" + context.getFieldName(this) + "\" name=\"" + context.getFieldName(this) + "\">");
         // TODO translate
@@ -72,6 +78,53 @@ public class PersonStubWidget implements Widget {
         this.options = options;
     }
     
+    /**
+     * Instead of listing the options in the page, searches for them as the user types. The url should return
+     * matching people as a JSON list of objects with a "label" and a "value" (the person id), and is passed the text
+     * typed in the "term" parameter.
+     * 
+     * @param optionsUrl
+     */
+    public void setOptionsUrl(String optionsUrl) {
+        this.optionsUrl = optionsUrl;
+    }
+    
+    private String generateAutocompleteHtml(FormEntryContext context) {
+        String fieldName = context.getFieldName(this);
+        StringBuilder sb = new StringBuilder();
+        sb.append("<input type=\"text\" id=\"" + fieldName + "_display\" class=\"autoCompleteText\"");
+        if (person != null)
+            sb.append(" value=\"" + StringEscapeUtils.escapeHtml(person.getDisplayValue()) + "\"");
+        sb.append("/>\n");
+        sb.append("<input type=\"hidden\" id=\"" + fieldName + "\" name=\"" + fieldName + "\"");
+        if (person != null)
+            sb.append(" value=\"" + person.getId() + "\"");
+        sb.append("/>\n");
+        sb.append("<script type=\"text/javascript\">\n");
+        sb.append("$j(function() {\n");
+        sb.append("  $j('#" + fieldName + "_display').autocomplete({\n");
+        sb.append("    source: '" + optionsUrl + "',\n");
+        sb.append("    minLength: 2,\n");
+        sb.append("    focus: function(event, ui) {\n");
+        sb.append("      $j('#" + fieldName + "_display').val(ui.item.label);\n");
+        sb.append("      return false;\n");
+        sb.append("    },\n");
+        sb.append("    select: function(event, ui) {\n");
+        sb.append("      $j('#" + fieldName + "_display').val(ui.item.label);\n");
+        sb.append("      $j('#" + fieldName + "').val(ui.item.value);\n");
+        sb.append("      return false;\n");
+        sb.append("    },\n");
+        sb.append("    change: function(event, ui) {\n");
+        sb.append("      if (!ui.item) {\n");
+        sb.append("        $j('#" + fieldName + "').val('');\n");
+        sb.append("      }\n");
+        sb.append("    }\n");
+        sb.append("  });\n");
+        sb.append("});\n");
+        sb.append("</script>\n");
+        return sb.toString();
+    }
+    
     @Override
     public Object getValue(FormEntryContext context, HttpServletRequest request) {
         String val = request.getParameter(context.getFieldName(this));
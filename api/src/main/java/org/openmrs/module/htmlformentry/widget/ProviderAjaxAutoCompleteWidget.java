@@ -1,5 +1,6 @@
 package org.openmrs.module.htmlformentry.widget;
 
+import org.apache.commons.lang.StringEscapeUtils;
 import org.openmrs.Provider;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.htmlformentry.FormEntryContext;
@@ -84,6 +85,11 @@ public class ProviderAjaxAutoCompleteWidget implements Widget {
         return provider;
     }
 
+    private String getMoreResultsLabel() {
+        return StringEscapeUtils.escapeJavaScript(Context.getMessageSourceService().getMessage(
+                "htmlformentry.providerMoreResults"));
+    }
+
     private String createJsAutoCompleteFunction() {
         StringBuilder sb = new StringBuilder("<script type=\"text/javascript\">\n");
         sb.append("function setupProviderAutocomplete(element,src) {");
@@ -93,40 +99,59 @@ public class ProviderAjaxAutoCompleteWidget implements Widget {
         sb.append("    var select = false;");
 
         sb.append("    var req = { 'searchParam': textField.val()};\n");
+        sb.append("    //the suggestions shown for the current text, and the cursor of the page after them \n");
+        sb.append("    var loaded = []; \n");
+        sb.append("    var nextCursor = null; \n");
+        sb.append("    var loadMore = false; \n");
 
         sb.append("    if (hiddenField.length > 0 && textField.length > 0) { \n");
         sb.append("        textField.autocomplete( { \n");
         sb.append("          source: function(req, add){ \n");
-        sb.append("            //pass request to server  \n");
+        sb.append("            var params = {\"searchParam\":textField.val(), 'matchMode':providerMatchMode.val()}; \n");
+        sb.append("            //only the first page is fetched as the user types, the next one when they ask for more \n");
+        sb.append("            if (loadMore && nextCursor) { \n");
+        sb.append("                params.cursor = nextCursor; \n");
+        sb.append("            } else { \n");
+        sb.append("                loaded = []; \n");
+        sb.append("            } \n");
+        sb.append("            loadMore = false; \n");
+        sb.append("            jQuery.ajax({ url: location.protocol + '//' + location.host + getContextPath() + " +
+                "'/ws/module/htmlformentry/' + src, dataType: 'json', data: params, " +
+                "success: function(data, status, xhr) { \n");
 
-        sb.append("            jQuery.getJSON(location.protocol + '//' + location.host + getContextPath() + " +
-                "'/ws/module/htmlformentry/' + src ," +
-                "{\"searchParam\":textField.val(), 'matchMode':providerMatchMode.val()}, function(data) { \n");
-
-        sb.append("                //create array for response objects \n");
-        sb.append("                var suggestions = [];");
         sb.append("                jQuery.each(data,function(i,val){ \n");
         sb.append("                    var item = {}; ");
         sb.append("                    item.label = val.displayValue; \n");
         sb.append("                   item.value = val.providerId; \n");
-        sb.append("                    suggestions.push(item);  \n");
+        sb.append("                    loaded.push(item);  \n");
         sb.append("                }); \n");
+        sb.append("                nextCursor = xhr.getResponseHeader('X-Next-Cursor'); \n");
 
         sb.append("\n");
-        sb.append("                if (suggestions.length==0) { \n");
+        sb.append("                if (loaded.length==0) { \n");
         sb.append("                     hiddenField.val(''); \n");
         sb.append("                     textField.css('color','red'); \n");
         sb.append("                } \n");
+        sb.append("                var suggestions = loaded.slice(0); \n");
+        sb.append("                if (nextCursor) { \n");
+        sb.append("                     suggestions.push({ label: '" + getMoreResultsLabel() + "', value: '', more: true }); \n");
+        sb.append("                } \n");
         sb.append("                add(suggestions);  \n");
-        sb.append("            }); \n");
+        sb.append("            }}); \n");
         sb.append("        }, \n");
 
         sb.append("        minLength: 2, \n");
         sb.append("        focus: function(event, ui) {\n");
+        sb.append("             if (ui.item.more) { return false; }\n");
         sb.append("             textField.val(ui.item.label);\n");
         sb.append("             return false;\n");
         sb.append("         }, \n");
         sb.append("        select: function(event, ui) {\n");
+        sb.append("            if (ui.item.more) { \n");
+        sb.append("                loadMore = true; \n");
+        sb.append("                textField.autocomplete('search', textField.val()); \n");
+        sb.append("                return false; \n");
+        sb.append("            } \n");
         sb.append("            hiddenField.val(ui.item.value); \n");
         sb.append("            textField.val(ui.item.label); \n");
         sb.append("            textField.css('color','black') \n");
@@ -1,5 +1,6 @@
 package org.openmrs.module.htmlformentry.widget;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -16,6 +17,7 @@ public abstract class SingleOptionWidget implements Widget {
 	
 	private String initialValue;
 	private List<Option> options;
+	private boolean optionsShared = false;
 	
 	/**
 	 * Default Constructor
@@ -62,8 +64,38 @@ public abstract class SingleOptionWidget implements Widget {
     public void addOption(Option option) {
         if (options == null)
             options = new ArrayList<Option>();
+        else if (optionsShared) {
+            options = new ArrayList<Option>(options);
+            optionsShared = false;
+        }
         options.add(option);
-    }    
+    }
+
+    /**
+     * Adds the given Options after any already added, without copying them, so that large immutable lists of Options
+     * can be shared by the widgets of many sessions. The list must not be modified afterwards.
+     * @param sharedOptions
+     */
+    public void addOptions(final List<Option> sharedOptions) {
+        if (options == null || options.isEmpty()) {
+            options = sharedOptions;
+        } else {
+            final List<Option> head = options;
+            options = new AbstractList<Option>() {
+
+                @Override
+                public Option get(int index) {
+                    return index < head.size() ? head.get(index) : sharedOptions.get(index - head.size());
+                }
+
+                @Override
+                public int size() {
+                    return head.size() + sharedOptions.size();
+                }
+            };
+        }
+        optionsShared = true;
+    }
 
     /**
      * Returns all Options for this Widget
@@ -79,5 +111,6 @@ public abstract class SingleOptionWidget implements Widget {
      */
     public void setOptions(List<Option> options) {
         this.options = options;
+        this.optionsShared = false;
     }
 }
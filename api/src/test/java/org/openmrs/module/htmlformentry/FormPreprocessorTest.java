@@ -0,0 +1,55 @@
+package org.openmrs.module.htmlformentry;
+
+import java.util.EnumSet;
+
+import org.junit.Test;
+import org.openmrs.module.htmlformentry.FormPreprocessor.Step;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FormPreprocessorTest {
+
+    private final FormPreprocessor withoutRoles = new FormPreprocessor(EnumSet.of(Step.STRIP_COMMENTS,
+        Step.ESCAPE_TESTS, Step.REPEAT_WITH));
+
+    @Test
+    public void process_shouldStripCommentsSpanningSeveralLines() throws Exception {
+        String xml = "<htmlform>a<!--\n<obs conceptId=\"1\"/>\n-->b<! -- c -- >d</htmlform>";
+        assertEquals("<htmlform>abd</htmlform>", withoutRoles.process(xml).getXml());
+    }
+
+    @Test
+    public void process_shouldEscapeVelocityAndLogicTests() throws Exception {
+        String xml = "<htmlform><includeIf velocityTest=\"$a < 5 && $b > 2\">x</includeIf>"
+                + "<excludeIf logicTest=\"AGE<5\">y</excludeIf></htmlform>";
+        assertEquals("<htmlform><includeIf velocityTest=\"$a &lt; 5 &amp;&amp; $b &gt; 2\">x</includeIf>"
+                + "<excludeIf logicTest=\"AGE&lt;5\">y</excludeIf></htmlform>", withoutRoles.process(xml).getXml());
+    }
+
+    @Test
+    public void process_shouldExpandRepeatWithTags() throws Exception {
+        String xml = "<htmlform><repeat with=\" [ '1','One' ], ['2', 'Two' ]\"><span id=\"{0}\">{1}</span>"
+                + "<repeat><template>{x}</template><render x=\"y\"/></repeat></repeat></htmlform>";
+        assertEquals("<htmlform><span id=\"1\">One</span><repeat><template>{x}</template><render x=\"y\"/></repeat>"
+                + "<span id=\"2\">Two</span><repeat><template>{x}</template><render x=\"y\"/></repeat></htmlform>",
+            withoutRoles.process(xml).getXml());
+    }
+
+    @Test
+    public void process_shouldCollectTheNamesOfTagsOutsideComments() throws Exception {
+        String xml = "<htmlform><!-- <patient field=\"name\"/> --><encounterDate/>"
+                + "<includeIf velocityTest=\"$a<patient\">x</includeIf></htmlform>";
+        FormPreprocessor.Result result = new FormPreprocessor(EnumSet.noneOf(Step.class)).process(xml);
+        assertEquals(xml, result.getXml());
+        assertTrue(result.getTagNames().contains("encounterDate"));
+        assertTrue(result.getTagNames().contains("includeIf"));
+        assertFalse(result.getTagNames().contains("patient"));
+    }
+
+    @Test(expected = BadFormDesignException.class)
+    public void process_shouldFailOnAnUnclosedRepeatWithTag() throws Exception {
+        withoutRoles.process("<htmlform><repeat with=\"['1']\">{0}</htmlform>");
+    }
+}
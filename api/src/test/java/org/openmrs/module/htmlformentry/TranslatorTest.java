@@ -0,0 +1,31 @@
+package org.openmrs.module.htmlformentry;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TranslatorTest {
+
+    @Test
+    public void translate_shouldFallBackToParentAndDefaultLocales() {
+        Translator translator = new Translator();
+        translator.addTranslation("en", "yes", "Yes");
+        translator.addTranslation("en", "no", "No");
+        translator.addTranslation("fr", "yes", "Oui");
+
+        assertEquals("Oui", translator.translate("fr_CA", "yes"));
+        assertEquals("No", translator.translate("fr_CA", "no"));
+        assertEquals("Yes", translator.translate("en_GB", "yes"));
+    }
+
+    @Test
+    public void translate_shouldSeeTranslationsAddedAfterALocaleWasUsed() {
+        Translator translator = new Translator();
+        translator.addTranslation("fr", "yes", "Oui");
+        assertEquals("Oui", translator.translate("fr_CA", "yes"));
+
+        translator.addTranslation("fr_CA", "yes", "Ouais");
+        assertEquals("Ouais", translator.translate("fr_CA", "yes"));
+        assertEquals("Oui", translator.translate("fr", "yes"));
+    }
+}
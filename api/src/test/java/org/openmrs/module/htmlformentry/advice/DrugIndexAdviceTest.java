@@ -0,0 +1,87 @@
+package org.openmrs.module.htmlformentry.advice;
+
+import java.lang.reflect.Method;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.Drug;
+
+import static org.junit.Assert.assertEquals;
+
+public class DrugIndexAdviceTest {
+
+    private TestDrugIndexAdvice advice;
+
+    @Before
+    public void setUp() {
+        advice = new TestDrugIndexAdvice();
+    }
+
+    @Test
+    public void afterReturning_shouldInvalidateTheCatalogWhenADrugIsSaved() throws Throwable {
+        Drug drug = new Drug(1);
+        advice.afterReturning(drug, method("saveDrug", Drug.class), new Object[] { drug }, null);
+        advice.afterReturning(drug, method("retireDrug", Drug.class, String.class), new Object[] { drug, "reason" }, null);
+        assertEquals(2, advice.published);
+    }
+
+    @Test
+    public void afterReturning_shouldInvalidateTheCatalogWhenAConceptDrugsAreMadeOfIsSaved() throws Throwable {
+        Concept concept = new Concept(TestDrugIndexAdvice.CONCEPT_WITH_DRUGS);
+        advice.afterReturning(concept, method("saveConcept", Concept.class), new Object[] { concept }, null);
+        assertEquals(1, advice.published);
+    }
+
+    @Test
+    public void afterReturning_shouldNotInvalidateTheCatalogWhenAConceptWithoutDrugsIsSaved() throws Throwable {
+        Concept concept = new Concept(2);
+        advice.afterReturning(concept, method("saveConcept", Concept.class), new Object[] { concept }, null);
+        assertEquals(0, advice.published);
+    }
+
+    @Test
+    public void afterReturning_shouldNotInvalidateTheCatalogWhenNothingIsSaved() throws Throwable {
+        advice.afterReturning(null, method("getDrug", Integer.class), new Object[] { 1 }, null);
+        assertEquals(0, advice.published);
+    }
+
+    private Method method(String name, Class<?>... parameterTypes) throws NoSuchMethodException {
+        return ConceptMethods.class.getMethod(name, parameterTypes);
+    }
+
+    /**
+     * Stands in for the concept service, whose methods the advice is applied to
+     */
+    public interface ConceptMethods {
+
+        Drug saveDrug(Drug drug);
+
+        Drug retireDrug(Drug drug, String reason);
+
+        Drug getDrug(Integer drugId);
+
+        Concept saveConcept(Concept concept);
+    }
+
+    /**
+     * Counts the invalidations published, and treats a single concept as one drugs are made of, rather than asking
+     * the database
+     */
+    private static class TestDrugIndexAdvice extends DrugIndexAdvice {
+
+        private static final Integer CONCEPT_WITH_DRUGS = 1;
+
+        private int published = 0;
+
+        @Override
+        boolean hasDrugs(Concept concept) {
+            return CONCEPT_WITH_DRUGS.equals(concept.getConceptId());
+        }
+
+        @Override
+        void publish() {
+            published++;
+        }
+    }
+}
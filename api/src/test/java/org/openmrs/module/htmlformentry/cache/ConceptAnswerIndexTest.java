@@ -0,0 +1,54 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConceptAnswerIndexTest {
+
+    private ConceptAnswerIndex index;
+
+    @Before
+    public void setUp() {
+        index = new ConceptAnswerIndex(Locale.ENGLISH);
+        index.addName(5, "Tuberculosis", "Tuberculosis");
+        index.addName(5, "Pulmonary TB", "Tuberculosis");
+        index.addName(7, "Malaria", "Malaria");
+        index.addName(9, "Severe malaria, cerebral", "Severe malaria, cerebral");
+    }
+
+    @Test
+    public void search_shouldMatchTheStartOfAnyWordInTheName() {
+        List<ConceptAnswerIndex.Match> matches = index.search("mal");
+        assertEquals(2, matches.size());
+        assertEquals(Integer.valueOf(7), matches.get(0).getConceptId());
+        assertEquals(Integer.valueOf(9), matches.get(1).getConceptId());
+    }
+
+    @Test
+    public void search_shouldRequireEveryWordOfTheQueryToMatch() {
+        List<ConceptAnswerIndex.Match> matches = index.search("CEREB mala");
+        assertEquals(1, matches.size());
+        assertEquals("Severe malaria, cerebral", matches.get(0).getValue());
+        assertTrue(index.search("cerebral tuberculosis").isEmpty());
+    }
+
+    @Test
+    public void search_shouldReturnEachConceptOnlyOnce() {
+        index.addName(5, "Tuberculosis, pulmonary", "Tuberculosis");
+        List<ConceptAnswerIndex.Match> matches = index.search("pulm");
+        assertEquals(1, matches.size());
+        assertEquals("Tuberculosis", matches.get(0).getValue());
+    }
+
+    @Test
+    public void search_shouldNotMatchTheMiddleOfAWord() {
+        assertTrue(index.search("laria").isEmpty());
+        assertTrue(index.search("  ").isEmpty());
+    }
+}
@@ -0,0 +1,106 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DrugIndexTest {
+
+    private TestDrugIndex drugIndex;
+
+    @Before
+    public void setUp() {
+        drugIndex = new TestDrugIndex();
+    }
+
+    @Test
+    public void getCatalog_shouldOnlyBuildACatalogOncePerLocale() {
+        WordPrefixIndex<Map<String, Object>> catalog = drugIndex.getCatalog(Locale.ENGLISH);
+        assertSame(catalog, drugIndex.getCatalog(Locale.ENGLISH));
+        assertEquals(1, drugIndex.builds.get());
+
+        drugIndex.getCatalog(Locale.FRENCH);
+        assertEquals(2, drugIndex.builds.get());
+    }
+
+    @Test
+    public void getCatalog_shouldRebuildTheCatalogOnceInvalidated() {
+        WordPrefixIndex<Map<String, Object>> catalog = drugIndex.getCatalog(Locale.ENGLISH);
+        drugIndex.invalidate();
+        WordPrefixIndex<Map<String, Object>> rebuilt = drugIndex.getCatalog(Locale.ENGLISH);
+        assertNotSame(catalog, rebuilt);
+        assertSame(rebuilt, drugIndex.getCatalog(Locale.ENGLISH));
+        assertEquals(2, drugIndex.builds.get());
+    }
+
+    @Test
+    public void getCatalog_shouldServeTheStaleCatalogWhileItIsRebuilt() throws Exception {
+        final WordPrefixIndex<Map<String, Object>> stale = drugIndex.getCatalog(Locale.ENGLISH);
+        drugIndex.invalidate();
+        drugIndex.rebuildStarted = new CountDownLatch(1);
+        drugIndex.finishRebuild = new CountDownLatch(1);
+
+        Thread rebuilder = new Thread() {
+
+            @Override
+            public void run() {
+                drugIndex.getCatalog(Locale.ENGLISH);
+            }
+        };
+        rebuilder.start();
+        assertTrue(drugIndex.rebuildStarted.await(5, TimeUnit.SECONDS));
+
+        // searches in the meantime neither wait for the rebuild nor start one of their own
+        assertSame(stale, drugIndex.getCatalog(Locale.ENGLISH));
+        assertEquals(2, drugIndex.builds.get());
+
+        drugIndex.finishRebuild.countDown();
+        rebuilder.join(5000);
+        WordPrefixIndex<Map<String, Object>> rebuilt = drugIndex.getCatalog(Locale.ENGLISH);
+        assertNotSame(stale, rebuilt);
+        assertEquals(1, rebuilt.search("aspirin").size());
+    }
+
+    /**
+     * Builds a catalog of a single drug rather than loading them from the database, optionally pausing each build
+     * until it is told to finish
+     */
+    private static class TestDrugIndex extends DrugIndex {
+
+        private final AtomicInteger builds = new AtomicInteger();
+
+        private volatile CountDownLatch rebuildStarted;
+
+        private volatile CountDownLatch finishRebuild;
+
+        @Override
+        WordPrefixIndex<Map<String, Object>> buildCatalog(Locale locale) {
+            builds.incrementAndGet();
+            if (rebuildStarted != null) {
+                rebuildStarted.countDown();
+                try {
+                    finishRebuild.await(5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            Map<String, Object> drug = new HashMap<String, Object>();
+            drug.put("name", "Aspirin");
+            WordPrefixIndex<Map<String, Object>> catalog = new WordPrefixIndex<Map<String, Object>>(locale);
+            catalog.add("Aspirin", drug);
+            return catalog;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.util.Date;
+import java.util.Locale;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.Drug;
+import org.openmrs.Encounter;
+import org.openmrs.Role;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.htmlformentry.HtmlForm;
+import org.openmrs.module.htmlformentry.schema.DrugOrderAnswer;
+import org.openmrs.module.htmlformentry.schema.DrugOrderField;
+import org.openmrs.module.htmlformentry.schema.HtmlFormField;
+import org.openmrs.module.htmlformentry.schema.HtmlFormSchema;
+import org.openmrs.module.htmlformentry.schema.HtmlFormSection;
+import org.openmrs.module.htmlformentry.schema.ObsField;
+import org.openmrs.module.htmlformentry.schema.ObsFieldAnswer;
+import org.openmrs.module.htmlformentry.schema.ObsGroup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+public class HtmlFormSchemaCacheTest {
+
+    private HtmlFormSchemaCache cache;
+
+    private HtmlForm htmlForm;
+
+    private Encounter encounter;
+
+    private UserContext userContext;
+
+    @Before
+    public void setUp() {
+        userContext = new UserContext();
+        userContext.setLocale(Locale.ENGLISH);
+        Context.setUserContext(userContext);
+
+        cache = new HtmlFormSchemaCache();
+
+        htmlForm = new HtmlForm();
+        htmlForm.setId(1);
+        htmlForm.setDateCreated(new Date(1000));
+
+        encounter = new Encounter(3);
+        encounter.setDateCreated(new Date(2000));
+    }
+
+    @After
+    public void tearDown() {
+        Context.clearUserContext();
+    }
+
+    @Test
+    public void getFormVersionKey_shouldChangeWhenFormIsModified() {
+        assertEquals("1:1000", HtmlFormSchemaCache.getFormVersionKey(htmlForm));
+        htmlForm.setDateChanged(new Date(5000));
+        assertEquals("1:5000", HtmlFormSchemaCache.getFormVersionKey(htmlForm));
+    }
+
+    @Test
+    public void getFormVersionKey_shouldReturnNullForUnsavedForm() {
+        assertNull(HtmlFormSchemaCache.getFormVersionKey(new HtmlForm()));
+    }
+
+    @Test
+    public void getEncounterJson_shouldReturnCachedJsonForSameFormAndEncounterVersion() {
+        cache.putEncounterJson(htmlForm, encounter, "{}");
+        assertEquals("{}", cache.getEncounterJson(htmlForm, encounter));
+    }
+
+    @Test
+    public void getEncounterJson_shouldMissWhenFormIsModified() {
+        cache.putEncounterJson(htmlForm, encounter, "{}");
+        htmlForm.setDateChanged(new Date(5000));
+        assertNull(cache.getEncounterJson(htmlForm, encounter));
+    }
+
+    @Test
+    public void getEncounterJson_shouldMissWhenEncounterIsVoided() {
+        cache.putEncounterJson(htmlForm, encounter, "{}");
+        encounter.setDateVoided(new Date(9000));
+        assertNull(cache.getEncounterJson(htmlForm, encounter));
+    }
+
+    @Test
+    public void evict_shouldRemoveAllEntriesForForm() {
+        cache.putEncounterJson(htmlForm, encounter, "{}");
+        cache.evict(htmlForm);
+        assertNull(cache.getEncounterJson(htmlForm, encounter));
+    }
+
+    @Test
+    public void getEncounterJson_shouldMissForAnotherLocale() {
+        cache.putEncounterJson(htmlForm, encounter, "{}");
+        userContext.setLocale(Locale.FRENCH);
+        assertNull(cache.getEncounterJson(htmlForm, encounter));
+    }
+
+    @Test
+    public void getSchemaKey_shouldDifferBetweenLocalesAndBetweenUsersWithDifferentRoles() {
+        User clerk = newUser("Data Clerk");
+        User doctor = newUser("Doctor");
+        String key = HtmlFormSchemaCache.getSchemaKey(htmlForm, Locale.ENGLISH, clerk);
+
+        assertFalse(key.equals(HtmlFormSchemaCache.getSchemaKey(htmlForm, Locale.FRENCH, clerk)));
+        assertFalse(key.equals(HtmlFormSchemaCache.getSchemaKey(htmlForm, Locale.ENGLISH, doctor)));
+        assertNull(HtmlFormSchemaCache.getSchemaKey(new HtmlForm(), Locale.ENGLISH, clerk));
+    }
+
+    @Test
+    public void getSchemaKey_shouldBeTheSameForUsersWithTheSameRoles() {
+        assertEquals(HtmlFormSchemaCache.getSchemaKey(htmlForm, Locale.ENGLISH, newUser("Data Clerk")),
+                HtmlFormSchemaCache.getSchemaKey(htmlForm, Locale.ENGLISH, newUser("Data Clerk")));
+    }
+
+    @Test
+    public void detach_shouldReplaceConceptsAndDrugsWithStubsCarryingOnlyTheirIds() {
+        Concept weight = new Concept(5089);
+        Concept group = new Concept(7);
+        Concept yes = new Concept(1065);
+        Drug aspirin = new Drug(3);
+
+        ObsField obsField = new ObsField();
+        obsField.setName("Weight");
+        obsField.setQuestion(weight);
+        obsField.getAnswers().add(new ObsFieldAnswer("Yes", yes));
+        ObsGroup obsGroup = new ObsGroup(group, "Vitals");
+        obsGroup.addChild(obsField);
+        DrugOrderField drugOrderField = new DrugOrderField();
+        drugOrderField.addDrugOrderAnswer(new DrugOrderAnswer(aspirin, "Aspirin"));
+        HtmlFormSection section = new HtmlFormSection();
+        section.setName("Section");
+        section.addField(obsGroup);
+        HtmlFormSchema schema = new HtmlFormSchema();
+        schema.getSections().add(section);
+        schema.getFields().add(drugOrderField);
+
+        HtmlFormSchema detached = HtmlFormSchemaCache.detach(schema);
+
+        HtmlFormSection detachedSection = detached.getSections().get(0);
+        assertEquals("Section", detachedSection.getName());
+        ObsGroup detachedGroup = (ObsGroup) detachedSection.getFields().get(0);
+        assertEquals("Vitals", detachedGroup.getLabel());
+        assertStub(group, detachedGroup.getConcept());
+        ObsField detachedField = (ObsField) detachedGroup.getChildren().get(0);
+        assertEquals("Weight", detachedField.getName());
+        assertStub(weight, detachedField.getQuestion());
+        assertEquals("Yes", detachedField.getAnswers().get(0).getDisplayName());
+        assertStub(yes, detachedField.getAnswers().get(0).getConcept());
+        DrugOrderAnswer detachedDrug = ((DrugOrderField) detached.getFields().get(0)).getDrugOrderAnswers().get(0);
+        assertEquals("Aspirin", detachedDrug.getDisplayName());
+        assertNotSame(aspirin, detachedDrug.getDrug());
+        assertEquals(aspirin.getDrugId(), detachedDrug.getDrug().getDrugId());
+    }
+
+    @Test
+    public void detach_shouldReturnNullForFieldsItDoesNotKnow() {
+        HtmlFormSchema schema = new HtmlFormSchema();
+        schema.getFields().add(new HtmlFormField() {});
+        assertNull(HtmlFormSchemaCache.detach(schema));
+    }
+
+    private void assertStub(Concept concept, Concept stub) {
+        assertNotSame(concept, stub);
+        assertEquals(concept.getConceptId(), stub.getConceptId());
+    }
+
+    private User newUser(String role) {
+        User user = new User();
+        user.addRole(new Role(role));
+        return user;
+    }
+}
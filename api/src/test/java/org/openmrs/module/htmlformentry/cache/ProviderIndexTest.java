@@ -0,0 +1,91 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Person;
+import org.openmrs.PersonName;
+import org.openmrs.Provider;
+import org.openmrs.module.htmlformentry.element.ProviderStub;
+import org.openmrs.module.htmlformentry.util.MatchMode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ProviderIndexTest {
+
+    private ProviderIndex.Catalog catalog;
+
+    @Before
+    public void setUp() {
+        List<Provider> providers = new ArrayList<Provider>();
+        providers.add(provider(1, "P-001", "Mary", "Smith"));
+        providers.add(provider(2, "P-002", "John", "Doe"));
+        providers.add(provider(3, "X-100", "Anne", "Goldsmith"));
+        providers.add(provider(4, "P-004", "Johnny", "Appleseed"));
+        catalog = new ProviderIndex.Catalog(System.currentTimeMillis(), 0, providers);
+    }
+
+    @Test
+    public void page_shouldMatchTheStartOfAnyWordOrIdentifier() {
+        assertEquals(ids(2, 4), ids(catalog.page("joh", MatchMode.START, null, 10)));
+        assertEquals(ids(1), ids(catalog.page("smi", MatchMode.START, null, 10)));
+        assertEquals(ids(3), ids(catalog.page("x-1", MatchMode.START, null, 10)));
+    }
+
+    @Test
+    public void page_shouldMatchTheEndOfAnyWord() {
+        assertEquals(ids(3, 1), ids(catalog.page("SMITH", MatchMode.END, null, 10)));
+    }
+
+    @Test
+    public void page_shouldMatchAnywhereByDefault() {
+        assertEquals(ids(3, 1), ids(catalog.page("mit", null, null, 10)));
+    }
+
+    @Test
+    public void page_shouldOnlyMatchWholeNamesOrIdentifiersExactly() {
+        assertEquals(ids(2), ids(catalog.page("john", MatchMode.EXACT, null, 10)));
+        assertEquals(ids(4), ids(catalog.page("p-004", MatchMode.EXACT, null, 10)));
+        assertTrue(catalog.page("joh", MatchMode.EXACT, null, 10).getProviders().isEmpty());
+    }
+
+    @Test
+    public void page_shouldReturnPagesInNameOrderFollowingTheCursor() {
+        ProviderIndex.Page first = catalog.page(null, null, null, 3);
+        assertEquals(ids(3, 2, 4), ids(first));
+        assertEquals(Integer.valueOf(4), first.getNextCursor());
+
+        ProviderIndex.Page second = catalog.page(null, null, first.getNextCursor(), 3);
+        assertEquals(ids(1), ids(second));
+        assertNull(second.getNextCursor());
+    }
+
+    private Provider provider(int id, String identifier, String givenName, String familyName) {
+        Person person = new Person(id + 100);
+        person.addName(new PersonName(givenName, null, familyName));
+        Provider provider = new Provider(id);
+        provider.setIdentifier(identifier);
+        provider.setPerson(person);
+        return provider;
+    }
+
+    private List<Integer> ids(Integer... ids) {
+        List<Integer> ret = new ArrayList<Integer>();
+        for (Integer id : ids) {
+            ret.add(id);
+        }
+        return ret;
+    }
+
+    private List<Integer> ids(ProviderIndex.Page page) {
+        List<Integer> ret = new ArrayList<Integer>();
+        for (ProviderStub stub : page.getProviders()) {
+            ret.add(stub.getProviderId());
+        }
+        return ret;
+    }
+}
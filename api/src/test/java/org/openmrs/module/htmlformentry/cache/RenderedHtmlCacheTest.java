@@ -0,0 +1,115 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Encounter;
+import org.openmrs.Role;
+import org.openmrs.User;
+import org.openmrs.module.htmlformentry.HtmlForm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RenderedHtmlCacheTest {
+
+    private RenderedHtmlCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new RenderedHtmlCache();
+    }
+
+    @Test
+    public void get_shouldReturnWhatWasPut() {
+        cache.put("3:1:1000:2000:en:", new RenderedHtmlCache.Rendering("<div>é</div>", "js", true));
+        RenderedHtmlCache.Rendering rendering = cache.get("3:1:1000:2000:en:");
+        assertNotNull(rendering);
+        assertEquals("<div>é</div>", rendering.getHtml());
+        assertEquals("js", rendering.getFieldAccessorJavascript());
+        assertTrue(rendering.isGuessing());
+        assertNull(cache.get("3:1:1000:2000:fr:"));
+    }
+
+    @Test
+    public void put_shouldStoreRenderingsCompressed() {
+        StringBuilder html = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            html.append("<tr><td>Weight (kg)</td><td>70</td></tr>");
+        }
+        cache.put("3:1:1000:2000:en:", new RenderedHtmlCache.Rendering(html.toString(), "", false));
+        assertTrue(cache.getTotalBytes() < html.length() / 10);
+    }
+
+    @Test
+    public void put_shouldEvictTheLeastRecentlyUsedRenderingsOnceOverTheByteLimit() {
+        cache = new RenderedHtmlCache(3000);
+        cache.put("1:1:1000:2000:en:", new RenderedHtmlCache.Rendering(randomHtml(1000), "", false));
+        cache.put("2:1:1000:2000:en:", new RenderedHtmlCache.Rendering(randomHtml(1000), "", false));
+        cache.get("1:1:1000:2000:en:");
+        cache.put("3:1:1000:2000:en:", new RenderedHtmlCache.Rendering(randomHtml(1000), "", false));
+
+        assertNotNull(cache.get("1:1:1000:2000:en:"));
+        assertNull(cache.get("2:1:1000:2000:en:"));
+        assertNotNull(cache.get("3:1:1000:2000:en:"));
+        assertTrue(cache.getTotalBytes() <= 3000);
+    }
+
+    @Test
+    public void evict_shouldRemoveTheRenderingsOfAnEncounter() {
+        cache.put("3:1:1000:2000:en:", new RenderedHtmlCache.Rendering("a", "", false));
+        cache.put("3:2:1000:2000:en:", new RenderedHtmlCache.Rendering("b", "", false));
+        cache.put("33:1:1000:2000:en:", new RenderedHtmlCache.Rendering("c", "", false));
+        cache.evict(new Encounter(3));
+        assertEquals(1, cache.size());
+        assertNotNull(cache.get("33:1:1000:2000:en:"));
+    }
+
+    @Test
+    public void evictEncounterBucket_shouldRemoveTheRenderingsOfTheEncountersInTheBucket() {
+        cache.put("3:1:1000:2000:0:en:", new RenderedHtmlCache.Rendering("a", "", false));
+        cache.put("259:1:1000:2000:0:en:", new RenderedHtmlCache.Rendering("b", "", false));
+        cache.put("4:1:1000:2000:0:en:", new RenderedHtmlCache.Rendering("c", "", false));
+        cache.evictEncounterBucket(RenderedHtmlCache.getEncounterBucket(new Encounter(3)));
+        assertNull(cache.get("3:1:1000:2000:0:en:"));
+        assertNull(cache.get("259:1:1000:2000:0:en:"));
+        assertNotNull(cache.get("4:1:1000:2000:0:en:"));
+    }
+
+    @Test
+    public void evict_shouldRemoveTheRenderingsOfAForm() {
+        cache.put("3:1:1000:2000:en:", new RenderedHtmlCache.Rendering("a", "", false));
+        cache.put("4:1:5000:2000:en:", new RenderedHtmlCache.Rendering("b", "", false));
+        cache.put("1:2:1000:2000:en:", new RenderedHtmlCache.Rendering("c", "", false));
+        HtmlForm htmlForm = new HtmlForm();
+        htmlForm.setId(1);
+        cache.evict(htmlForm);
+        assertEquals(1, cache.size());
+        assertNotNull(cache.get("1:2:1000:2000:en:"));
+    }
+
+    @Test
+    public void getRoleFingerprint_shouldNotDependOnTheOrderOfTheRoles() {
+        User user = new User();
+        user.addRole(new Role("Clinician"));
+        user.addRole(new Role("Anonymous"));
+        User other = new User();
+        other.addRole(new Role("Anonymous"));
+        other.addRole(new Role("Clinician"));
+        assertEquals(RenderedHtmlCache.getRoleFingerprint(user), RenderedHtmlCache.getRoleFingerprint(other));
+        assertFalse(RenderedHtmlCache.getRoleFingerprint(user).equals(RenderedHtmlCache.getRoleFingerprint(new User())));
+    }
+
+    private String randomHtml(int length) {
+        Random random = new Random(length);
+        StringBuilder ret = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            ret.append((char) ('a' + random.nextInt(26)));
+        }
+        return ret.toString();
+    }
+}
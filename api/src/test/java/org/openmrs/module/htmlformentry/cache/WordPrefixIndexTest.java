@@ -0,0 +1,55 @@
+package org.openmrs.module.htmlformentry.cache;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WordPrefixIndexTest {
+
+    private WordPrefixIndex<Integer> index;
+
+    @Before
+    public void setUp() {
+        index = new WordPrefixIndex<Integer>(Locale.ENGLISH);
+        index.add("Aspirin 81mg", 1);
+        index.add("Amoxicillin (oral suspension)", 2);
+        index.add("Paracetamol/codeine", 3);
+        index.add("Amoxicillin 500mg", 4);
+    }
+
+    @Test
+    public void search_shouldMatchTheStartOfAnyWordInTheName() {
+        assertEquals(Arrays.asList(2, 4), index.search("amox"));
+        assertEquals(Arrays.asList(2), index.search("susp"));
+        assertTrue(index.search("moxi").isEmpty());
+    }
+
+    @Test
+    public void search_shouldRequireEveryWordOfTheQueryToMatch() {
+        assertEquals(Arrays.asList(4), index.search("500 AMOX"));
+        assertTrue(index.search("amox aspirin").isEmpty());
+    }
+
+    @Test
+    public void search_shouldIgnorePunctuation() {
+        assertEquals(Arrays.asList(3), index.search("codeine"));
+        assertEquals(Arrays.asList(2), index.search("(oral"));
+    }
+
+    @Test
+    public void search_shouldReturnNothingForABlankQuery() {
+        assertTrue(index.search(" ").isEmpty());
+        assertTrue(index.search(null).isEmpty());
+    }
+
+    @Test
+    public void size_shouldCountNamesAndDistinctWords() {
+        assertEquals(4, index.size());
+        assertEquals(8, index.getWordCount());
+    }
+}
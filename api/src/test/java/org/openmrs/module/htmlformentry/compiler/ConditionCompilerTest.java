@@ -0,0 +1,111 @@
+package org.openmrs.module.htmlformentry.compiler;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConditionCompilerTest {
+
+    @Test
+    public void compile_shouldFoldTrueAndFalseLiterals() {
+        assertSame(ConditionCompiler.Constant.TRUE, ConditionCompiler.compile(" true "));
+        assertSame(ConditionCompiler.Constant.FALSE, ConditionCompiler.compile("false && $patient.age > 5"));
+        assertSame(ConditionCompiler.Constant.TRUE, ConditionCompiler.compile("$patient.age > 5 || (true)"));
+        assertSame(ConditionCompiler.Constant.FALSE, ConditionCompiler.compile("!(true)"));
+        assertTrue(ConditionCompiler.compile("true && $patient.age > 5") instanceof ConditionCompiler.VelocityTest);
+    }
+
+    @Test
+    public void compile_shouldSplitTopLevelAndAndOrOperators() {
+        Condition condition = ConditionCompiler.compile("$patient.age >= 1 && $patient.age <= 120 || $patient.dead");
+        assertTrue(condition instanceof ConditionCompiler.Or);
+        ConditionCompiler.Or or = (ConditionCompiler.Or) condition;
+        assertEquals(2, or.getOperands().size());
+        assertTrue(or.getOperands().get(0) instanceof ConditionCompiler.And);
+        assertEquals(2, ((ConditionCompiler.And) or.getOperands().get(0)).getOperands().size());
+    }
+
+    @Test
+    public void compile_shouldNotSplitOperatorsInsideQuotesOrParentheses() {
+        assertTrue(ConditionCompiler.compile("$x == 'a || b'") instanceof ConditionCompiler.VelocityTest);
+        assertTrue(ConditionCompiler.compile("$fn.test($a && $b)") instanceof ConditionCompiler.VelocityTest);
+        assertTrue(ConditionCompiler.compile("($a || $b)") instanceof ConditionCompiler.Or);
+        assertTrue(ConditionCompiler.compile("!($a || $b)") instanceof ConditionCompiler.Not);
+    }
+
+    @Test
+    public void compile_shouldCompileModeRoleAndGlobalPropertyChecksWithoutVelocity() {
+        assertTrue(ConditionCompiler.compile("$context.mode == 'VIEW'") instanceof ConditionCompiler.ModeTest);
+        assertTrue(ConditionCompiler.compile("$context.mode != \"ENTER\"") instanceof ConditionCompiler.ModeTest);
+        assertTrue(ConditionCompiler.compile("$user.hasRole('Provider')") instanceof ConditionCompiler.RoleTest);
+        assertTrue(ConditionCompiler.compile("$fn.globalProperty('htmlformentry.x') == 'true'") instanceof ConditionCompiler.GlobalPropertyTest);
+        assertTrue(ConditionCompiler.compile("$fn.globalProperty('htmlformentry.x', 'false') != 'true'") instanceof ConditionCompiler.GlobalPropertyTest);
+        assertTrue(ConditionCompiler.compile("$context.mode == 'VIEW'").isSessionConstant());
+    }
+
+    @Test
+    public void compile_shouldLeaveOtherExpressionsToVelocity() {
+        assertTrue(ConditionCompiler.compile("$patient.gender == 'F'") instanceof ConditionCompiler.VelocityTest);
+        assertTrue(ConditionCompiler.compile("!$patient.dead") instanceof ConditionCompiler.VelocityTest);
+    }
+
+    @Test
+    public void evaluate_shouldShortCircuitLikeVelocity() {
+        ConditionContext context = new ConditionContext(null);
+        CountingCondition unreached = new CountingCondition(Boolean.TRUE);
+        ConditionCompiler.And and = new ConditionCompiler.And(Arrays.<Condition> asList(new CountingCondition(Boolean.FALSE), unreached));
+        assertEquals(Boolean.FALSE, context.evaluate(and));
+        ConditionCompiler.Or or = new ConditionCompiler.Or(Arrays.<Condition> asList(new CountingCondition(Boolean.TRUE), unreached));
+        assertEquals(Boolean.TRUE, context.evaluate(or));
+        assertEquals(0, unreached.count);
+    }
+
+    @Test
+    public void evaluate_shouldTreatAnErrorAsNotHolding() {
+        ConditionContext context = new ConditionContext(null);
+        ConditionCompiler.Or or = new ConditionCompiler.Or(Arrays.<Condition> asList(new CountingCondition(null), new CountingCondition(Boolean.TRUE)));
+        assertEquals(null, context.evaluate(or));
+        assertEquals(false, context.test(new ConditionCompiler.Not(new CountingCondition(null))));
+    }
+
+    @Test
+    public void evaluate_shouldOnlyEvaluateSessionConstantsOnce() {
+        ConditionContext context = new ConditionContext(null);
+        CountingCondition constant = new CountingCondition(Boolean.TRUE) {
+
+            @Override
+            public boolean isSessionConstant() {
+                return true;
+            }
+        };
+        context.evaluate(constant);
+        context.evaluate(constant);
+        assertEquals(1, constant.count);
+    }
+
+    private static class CountingCondition implements Condition {
+
+        private Boolean result;
+
+        int count = 0;
+
+        CountingCondition(Boolean result) {
+            this.result = result;
+        }
+
+        @Override
+        public Boolean evaluate(ConditionContext context) {
+            count++;
+            return result;
+        }
+
+        @Override
+        public boolean isSessionConstant() {
+            return false;
+        }
+    }
+}
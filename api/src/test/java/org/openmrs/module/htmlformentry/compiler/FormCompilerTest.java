@@ -0,0 +1,147 @@
+package org.openmrs.module.htmlformentry.compiler;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FormCompilerTest {
+
+    @Test
+    public void compile_shouldFindConceptsReferencedByObsFunctions() {
+        CompiledForm form = FormCompiler.compile("<htmlform>"
+                + "<lookup expression=\"fn.latestObs('CIEL:5089').valueNumeric\"/>"
+                + "<lookup expression=\"fn.earliestObs(5090)\"/>"
+                + "#foreach( $o in $fn.allObs(\"5497\") ) $o.valueNumeric #end"
+                + "</htmlform>");
+        assertEquals(1, form.getLatestObsConcepts().size());
+        assertTrue(form.getLatestObsConcepts().contains("CIEL:5089"));
+        assertTrue(form.getEarliestObsConcepts().contains("5090"));
+        assertTrue(form.getAllObsConcepts().contains("5497"));
+        assertTrue(form.hasObsReferences());
+        assertFalse(form.hasEncounterReferences());
+    }
+
+    @Test
+    public void compile_shouldFindEncounterTypesReferencedByEncounterFunctions() {
+        CompiledForm form = FormCompiler.compile("<htmlform>"
+                + "<lookup expression=\"fn.latestEncounter('61ae96f4-6afe-4351-b6f8-cd4fc383cce1')\"/>"
+                + "<lookup expression=\"fn.allEncounters('2').size()\"/>"
+                + "</htmlform>");
+        assertEquals(1, form.getLatestEncounterTypes().size());
+        assertTrue(form.getLatestEncounterTypes().contains("61ae96f4-6afe-4351-b6f8-cd4fc383cce1"));
+        assertEquals(1, form.getAllEncounterTypes().size());
+        assertTrue(form.getAllEncounterTypes().contains("2"));
+        assertFalse(form.isLatestEncounterOfAnyType());
+        assertFalse(form.isAllEncountersOfAnyType());
+    }
+
+    @Test
+    public void compile_shouldTreatEncounterFunctionsWithoutATypeAsReferencingAnyType() {
+        CompiledForm form = FormCompiler.compile("<htmlform><lookup expression=\"fn.latestEncounter()\"/></htmlform>");
+        assertTrue(form.isLatestEncounterOfAnyType());
+        assertFalse(form.isAllEncountersOfAnyType());
+        assertTrue(form.getLatestEncounterTypes().isEmpty());
+        assertTrue(form.hasEncounterReferences());
+    }
+
+    @Test
+    public void compile_shouldFindWorkflowsReferencedByFunctions() {
+        CompiledForm form = FormCompiler.compile("<htmlform>"
+                + "<lookup expression=\"fn.currentProgramWorkflowStatus(108)\"/>"
+                + "</htmlform>");
+        assertTrue(form.getProgramWorkflows().contains("108"));
+        assertTrue(form.hasProgramReferences());
+        assertFalse(form.hasProgramTags());
+    }
+
+    @Test
+    public void compile_shouldRecordProgramsAndWorkflowsReferencedByTagsWithoutPrefetchingThem() {
+        CompiledForm form = FormCompiler.compile("<htmlform>"
+                + "<enrollInProgram programId=\"MDR-TB PROGRAM\"/>"
+                + "<workflowState workflowId=\"72a90efc-5140-11e1-a3e3-00248140a5eb\"/>"
+                + "</htmlform>");
+        assertTrue(form.getProgramTagReferences().contains("MDR-TB PROGRAM"));
+        assertTrue(form.getProgramTagReferences().contains("72a90efc-5140-11e1-a3e3-00248140a5eb"));
+        assertTrue(form.getProgramWorkflows().isEmpty());
+        assertFalse(form.hasProgramReferences());
+        assertTrue(form.hasProgramTags());
+    }
+
+    @Test
+    public void compile_shouldSkipReferencesToVelocityVariables() {
+        CompiledForm form = FormCompiler.compile("<htmlform>"
+                + "<lookup expression=\"fn.latestObs($concept)\"/>"
+                + "<lookup expression=\"fn.allObs($encounter, '5089')\"/>"
+                + "</htmlform>");
+        assertFalse(form.hasObsReferences());
+    }
+
+    @Test
+    public void compile_shouldIgnoreReferencesInComments() {
+        CompiledForm form = FormCompiler.compile("<htmlform>"
+                + "<!-- <lookup expression=\"fn.latestObs(5089)\"/> -->"
+                + "</htmlform>");
+        assertFalse(form.hasObsReferences());
+    }
+
+    @Test
+    public void compile_shouldFindLogicExpressionsInLogicTestsAndFunctions() {
+        CompiledForm form = FormCompiler.compile("<htmlform>"
+                + "<includeIf logicTest=\"GENDER = F\">woman</includeIf>"
+                + "<excludeIf logicTest=\"AGE &gt; 5\">child</excludeIf>"
+                + "<excludeIf logicTest=\"GENDER = F\">man</excludeIf>"
+                + "<lookup expression=\"fn.logic('CD4 COUNT')\"/>"
+                + "</htmlform>");
+        assertEquals(3, form.getLogicExpressions().size());
+        assertTrue(form.getLogicExpressions().contains("GENDER = F"));
+        assertTrue(form.getLogicExpressions().contains("AGE > 5"));
+        assertTrue(form.getLogicExpressions().contains("CD4 COUNT"));
+    }
+
+    @Test
+    public void compile_shouldCompileVelocityTests() {
+        CompiledForm form = FormCompiler.compile("<htmlform>"
+                + "<includeIf velocityTest=\"$context.mode == 'VIEW' &amp;&amp; $patient.gender == 'F'\">woman</includeIf>"
+                + "</htmlform>");
+        Condition condition = form.getCondition("$context.mode == 'VIEW' && $patient.gender == 'F'");
+        assertTrue(condition instanceof ConditionCompiler.And);
+        assertSame(condition, form.getCondition("$context.mode == 'VIEW' && $patient.gender == 'F'"));
+    }
+
+    @Test
+    public void compile_shouldFindVelocityExpressionsThatReferToThePatientTheUserOrTheTime() {
+        assertTrue(FormCompiler.compile("<htmlform><lookup expression=\"patient.age\"/></htmlform>")
+                .hasSessionVariableReferences());
+        assertTrue(FormCompiler.compile("<htmlform><lookup complexExpression=\"Seen by $user.username\"/></htmlform>")
+                .hasSessionVariableReferences());
+        assertTrue(FormCompiler.compile("<htmlform><lookup complexExpression=\"${formGeneratedDatetime}\"/></htmlform>")
+                .hasSessionVariableReferences());
+        assertTrue(FormCompiler.compile("<htmlform><macros><macro key=\"age\" expression=\"patient.age\"/></macros>"
+                + "</htmlform>").hasSessionVariableReferences());
+        assertTrue(FormCompiler.compile("<htmlform>"
+                + "<includeIf velocityTest=\"$patient.gender == 'F'\">woman</includeIf>"
+                + "</htmlform>").hasSessionVariableReferences());
+    }
+
+    @Test
+    public void compile_shouldNotFlagVelocityExpressionsThatOnlyReferToTheEncounterFormOrLocale() {
+        CompiledForm form = FormCompiler.compile("<htmlform>"
+                + "<lookup expression=\"encounter.encounterDatetime\"/>"
+                + "<lookup complexExpression=\"$form.name ($locale)\"/>"
+                + "<includeIf velocityTest=\"$context.mode == 'VIEW'\">view</includeIf>"
+                + "</htmlform>");
+        assertFalse(form.hasSessionVariableReferences());
+    }
+
+    @Test
+    public void compile_shouldFindPatientAndRelationshipTags() {
+        assertTrue(FormCompiler.compile("<htmlform><patient field=\"name\"/></htmlform>").hasPatientTags());
+        assertTrue(FormCompiler.compile("<htmlform><relationship type=\"1\" whoAmI=\"A\"/></htmlform>")
+                .hasPatientTags());
+        assertFalse(FormCompiler.compile("<htmlform><encounterDate/><lookup expression=\"encounter.location\"/>"
+                + "</htmlform>").hasPatientTags());
+    }
+}
@@ -0,0 +1,44 @@
+package org.openmrs.module.htmlformentry.handler;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TagHandlerRegistryTest {
+
+    @Test
+    public void plus_shouldLeaveTheOriginalRegistryUnchanged() {
+        TagHandler section = new SectionTagHandler();
+        TagHandlerRegistry registry = TagHandlerRegistry.EMPTY.plus("section", section);
+        TagHandlerRegistry larger = registry.plus("submit", new SubmitButtonHandler());
+
+        assertSame(section, larger.getHandler("section"));
+        assertNull(registry.getHandler("submit"));
+        assertTrue(TagHandlerRegistry.EMPTY.getHandlers().isEmpty());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void getHandlers_shouldNotBeModifiable() {
+        TagHandlerRegistry.EMPTY.plus("section", new SectionTagHandler()).getHandlers().clear();
+    }
+
+    @Test
+    public void getDispatchTable_shouldResolveTheTagsOfTheFormAndFallBackForOthers() {
+        TagHandler section = new SectionTagHandler();
+        TagHandler submit = new SubmitButtonHandler();
+        TagHandlerRegistry registry = TagHandlerRegistry.EMPTY.plus("section", section).plus("submit", submit);
+        TagDispatchTable dispatchTable = registry.getDispatchTable(Arrays.asList("section", "div"));
+
+        assertSame(section, dispatchTable.getHandler("section"));
+        assertNull(dispatchTable.getHandler("div"));
+        assertNull(dispatchTable.getHandler("#text"));
+        assertSame(submit, dispatchTable.getHandler("submit"));
+        assertTrue(dispatchTable.isFor(registry));
+        assertFalse(dispatchTable.isFor(registry.plus("section", section)));
+    }
+}
@@ -0,0 +1,44 @@
+package org.openmrs.module.htmlformentry.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class HistogramTest {
+
+    @Test
+    public void getBucket_shouldDoubleTheBoundOfEachBucket() {
+        assertEquals(0, Histogram.getBucket(999));
+        assertEquals(1, Histogram.getBucket(1000));
+        assertEquals(2, Histogram.getBucket(2000));
+        assertEquals(2, Histogram.getBucket(3999));
+        assertEquals(3, Histogram.getBucket(4000));
+        assertEquals(Histogram.BUCKETS - 1, Histogram.getBucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void record_shouldKeepCountsTotalsAndMaximum() {
+        Histogram histogram = new Histogram();
+        histogram.record(1000000);
+        histogram.record(3000000, 5);
+        assertEquals(2, histogram.getCount());
+        assertEquals(6, histogram.getInvocations());
+        assertEquals(4000000, histogram.getTotalNanos());
+        assertEquals(3000000, histogram.getMaxNanos());
+    }
+
+    @Test
+    public void getPercentileNanos_shouldReturnTheUpperBoundOfTheBucketOfThePercentile() {
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < 90; i++) {
+            histogram.record(1500000); // 1.5 ms, counted below 2^11 microseconds
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(50000000);
+        }
+        assertEquals(2048000, histogram.getPercentileNanos(0.5));
+        assertEquals(2048000, histogram.getPercentileNanos(0.9));
+        assertEquals(50000000, histogram.getPercentileNanos(0.99));
+        assertEquals(0, new Histogram().getPercentileNanos(0.5));
+    }
+}
@@ -0,0 +1,31 @@
+package org.openmrs.module.htmlformentry.metrics;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TopNTest {
+
+    @Test
+    public void add_shouldKeepOnlyTheGreatestItems() {
+        TopN<Integer> top = new TopN<Integer>(3);
+        for (int i : new int[] { 5, 1, 9, 3, 7, 2 }) {
+            top.add(i);
+        }
+        assertEquals(Arrays.asList(9, 7, 5), top.getItems());
+    }
+
+    @Test
+    public void add_shouldNotKeepAnItemThatIsNotGreaterThanTheLeastKeptWhenFull() {
+        TopN<Integer> top = new TopN<Integer>(2);
+        assertTrue(top.add(4));
+        assertTrue(top.add(6));
+        assertFalse(top.add(4));
+        assertTrue(top.add(5));
+        assertEquals(Arrays.asList(6, 5), top.getItems());
+    }
+}
@@ -0,0 +1,82 @@
+package org.openmrs.module.htmlformentry.store;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FormSessionStateTest {
+
+    @Test
+    public void toBytes_shouldRoundTripAllFields() throws Exception {
+        FormSessionState state = new FormSessionState();
+        state.setKey("key");
+        state.setUserUuid("user-uuid");
+        state.setHtmlFormId(7);
+        state.setFormModifiedTimestamp(1234L);
+        state.setPatientUuid("patient-uuid");
+        state.setEncounterUuid("encounter-uuid");
+        state.setEncounterModifiedTimestamp(5678L);
+        state.setMode(Mode.EDIT);
+        state.setReturnUrl("/patientDashboard.form?patientId=2");
+        state.setHasChangedInd("true");
+        state.setDateUpdated(1000L);
+        Map<String, String[]> parameterMap = new LinkedHashMap<String, String[]>();
+        parameterMap.put("w2", new String[] { "12.5" });
+        parameterMap.put("w4", new String[] { "1000", "1001" });
+        parameterMap.put("w6", new String[0]);
+        state.setParameterMap(parameterMap);
+
+        FormSessionState copy = FormSessionState.fromBytes(state.toBytes());
+
+        assertEquals("key", copy.getKey());
+        assertEquals("user-uuid", copy.getUserUuid());
+        assertEquals(Integer.valueOf(7), copy.getHtmlFormId());
+        assertEquals(Long.valueOf(1234L), copy.getFormModifiedTimestamp());
+        assertEquals("patient-uuid", copy.getPatientUuid());
+        assertEquals("encounter-uuid", copy.getEncounterUuid());
+        assertEquals(Long.valueOf(5678L), copy.getEncounterModifiedTimestamp());
+        assertEquals(Mode.EDIT, copy.getMode());
+        assertEquals("/patientDashboard.form?patientId=2", copy.getReturnUrl());
+        assertEquals("true", copy.getHasChangedInd());
+        assertEquals(1000L, copy.getDateUpdated());
+        assertEquals(Arrays.asList("w2", "w4", "w6"), Arrays.asList(copy.getParameterMap().keySet().toArray()));
+        assertArrayEquals(new String[] { "1000", "1001" }, copy.getParameterMap().get("w4"));
+        assertEquals(0, copy.getParameterMap().get("w6").length);
+    }
+
+    @Test
+    public void toBytes_shouldRoundTripNullsAndLargeValues() throws Exception {
+        StringBuilder comment = new StringBuilder();
+        for (int i = 0; i < 70000; i++) {
+            comment.append(i % 2 == 0 ? 'a' : 'é');
+        }
+        FormSessionState state = new FormSessionState();
+        state.getParameterMap().put("w8", new String[] { comment.toString(), null });
+
+        FormSessionState copy = FormSessionState.fromBytes(state.toBytes());
+
+        assertNull(copy.getKey());
+        assertNull(copy.getHtmlFormId());
+        assertNull(copy.getEncounterModifiedTimestamp());
+        assertNull(copy.getMode());
+        assertEquals(comment.toString(), copy.getParameterMap().get("w8")[0]);
+        assertNull(copy.getParameterMap().get("w8")[1]);
+    }
+
+    @Test
+    public void isExpired_shouldBeTrueOnlyOnceMaxAgeHasPassed() {
+        FormSessionState state = new FormSessionState();
+        assertFalse(state.isExpired());
+        state.setDateUpdated(System.currentTimeMillis() - FormSessionStore.MAX_AGE_MILLIS - 1);
+        assertTrue(state.isExpired());
+    }
+}
@@ -0,0 +1,80 @@
+package org.openmrs.module.htmlformentry.store;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+public class InMemoryFormSessionStoreTest {
+
+    @Test
+    public void save_shouldKeepACopyOfTheStateUnderItsKey() {
+        InMemoryFormSessionStore store = new InMemoryFormSessionStore();
+        FormSessionState state = newState("key", "user-uuid");
+        store.save(state);
+        state.getParameterMap().put("w4", new String[] { "changed after saving" });
+
+        FormSessionState stored = store.get("key");
+        assertNotSame(state, stored);
+        assertEquals("user-uuid", stored.getUserUuid());
+        assertArrayEquals(new String[] { "12.5" }, stored.getParameterMap().get("w2"));
+        assertNull(stored.getParameterMap().get("w4"));
+        assertNull(store.get("other key"));
+    }
+
+    @Test
+    public void save_shouldReplaceAStateSavedUnderTheSameKey() {
+        InMemoryFormSessionStore store = new InMemoryFormSessionStore();
+        store.save(newState("key", "user-uuid"));
+        FormSessionState state = newState("key", "user-uuid");
+        state.getParameterMap().put("w2", new String[] { "13" });
+        store.save(state);
+
+        assertEquals(1, store.size());
+        assertArrayEquals(new String[] { "13" }, store.get("key").getParameterMap().get("w2"));
+    }
+
+    @Test
+    public void get_shouldDiscardExpiredStates() {
+        InMemoryFormSessionStore store = new InMemoryFormSessionStore();
+        FormSessionState state = newState("key", "user-uuid");
+        state.setDateUpdated(System.currentTimeMillis() - FormSessionStore.MAX_AGE_MILLIS - 1);
+        store.save(state);
+
+        assertNull(store.get("key"));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void remove_shouldRemoveTheState() {
+        InMemoryFormSessionStore store = new InMemoryFormSessionStore();
+        store.save(newState("key", "user-uuid"));
+        store.remove("key");
+        store.remove("never saved");
+
+        assertNull(store.get("key"));
+    }
+
+    @Test
+    public void save_shouldDropTheLeastRecentlyUsedStatesOnceFull() {
+        InMemoryFormSessionStore store = new InMemoryFormSessionStore();
+        for (int i = 0; i <= InMemoryFormSessionStore.MAX_SESSIONS; i++) {
+            store.save(newState("key" + i, "user-uuid"));
+        }
+
+        assertEquals(InMemoryFormSessionStore.MAX_SESSIONS, store.size());
+        assertNull(store.get("key0"));
+        assertEquals("key1", store.get("key1").getKey());
+    }
+
+    private FormSessionState newState(String key, String userUuid) {
+        FormSessionState state = new FormSessionState();
+        state.setKey(key);
+        state.setUserUuid(userUuid);
+        state.setHtmlFormId(1);
+        state.getParameterMap().put("w2", new String[] { "12.5" });
+        return state;
+    }
+}
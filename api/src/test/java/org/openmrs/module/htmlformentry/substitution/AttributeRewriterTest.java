@@ -0,0 +1,50 @@
+package org.openmrs.module.htmlformentry.substitution;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.Location;
+import org.openmrs.module.htmlformentry.handler.AttributeDescriptor;
+
+import static org.junit.Assert.assertEquals;
+
+public class AttributeRewriterTest {
+
+    private final AttributeRewriter rewriter = AttributeRewriter.forAttributes(Arrays.asList(
+        new AttributeDescriptor("conceptId", Concept.class), new AttributeDescriptor("default", Location.class)));
+
+    @Test
+    public void rewrite_shouldOnlyChangeTheVisitedValues() {
+        String xml = "<htmlform><includeIf velocityTest=\"$a < 3\"><OBS labelText=\"a>b\" CONCEPTID = '5'/></includeIf>"
+                + " 1 < 2 <!-- <obs conceptId=\"6\"/> --><obs conceptId=\"7\" answerConceptId=\"8\"/></htmlform>";
+        final List<String> visited = new ArrayList<String>();
+        String rewritten = rewriter.rewrite(xml, new AttributeRewriter.Visitor() {
+
+            @Override
+            public String visit(String tagName, AttributeDescriptor descriptor, String value) {
+                visited.add(tagName + ":" + value);
+                return "c" + value;
+            }
+        });
+        assertEquals(Arrays.asList("OBS:5", "obs:7"), visited);
+        assertEquals("<htmlform><includeIf velocityTest=\"$a < 3\"><OBS labelText=\"a>b\" CONCEPTID = 'c5'/></includeIf>"
+                + " 1 < 2 <!-- <obs conceptId=\"6\"/> --><obs conceptId=\"c7\" answerConceptId=\"8\"/></htmlform>",
+            rewritten);
+    }
+
+    @Test
+    public void rewrite_shouldRemoveAttributesTheVisitorReturnsNullFor() {
+        String xml = "<htmlform><encounterLocation default=\"2\" order=\"1,2\"/></htmlform>";
+        String rewritten = rewriter.rewrite(xml, new AttributeRewriter.Visitor() {
+
+            @Override
+            public String visit(String tagName, AttributeDescriptor descriptor, String value) {
+                return Location.class.equals(descriptor.getClazz()) ? null : value;
+            }
+        });
+        assertEquals("<htmlform><encounterLocation order=\"1,2\"/></htmlform>", rewritten);
+    }
+}
@@ -51,4 +51,27 @@ public class DropdownWidgetTest {
         String html = widget.generateHtml(formEntryContext);
         assertThat(html, is("<select id=\"w1\" name=\"w1\"><option value=\"value1\">label1</option><option value=\"value2\" selected=\"true\">label2</option><option value=\"value3\">label3</option><option value=\"value4\">label4</option><option value=\"value5\">label5</option></select>"));
     }
+
+    @Test
+    public void testSharedOptions() throws Exception {
+        List<Option> shared = Collections.unmodifiableList(Arrays.asList(new Option("label1", "value1", false),
+                new Option("label2", "value2", false)));
+
+        DropdownWidget widget = new DropdownWidget();
+        widget.addOption(new Option());
+        widget.addOptions(shared);
+        widget.setInitialValue("value2");
+
+        DropdownWidget other = new DropdownWidget();
+        other.addOptions(shared);
+        other.addOption(new Option("label3", "value3", false));
+
+        FormEntryContext formEntryContext = mock(FormEntryContext.class);
+        when(formEntryContext.getFieldName(widget)).thenReturn("w1");
+
+        String html = widget.generateHtml(formEntryContext);
+        assertThat(html, is("<select id=\"w1\" name=\"w1\"><option value=\"\"></option><option value=\"value1\">label1</option><option value=\"value2\" selected=\"true\">label2</option></select>"));
+        assertThat(other.getOptions().size(), is(3));
+        assertThat(shared.size(), is(2));
+    }
 }
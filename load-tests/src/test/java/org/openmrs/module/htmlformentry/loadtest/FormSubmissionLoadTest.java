@@ -0,0 +1,107 @@
+package org.openmrs.module.htmlformentry.loadtest;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.module.htmlformentry.SerializableFormObject;
+import org.openmrs.module.htmlformentry.TestUtil;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.SkipBaseSetup;
+import org.springframework.test.annotation.NotTransactional;
+
+/**
+ * Replays form submissions against the API in the in-memory database from several threads at once, and prints how
+ * fast they went through. This is not run with the rest of the build; run it with e.g.
+ *
+ * <pre>
+ * mvn -Pload-tests test -pl load-tests -am -Dhtmlformentry.load.concurrency=16 -Dhtmlformentry.load.submissions=1000
+ * </pre>
+ *
+ * It replays the submissions archived by {@link org.openmrs.module.htmlformentry.FormSubmissionController} to
+ * {@code htmlformentry.load.archiveDir} if that is set, and otherwise makes up submissions of the form in
+ * {@code htmlformentry.load.formXml} (a file or classpath resource, loadTestForm.xml by default). Submissions are made
+ * for the patients in {@code htmlformentry.load.patientIds}, which is also used for archived submissions whose patient
+ * is not in the test data.
+ * <p/>
+ * The test data is committed, rather than rolled back at the end of the test as usual, so that the worker threads can
+ * see it, and is deleted again afterwards.
+ */
+public class FormSubmissionLoadTest extends BaseModuleContextSensitiveTest {
+
+	protected static final String XML_DATASET_PATH = "org/openmrs/module/htmlformentry/include/";
+
+	protected static final String XML_REGRESSION_TEST_DATASET = "regressionTestDataSet";
+
+	@Test
+	@NotTransactional
+	@SkipBaseSetup
+	public void replay_shouldReportThroughputAndLatencyOfConcurrentSubmissions() throws Exception {
+		int concurrency = getInt("htmlformentry.load.concurrency", 4);
+		int submissions = getInt("htmlformentry.load.submissions", 200);
+		int warmup = getInt("htmlformentry.load.warmup", 20);
+		List<Integer> patientIds = new ArrayList<Integer>();
+		for (String id : StringUtils.split(get("htmlformentry.load.patientIds", "2,6,7,8"), ",")) {
+			patientIds.add(Integer.valueOf(id.trim()));
+		}
+
+		initializeInMemoryDatabase();
+		executeDataSet(XML_DATASET_PATH + new TestUtil().getTestDatasetFilename(XML_REGRESSION_TEST_DATASET));
+		authenticate();
+		getConnection().commit();
+		try {
+			List<ReplaySubmission> toReplay;
+			String archiveDir = get("htmlformentry.load.archiveDir", null);
+			if (archiveDir != null) {
+				toReplay = loadArchive(new File(archiveDir), patientIds.get(0));
+			} else {
+				String xml = new TestUtil().loadXmlFromFile(get("htmlformentry.load.formXml", "loadTestForm.xml"));
+				toReplay = new SubmissionGenerator(xml, 0).generate(Math.min(submissions, 100), patientIds);
+			}
+
+			LoadReport report = new LoadReplay(toReplay, concurrency, warmup, submissions, "admin", "test").run();
+			System.out.println("Replayed " + toReplay.size() + " distinct submissions\n" + report);
+
+			Assert.assertEquals(submissions, report.getSucceeded() + report.getFailed());
+			Assert.assertTrue("No submission went through", report.getSucceeded() > 0);
+		}
+		finally {
+			deleteAllData();
+		}
+	}
+
+	private List<ReplaySubmission> loadArchive(File dir, Integer fallbackPatientId) throws Exception {
+		// archived submissions are named after the patient and time, without an extension
+		File[] files = dir.listFiles(new FileFilter() {
+
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && !file.isHidden();
+			}
+		});
+		if (files == null || files.length == 0) {
+			throw new IllegalArgumentException("No archived submissions in " + dir);
+		}
+		Arrays.sort(files);
+		List<ReplaySubmission> ret = new ArrayList<ReplaySubmission>();
+		for (File file : files) {
+			SerializableFormObject archived = SerializableFormObject.deserializeXml(file.getAbsolutePath());
+			ret.add(ReplaySubmission.fromArchive(file.getName(), archived, fallbackPatientId));
+		}
+		return ret;
+	}
+
+	private String get(String property, String defaultValue) {
+		String value = System.getProperty(property);
+		return StringUtils.isBlank(value) ? defaultValue : value.trim();
+	}
+
+	private int getInt(String property, int defaultValue) {
+		return Integer.parseInt(get(property, String.valueOf(defaultValue)));
+	}
+}
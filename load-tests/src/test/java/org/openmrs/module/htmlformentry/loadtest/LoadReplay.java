@@ -0,0 +1,193 @@
+package org.openmrs.module.htmlformentry.loadtest;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.EncounterType;
+import org.openmrs.Form;
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
+import org.openmrs.module.htmlformentry.FormEntrySession;
+import org.openmrs.module.htmlformentry.FormSubmissionError;
+import org.openmrs.module.htmlformentry.HtmlForm;
+import org.openmrs.module.htmlformentry.HtmlFormEntryService;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpSession;
+
+/**
+ * Replays submissions against the API from a pool of worker threads, each with its own OpenMRS session, the way
+ * concurrent users submitting forms would, and collects a {@link LoadReport}.
+ * <p/>
+ * Every replay goes through the same steps as a real submission: the form is rendered for the patient, the values are
+ * validated and handled, and the resulting actions are applied, each in a transaction of its own. Submissions are
+ * handed out in turn until the total count is reached, going round the list again if there are fewer of them; the first
+ * {@code warmup} replays are run but left out of the report.
+ */
+public class LoadReplay {
+
+	protected final Log log = LogFactory.getLog(getClass());
+
+	private final List<ReplaySubmission> submissions;
+
+	private final int concurrency;
+
+	private final int warmup;
+
+	private final int total;
+
+	private final String username;
+
+	private final String password;
+
+	/**
+	 * @param submissions the submissions to replay
+	 * @param concurrency how many submissions to replay at once
+	 * @param warmup how many replays to leave out of the report
+	 * @param total how many replays to report on
+	 * @param username the user each worker authenticates as
+	 * @param password
+	 */
+	public LoadReplay(List<ReplaySubmission> submissions, int concurrency, int warmup, int total, String username,
+	    String password) {
+		if (submissions.isEmpty()) {
+			throw new IllegalArgumentException("Nothing to replay");
+		}
+		this.submissions = submissions;
+		this.concurrency = concurrency;
+		this.warmup = warmup;
+		this.total = total;
+		this.username = username;
+		this.password = password;
+	}
+
+	/**
+	 * @param xml
+	 * @return a form that is not saved, with the given xml, as the regression tests use
+	 */
+	public static HtmlForm createHtmlForm(String xml) {
+		HtmlForm htmlForm = new HtmlForm();
+		htmlForm.setXmlData(xml);
+		htmlForm.setForm(new Form(1));
+		htmlForm.getForm().setEncounterType(new EncounterType(1));
+		return htmlForm;
+	}
+
+	/**
+	 * Runs the warmup replays, then the measured ones
+	 *
+	 * @return what was measured
+	 */
+	public LoadReport run() throws Exception {
+		replay(warmup, new LoadReport(concurrency));
+		LoadReport report = new LoadReport(concurrency);
+		long start = System.nanoTime();
+		replay(total, report);
+		report.setElapsedNanos(System.nanoTime() - start);
+		return report;
+	}
+
+	private void replay(final int count, final LoadReport report) throws Exception {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads.isThreadContentionMonitoringSupported()) {
+			threads.setThreadContentionMonitoringEnabled(true);
+		}
+		final AtomicInteger next = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+		try {
+			Future<?>[] workers = new Future<?>[concurrency];
+			for (int i = 0; i < concurrency; i++) {
+				workers[i] = executor.submit(new Runnable() {
+
+					@Override
+					public void run() {
+						ThreadInfo before = threads.getThreadInfo(Thread.currentThread().getId());
+						Context.openSession();
+						try {
+							Context.authenticate(username, password);
+							for (int index = next.getAndIncrement(); index < count; index = next.getAndIncrement()) {
+								replayOne(submissions.get(index % submissions.size()), report);
+							}
+						}
+						finally {
+							Context.closeSession();
+							ThreadInfo after = threads.getThreadInfo(Thread.currentThread().getId());
+							report.addMonitorBlocking(after.getBlockedCount() - before.getBlockedCount(),
+							    after.getBlockedTime() - before.getBlockedTime());
+						}
+					}
+				});
+			}
+			for (Future<?> worker : workers) {
+				worker.get();
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	private void replayOne(ReplaySubmission submission, LoadReport report) {
+		long start = System.nanoTime();
+		try {
+			Patient patient = null;
+			if (submission.getPatientUuid() != null) {
+				patient = Context.getPatientService().getPatientByUuid(submission.getPatientUuid());
+			}
+			if (patient == null) {
+				patient = Context.getPatientService().getPatient(submission.getPatientId());
+			}
+			FormEntrySession session = new FormEntrySession(patient, null, Mode.ENTER,
+			        createHtmlForm(submission.getXmlDefinition()), new MockHttpSession());
+			session.getHtmlToDisplay();
+
+			MockHttpServletRequest request = new MockHttpServletRequest();
+			for (Map.Entry<String, String[]> parameter : submission.getParameterMap().entrySet()) {
+				request.addParameter(parameter.getKey(), parameter.getValue());
+			}
+			session.prepareForSubmit();
+			List<FormSubmissionError> errors = session.getSubmissionController().validateSubmission(
+			    session.getContext(), request);
+			if (errors != null && !errors.isEmpty()) {
+				log.debug(submission.getLabel() + " failed validation: " + errors.get(0).getError());
+				report.addFailure("validation", false);
+				return;
+			}
+			session.getSubmissionController().handleFormSubmission(session, request);
+			Context.getService(HtmlFormEntryService.class).applyActions(session);
+			report.addLatency(System.nanoTime() - start);
+		}
+		catch (Exception ex) {
+			log.debug("Unable to replay " + submission.getLabel(), ex);
+			report.addFailure(ex.getClass().getName(), isLockWait(ex));
+		}
+	}
+
+	/**
+	 * @return true if the exception, or one of its causes, reports a lock timeout or deadlock
+	 */
+	static boolean isLockWait(Throwable ex) {
+		for (Throwable t = ex; t != null; t = t.getCause()) {
+			String name = t.getClass().getSimpleName();
+			String message = t.getMessage() == null ? "" : t.getMessage();
+			if (name.contains("LockAcquisition") || name.contains("PessimisticLock") || name.contains("Deadlock")
+			        || message.contains("Timeout trying to lock") || message.contains("Deadlock")
+			        || message.contains("Lock wait timeout")) {
+				return true;
+			}
+			if (t.getCause() == t) {
+				break;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,146 @@
+package org.openmrs.module.htmlformentry.loadtest;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openmrs.module.htmlformentry.metrics.Histogram;
+
+/**
+ * What a {@link LoadReplay} measured: how many submissions went through and how fast, the latencies of the successful
+ * ones, and what went wrong. Lock waits are counted two ways, since the in-memory database does not report how long
+ * statements waited for locks: as failures caused by a lock timeout or deadlock, and as the time worker threads spent
+ * blocked on monitors in the JVM.
+ */
+public class LoadReport {
+
+	private final int concurrency;
+
+	private final Histogram latencies = new Histogram();
+
+	private final Map<String, Integer> failures = new TreeMap<String, Integer>();
+
+	private final AtomicLong lockWaitFailures = new AtomicLong();
+
+	private final AtomicLong monitorBlockedCount = new AtomicLong();
+
+	private final AtomicLong monitorBlockedMillis = new AtomicLong();
+
+	private long elapsedNanos;
+
+	public LoadReport(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	public void addLatency(long nanos) {
+		latencies.record(nanos);
+	}
+
+	/**
+	 * @param kind the exception class, or "validation" for submissions with validation errors
+	 * @param lockWait whether the failure was caused by waiting for a lock
+	 */
+	public synchronized void addFailure(String kind, boolean lockWait) {
+		Integer count = failures.get(kind);
+		failures.put(kind, count == null ? 1 : count + 1);
+		if (lockWait) {
+			lockWaitFailures.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @param count how many times a worker thread blocked on a monitor
+	 * @param millis how long it was blocked for, or a negative number if contention monitoring is not supported
+	 */
+	public void addMonitorBlocking(long count, long millis) {
+		monitorBlockedCount.addAndGet(count);
+		if (millis > 0) {
+			monitorBlockedMillis.addAndGet(millis);
+		}
+	}
+
+	public void setElapsedNanos(long elapsedNanos) {
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	public long getSucceeded() {
+		return latencies.getCount();
+	}
+
+	public synchronized long getFailed() {
+		long ret = 0;
+		for (Integer count : failures.values()) {
+			ret += count;
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the number of failures of each kind
+	 */
+	public synchronized Map<String, Integer> getFailures() {
+		return new TreeMap<String, Integer>(failures);
+	}
+
+	public long getLockWaitFailures() {
+		return lockWaitFailures.get();
+	}
+
+	public long getMonitorBlockedCount() {
+		return monitorBlockedCount.get();
+	}
+
+	public long getMonitorBlockedMillis() {
+		return monitorBlockedMillis.get();
+	}
+
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * @return successful submissions per second
+	 */
+	public double getThroughput() {
+		return elapsedNanos == 0 ? 0 : getSucceeded() * 1e9 / elapsedNanos;
+	}
+
+	/**
+	 * @param fraction e.g. 0.99
+	 * @return the estimated latency below which that fraction of successful submissions fell, in milliseconds
+	 */
+	public double getPercentileMs(double fraction) {
+		return latencies.getPercentileNanos(fraction) / 1e6;
+	}
+
+	public double getMeanMs() {
+		return latencies.getCount() == 0 ? 0 : latencies.getTotalNanos() / 1e6 / latencies.getCount();
+	}
+
+	public double getMaxMs() {
+		return latencies.getMaxNanos() / 1e6;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Concurrency:          %d%n", concurrency));
+		sb.append(String.format("Elapsed:              %.1f s%n", elapsedNanos / 1e9));
+		sb.append(String.format("Succeeded:            %d%n", getSucceeded()));
+		sb.append(String.format("Failed:               %d%n", getFailed()));
+		sb.append(String.format("Throughput:           %.1f submissions/s%n", getThroughput()));
+		sb.append(String.format("Latency (ms):         mean %.1f, p50 %.1f, p90 %.1f, p99 %.1f, max %.1f%n", getMeanMs(),
+		    getPercentileMs(0.5), getPercentileMs(0.9), getPercentileMs(0.99), getMaxMs()));
+		sb.append(String.format("Lock wait failures:   %d%n", getLockWaitFailures()));
+		sb.append(String.format("Monitor blocking:     %d times, %d ms%n", getMonitorBlockedCount(),
+		    getMonitorBlockedMillis()));
+		for (Map.Entry<String, Integer> failure : getFailures().entrySet()) {
+			sb.append(String.format("  %6d x %s%n", failure.getValue(), failure.getKey()));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,66 @@
+package org.openmrs.module.htmlformentry.loadtest;
+
+import java.util.Map;
+
+import org.openmrs.module.htmlformentry.SerializableFormObject;
+
+/**
+ * One form submission to replay: the form, the patient it is for, and the values entered into it, by field name
+ */
+public class ReplaySubmission {
+
+	private final String label;
+
+	private final String xmlDefinition;
+
+	private final String patientUuid;
+
+	private final Integer patientId;
+
+	private final Map<String, String[]> parameterMap;
+
+	public ReplaySubmission(String label, String xmlDefinition, String patientUuid, Integer patientId,
+	    Map<String, String[]> parameterMap) {
+		this.label = label;
+		this.xmlDefinition = xmlDefinition;
+		this.patientUuid = patientUuid;
+		this.patientId = patientId;
+		this.parameterMap = parameterMap;
+	}
+
+	/**
+	 * @param label where the submission came from, e.g. its file name
+	 * @param archived a submission archived by {@link org.openmrs.module.htmlformentry.FormSubmissionController}
+	 * @param fallbackPatientId the patient to submit the form for if the archived patient is not in the database
+	 */
+	public static ReplaySubmission fromArchive(String label, SerializableFormObject archived, Integer fallbackPatientId) {
+		return new ReplaySubmission(label, archived.getXmlDefinition(), archived.getPatientUuid(), fallbackPatientId,
+		        archived.getParameterMap());
+	}
+
+	public String getLabel() {
+		return label;
+	}
+
+	public String getXmlDefinition() {
+		return xmlDefinition;
+	}
+
+	/**
+	 * @return the patient to look up first, may be null
+	 */
+	public String getPatientUuid() {
+		return patientUuid;
+	}
+
+	/**
+	 * @return the patient to use if there is no patient with {@link #getPatientUuid()}
+	 */
+	public Integer getPatientId() {
+		return patientId;
+	}
+
+	public Map<String, String[]> getParameterMap() {
+		return parameterMap;
+	}
+}
@@ -0,0 +1,103 @@
+package org.openmrs.module.htmlformentry.loadtest;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.FormEntryContext.Mode;
+import org.openmrs.module.htmlformentry.FormEntrySession;
+import org.openmrs.module.htmlformentry.widget.CheckboxWidget;
+import org.openmrs.module.htmlformentry.widget.DateWidget;
+import org.openmrs.module.htmlformentry.widget.NumberFieldWidget;
+import org.openmrs.module.htmlformentry.widget.Option;
+import org.openmrs.module.htmlformentry.widget.SingleOptionWidget;
+import org.openmrs.module.htmlformentry.widget.TextFieldWidget;
+import org.openmrs.module.htmlformentry.widget.TimeWidget;
+import org.openmrs.module.htmlformentry.widget.Widget;
+import org.springframework.mock.web.MockHttpSession;
+
+/**
+ * Makes up submissions of a form, by rendering it once and filling in every widget the form registered with a random
+ * but valid value: an option of a dropdown, a number within the bounds of a numeric field, today for dates, and so on.
+ * Widgets it does not know how to fill in are left empty.
+ */
+public class SubmissionGenerator {
+
+	private final String xml;
+
+	private final long seed;
+
+	/**
+	 * @param xml the form to submit
+	 * @param seed for the random values, so runs can be repeated
+	 */
+	public SubmissionGenerator(String xml, long seed) {
+		this.xml = xml;
+		this.seed = seed;
+	}
+
+	/**
+	 * @param count how many submissions to make up
+	 * @param patientIds the patients to submit the form for, in turn
+	 * @return the submissions
+	 */
+	public List<ReplaySubmission> generate(int count, List<Integer> patientIds) throws Exception {
+		Patient patient = Context.getPatientService().getPatient(patientIds.get(0));
+		FormEntrySession session = new FormEntrySession(patient, null, Mode.ENTER, LoadReplay.createHtmlForm(xml),
+		        new MockHttpSession());
+		session.getHtmlToDisplay();
+		Map<Widget, String> fieldNames = session.getContext().getFieldNames();
+
+		List<ReplaySubmission> ret = new ArrayList<ReplaySubmission>();
+		for (int i = 0; i < count; i++) {
+			Random random = new Random(seed + i);
+			Map<String, String[]> parameterMap = new LinkedHashMap<String, String[]>();
+			for (Map.Entry<Widget, String> field : fieldNames.entrySet()) {
+				fillIn(field.getKey(), field.getValue(), parameterMap, random, i);
+			}
+			ret.add(new ReplaySubmission("synthetic-" + i, xml, null, patientIds.get(i % patientIds.size()), parameterMap));
+		}
+		return ret;
+	}
+
+	private void fillIn(Widget widget, String name, Map<String, String[]> parameterMap, Random random, int index) {
+		if (widget instanceof DateWidget) {
+			put(parameterMap, name, new SimpleDateFormat("yyyy-MM-dd").format(new Date()));
+		} else if (widget instanceof TimeWidget) {
+			put(parameterMap, name + "hours", String.valueOf(random.nextInt(24)));
+			put(parameterMap, name + "minutes", String.valueOf(random.nextInt(60)));
+		} else if (widget instanceof NumberFieldWidget) {
+			NumberFieldWidget numberField = (NumberFieldWidget) widget;
+			double min = numberField.getAbsoluteMinimum() == null ? 0 : numberField.getAbsoluteMinimum();
+			double max = numberField.getAbsoluteMaximum() == null ? min + 100 : numberField.getAbsoluteMaximum();
+			double value = min + random.nextDouble() * (max - min);
+			put(parameterMap, name, numberField.isFloatingPoint() ? String.valueOf(value) : String.valueOf((long) value));
+		} else if (widget instanceof SingleOptionWidget) {
+			List<String> values = new ArrayList<String>();
+			for (Option option : ((SingleOptionWidget) widget).getOptions()) {
+				if (option.getValue() != null && option.getValue().length() > 0) {
+					values.add(option.getValue());
+				}
+			}
+			if (!values.isEmpty()) {
+				put(parameterMap, name, values.get(random.nextInt(values.size())));
+			}
+		} else if (widget instanceof CheckboxWidget) {
+			if (random.nextBoolean()) {
+				put(parameterMap, name, ((CheckboxWidget) widget).getValue());
+			}
+		} else if (widget instanceof TextFieldWidget) {
+			put(parameterMap, name, "Load test " + index);
+		}
+	}
+
+	private void put(Map<String, String[]> parameterMap, String name, String value) {
+		parameterMap.put(name, new String[] { value });
+	}
+}
@@ -0,0 +1,26 @@
+package org.openmrs.module.htmlformentry.web.controller;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.metrics.FormMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+/**
+ * Serves the render and submit timings of every form as JSON, keyed by html form id and then by stage (see
+ * {@link FormMetrics}). The same metrics are available through JMX.
+ */
+@Controller
+public class FormMetricsController {
+
+    @Autowired
+    private FormMetrics formMetrics;
+
+    @RequestMapping("/module/htmlformentry/metrics")
+    @ResponseBody
+    public Object getMetrics() {
+        Context.requirePrivilege("Manage Forms");
+        return formMetrics.getSnapshot();
+    }
+}
@@ -0,0 +1,49 @@
+package org.openmrs.module.htmlformentry.web.controller;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.metrics.FormProfiler;
+import org.openmrs.util.PrivilegeConstants;
+import org.springframework.stereotype.Controller;
+import org.springframework.ui.Model;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+/**
+ * Shows the slowest renders and submissions of forms, and the slowest tags, found by the {@link FormProfiler}, and
+ * switches it on and off
+ */
+@Controller
+@RequestMapping("/module/htmlformentry/profiler")
+public class FormProfilerController {
+
+	@RequestMapping(method = RequestMethod.GET)
+	public String showProfile(Model model) {
+		FormProfiler profiler = FormProfiler.getInstance();
+		model.addAttribute("enabled", profiler.isEnabled());
+		model.addAttribute("topN", FormProfiler.TOP_N);
+		model.addAttribute("slowestRuns", profiler.getSlowestRuns());
+		model.addAttribute("slowestTags", profiler.getSlowestTags());
+		return "/module/htmlformentry/profiler";
+	}
+
+	@RequestMapping(method = RequestMethod.POST, params = "action=start")
+	public String start() {
+		Context.requirePrivilege(PrivilegeConstants.MANAGE_FORMS);
+		FormProfiler.getInstance().setEnabled(true);
+		return "redirect:profiler.form";
+	}
+
+	@RequestMapping(method = RequestMethod.POST, params = "action=stop")
+	public String stop() {
+		Context.requirePrivilege(PrivilegeConstants.MANAGE_FORMS);
+		FormProfiler.getInstance().setEnabled(false);
+		return "redirect:profiler.form";
+	}
+
+	@RequestMapping(method = RequestMethod.POST, params = "action=reset")
+	public String reset() {
+		Context.requirePrivilege(PrivilegeConstants.MANAGE_FORMS);
+		FormProfiler.getInstance().reset();
+		return "redirect:profiler.form";
+	}
+}
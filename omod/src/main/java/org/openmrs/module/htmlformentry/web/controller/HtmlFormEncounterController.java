@@ -12,6 +12,7 @@ import org.openmrs.module.htmlformentry.FormEntryContext;
 import org.openmrs.module.htmlformentry.FormEntrySession;
 import org.openmrs.module.htmlformentry.HtmlForm;
 import org.openmrs.module.htmlformentry.HtmlFormEntryService;
+import org.openmrs.module.htmlformentry.cache.HtmlFormSchemaCache;
 import org.openmrs.module.htmlformentry.schema.HtmlFormField;
 import org.openmrs.module.htmlformentry.schema.HtmlFormSchema;
 import org.openmrs.module.htmlformentry.schema.HtmlFormSection;
@@ -23,10 +24,10 @@ import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
-import org.springframework.web.bind.annotation.ResponseBody;
 
 import java.text.SimpleDateFormat;
 import java.util.List;
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 /**
@@ -46,15 +47,25 @@ public class HtmlFormEncounterController {
     // TODO does not handle DrugOrder and Regimen schema objects--currently only works for obs and obsgroups
     // TODO schema display still works?
     @RequestMapping(value = "/module/htmlformentry/encounter.json", method = RequestMethod.GET)
-    @ResponseBody
-    public JsonNode encounterSchemaAsJson(@RequestParam(value="encounter") Encounter encounter,
-                                          HttpSession httpSession) throws Exception {
+    public void encounterSchemaAsJson(@RequestParam(value="encounter") Encounter encounter,
+                                      HttpSession httpSession, HttpServletResponse response) throws Exception {
 
         // TODO error handling-- no form?
-        ObjectMapper jackson = new ObjectMapper();
         HtmlForm form = Context.getService(HtmlFormEntryService.class).getHtmlFormByForm(encounter.getForm());
-        HtmlFormSchema schema = generateSchema(form.getXmlData(), httpSession, encounter);
-        return buildSchemaAsJsonNode(schema, jackson);
+
+        // the JSON is only re-rendered if the form or the encounter has changed since it was last requested
+        HtmlFormSchemaCache schemaCache = getSchemaCache();
+        String json = schemaCache.getEncounterJson(form, encounter);
+        if (json == null) {
+            ObjectMapper jackson = new ObjectMapper();
+            HtmlFormSchema schema = generateSchema(form.getXmlData(), httpSession, encounter);
+            json = jackson.writeValueAsString(buildSchemaAsJsonNode(schema, jackson));
+            schemaCache.putEncounterJson(form, encounter, json);
+        }
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().write(json);
     }
 
     // is public to make it easier to test
@@ -186,6 +197,10 @@ public class HtmlFormEncounterController {
         return fes.getContext().getSchema();
     }
 
+    private HtmlFormSchemaCache getSchemaCache() {
+        return Context.getRegisteredComponent("htmlformentry.HtmlFormSchemaCache", HtmlFormSchemaCache.class);
+    }
+
     // used for mocking
     public void setLocationService(LocationService locationService) {
         this.locationService = locationService;
@@ -6,6 +6,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 import java.util.WeakHashMap;
 
 import javax.servlet.http.HttpServletRequest;
@@ -26,7 +27,12 @@ import org.openmrs.module.htmlformentry.FormSubmissionError;
 import org.openmrs.module.htmlformentry.HtmlForm;
 import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
 import org.openmrs.module.htmlformentry.ValidationException;
+import org.openmrs.module.htmlformentry.metrics.FormMetrics;
+import org.openmrs.module.htmlformentry.metrics.FormProfiler;
+import org.openmrs.module.htmlformentry.store.FormSessionState;
+import org.openmrs.module.htmlformentry.store.FormSessionStore;
 import org.openmrs.util.OpenmrsUtil;
+import org.openmrs.web.WebConstants;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
@@ -80,10 +86,52 @@ public class HtmlFormEntryController {
                                                 @RequestParam(value="returnUrl", required=false) String returnUrl,
                                                 @RequestParam(value="formModifiedTimestamp", required=false) Long formModifiedTimestamp,
                                                 @RequestParam(value="encounterModifiedTimestamp", required=false) Long encounterModifiedTimestamp,
-                                                @RequestParam(value="hasChangedInd", required=false) String hasChangedInd) throws Exception {
+                                                @RequestParam(value="hasChangedInd", required=false) String hasChangedInd,
+                                                @RequestParam(value="formSessionKey", required=false) String formSessionKey) throws Exception {
 
     	long ts = System.currentTimeMillis();
 
+        String modeParam = request.getParameter("mode");
+        String encounterIdParam = request.getParameter("encounterId");
+
+        if (StringUtils.hasText(formSessionKey)) {
+            FormSessionState state = HtmlFormEntryUtil.getFormSessionStore().get(formSessionKey);
+            if (state != null && !state.isOwnedBy(Context.getAuthenticatedUser())) {
+                // someone else's form, so start a form of our own rather than taking over theirs
+                formSessionKey = null;
+            } else if (state != null && "GET".equals(request.getMethod())) {
+                // pick up a form that was being filled in, possibly on another server
+                try {
+                    FormEntrySession session = state.restore(request.getSession());
+                    session.setFormSessionKey(formSessionKey);
+                    log.info("Restored form session " + formSessionKey);
+                    return keepInProgress(session, ts);
+                }
+                catch (IllegalStateException ex) {
+                    // the form or encounter has changed since, so what was entered no longer fits it; start over
+                    log.info("Discarding form session " + formSessionKey + ": " + ex.getMessage());
+                    HtmlFormEntryUtil.getFormSessionStore().remove(formSessionKey);
+                    request.getSession().setAttribute(WebConstants.OPENMRS_MSG_ATTR, "htmlformentry.formSessionDiscarded");
+                    if (htmlFormId == null && formId == null) {
+                        htmlFormId = state.getHtmlFormId();
+                    }
+                    if (patientId == null && state.getPatientUuid() != null) {
+                        Patient statePatient = Context.getPatientService().getPatientByUuid(state.getPatientUuid());
+                        patientId = statePatient == null ? null : statePatient.getPatientId();
+                    }
+                    if (!StringUtils.hasText(encounterIdParam) && state.getEncounterUuid() != null) {
+                        Encounter stateEncounter = Context.getEncounterService().getEncounterByUuid(state.getEncounterUuid());
+                        encounterIdParam = stateEncounter == null ? null : stateEncounter.getEncounterId().toString();
+                    }
+                    if (!StringUtils.hasText(modeParam) && state.getMode() != null) {
+                        modeParam = state.getMode().name();
+                    }
+                    formModifiedTimestamp = null;
+                    encounterModifiedTimestamp = null;
+                }
+            }
+        }
+
         Mode mode = Mode.VIEW;
     	
     	Integer personId = null;
@@ -93,7 +141,6 @@ public class HtmlFormEntryController {
     	}
     	
     	
-    	String modeParam = request.getParameter("mode");
 		if ("enter".equalsIgnoreCase(modeParam)) {
 			mode = Mode.ENTER;
 		}
@@ -106,9 +153,9 @@ public class HtmlFormEntryController {
     	Form form = null;
     	HtmlForm htmlForm = null;
 
-    	if (StringUtils.hasText(request.getParameter("encounterId"))) {
+    	if (StringUtils.hasText(encounterIdParam)) {
     		
-    		Integer encounterId = Integer.valueOf(request.getParameter("encounterId"));
+    		Integer encounterId = Integer.valueOf(encounterIdParam);
     		encounter = Context.getEncounterService().getEncounter(encounterId);
     		if (encounter == null)
     			throw new IllegalArgumentException("No encounter with id=" + encounterId);
@@ -199,11 +246,41 @@ public class HtmlFormEntryController {
         if (hasChangedInd != null) session.setHasChangedInd(hasChangedInd);
 
         // ensure we've generated the form's HTML (and thus set up the submission actions, etc) before we do anything
-        session.getHtmlToDisplay();
+        if (mode == Mode.VIEW && "GET".equals(request.getMethod())) {
+            // nothing is submitted when viewing an encounter, so the html can come from the cache
+            session.getViewHtmlToDisplay();
+        } else {
+            session.getHtmlToDisplay();
+        }
+
+        if (mode != Mode.VIEW) {
+            session.setFormSessionKey(StringUtils.hasText(formSessionKey) ? formSessionKey : UUID.randomUUID().toString());
+        }
+
+        return keepInProgress(session, ts);
+    }
+
+    /**
+     * Holds on to a newly opened or restored form entry session until the form is submitted
+     * 
+     * @param session the session to keep
+     * @param ts when the request started, for logging
+     * @return the session
+     */
+    private FormEntrySession keepInProgress(FormEntrySession session, long ts) {
+        // the session is kept until the form is submitted, so let go of whatever only rendering needed
+        long sizeBeforeCompaction = session.getEstimatedRetainedSize();
+        session.compact();
+        long retainedSize = session.getEstimatedRetainedSize();
+        FormMetrics.getInstance().recordRetainedSessionSize(retainedSize);
 
         setVolatileUserData(FORM_IN_PROGRESS_KEY, session);
        
         log.info("Took " + (System.currentTimeMillis() - ts) + " ms");
+        if (log.isDebugEnabled()) {
+            log.debug("Form entry session retains about " + retainedSize / 1024 + " KB (" +
+                    sizeBeforeCompaction / 1024 + " KB before compaction)");
+        }
         
         return session;
     }
@@ -260,6 +337,29 @@ public class HtmlFormEntryController {
                                Errors errors,
                                HttpServletRequest request,
                                Model model) throws Exception {
+        FormProfiler profiler = FormProfiler.getInstance();
+        FormProfiler.Profile profile = profiler.start(session, FormProfiler.SUBMIT);
+        try {
+            return submit(session, errors, request);
+        }
+        finally {
+            profiler.stop(profile);
+        }
+    }
+
+    private ModelAndView submit(FormEntrySession session, Errors errors, HttpServletRequest request) throws Exception {
+        // keep what was entered, so the form can be picked up again if the submission fails or this server goes away
+        if (session.getFormSessionKey() != null) {
+            FormSessionStore store = HtmlFormEntryUtil.getFormSessionStore();
+            FormSessionState stored = store.get(session.getFormSessionKey());
+            if (stored == null || stored.isOwnedBy(Context.getAuthenticatedUser())) {
+                store.save(FormSessionState.forSession(session.getFormSessionKey(), session, request.getParameterMap()));
+            } else {
+                log.warn("Not overwriting form session " + session.getFormSessionKey() + " of another user");
+            }
+        }
+
+    	long validationStarted = System.nanoTime();
     	try {
             List<FormSubmissionError> validationErrors = session.getSubmissionController().validateSubmission(session.getContext(), request);
             if (validationErrors != null && validationErrors.size() > 0) {
@@ -269,6 +369,7 @@ public class HtmlFormEntryController {
             log.error("Exception during form validation", ex);
             errors.reject("Exception during form validation, see log for more details: " + ex);
         }
+        FormMetrics.getInstance().record(session.getHtmlFormId(), FormMetrics.VALIDATE, System.nanoTime() - validationStarted);
         
         if (errors.hasErrors()) {
         	return new ModelAndView(FORM_PATH, "command", session);
@@ -288,6 +389,9 @@ public class HtmlFormEntryController {
     	try {
             session.getSubmissionController().handleFormSubmission(session, request);
             HtmlFormEntryUtil.getService().applyActions(session);
+            if (session.getFormSessionKey() != null) {
+                HtmlFormEntryUtil.getFormSessionStore().remove(session.getFormSessionKey());
+            }
             String successView = session.getAfterSaveUrlTemplate();
             if (successView != null) {
                 successView = successView.replaceAll("\\{\\{patient.id\\}\\}", session.getPatient().getId().toString());
@@ -2,13 +2,10 @@ package org.openmrs.module.htmlformentry.web.controller;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.openmrs.Patient;
 import org.openmrs.api.context.Context;
-import org.openmrs.module.htmlformentry.FormEntryContext;
-import org.openmrs.module.htmlformentry.FormEntrySession;
 import org.openmrs.module.htmlformentry.HtmlForm;
 import org.openmrs.module.htmlformentry.HtmlFormEntryService;
-import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+import org.openmrs.module.htmlformentry.cache.HtmlFormSchemaCache;
 import org.openmrs.module.htmlformentry.schema.HtmlFormSchema;
 import org.openmrs.util.OpenmrsUtil;
 import org.springframework.stereotype.Controller;
@@ -37,6 +34,7 @@ public class HtmlFormSchemaController {
                            Model model, HttpSession httpSession) throws Exception {
         String message = "";
         String xml = null;
+        HtmlFormSchema schema = null;
         if (StringUtils.hasText(filePath)) {
         	model.addAttribute("filePath", filePath);
         	try {
@@ -55,22 +53,20 @@ public class HtmlFormSchemaController {
         }
         else if (id != null) {
         	HtmlForm form = Context.getService(HtmlFormEntryService.class).getHtmlForm(id);
-        	xml = form.getXmlData();
+        	schema = getSchemaCache().getSchema(form, httpSession);
         }
         else {
         	message = "You must specify a file path to preview from file";
         }
 
-        model.addAttribute("schema", generateSchema(xml, httpSession));
+        if (schema == null) {
+        	schema = HtmlFormSchemaCache.generateSchema(xml, httpSession);
+        }
+        model.addAttribute("schema", schema);
         model.addAttribute("message", message);
     }
 
-    private HtmlFormSchema generateSchema(String xml, HttpSession httpSession) throws Exception {
-        Patient p = HtmlFormEntryUtil.getFakePerson();
-        HtmlForm fakeForm = new HtmlForm();
-        fakeForm.setXmlData(xml);
-        FormEntrySession fes = new FormEntrySession(p, null, FormEntryContext.Mode.ENTER, fakeForm, httpSession);
-        fes.getHtmlToDisplay();
-        return fes.getContext().getSchema();
+    private HtmlFormSchemaCache getSchemaCache() {
+        return Context.getRegisteredComponent("htmlformentry.HtmlFormSchemaCache", HtmlFormSchemaCache.class);
     }
 }
@@ -2,31 +2,31 @@ package org.openmrs.module.htmlformentry.web.controller;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.Vector;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.openmrs.Concept;
 import org.openmrs.ConceptClass;
 import org.openmrs.ConceptSearchResult;
-import org.openmrs.Drug;
 import org.openmrs.api.ConceptService;
 import org.openmrs.api.context.Context;
-import org.openmrs.module.htmlformentry.compatibility.DrugCompatibility;
+import org.openmrs.module.htmlformentry.cache.ConceptAnswerIndex;
+import org.openmrs.module.htmlformentry.cache.ConceptAnswerIndexCache;
+import org.openmrs.module.htmlformentry.cache.DrugIndex;
 import org.openmrs.propertyeditor.ConceptClassEditor;
 import org.openmrs.propertyeditor.ConceptEditor;
-import org.openmrs.util.OpenmrsConstants;
-import org.openmrs.web.WebUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
@@ -42,7 +42,10 @@ public class HtmlFormSearchController {
     private ConceptService conceptService;
     
     @Autowired
-    private DrugCompatibility drugCompatibility;
+    private DrugIndex drugIndex;
+
+    @Autowired
+    private ConceptAnswerIndexCache conceptAnswerIndexCache;
 
 	@InitBinder
 	public void initBinder(WebDataBinder binder) {
@@ -68,11 +71,8 @@ public class HtmlFormSearchController {
         response.setCharacterEncoding("UTF-8");
         PrintWriter out = response.getWriter();
 
-		List<Locale> l = new Vector<Locale>();
-		l.add(Context.getLocale());
-
 		List<ConceptClass> cptClassList = new ArrayList<ConceptClass>();
-		HashSet<Integer> set = new HashSet<Integer>();
+		Set<Integer> set = new LinkedHashSet<Integer>();
 		if ( !"null".equals(allowedconceptids) && !"".equals(allowedconceptids)) {
 			// we filter this by conceptids
 			for (StringTokenizer st = new StringTokenizer(allowedconceptids,
@@ -89,64 +89,55 @@ public class HtmlFormSearchController {
 			throw new Exception(
 					"answerconceptids set and answerclasses are both empty.");
 		}
-		List<ConceptSearchResult> results = conceptService.getConcepts(
-                query, l, false, cptClassList, null, null, null, null, null,
-                null);
-		if (!set.isEmpty()) {
-			for (Iterator<ConceptSearchResult> it = results.iterator(); it.hasNext();) {
-				if (!set.contains(it.next().getConcept().getConceptId())) {
-					it.remove();
-				}
-			}
-		}
-		
+
 		// return in JSON object list format
 		//[ { "id": "Dromas ardeola", "label": "Crab-Plover", "value":"Crab-Plover" },
-		out.print("[");
-		for (Iterator<ConceptSearchResult> i = results.iterator(); i.hasNext();) {
-			ConceptSearchResult res = i.next();
-			String ds = res.getConcept().getDisplayString();
-			out.print("{ \"value\":\"");
-			if (res.getConceptName().isPreferred()
-					|| res.getConceptName().getName().equalsIgnoreCase(ds)) {
-				out.print(WebUtil.escapeQuotes(res.getConceptName().getName()));
-			} else {
-				out.print(WebUtil.escapeQuotes(res.getConcept().getDisplayString()));
+		JsonGenerator json = new JsonFactory().createJsonGenerator(out);
+		json.writeStartArray();
+		if (!set.isEmpty()) {
+			// restricted to a fixed list of answers, so search an index of just their names, rather than the dictionary
+			ConceptAnswerIndex index = conceptAnswerIndexCache.getIndex(new ArrayList<Integer>(set), Context.getLocale());
+			for (ConceptAnswerIndex.Match match : index.search(query)) {
+				writeConcept(json, match.getValue(), match.getConceptId());
+			}
+		} else {
+			List<Locale> l = new Vector<Locale>();
+			l.add(Context.getLocale());
+			List<ConceptSearchResult> results = conceptService.getConcepts(
+	                query, l, false, cptClassList, null, null, null, null, null,
+	                null);
+			for (ConceptSearchResult res : results) {
+				String ds = res.getConcept().getDisplayString();
+				if (res.getConceptName().isPreferred()
+						|| res.getConceptName().getName().equalsIgnoreCase(ds)) {
+					writeConcept(json, res.getConceptName().getName(), res.getConcept().getId());
+				} else {
+					writeConcept(json, ds, res.getConcept().getId());
+				}
 			}
-			out.print("\",\"id\"");
-			out.print(":\"" + res.getConcept().getId());
-			out.print("\"}");
-			if (i.hasNext())
-				out.print(",");
 		}
-		out.print("]");
+		json.writeEndArray();
+		json.flush();
+	}
+
+	private void writeConcept(JsonGenerator json, String value, Integer conceptId) throws IOException {
+		json.writeStartObject();
+		json.writeStringField("value", value);
+		json.writeStringField("id", conceptId.toString());
+		json.writeEndObject();
 	}
 
+    /**
+     * Drug Search, against an in-memory catalog of drugs (see {@link DrugIndex})
+     */
     @RequestMapping("/module/htmlformentry/drugSearch")
     public void localizedMessage(@RequestParam("term") String query,
+                                 @RequestParam(required = false, value = "start") Integer start,
+                                 @RequestParam(required = false, value = "length") Integer length,
                                  HttpServletResponse response) throws IOException {
 
-        List<Drug> drugs;
-
-        // we want to use a later API method from 1.8+ if it is available, so we need to access it via reflection
-        if (OpenmrsConstants.OPENMRS_VERSION_SHORT.startsWith("1.6")
-                || OpenmrsConstants.OPENMRS_VERSION_SHORT.startsWith("1.7")) {
-                drugs = conceptService.getDrugs(query);      // this method returns retired drugs, so it is not ideal
-        }
-        else {
-            try {
-                Object conceptService = Context.getService(Context.loadClass("org.openmrs.api.ConceptService"));
-                Method getDrugsMethod = conceptService.getClass().getMethod("getDrugs", String.class, Concept.class,
-                        boolean.class, boolean.class, boolean.class, Integer.class, Integer.class);
-
-                drugs = (List<Drug>) getDrugsMethod.invoke(conceptService, query, null, true, false, false, 0, 100);  // this method excludes retired drugs
-
-            } catch (Exception ex) {
-                throw new RuntimeException("Unable to access ConceptService getDrugs method via reflection", ex);
-            }
-        }
-
-        List<Map<String, Object>> simplified = drugCompatibility.simplify(drugs);
+        List<Map<String, Object>> simplified = drugIndex.search(query, Context.getLocale(), start == null ? 0 : start,
+                length == null ? DrugIndex.DEFAULT_PAGE_SIZE : length);
 
         response.setContentType("application/json");
         response.setCharacterEncoding("UTF-8");
@@ -1,19 +1,23 @@
 package org.openmrs.module.htmlformentry.web.controller;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
-import org.openmrs.Cohort;
-import org.openmrs.Patient;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
 import org.openmrs.Person;
-import org.openmrs.Program;
-import org.openmrs.api.PatientService;
-import org.openmrs.api.PersonService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.htmlformentry.HtmlFormEntryService;
-import org.openmrs.web.dwr.PersonListItem;
+import org.openmrs.module.htmlformentry.element.PersonStub;
+import org.openmrs.util.PrivilegeConstants;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -22,139 +26,166 @@ import org.springframework.web.bind.annotation.RequestParam;
 
 @Controller
 public class PopupWidgetController {
-                      
+
+	/**
+	 * The most people listed in the person search popup; users are asked to refine their search beyond this
+	 */
+	public static final int MAX_POPUP_RESULTS = 500;
+
+	public static final int DEFAULT_PAGE_SIZE = 50;
+
+	public static final int MAX_PAGE_SIZE = 1000;
+
+	public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
 	@RequestMapping("/module/htmlformentry/personSearch")
 	public void patientSearch(ModelMap model) throws Exception {
-		
+
 	}
-	
-	@SuppressWarnings("unchecked")
+
     @RequestMapping("/module/htmlformentry/personResultTable")
-	public void personSearch(ModelMap model, @RequestParam(value="pSearch",required=false) String searchPhrase, 
+	public void personSearch(ModelMap model, @RequestParam(value="pSearch",required=false) String searchPhrase,
 	                                 @RequestParam(value="pAttribute",required=false) String searchAttribute,
 	                                 @RequestParam(value="pAttributeValue",required=false) String attributeValue,
 	                                 @RequestParam(value="pProgram",required=false) String searchProgram) throws Exception {
-		
-		List<Integer> personId = new ArrayList<Integer>();
-		List<Object> personList = new ArrayList<Object>();
-		
-		//first we are going to search by name for patients
-		PatientService patientService = Context.getPatientService();
-		for (Patient p : patientService.getPatients(searchPhrase, null, null, false)) {
-			personList.add(PersonListItem.createBestMatch(p));
-			personId.add(p.getId());
+
+		Context.requirePrivilege(PrivilegeConstants.VIEW_PEOPLE);
+
+		// fetch one more than we show, to know whether there are more
+		List<PersonStub> people = Context.getService(HtmlFormEntryService.class).getPeopleAsPersonStubs(searchPhrase,
+		    splitInPlace(searchAttribute), splitInPlace(attributeValue), split(searchProgram), null, null, MAX_POPUP_RESULTS + 1);
+
+		boolean moreResults = people.size() > MAX_POPUP_RESULTS;
+		if (moreResults) {
+			people = people.subList(0, MAX_POPUP_RESULTS);
 		}
-		
-		// now we check for persons (that won't be brought back by the patient search)
-		PersonService ps = Context.getPersonService();
-		for (Person p : ps.getPeople(searchPhrase, null)) {
-			
-			if(!personId.contains(p.getId()))
-			{
-				personList.add(PersonListItem.createBestMatch(p));
+
+		model.put("people", people);
+		model.put("moreResults", moreResults);
+		model.put("maxResults", MAX_POPUP_RESULTS);
+	}
+
+	/**
+	 * Streams one page of matching people as JSON, for widgets that search for people as the user types. Each person
+	 * has a "label" and a "value" (the person id), as expected by the jQuery UI autocomplete. If there are more
+	 * people, the cursor to fetch the next page with is returned in the {@value #NEXT_CURSOR_HEADER} header.
+	 */
+	@RequestMapping("/module/htmlformentry/personStubs")
+	public void personStubs(@RequestParam(value="term",required=false) String searchPhrase,
+	                        @RequestParam(value="pAttribute",required=false) String searchAttribute,
+	                        @RequestParam(value="pAttributeValue",required=false) String attributeValue,
+	                        @RequestParam(value="pProgram",required=false) String searchProgram,
+	                        @RequestParam(value="exclude",required=false) String exclude,
+	                        @RequestParam(value="cursor",required=false) String cursor,
+	                        @RequestParam(value="pageSize",required=false) Integer pageSize,
+	                        HttpServletResponse response) throws IOException {
+
+		Context.requirePrivilege(PrivilegeConstants.VIEW_PEOPLE);
+
+		int size = pageSize == null || pageSize <= 0 ? DEFAULT_PAGE_SIZE : Math.min(pageSize, MAX_PAGE_SIZE);
+		List<Person> personsToExclude = new ArrayList<Person>();
+		for (String personId : split(exclude)) {
+			try {
+				personsToExclude.add(new Person(Integer.valueOf(personId)));
 			}
-		}
-		
-		// also search on patient identifier if the query contains a number
-		if (searchPhrase.matches(".*\\d+.*")) {
-			patientService = Context.getPatientService();
-			for (Patient p : patientService.getPatients(null, searchPhrase, null, false)) {
-				if(!personId.contains(p.getId()))
-				{
-					personList.add(PersonListItem.createBestMatch(p));
-				}
+			catch (NumberFormatException ex) {
+				// ignore anything that is not a person id
 			}
 		}
-		
-		Cohort cohort = null;
-		if(searchAttribute != null)
-		{
-			String[] attributes = searchAttribute.split(",");
-			String[] attrValues = null;
-			if(attributeValue != null)
-			{
-				attrValues = searchAttribute.split(",");
-			}
-			
-			for(int i = 0; i < attributes.length; i++)
-			{
-				String attr = attributes[i];
-				String val = null;
-				if(attrValues != null && attrValues[i].trim().length() > 0)
-				{
-					val = attrValues[i];
-				}
-				if(attr != null && attr.trim().length() > 0)
-				{
-					List<Integer> ids = Context.getService(HtmlFormEntryService.class).getPersonIdsHavingAttributes(attr, val);
-					Set<Integer> setOfIds = new HashSet<Integer>();
-					setOfIds.addAll(ids);
-					
-					Cohort pp = new Cohort();
-					pp.setMemberIds(setOfIds);
-				
-					if(cohort != null)
-					{
-						cohort = Cohort.intersect(cohort, pp);
-					}
-					else
-					{
-						cohort = pp;
-					}
-				}
-			}
+
+		List<PersonStub> people = Context.getService(HtmlFormEntryService.class).getPeopleAsPersonStubs(searchPhrase,
+		    splitInPlace(searchAttribute), splitInPlace(attributeValue), split(searchProgram), personsToExclude, fromCursor(cursor), size + 1);
+		if (people.size() > size) {
+			people = people.subList(0, size);
+			response.setHeader(NEXT_CURSOR_HEADER, toCursor(people.get(size - 1)));
+		}
+
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		JsonGenerator json = jsonFactory.createJsonGenerator(response.getOutputStream(), JsonEncoding.UTF8);
+		json.writeStartArray();
+		for (PersonStub person : people) {
+			json.writeStartObject();
+			json.writeNumberField("id", person.getId());
+			json.writeStringField("value", person.getId().toString());
+			json.writeStringField("label", person.getDisplayValue());
+			json.writeStringField("identifier", person.getIdentifier());
+			json.writeStringField("gender", person.getGender());
+			json.writeEndObject();
+		}
+		json.writeEndArray();
+		json.close();
+	}
+
+	/**
+	 * People are paged by name, so the cursor carries the id, family name and given name of the last person of a page,
+	 * each url-encoded and separated by colons
+	 */
+	static String toCursor(PersonStub last) {
+		try {
+			return last.getId() + ":" + URLEncoder.encode(StringUtils.defaultString(last.getFamilyName()), "UTF-8") + ":"
+			        + URLEncoder.encode(StringUtils.defaultString(last.getGivenName()), "UTF-8");
+		}
+		catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * @return the last person of the previous page, as given by {@link #toCursor(PersonStub)}, or null for the first
+	 *         page or a cursor that cannot be read
+	 */
+	static PersonStub fromCursor(String cursor) {
+		if (StringUtils.isBlank(cursor)) {
+			return null;
 		}
-		
-		if(searchProgram != null)
-		{
-			String[] programs = searchProgram.split(",");
-			
-			for(int i = 0; i < programs.length; i++)
-			{
-				String prog = programs[i];
-				if(prog != null && prog.trim().length() > 0)
-				{
-					Program personProgram = Context.getProgramWorkflowService().getProgramByUuid(prog);
-					if(personProgram == null)
-					{
-						personProgram = Context.getProgramWorkflowService().getProgram(Integer.parseInt(prog));
-					}
-					if(personProgram != null)
-					{
-						Cohort pp = Context.getPatientSetService().getPatientsInProgram(personProgram, null, null);
-						if(cohort != null)
-						{
-							cohort = Cohort.intersect(cohort, pp);
-						}
-						else
-						{
-							cohort = pp;
-						}
-					}
+		String[] parts = cursor.split(":", -1);
+		if (parts.length != 3) {
+			return null;
+		}
+		try {
+			PersonStub last = new PersonStub(Integer.valueOf(parts[0]));
+			last.setFamilyName(URLDecoder.decode(parts[1], "UTF-8"));
+			last.setGivenName(URLDecoder.decode(parts[2], "UTF-8"));
+			return last;
+		}
+		catch (IllegalArgumentException ex) {
+			// not a number, or badly encoded
+			return null;
+		}
+		catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * @return the non-blank comma-separated items of the given parameter
+	 */
+	private List<String> split(String param) {
+		List<String> ret = new ArrayList<String>();
+		if (param != null) {
+			for (String item : param.split(",")) {
+				if (StringUtils.isNotBlank(item)) {
+					ret.add(item.trim());
 				}
 			}
 		}
-		//not iterate through the person list and filter based on the cohort
-		if(cohort != null)
-		{
-			List<Object> filteredList = new ArrayList<Object>();
-			for(Object o: personList)
-			{
-				PersonListItem pli = (PersonListItem)o;
-				
-				if(cohort.getMemberIds().contains(pli.getPersonId()))
-				{
-					filteredList.add(o);
-				}
+		return ret;
+	}
+
+	/**
+	 * Attribute values line up with the attribute names, so blank items are kept in place (as null), as are the "null"
+	 * placeholders the person widgets use for attributes that can have any value
+	 */
+	private List<String> splitInPlace(String param) {
+		List<String> ret = new ArrayList<String>();
+		if (param != null) {
+			for (String item : param.split(",", -1)) {
+				ret.add(StringUtils.isBlank(item) || "null".equals(item.trim()) ? null : item.trim());
 			}
-			personList = filteredList;
-		}	
-		
-		model.put("people", personList);
-		
+		}
+		return ret;
 	}
-	
-	
-	
-	
 }
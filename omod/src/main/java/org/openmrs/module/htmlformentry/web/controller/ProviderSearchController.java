@@ -1,41 +1,85 @@
 package org.openmrs.module.htmlformentry.web.controller;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.openmrs.Provider;
-import org.openmrs.api.ProviderService;
 import org.openmrs.api.context.Context;
-import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
-import org.openmrs.module.htmlformentry.element.ProviderStub;
+import org.openmrs.module.htmlformentry.HtmlFormEntryConstants;
+import org.openmrs.module.htmlformentry.cache.ProviderIndex;
 import org.openmrs.module.htmlformentry.util.MatchMode;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 
-import java.util.List;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Arrays;
 
+/**
+ * Serves the provider autocomplete from the in-memory {@link ProviderIndex}, one page at a time. The response body is
+ * the list of providers on the requested page; if there are more, the cursor to fetch the next page with is returned
+ * in the {@value #NEXT_CURSOR_HEADER} header.
+ */
 @Controller
 public class ProviderSearchController {
 
+    protected final Log log = LogFactory.getLog(getClass());
+
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    @Autowired
+    private ProviderIndex providerIndex;
+
     @RequestMapping("/module/htmlformentry19/providers")
     @ResponseBody
     public Object getProviders(@RequestParam(value="searchParam",required = false) String searchParam,
-                               @RequestParam(value="matchMode",required=false)MatchMode matchMode)
+                               @RequestParam(value="matchMode",required=false)MatchMode matchMode,
+                               @RequestParam(value="cursor",required=false) Integer cursor,
+                               @RequestParam(value="pageSize",required=false) Integer pageSize,
+                               HttpServletRequest request, HttpServletResponse response)
             throws Exception {
-        ProviderService ps = Context.getProviderService();
+        int size = getPageSize(pageSize);
 
-        List<Provider> providerList = null;
-        List<ProviderStub> ret = null;
-        if(searchParam == null) {
-            providerList = ps.getAllProviders();
-            ret = HtmlFormEntryUtil.getProviderStubs(providerList);
+        // the page is fully determined by the version of the catalog and the request parameters
+        String etag = "\"" + providerIndex.getVersion() + "-"
+                + Integer.toHexString(Arrays.asList(searchParam, matchMode, cursor, size).hashCode()) + "\"";
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", "private, no-cache");
+        if (etag.equals(request.getHeader("If-None-Match"))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return null;
         }
-        else {
-            providerList = ps.getProviders(searchParam, null, null, null);
-            ret = HtmlFormEntryUtil.getProviderStubs(providerList,searchParam,matchMode);
+
+        ProviderIndex.Page page = providerIndex.search(searchParam, matchMode, cursor, size);
+        if (page.getNextCursor() != null) {
+            response.setHeader(NEXT_CURSOR_HEADER, page.getNextCursor().toString());
         }
+        return page.getProviders();
+    }
 
-        return ret;
+    private int getPageSize(Integer requested) {
+        if (requested != null && requested > 0) {
+            return Math.min(requested, MAX_PAGE_SIZE);
+        }
+        String configured = Context.getAdministrationService().getGlobalProperty(
+                HtmlFormEntryConstants.GP_PROVIDER_SEARCH_PAGE_SIZE);
+        if (StringUtils.isNotBlank(configured)) {
+            try {
+                int size = Integer.parseInt(configured.trim());
+                if (size > 0) {
+                    return Math.min(size, MAX_PAGE_SIZE);
+                }
+            }
+            catch (NumberFormatException ex) {
+                log.warn("Invalid value for " + HtmlFormEntryConstants.GP_PROVIDER_SEARCH_PAGE_SIZE + ": " + configured);
+            }
+        }
+        return DEFAULT_PAGE_SIZE;
     }
 }
@@ -357,6 +357,7 @@
 		</c:if>
 		<input type="hidden" name="closeAfterSubmission" value="${param.closeAfterSubmission}"/>
 		<input type="hidden" name="hasChangedInd" class="has-changed-ind" value="${ command.hasChangedInd }" />
+		<input type="hidden" name="formSessionKey" value="${ command.formSessionKey }"/>
 </c:if>
 
 <c:if test="${command.context.guessingInd == 'true'}">
@@ -29,6 +29,9 @@ $j('#personTable').load('load', function() {
 
 </script>
 	
+		<c:if test="${moreResults}">
+			<div class="error"><spring:message code="htmlformentry.personSearchTooManyResults" arguments="${maxResults}"/></div>
+		</c:if>
 		<table cellspacing="0" cellpadding="2" id="personTable" style="width: 100%;">
 					<thead>
 						<tr>
@@ -48,14 +51,12 @@ $j('#personTable').load('load', function() {
 			<tr class="<c:choose><c:when test="${rowStatus.index % 2 == 0}">evenRow</c:when><c:otherwise>oddRow</c:otherwise></c:choose>">
 				<c:set var="fullName" value="${collection.givenName} ${collection.familyName}" />  
 				<td>
-				<c:if test="${collection['class'].name eq 'org.openmrs.web.dwr.PatientListItem'}">
 				<c:out value="${collection.identifier}"/>
-				</c:if>
 				</td>
-				<td><a href='javascript:void(0)' onClick='callSetParentValue("${collection.personId}", "${fullName}", "${param.prefix}")'><c:out value="${collection.givenName}"/></a></td>
-				<td><a href='javascript:void(0)' onClick='callSetParentValue("${collection.personId}", "${fullName}", "${param.prefix}")'><c:out value="${collection.familyName}"/></a></td>
+				<td><a href='javascript:void(0)' onClick='callSetParentValue("${collection.id}", "${fullName}", "${param.prefix}")'><c:out value="${collection.givenName}"/></a></td>
+				<td><a href='javascript:void(0)' onClick='callSetParentValue("${collection.id}", "${fullName}", "${param.prefix}")'><c:out value="${collection.familyName}"/></a></td>
 				<td class="personAge">
-				<c:choose><c:when test="${collection.age == 0}">&lt;1</c:when>
+				<c:choose><c:when test="${empty collection.age}"></c:when><c:when test="${collection.age == 0}">&lt;1</c:when>
 					<c:otherwise>
 				<c:out value="${collection.age}"/>
 					</c:otherwise>
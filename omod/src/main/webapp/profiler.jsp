@@ -0,0 +1,104 @@
+<%@ include file="/WEB-INF/template/include.jsp" %>
+
+<openmrs:require privilege="Manage Forms" otherwise="/login.htm" redirect="/module/htmlformentry/profiler.form" />
+
+<%@ include file="/WEB-INF/template/header.jsp" %>
+<%@ include file="localHeader.jsp" %>
+
+<h2><spring:message code="htmlformentry.profiler" /></h2>
+
+<p><spring:message code="htmlformentry.profiler.description" arguments="${topN}" /></p>
+
+<form method="post">
+	<c:choose>
+		<c:when test="${enabled}">
+			<b><spring:message code="htmlformentry.profiler.on" /></b>
+			<button type="submit" name="action" value="stop"><spring:message code="htmlformentry.profiler.stop" /></button>
+		</c:when>
+		<c:otherwise>
+			<b><spring:message code="htmlformentry.profiler.off" /></b>
+			<button type="submit" name="action" value="start"><spring:message code="htmlformentry.profiler.start" /></button>
+		</c:otherwise>
+	</c:choose>
+	<button type="submit" name="action" value="reset"><spring:message code="htmlformentry.profiler.reset" /></button>
+	<a href="metrics.form"><spring:message code="htmlformentry.profiler.metrics" /></a>
+</form>
+
+<br />
+
+<div class="boxHeader">
+	<b><spring:message code="htmlformentry.profiler.slowestRuns" /></b>
+</div>
+<div class="box">
+	<table cellpadding="2" cellspacing="0" width="98%">
+		<tr>
+			<th> <spring:message code="general.name" /> </th>
+			<th> <spring:message code="htmlformentry.profiler.operation" /> </th>
+			<th> <spring:message code="htmlformentry.profiler.date" /> </th>
+			<th> <spring:message code="htmlformentry.profiler.duration" /> </th>
+			<th> <spring:message code="htmlformentry.profiler.queries" /> </th>
+			<th> <spring:message code="htmlformentry.profiler.statements" /> </th>
+			<th> <spring:message code="htmlformentry.profiler.entitiesLoaded" /> </th>
+			<th> <spring:message code="htmlformentry.profiler.collectionsLoaded" /> </th>
+			<th> <spring:message code="htmlformentry.profiler.velocityEvaluations" /> </th>
+			<th> <spring:message code="htmlformentry.profiler.lookups" /> </th>
+		</tr>
+		<c:forEach var="run" items="${slowestRuns}" varStatus="status">
+			<tr class='${status.index % 2 == 0 ? "evenRow" : "oddRow"}'>
+				<td valign="top">
+					<c:choose>
+						<c:when test="${run.htmlFormId != null}"><a href="htmlForm.form?id=${run.htmlFormId}"><c:out value="${run.formName}"/></a></c:when>
+						<c:otherwise><spring:message code="htmlformentry.newForm" /></c:otherwise>
+					</c:choose>
+				</td>
+				<td valign="top">${run.operation}</td>
+				<td valign="top"><openmrs:formatDate date="${run.date}" type="long" /></td>
+				<td valign="top"><fmt:formatNumber value="${run.durationMs}" maxFractionDigits="1" /></td>
+				<td valign="top">${run.queries}</td>
+				<td valign="top">${run.statements}</td>
+				<td valign="top">${run.entitiesLoaded}</td>
+				<td valign="top">${run.collectionsLoaded}</td>
+				<td valign="top">${run.velocityEvaluations}</td>
+				<td valign="top">
+					${run.lookupCount}
+					<c:forEach var="lookup" items="${run.lookups}">
+						<br /><small>${lookup.key}: ${lookup.value}</small>
+					</c:forEach>
+				</td>
+			</tr>
+		</c:forEach>
+	</table>
+</div>
+
+<br />
+
+<div class="boxHeader">
+	<b><spring:message code="htmlformentry.profiler.slowestTags" /></b>
+</div>
+<div class="box">
+	<table cellpadding="2" cellspacing="0" width="98%">
+		<tr>
+			<th> <spring:message code="general.name" /> </th>
+			<th> <spring:message code="htmlformentry.profiler.tag" /> </th>
+			<th> <spring:message code="htmlformentry.profiler.date" /> </th>
+			<th> <spring:message code="htmlformentry.profiler.duration" /> </th>
+			<th> <spring:message code="htmlformentry.profiler.invocations" /> </th>
+		</tr>
+		<c:forEach var="tag" items="${slowestTags}" varStatus="status">
+			<tr class='${status.index % 2 == 0 ? "evenRow" : "oddRow"}'>
+				<td valign="top">
+					<c:choose>
+						<c:when test="${tag.htmlFormId != null}"><a href="htmlForm.form?id=${tag.htmlFormId}"><c:out value="${tag.formName}"/></a></c:when>
+						<c:otherwise><spring:message code="htmlformentry.newForm" /></c:otherwise>
+					</c:choose>
+				</td>
+				<td valign="top">&lt;${tag.tag}&gt;</td>
+				<td valign="top"><openmrs:formatDate date="${tag.date}" type="long" /></td>
+				<td valign="top"><fmt:formatNumber value="${tag.durationMs}" maxFractionDigits="1" /></td>
+				<td valign="top">${tag.invocations}</td>
+			</tr>
+		</c:forEach>
+	</table>
+</div>
+
+<%@ include file="/WEB-INF/template/footer.jsp" %>
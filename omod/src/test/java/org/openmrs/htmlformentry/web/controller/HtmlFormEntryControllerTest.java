@@ -0,0 +1,100 @@
+package org.openmrs.htmlformentry.web.controller;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.htmlformentry.FormEntrySession;
+import org.openmrs.module.htmlformentry.HtmlForm;
+import org.openmrs.module.htmlformentry.HtmlFormEntryUtil;
+import org.openmrs.module.htmlformentry.store.FormSessionState;
+import org.openmrs.module.htmlformentry.web.controller.HtmlFormEntryController;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.web.WebConstants;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpSession;
+
+public class HtmlFormEntryControllerTest extends BaseModuleContextSensitiveTest {
+
+    private HtmlFormEntryController controller;
+
+    private HtmlForm htmlForm;
+
+    private Patient patient;
+
+    @Before
+    public void setUp() throws Exception {
+        controller = new HtmlFormEntryController();
+        htmlForm = new HtmlForm();
+        htmlForm.setForm(Context.getFormService().getForm(1));
+        htmlForm.setXmlData("<htmlform>Weight: <obs conceptId=\"5089\"/></htmlform>");
+        HtmlFormEntryUtil.getService().saveHtmlForm(htmlForm);
+        patient = Context.getPatientService().getPatient(7);
+    }
+
+    @Test
+    public void getFormEntrySession_shouldRestoreAStoredFormSession() throws Exception {
+        String key = storeFormSession();
+
+        FormEntrySession session = getFormEntrySession(new MockHttpServletRequest("GET", "/"), null, key);
+
+        Assert.assertEquals(key, session.getFormSessionKey());
+        Assert.assertEquals(htmlForm.getId(), session.getHtmlFormId());
+        Assert.assertEquals(patient, session.getPatient());
+        Assert.assertNotNull(HtmlFormEntryUtil.getFormSessionStore().get(key));
+    }
+
+    @Test
+    public void getFormEntrySession_shouldStartOverIfTheFormChangedSinceTheSessionWasStored() throws Exception {
+        String key = storeFormSession();
+        FormSessionState state = HtmlFormEntryUtil.getFormSessionStore().get(key);
+        state.setFormModifiedTimestamp(1L);
+        HtmlFormEntryUtil.getFormSessionStore().save(state);
+
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+        FormEntrySession session = getFormEntrySession(request, null, key);
+
+        Assert.assertEquals(key, session.getFormSessionKey());
+        Assert.assertEquals(htmlForm.getId(), session.getHtmlFormId());
+        Assert.assertEquals(patient, session.getPatient());
+        Assert.assertNull(HtmlFormEntryUtil.getFormSessionStore().get(key));
+        Assert.assertEquals("htmlformentry.formSessionDiscarded",
+            request.getSession().getAttribute(WebConstants.OPENMRS_MSG_ATTR));
+    }
+
+    @Test
+    public void getFormEntrySession_shouldNotTakeOverTheFormSessionOfAnotherUser() throws Exception {
+        String key = storeFormSession();
+        FormSessionState state = HtmlFormEntryUtil.getFormSessionStore().get(key);
+        state.setUserUuid(UUID.randomUUID().toString());
+        HtmlFormEntryUtil.getFormSessionStore().save(state);
+
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+        request.setParameter("mode", "enter");
+        FormEntrySession session = getFormEntrySession(request, htmlForm.getId(), key);
+
+        Assert.assertNotNull(session.getFormSessionKey());
+        Assert.assertFalse(key.equals(session.getFormSessionKey()));
+        Assert.assertEquals(state.getUserUuid(), HtmlFormEntryUtil.getFormSessionStore().get(key).getUserUuid());
+    }
+
+    private String storeFormSession() throws Exception {
+        FormEntrySession session = new FormEntrySession(patient, htmlForm, new MockHttpSession());
+        session.getHtmlToDisplay();
+        String key = UUID.randomUUID().toString();
+        Map<String, String[]> parameterMap = new HashMap<String, String[]>();
+        HtmlFormEntryUtil.getFormSessionStore().save(FormSessionState.forSession(key, session, parameterMap));
+        return key;
+    }
+
+    private FormEntrySession getFormEntrySession(MockHttpServletRequest request, Integer htmlFormId, String key)
+            throws Exception {
+        Integer patientId = htmlFormId == null ? null : patient.getPatientId();
+        return controller.getFormEntrySession(request, patientId, null, htmlFormId, null, null, null, null, key);
+    }
+}